@@ -0,0 +1,116 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+// Rows per second recorded by DepositDao#addResponses, depending on the batch size. Runs against the embedded PostgreSQL
+// by default, or MySQL with -Djmh.postgresql=false.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DepositDaoBatchBenchmark {
+
+    private static final DateTime UTC_NOW = new DateTime("2021-03-16T12:00:00Z", DateTimeZone.UTC);
+
+    @Param({"1", "10", "100", "1000"})
+    public int batchSize;
+
+    private final UUID kbTenantId = UUID.randomUUID();
+
+    private DepositDao dao;
+    private int depositNumber;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rows {
+
+        // Reported as rows/s, next to the batches/s of the benchmark itself
+        public long rows;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EmbeddedDbHelper.instance().startDb();
+        dao = EmbeddedDbHelper.instance().getDepositDao();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        EmbeddedDbHelper.instance().stopDB();
+    }
+
+    @Benchmark
+    public void addResponses(final Rows rows) throws Exception {
+        // A new deposit each time, so that the deposit keys stay unique
+        final String paymentReferenceNumber = "WIRE-" + (++depositNumber);
+        final List<DepositDao.PendingResponse> responses = new ArrayList<DepositDao.PendingResponse>(batchSize);
+        for (int i = 1; i <= batchSize; i++) {
+            final Iterable<PluginProperty> properties = ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, paymentReferenceNumber, false),
+                                                                                         new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, "wire", false),
+                                                                                         new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, UTC_NOW, false),
+                                                                                         new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, i, false));
+            responses.add(new DepositDao.PendingResponse(UUID.randomUUID(),
+                                                         UUID.randomUUID(),
+                                                         UUID.randomUUID(),
+                                                         TransactionType.PURCHASE,
+                                                         BigDecimal.TEN,
+                                                         Currency.USD,
+                                                         properties,
+                                                         kbTenantId));
+        }
+
+        dao.addResponses(responses, UTC_NOW);
+        rows.rows += batchSize;
+    }
+}
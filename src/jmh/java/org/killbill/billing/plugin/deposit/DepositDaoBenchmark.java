@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+// Database-bound benchmarks run against the embedded PostgreSQL used by the slow tests
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DepositDaoBenchmark {
+
+    private static final DateTime UTC_NOW = new DateTime("2021-03-16T12:00:00Z", DateTimeZone.UTC);
+
+    private final UUID kbTenantId = UUID.randomUUID();
+    private final Map<String, Object> paymentMethodAdditionalData = ImmutableMap.<String, Object>of();
+
+    private DepositDao dao;
+    private Iterable<PluginProperty> purchasePluginProperties;
+    private int invoiceNumber;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EmbeddedDbHelper.instance().startDb();
+        dao = EmbeddedDbHelper.instance().getDepositDao();
+
+        // See DepositService
+        purchasePluginProperties = ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, "WIRE-12345", false),
+                                                                    new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, "wire", false),
+                                                                    new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, UTC_NOW, false));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        EmbeddedDbHelper.instance().stopDB();
+    }
+
+    @Benchmark
+    public void addResponse() throws Exception {
+        // A new invoice each time, so that the deposit keys stay unique
+        final Iterable<PluginProperty> properties = ImmutableList.<PluginProperty>builder()
+                                                                 .addAll(purchasePluginProperties)
+                                                                 .add(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, ++invoiceNumber, false))
+                                                                 .build();
+        dao.addResponse(UUID.randomUUID(),
+                        UUID.randomUUID(),
+                        UUID.randomUUID(),
+                        TransactionType.PURCHASE,
+                        BigDecimal.TEN,
+                        Currency.USD,
+                        properties,
+                        UTC_NOW,
+                        kbTenantId);
+    }
+
+    @Benchmark
+    public void addPaymentMethod() throws Exception {
+        // A new account each time, as an account can only have one active deposit payment method
+        dao.addPaymentMethod(UUID.randomUUID(), UUID.randomUUID(), paymentMethodAdditionalData, UTC_NOW, kbTenantId);
+    }
+}
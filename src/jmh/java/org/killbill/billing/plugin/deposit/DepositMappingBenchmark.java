@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.types.ULong;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.control.plugin.api.PaymentControlContext;
+import org.killbill.billing.control.plugin.api.PriorPaymentControlResult;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.billing.tenant.api.TenantUserApi;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.clock.DefaultClock;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+import com.google.common.collect.ImmutableList;
+
+// In-memory hot paths of the DAO and of the payment and payment control plugins (no database)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DepositMappingBenchmark {
+
+    // What DepositDao#addResponse stores, with the JSON encoding
+    private static final String ADDITIONAL_DATA_JSON = "{\"" + DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER + "\":\"WIRE-12345\"," +
+                                                       "\"" + DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE + "\":\"wire\"," +
+                                                       "\"" + DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE + "\":\"2021-03-16T00:00:00.000Z\"," +
+                                                       "\"" + DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER + "\":\"824\"}";
+
+    private static final byte[] ADDITIONAL_DATA = ADDITIONAL_DATA_JSON.getBytes(StandardCharsets.UTF_8);
+
+    private final Iterable<PluginProperty> noProperties = ImmutableList.<PluginProperty>of();
+
+    private byte[] smileAdditionalData;
+    private DepositPaymentPluginApi depositPaymentPluginApi;
+    private DepositPaymentControlPluginApi depositPaymentControlPluginApi;
+    private DepositResponsesRecord depositResponse;
+    private PaymentControlContext paymentControlContext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final OSGIKillbillAPI killbillAPI = Mockito.mock(OSGIKillbillAPI.class);
+        final OSGIConfigPropertiesService configPropertiesService = new OSGIConfigPropertiesService(Mockito.mock(BundleContext.class));
+        final DefaultClock clock = new DefaultClock();
+
+        depositPaymentPluginApi = new DepositPaymentPluginApi(killbillAPI,
+                                                              configPropertiesService,
+                                                              clock,
+                                                              Mockito.mock(DepositDao.class),
+                                                              new DepositPaymentMethodCache(DepositPaymentMethodCache.DEFAULT_CACHE_SIZE));
+
+        smileAdditionalData = DepositDao.toAdditionalData(DepositDao.fromAdditionalData(ADDITIONAL_DATA), DepositDao.AdditionalDataEncoding.SMILE);
+
+        depositResponse = new DepositResponsesRecord();
+        depositResponse.setRecordId(ULong.valueOf(BigInteger.ONE));
+        depositResponse.setKbAccountId(UUID.randomUUID().toString());
+        depositResponse.setKbPaymentId(UUID.randomUUID().toString());
+        depositResponse.setKbPaymentTransactionId(UUID.randomUUID().toString());
+        depositResponse.setTransactionType(TransactionType.PURCHASE.toString());
+        depositResponse.setAmount(BigDecimal.TEN);
+        depositResponse.setCurrency(Currency.USD.toString());
+        depositResponse.setDepositReferenceNumber("WIRE-12345");
+        depositResponse.setDepositType("wire");
+        depositResponse.setAdditionalData(ADDITIONAL_DATA);
+        depositResponse.setCreatedDate(LocalDateTime.of(2021, 3, 16, 12, 0));
+        depositResponse.setKbTenantId(UUID.randomUUID().toString());
+
+        // Minimum amount configured for the tenant, below the payment amount (i.e. the payment isn't aborted)
+        final TenantUserApi tenantUserApi = Mockito.mock(TenantUserApi.class);
+        Mockito.when(tenantUserApi.getTenantValuesForKey(Mockito.eq("PLUGIN_CONFIG_" + DepositActivator.PLUGIN_NAME),
+                                                         Mockito.any(TenantContext.class)))
+               .thenReturn(ImmutableList.<String>of("!!org.killbill.billing.plugin.deposit.DepositConfiguration\n" +
+                                                    "  minAmounts:\n" +
+                                                    "    USD: 0.5\n" +
+                                                    "  maxAmounts:\n" +
+                                                    "    USD: 10000"));
+        Mockito.when(killbillAPI.getTenantUserApi()).thenReturn(tenantUserApi);
+        final DepositConfigurationHandler configurationHandler = new DepositConfigurationHandler(null, DepositActivator.PLUGIN_NAME, killbillAPI);
+        configurationHandler.setDefaultConfigurable(new DepositConfiguration());
+        depositPaymentControlPluginApi = new DepositPaymentControlPluginApi(configurationHandler,
+                                                                            new DepositVelocityTracker(DepositVelocityTracker.DEFAULT_MAX_ACCOUNTS, DepositVelocityTracker.DEFAULT_IDLE_EXPIRATION_MINUTES),
+                                                                            killbillAPI, configPropertiesService, clock, new DepositMetrics());
+
+        // Stub-only, so that Mockito doesn't record (and retain) every invocation
+        final UUID kbTenantId = UUID.randomUUID();
+        paymentControlContext = Mockito.mock(PaymentControlContext.class, Mockito.withSettings().stubOnly());
+        Mockito.when(paymentControlContext.getTenantId()).thenReturn(kbTenantId);
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(BigDecimal.TEN);
+        Mockito.when(paymentControlContext.getCurrency()).thenReturn(Currency.USD);
+    }
+
+    @Benchmark
+    public Map fromAdditionalData() {
+        return DepositDao.fromAdditionalData(ADDITIONAL_DATA);
+    }
+
+    @Benchmark
+    public Map fromAdditionalDataSmile() {
+        return DepositDao.fromAdditionalData(smileAdditionalData);
+    }
+
+    @Benchmark
+    public PaymentTransactionInfoPlugin buildPaymentTransactionInfoPlugin() {
+        return depositPaymentPluginApi.buildPaymentTransactionInfoPlugin(depositResponse);
+    }
+
+    // Plugin info requested (e.g. withPluginInfo=true): additional_data is decoded
+    @Benchmark
+    public List<PluginProperty> buildPaymentTransactionInfoPluginWithProperties() {
+        final List<PluginProperty> properties = depositPaymentPluginApi.buildPaymentTransactionInfoPlugin(depositResponse).getProperties();
+        properties.size();
+        return properties;
+    }
+
+    @Benchmark
+    public PriorPaymentControlResult priorCall() throws Exception {
+        return depositPaymentControlPluginApi.priorCall(paymentControlContext, noProperties);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooq.DSLContext;
+import org.jooq.conf.Settings;
+import org.jooq.impl.DSL;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.dao.PluginDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses.DEPOSIT_RESPONSES;
+
+// Lookups of deposit responses with the Kill Bill ids stored as char(36) or as binary(16) / uuid (binary-uuids schema variant).
+// The size of the indexes of deposit_responses is printed once the table is loaded.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DepositUuidStorageBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositUuidStorageBenchmark.class);
+
+    private static final DateTime UTC_NOW = new DateTime("2021-03-16T12:00:00Z", DateTimeZone.UTC);
+    private static final int NB_DEPOSITS = 100;
+    private static final int NB_INVOICES_PER_DEPOSIT = 1000;
+
+    @Param({"char", "binary"})
+    public String uuidStorage;
+
+    private final UUID kbTenantId = UUID.randomUUID();
+    private final List<UUID> kbPaymentIds = new ArrayList<UUID>(NB_DEPOSITS * NB_INVOICES_PER_DEPOSIT);
+
+    private Connection connection;
+    private DSLContext dslContext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        EmbeddedDbHelper.instance().startDb();
+        if ("binary".equals(uuidStorage)) {
+            // The table is empty: no need for the online migration
+            if (EmbeddedDbHelper.instance().getDBEngine() == EmbeddedDB.DBEngine.POSTGRESQL) {
+                execute("alter table deposit_responses alter column kb_account_id type uuid using kb_account_id::uuid," +
+                        " alter column kb_payment_id type uuid using kb_payment_id::uuid," +
+                        " alter column kb_payment_transaction_id type uuid using kb_payment_transaction_id::uuid," +
+                        " alter column kb_tenant_id type uuid using kb_tenant_id::uuid");
+            } else {
+                execute("alter table deposit_responses modify kb_account_id binary(16) not null," +
+                        " modify kb_payment_id binary(16) not null," +
+                        " modify kb_payment_transaction_id binary(16) not null," +
+                        " modify kb_tenant_id binary(16) not null");
+            }
+        }
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+
+        for (int depositNumber = 1; depositNumber <= NB_DEPOSITS; depositNumber++) {
+            final List<DepositDao.PendingResponse> responses = new ArrayList<DepositDao.PendingResponse>(NB_INVOICES_PER_DEPOSIT);
+            for (int invoiceNumber = 1; invoiceNumber <= NB_INVOICES_PER_DEPOSIT; invoiceNumber++) {
+                final UUID kbPaymentId = UUID.randomUUID();
+                kbPaymentIds.add(kbPaymentId);
+                responses.add(new DepositDao.PendingResponse(UUID.randomUUID(),
+                                                             kbPaymentId,
+                                                             UUID.randomUUID(),
+                                                             TransactionType.PURCHASE,
+                                                             BigDecimal.TEN,
+                                                             Currency.USD,
+                                                             ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, "WIRE-" + depositNumber, false),
+                                                                                              new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, invoiceNumber, false)),
+                                                             kbTenantId));
+            }
+            dao.addResponses(responses, UTC_NOW);
+        }
+
+        printIndexSizes();
+
+        // Same queries as DepositDao, without the cost of a new connection per call (see TestDepositBenchmarks)
+        connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+        dslContext = DSL.using(connection, PluginDao.getSQLDialect(PluginDao.getDBEngine(EmbeddedDbHelper.instance().getDataSource())),
+                               new Settings().withRenderSchema(false));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        connection.close();
+        EmbeddedDbHelper.instance().stopDB();
+    }
+
+    // deposit_responses_kb_tenant_id_kb_payment_id, see DepositDao#getResponses
+    @Benchmark
+    public List<DepositResponsesRecord> getResponses() {
+        final UUID kbPaymentId = kbPaymentIds.get(ThreadLocalRandom.current().nextInt(kbPaymentIds.size()));
+        return dslContext.selectFrom(DEPOSIT_RESPONSES)
+                         .where(DEPOSIT_RESPONSES.KB_PAYMENT_ID.equal(kbPaymentId.toString()))
+                         .and(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                         .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                         .fetch();
+    }
+
+    // deposit_responses_deposit_reference_invoice_number, which starts with kb_tenant_id: see DepositDao#getDepositResponse
+    @Benchmark
+    public DepositResponsesRecord getDepositResponse() {
+        return dslContext.selectFrom(DEPOSIT_RESPONSES)
+                         .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                         .and(DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER.equal("WIRE-" + (1 + ThreadLocalRandom.current().nextInt(NB_DEPOSITS))))
+                         .and(DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER.equal(1 + ThreadLocalRandom.current().nextInt(NB_INVOICES_PER_DEPOSIT)))
+                         .fetchOne();
+    }
+
+    private void printIndexSizes() throws Exception {
+        final String query;
+        if (EmbeddedDbHelper.instance().getDBEngine() == EmbeddedDB.DBEngine.POSTGRESQL) {
+            execute("analyze deposit_responses");
+            query = "select indexrelname, pg_relation_size(indexrelid) from pg_stat_user_indexes where relname = 'deposit_responses' order by 1";
+        } else {
+            execute("analyze table deposit_responses");
+            query = "select index_name, stat_value * @@innodb_page_size from mysql.innodb_index_stats where table_name = 'deposit_responses' and stat_name = 'size' order by 1";
+        }
+
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(query)) {
+            while (resultSet.next()) {
+                logger.info("{} ({}): {} kB", resultSet.getString(1), uuidStorage, resultSet.getLong(2) / 1024);
+            }
+        }
+    }
+
+    private void execute(final String sql) throws Exception {
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+// Runs the JMH benchmarks through Surefire (mvn test -Pjmh). Results are written as JSON to jmh.resultFile
+// (target/jmh-result.json by default), which can be compared across runs (e.g. with https://jmh.morethan.net/).
+public class TestDepositBenchmarks {
+
+    @Test(groups = "benchmark")
+    public void testRunBenchmarks() throws Exception {
+        final Options options = new OptionsBuilder().include(System.getProperty("jmh.include", ".*Benchmark"))
+                                                    // Allocations (gc.alloc.rate.norm, in bytes per operation) are reported next to the timings
+                                                    .addProfiler(GCProfiler.class)
+                                                    .resultFormat(ResultFormatType.JSON)
+                                                    .result(System.getProperty("jmh.resultFile", "target/jmh-result.json"))
+                                                    // Forked JVMs don't inherit the Surefire system properties
+                                                    .jvmArgsAppend("-Dorg.killbill.billing.dbi.test.postgresql=" + System.getProperty("org.killbill.billing.dbi.test.postgresql", "true"),
+                                                                   "-Dkillbill.test.use.connection.pool=false",
+                                                                   "-Duser.timezone=GMT")
+                                                    .build();
+        final Collection<RunResult> results = new Runner(options).run();
+        Assert.assertFalse(results.isEmpty(), "No benchmark matched " + System.getProperty("jmh.include"));
+    }
+}
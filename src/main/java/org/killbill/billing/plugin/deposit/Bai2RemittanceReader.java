@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.killbill.billing.plugin.deposit.DepositRemittance.Item;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceHandler;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceReader;
+
+/**
+ * Reads the credit transactions (type codes 100 to 399) of a BAI2 file.
+ * <p>
+ * Each transaction detail (16) record becomes a remittance: the bank reference is the payment reference number
+ * (the customer reference is used if it is empty), the customer reference identifies the invoice or the account
+ * and the as-of-date of the group (02) is the effective date. Continuation (88) records are supported.
+ */
+final class Bai2RemittanceReader implements RemittanceReader {
+
+    enum MatchBy {
+        INVOICE_NUMBER,
+        ACCOUNT_EXTERNAL_KEY
+    }
+
+    private static final DateTimeFormatter AS_OF_DATE_FORMATTER = DateTimeFormat.forPattern("yyMMdd").withZoneUTC();
+
+    private final RemittanceHandler handler;
+    private final MatchBy matchBy;
+
+    private StringBuilder pendingRecord;
+    private int pendingRecordLineNumber;
+    private DateTime groupAsOfDate;
+
+    Bai2RemittanceReader(final RemittanceHandler handler, final MatchBy matchBy) {
+        this.handler = handler;
+        this.matchBy = matchBy;
+    }
+
+    @Override
+    public void onLine(final int lineNumber, final String line) throws IOException {
+        final String record = line.trim();
+        if (record.isEmpty()) {
+            return;
+        }
+
+        if (record.startsWith("88,")) {
+            if (pendingRecord == null) {
+                handler.onInvalidRecord(lineNumber, "Continuation record without a previous record");
+            } else {
+                // The continuation starts with the next field of the previous record
+                stripRecordDelimiter(pendingRecord).append(record, 2, record.length());
+            }
+            return;
+        }
+
+        flushPendingRecord();
+        pendingRecord = new StringBuilder(record);
+        pendingRecordLineNumber = lineNumber;
+    }
+
+    @Override
+    public void onEndOfInput() throws IOException {
+        flushPendingRecord();
+    }
+
+    private void flushPendingRecord() throws IOException {
+        if (pendingRecord == null) {
+            return;
+        }
+
+        final String record = stripRecordDelimiter(pendingRecord).toString();
+        pendingRecord = null;
+        onRecord(pendingRecordLineNumber, record.split(",", -1));
+    }
+
+    private void onRecord(final int lineNumber, final String[] fields) throws IOException {
+        switch (fields[0]) {
+            case "02":
+                onGroupHeader(lineNumber, fields);
+                break;
+            case "16":
+                onTransactionDetail(lineNumber, fields);
+                break;
+            case "98":
+                groupAsOfDate = null;
+                break;
+            case "01":
+            case "03":
+            case "49":
+            case "99":
+                break;
+            default:
+                handler.onInvalidRecord(lineNumber, "Unknown record type " + fields[0]);
+        }
+    }
+
+    // 02,Ultimate Receiver Identification,Originator Identification,Group Status,As-of-Date,As-of-Time,Currency Code,As-of-Date Modifier
+    private void onGroupHeader(final int lineNumber, final String[] fields) throws IOException {
+        groupAsOfDate = null;
+        if (fields.length < 5) {
+            handler.onInvalidRecord(lineNumber, "Missing As-of-Date");
+            return;
+        }
+
+        try {
+            groupAsOfDate = AS_OF_DATE_FORMATTER.parseDateTime(fields[4].trim());
+        } catch (final IllegalArgumentException e) {
+            handler.onInvalidRecord(lineNumber, "Invalid As-of-Date " + fields[4]);
+        }
+    }
+
+    // 16,Type Code,Amount,Funds Type,[Funds Type details,]Bank Reference Number,Customer Reference Number,Text
+    private void onTransactionDetail(final int lineNumber, final String[] fields) throws IOException {
+        if (fields.length < 4) {
+            handler.onInvalidRecord(lineNumber, "Truncated transaction detail");
+            return;
+        }
+
+        final int typeCode;
+        final BigDecimal amount;
+        try {
+            typeCode = Integer.parseInt(fields[1].trim());
+            // Amounts are in cents, without a decimal point
+            amount = BigDecimal.valueOf(Long.parseLong(fields[2].trim()), 2);
+        } catch (final NumberFormatException e) {
+            handler.onInvalidRecord(lineNumber, "Invalid type code or amount");
+            return;
+        }
+        if (typeCode < 100 || typeCode > 399) {
+            // Debit or summary: not a deposit
+            return;
+        }
+
+        final int bankReferenceIndex = 4 + getFundsTypeDetailsLength(fields);
+        if (bankReferenceIndex < 0 || fields.length <= bankReferenceIndex + 1) {
+            handler.onInvalidRecord(lineNumber, "Missing bank or customer reference");
+            return;
+        }
+        if (groupAsOfDate == null) {
+            handler.onInvalidRecord(lineNumber, "Transaction detail outside of a group");
+            return;
+        }
+
+        final String bankReference = fields[bankReferenceIndex].trim();
+        final String customerReference = fields[bankReferenceIndex + 1].trim();
+        if (customerReference.isEmpty()) {
+            handler.onInvalidRecord(lineNumber, "Missing customer reference");
+            return;
+        }
+
+        final Item item;
+        if (matchBy == MatchBy.INVOICE_NUMBER) {
+            try {
+                item = new Item(Integer.valueOf(customerReference), null, amount);
+            } catch (final NumberFormatException e) {
+                handler.onInvalidRecord(lineNumber, "Invalid invoice number " + customerReference);
+                return;
+            }
+        } else {
+            item = new Item(null, customerReference, amount);
+        }
+
+        final DepositRemittance remittance = new DepositRemittance(lineNumber,
+                                                                   bankReference.isEmpty() ? customerReference : bankReference,
+                                                                   "bai2-" + typeCode,
+                                                                   groupAsOfDate,
+                                                                   amount);
+        remittance.addItem(item);
+        handler.onRemittance(remittance);
+    }
+
+    // Number of fields between the Funds Type and the Bank Reference Number, -1 if invalid
+    private static int getFundsTypeDetailsLength(final String[] fields) {
+        switch (fields[3].trim()) {
+            case "S":
+                // Immediate, one-day and two-or-more-day availability amounts
+                return 3;
+            case "V":
+                // Value date and time
+                return 2;
+            case "D":
+                // Number of distributions, followed by (days, amount) pairs
+                if (fields.length < 5) {
+                    return -1;
+                }
+                try {
+                    return 1 + 2 * Integer.parseInt(fields[4].trim());
+                } catch (final NumberFormatException e) {
+                    return -1;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    private static StringBuilder stripRecordDelimiter(final StringBuilder record) {
+        if (record.length() > 0 && record.charAt(record.length() - 1) == '/') {
+            record.setLength(record.length() - 1);
+        }
+        return record;
+    }
+}
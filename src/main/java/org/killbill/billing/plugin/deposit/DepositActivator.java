@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.deposit;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Locale;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
@@ -34,12 +35,26 @@ import org.killbill.billing.plugin.core.resources.jooby.PluginApp;
 import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
 import org.killbill.billing.plugin.deposit.dao.DepositDao;
 import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DepositActivator extends KillbillActivatorBase {
 
     public static final String PLUGIN_NAME = "killbill-deposit";
+    public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.deposit.";
+    public static final String ADDITIONAL_DATA_ENCODING_PROPERTY = PROPERTY_PREFIX + "additionalDataEncoding";
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositActivator.class);
 
     private DepositConfigurationHandler depositConfigurationHandler;
+    private DepositExecutors depositExecutors;
+    private DepositPaymentMethodCache depositPaymentMethodCache;
+    private DepositInvoiceCache depositInvoiceCache;
+    private DepositJobQueue depositJobQueue;
+    private DepositReferenceFilter depositReferenceFilter;
+    private DepositDao depositDao;
+    private DepositAdditionalDataReencoder depositAdditionalDataReencoder;
+    private DepositHealthcheck healthcheck;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -50,36 +65,172 @@ public class DepositActivator extends KillbillActivatorBase {
         depositConfigurationHandler = new DepositConfigurationHandler(region, PLUGIN_NAME, killbillAPI);
         depositConfigurationHandler.setDefaultConfigurable(new DepositConfiguration());
 
+        final DepositMetrics depositMetrics = new DepositMetrics();
+        final DepositVelocityTracker depositVelocityTracker = new DepositVelocityTracker(getIntProperty(DepositVelocityTracker.MAX_ACCOUNTS_PROPERTY, DepositVelocityTracker.DEFAULT_MAX_ACCOUNTS),
+                                                                                         getIntProperty(DepositVelocityTracker.IDLE_EXPIRATION_MINUTES_PROPERTY, DepositVelocityTracker.DEFAULT_IDLE_EXPIRATION_MINUTES));
+        depositVelocityTracker.registerGauges(depositMetrics);
         final PaymentControlPluginApi paymentControlPluginApi = new DepositPaymentControlPluginApi(depositConfigurationHandler,
+                                                                                                   depositVelocityTracker,
                                                                                                    killbillAPI,
                                                                                                    configProperties,
-                                                                                                   clock.getClock());
+                                                                                                   clock.getClock(),
+                                                                                                   depositMetrics);
         registerPaymentControlPluginApi(context, paymentControlPluginApi);
 
-        final DepositDao depositDao = new DepositDao(dataSource.getDataSource());
-        final PaymentPluginApi paymentPluginApi = new DepositPaymentPluginApi(killbillAPI, configProperties, clock.getClock(), depositDao);
+        depositPaymentMethodCache = new DepositPaymentMethodCache(getIntProperty(DepositPaymentMethodCache.CACHE_SIZE_PROPERTY,
+                                                                                 DepositPaymentMethodCache.DEFAULT_CACHE_SIZE),
+                                                                  getIntProperty(DepositPaymentMethodCache.EXPIRATION_SECONDS_PROPERTY,
+                                                                                 DepositPaymentMethodCache.DEFAULT_EXPIRATION_SECONDS));
+        depositInvoiceCache = new DepositInvoiceCache(getIntProperty(DepositInvoiceCache.CACHE_SIZE_PROPERTY, DepositInvoiceCache.DEFAULT_CACHE_SIZE));
+
+        depositDao = new DepositDao(dataSource.getDataSource(), getAdditionalDataEncoding(), depositMetrics);
+        final DepositResponseWriter depositResponseWriter = new DepositResponseWriter(depositDao,
+                                                                                      clock.getClock(),
+                                                                                      getIntProperty(DepositResponseWriter.GROUP_COMMIT_MAX_WAIT_MS_PROPERTY, DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_WAIT_MS),
+                                                                                      getIntProperty(DepositResponseWriter.GROUP_COMMIT_MAX_BATCH_SIZE_PROPERTY, DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE));
+        depositResponseWriter.registerGauges(depositMetrics);
+        final PaymentPluginApi paymentPluginApi = new DepositPaymentPluginApi(killbillAPI,
+                                                                              configProperties,
+                                                                              clock.getClock(),
+                                                                              depositDao,
+                                                                              depositPaymentMethodCache,
+                                                                              depositResponseWriter);
         registerPaymentPluginApi(context, paymentPluginApi);
 
-        final Healthcheck healthcheck = new DepositHealthcheck();
+        healthcheck = new DepositHealthcheck(depositDao,
+                                             getIntProperty(DepositHealthcheck.INTERVAL_MS_PROPERTY, DepositHealthcheck.DEFAULT_INTERVAL_MS),
+                                             getIntProperty(DepositHealthcheck.WINDOW_SIZE_PROPERTY, DepositHealthcheck.DEFAULT_WINDOW_SIZE),
+                                             getIntProperty(DepositHealthcheck.DEGRADED_LATENCY_MS_PROPERTY, DepositHealthcheck.DEFAULT_DEGRADED_LATENCY_MS),
+                                             getIntProperty(DepositHealthcheck.UNHEALTHY_LATENCY_MS_PROPERTY, DepositHealthcheck.DEFAULT_UNHEALTHY_LATENCY_MS),
+                                             getIntProperty(DepositHealthcheck.MAX_ERROR_RATE_PERCENT_PROPERTY, DepositHealthcheck.DEFAULT_MAX_ERROR_RATE_PERCENT));
         registerHealthcheck(context, healthcheck);
 
+        depositExecutors = new DepositExecutors(getIntProperty(DepositExecutors.BATCH_THREADS_PROPERTY, DepositExecutors.DEFAULT_BATCH_THREADS),
+                                                getIntProperty(DepositExecutors.BATCH_QUEUE_SIZE_PROPERTY, DepositExecutors.DEFAULT_BATCH_QUEUE_SIZE),
+                                                getIntProperty(DepositExecutors.PAYMENT_THREADS_PROPERTY, DepositExecutors.DEFAULT_PAYMENT_THREADS),
+                                                getIntProperty(DepositExecutors.PAYMENT_QUEUE_SIZE_PROPERTY, DepositExecutors.DEFAULT_PAYMENT_QUEUE_SIZE),
+                                                getIntProperty(DepositExecutors.STREAM_THREADS_PROPERTY, DepositExecutors.DEFAULT_STREAM_THREADS));
+        depositExecutors.registerGauges(depositMetrics);
+        depositPaymentMethodCache.registerGauges(depositMetrics);
+        depositInvoiceCache.registerGauges(depositMetrics);
+
+        depositReferenceFilter = new DepositReferenceFilter(getIntProperty(DepositReferenceFilter.EXPECTED_DEPOSITS_PROPERTY, DepositReferenceFilter.DEFAULT_EXPECTED_DEPOSITS),
+                                                            getIntProperty(DepositReferenceFilter.REFRESH_INTERVAL_MS_PROPERTY, DepositReferenceFilter.DEFAULT_REFRESH_INTERVAL_MS));
+        final DepositService depositService = new DepositService(killbillAPI,
+                                                                 clock,
+                                                                 depositExecutors,
+                                                                 depositConfigurationHandler,
+                                                                 depositPaymentMethodCache,
+                                                                 depositInvoiceCache,
+                                                                 depositDao,
+                                                                 depositReferenceFilter,
+                                                                 depositMetrics);
+        depositAdditionalDataReencoder = new DepositAdditionalDataReencoder(depositDao,
+                                                                            clock.getClock(),
+                                                                            getIntProperty(DepositAdditionalDataReencoder.BATCH_SIZE_PROPERTY, DepositAdditionalDataReencoder.DEFAULT_BATCH_SIZE),
+                                                                            getIntProperty(DepositAdditionalDataReencoder.INTERVAL_MS_PROPERTY, DepositAdditionalDataReencoder.DEFAULT_INTERVAL_MS));
+        depositJobQueue = new DepositJobQueue(depositDao,
+                                              depositService,
+                                              clock,
+                                              getIntProperty(DepositJobQueue.JOB_THREADS_PROPERTY, DepositJobQueue.DEFAULT_JOB_THREADS),
+                                              getIntProperty(DepositJobQueue.JOB_POLL_INTERVAL_MS_PROPERTY, DepositJobQueue.DEFAULT_JOB_POLL_INTERVAL_MS),
+                                              getIntProperty(DepositJobQueue.JOB_TIMEOUT_MINUTES_PROPERTY, DepositJobQueue.DEFAULT_JOB_TIMEOUT_MINUTES),
+                                              getIntProperty(DepositJobQueue.JOB_RETENTION_DAYS_PROPERTY, DepositJobQueue.DEFAULT_JOB_RETENTION_DAYS));
+        depositJobQueue.registerGauges(depositMetrics);
+
         final PluginApp pluginApp = new PluginAppBuilder(PLUGIN_NAME,
                                                          killbillAPI,
                                                          dataSource,
                                                          super.clock,
                                                          configProperties).withRouteClass(DepositServlet.class)
                                                                           .withRouteClass(DepositHealthcheckServlet.class)
+                                                                          .withRouteClass(DepositMetricsServlet.class)
+                                                                          .withRouteClass(DepositSearchServlet.class)
+                                                                          .withRouteClass(DepositExportServlet.class)
+                                                                          .withRouteClass(DepositTotalsServlet.class)
                                                                           .withService(healthcheck)
+                                                                          .withService(depositExecutors)
+                                                                          .withService(depositConfigurationHandler)
+                                                                          .withService(depositPaymentMethodCache)
+                                                                          .withService(depositInvoiceCache)
+                                                                          .withService(depositDao)
+                                                                          .withService(depositReferenceFilter)
+                                                                          .withService(depositService)
+                                                                          .withService(depositJobQueue)
+                                                                          .withService(depositMetrics)
                                                                           .build();
+        // Must be registered before the application starts (i.e. before the servlet is created)
+        pluginApp.parser(DepositNdjsonBody.PARSER);
+        pluginApp.parser(DepositImportBody.PARSER);
         final HttpServlet httpServlet = PluginApp.createServlet(pluginApp);
         registerServlet(context, httpServlet);
 
         registerHandlers();
+
+        depositDao.start();
+        depositReferenceFilter.start(depositDao);
+        // Nothing to re-encode with the default encoding, unless explicitly requested (e.g. after disabling Smile)
+        if (depositDao.getAdditionalDataEncoding() == DepositDao.AdditionalDataEncoding.SMILE || Boolean.parseBoolean(configProperties.getString(DepositAdditionalDataReencoder.ENABLED_PROPERTY))) {
+            depositAdditionalDataReencoder.start();
+        }
+        depositJobQueue.start();
+        healthcheck.start();
+    }
+
+    @Override
+    public void stop(final BundleContext context) throws Exception {
+        if (healthcheck != null) {
+            healthcheck.stop();
+        }
+        if (depositJobQueue != null) {
+            depositJobQueue.stop();
+        }
+        if (depositAdditionalDataReencoder != null) {
+            depositAdditionalDataReencoder.stop();
+        }
+        if (depositReferenceFilter != null) {
+            depositReferenceFilter.stop();
+        }
+        if (depositDao != null) {
+            depositDao.stop();
+        }
+        if (depositExecutors != null) {
+            depositExecutors.shutdown();
+        }
+        super.stop(context);
     }
 
     private void registerHandlers() {
         final PluginConfigurationEventHandler configHandler = new PluginConfigurationEventHandler(depositConfigurationHandler);
-        dispatcher.registerEventHandlers(configHandler);
+        dispatcher.registerEventHandlers(configHandler, depositPaymentMethodCache, depositInvoiceCache);
+    }
+
+    private DepositDao.AdditionalDataEncoding getAdditionalDataEncoding() {
+        final String value = configProperties.getString(ADDITIONAL_DATA_ENCODING_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return DepositDao.AdditionalDataEncoding.JSON;
+        }
+
+        try {
+            return DepositDao.AdditionalDataEncoding.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            logger.warn("Invalid value '{}' for property {}, defaulting to {}", value, ADDITIONAL_DATA_ENCODING_PROPERTY, DepositDao.AdditionalDataEncoding.JSON);
+            return DepositDao.AdditionalDataEncoding.JSON;
+        }
+    }
+
+    private int getIntProperty(final String key, final int defaultValue) {
+        final String value = configProperties.getString(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (final NumberFormatException e) {
+            logger.warn("Invalid value '{}' for property {}, defaulting to {}", value, key, defaultValue);
+            return defaultValue;
+        }
     }
 
     private void registerServlet(final BundleContext context, final Servlet servlet) {
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+/**
+ * Plugin properties of a deposit response, decoded from its additional_data column on first access only: Kill Bill doesn't
+ * look at them unless the plugin info is requested (e.g. withPluginInfo=true).
+ */
+final class DepositAdditionalDataProperties extends AbstractList<PluginProperty> {
+
+    private final Supplier<List<PluginProperty>> properties;
+
+    DepositAdditionalDataProperties(@Nullable final byte[] additionalData) {
+        // Thread-safe: decoded at most once
+        this.properties = Suppliers.memoize(new Supplier<List<PluginProperty>>() {
+            @Override
+            public List<PluginProperty> get() {
+                return PluginProperties.buildPluginProperties(DepositDao.fromAdditionalData(additionalData));
+            }
+        });
+    }
+
+    @Override
+    public PluginProperty get(final int index) {
+        return properties.get().get(index);
+    }
+
+    @Override
+    public int size() {
+        return properties.get().size();
+    }
+}
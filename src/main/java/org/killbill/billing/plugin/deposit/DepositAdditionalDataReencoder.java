@@ -0,0 +1,152 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.Table;
+import org.jooq.types.ULong;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS;
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses.DEPOSIT_RESPONSES;
+
+/**
+ * Background job re-encoding the additional_data of existing responses and payment methods with the configured encoding
+ * (see {@link DepositDao.AdditionalDataEncoding}), e.g. JSON rows once the compact encoding has been enabled. It only runs when
+ * Smile is configured (or when {@link #ENABLED_PROPERTY} is set, e.g. to convert the rows back to JSON), and skips the tables
+ * which can't store the configured encoding.
+ * <p>
+ * Rows are processed in batches, oldest first, with a pause between batches to limit the load on the database. The last record id
+ * looked at is saved after each batch (see deposit_reencodes), so that the job resumes where it stopped on the next startup: once
+ * all rows are converted, it only goes through the rows recorded since.
+ */
+public class DepositAdditionalDataReencoder {
+
+    public static final String ENABLED_PROPERTY = DepositActivator.PROPERTY_PREFIX + "additionalDataReencode";
+    public static final String BATCH_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "additionalDataReencodeBatchSize";
+    public static final String INTERVAL_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "additionalDataReencodeIntervalMs";
+
+    // 0 disables the job
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_INTERVAL_MS = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositAdditionalDataReencoder.class);
+
+    private final DepositDao depositDao;
+    private final Clock clock;
+    private final int batchSize;
+    private final int intervalMs;
+    private final ScheduledExecutorService reencodeExecutor;
+
+    // Only accessed by the re-encode thread: null until loaded from deposit_reencodes
+    private ULong lastResponseRecordId = null;
+    private ULong lastPaymentMethodRecordId = null;
+    private boolean responsesDone = false;
+    private boolean paymentMethodsDone = false;
+
+    public DepositAdditionalDataReencoder(final DepositDao depositDao, final Clock clock, final int batchSize, final int intervalMs) {
+        this.depositDao = depositDao;
+        this.clock = clock;
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+        this.reencodeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("deposit-additional-data-reencode-%d")
+                                                                                                     .setDaemon(true)
+                                                                                                     .build());
+    }
+
+    public void start() {
+        if (batchSize <= 0) {
+            return;
+        }
+
+        reencodeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (reencodeBatch()) {
+                    logger.info("Re-encoded the additional data of all deposit responses and payment methods as {}", depositDao.getAdditionalDataEncoding());
+                    reencodeExecutor.shutdown();
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        DepositExecutors.shutdown(reencodeExecutor, "additional data re-encodes");
+    }
+
+    // Returns true once all the rows have been looked at
+    boolean reencodeBatch() {
+        try {
+            if (!responsesDone) {
+                if (lastResponseRecordId == null) {
+                    if (canReencode(DEPOSIT_RESPONSES)) {
+                        lastResponseRecordId = depositDao.getReencodedRecordId(DEPOSIT_RESPONSES);
+                    } else {
+                        responsesDone = true;
+                    }
+                } else {
+                    final ULong recordId = depositDao.reencodeResponsesAdditionalData(lastResponseRecordId, batchSize);
+                    if (recordId == null) {
+                        responsesDone = true;
+                    } else {
+                        depositDao.setReencodedRecordId(DEPOSIT_RESPONSES, recordId, clock.getUTCNow());
+                        lastResponseRecordId = recordId;
+                    }
+                }
+            } else if (!paymentMethodsDone) {
+                if (lastPaymentMethodRecordId == null) {
+                    if (canReencode(DEPOSIT_PAYMENT_METHODS)) {
+                        lastPaymentMethodRecordId = depositDao.getReencodedRecordId(DEPOSIT_PAYMENT_METHODS);
+                    } else {
+                        paymentMethodsDone = true;
+                    }
+                } else {
+                    final ULong recordId = depositDao.reencodePaymentMethodsAdditionalData(lastPaymentMethodRecordId, batchSize);
+                    if (recordId == null) {
+                        paymentMethodsDone = true;
+                    } else {
+                        depositDao.setReencodedRecordId(DEPOSIT_PAYMENT_METHODS, recordId, clock.getUTCNow());
+                        lastPaymentMethodRecordId = recordId;
+                    }
+                }
+            }
+        } catch (final SQLException | RuntimeException e) {
+            // Retried with the next batch
+            logger.warn("Unable to re-encode additional data", e);
+        }
+        return responsesDone && paymentMethodsDone;
+    }
+
+    // E.g. Smile, but additional_data is still a text column (see DepositDao#getAdditionalDataEncoding)
+    private boolean canReencode(final Table<?> table) throws SQLException {
+        if (depositDao.getAdditionalDataEncoding(table) != depositDao.getAdditionalDataEncoding()) {
+            logger.warn("Unable to re-encode the additional data of {} as {}, which the column can't store", table.getName(), depositDao.getAdditionalDataEncoding());
+            return false;
+        }
+        return true;
+    }
+}
@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.deposit;
 
 import java.math.BigDecimal;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.killbill.billing.catalog.api.Currency;
@@ -30,10 +31,57 @@ public class DepositConfiguration {
 
     public Map<Currency, BigDecimal> minAmounts = new HashMap<Currency, BigDecimal>();
 
+    public Map<Currency, BigDecimal> maxAmounts = new HashMap<Currency, BigDecimal>();
+
+    // Deposit type (depositType plugin property) -> currency -> amount
+    public Map<String, Map<Currency, BigDecimal>> depositTypeMinAmounts = new HashMap<String, Map<Currency, BigDecimal>>();
+
+    public Map<String, Map<Currency, BigDecimal>> depositTypeMaxAmounts = new HashMap<String, Map<Currency, BigDecimal>>();
+
+    // When set for a currency, payments in that currency are aborted unless they use one of these payment methods
+    public Map<Currency, List<String>> allowedPaymentMethodIds = new HashMap<Currency, List<String>>();
+
+    // Maximum number of invoices of a single deposit paid concurrently (1 to pay them sequentially)
+    public int maxConcurrentPayments = 1;
+
+    // Velocity limits of the deposits of each account, over a sliding window (0 to disable them)
+    public int velocityWindowSeconds = 0;
+
+    // Maximum number of deposits attempted in the window, each invoice paid counting as one deposit (0 for no limit)
+    public int velocityMaxDeposits = 0;
+
+    // Maximum total amount of the deposits paid in the window
+    public Map<Currency, BigDecimal> velocityMaxAmounts = new HashMap<Currency, BigDecimal>();
+
+    // Compiled by DepositConfigurationHandler when the configuration is uploaded
+    private volatile DepositControlRules controlRules;
+
+    DepositControlRules getControlRules() {
+        DepositControlRules rules = controlRules;
+        if (rules == null) {
+            // Configurations which didn't go through the handler (e.g. the default one): racy but idempotent
+            rules = DepositControlRules.compile(this);
+            controlRules = rules;
+        }
+        return rules;
+    }
+
+    void compileControlRules() {
+        controlRules = DepositControlRules.compile(this);
+    }
+
     @Override
     public String toString() {
         return "DepositConfiguration{" +
                "minAmounts=" + minAmounts +
+               ", maxAmounts=" + maxAmounts +
+               ", depositTypeMinAmounts=" + depositTypeMinAmounts +
+               ", depositTypeMaxAmounts=" + depositTypeMaxAmounts +
+               ", allowedPaymentMethodIds=" + allowedPaymentMethodIds +
+               ", maxConcurrentPayments=" + maxConcurrentPayments +
+               ", velocityWindowSeconds=" + velocityWindowSeconds +
+               ", velocityMaxDeposits=" + velocityMaxDeposits +
+               ", velocityMaxAmounts=" + velocityMaxAmounts +
                '}';
     }
 }
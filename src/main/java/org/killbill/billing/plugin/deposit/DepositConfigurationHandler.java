@@ -34,4 +34,12 @@ public class DepositConfigurationHandler extends YAMLPluginTenantConfigurationHa
         super(pluginName, osgiKillbillAPI);
         this.region = region;
     }
+
+    @Override
+    protected DepositConfiguration createConfigurable(final DepositConfiguration configObject) {
+        // Compile the payment control rules once, rather than for every payment
+        configObject.compileControlRules();
+        logger.info("Compiled payment control rules: {}", configObject.getControlRules());
+        return configObject;
+    }
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+
+/**
+ * Immutable payment control rules of a tenant, compiled from its {@link DepositConfiguration} and indexed by currency ordinal.
+ */
+public final class DepositControlRules {
+
+    public static final DepositControlRules NONE = new DepositControlRules(new CurrencyRule[Currency.values().length], 0, 0, noVelocityMaxAmounts());
+
+    public enum Violation {
+        MIN_AMOUNT,
+        MAX_AMOUNT,
+        DEPOSIT_TYPE_MIN_AMOUNT,
+        DEPOSIT_TYPE_MAX_AMOUNT,
+        PAYMENT_METHOD,
+        VELOCITY_COUNT,
+        VELOCITY_AMOUNT
+    }
+
+    // Null when there is no rule for the currency
+    private final CurrencyRule[] rulesByCurrency;
+    // 0 when there is no velocity limit
+    private final long velocityWindowMillis;
+    private final int velocityMaxDeposits;
+    // In DepositVelocityTracker units, -1 when there is no limit for the currency
+    private final long[] velocityMaxAmountUnits;
+
+    private DepositControlRules(final CurrencyRule[] rulesByCurrency,
+                                final long velocityWindowMillis,
+                                final int velocityMaxDeposits,
+                                final long[] velocityMaxAmountUnits) {
+        this.rulesByCurrency = rulesByCurrency;
+        this.velocityWindowMillis = velocityWindowMillis;
+        this.velocityMaxDeposits = velocityMaxDeposits;
+        this.velocityMaxAmountUnits = velocityMaxAmountUnits;
+    }
+
+    public static DepositControlRules compile(final DepositConfiguration configuration) {
+        final Map<Currency, CurrencyRuleBuilder> builders = new LinkedHashMap<Currency, CurrencyRuleBuilder>();
+        for (final Entry<?, ?> entry : entries(configuration.minAmounts)) {
+            builder(builders, entry.getKey()).minAmount = toBigDecimal(entry.getValue());
+        }
+        for (final Entry<?, ?> entry : entries(configuration.maxAmounts)) {
+            builder(builders, entry.getKey()).maxAmount = toBigDecimal(entry.getValue());
+        }
+        for (final Entry<?, ?> depositTypeEntry : entries(configuration.depositTypeMinAmounts)) {
+            for (final Entry<?, ?> entry : entries((Map<?, ?>) depositTypeEntry.getValue())) {
+                builder(builders, entry.getKey()).depositTypeMinAmounts.put(String.valueOf(depositTypeEntry.getKey()), toBigDecimal(entry.getValue()));
+            }
+        }
+        for (final Entry<?, ?> depositTypeEntry : entries(configuration.depositTypeMaxAmounts)) {
+            for (final Entry<?, ?> entry : entries((Map<?, ?>) depositTypeEntry.getValue())) {
+                builder(builders, entry.getKey()).depositTypeMaxAmounts.put(String.valueOf(depositTypeEntry.getKey()), toBigDecimal(entry.getValue()));
+            }
+        }
+        for (final Entry<?, ?> entry : entries(configuration.allowedPaymentMethodIds)) {
+            final Iterable<?> paymentMethodIds = (Iterable<?>) entry.getValue();
+            final CurrencyRuleBuilder builder = builder(builders, entry.getKey());
+            if (builder.allowedPaymentMethodIds == null) {
+                builder.allowedPaymentMethodIds = new LinkedHashSet<UUID>();
+            }
+            if (paymentMethodIds != null) {
+                for (final Object paymentMethodId : paymentMethodIds) {
+                    builder.allowedPaymentMethodIds.add(UUID.fromString(String.valueOf(paymentMethodId)));
+                }
+            }
+        }
+
+        final long velocityWindowMillis = Math.max(0, configuration.velocityWindowSeconds) * 1000L;
+        final long[] velocityMaxAmountUnits = noVelocityMaxAmounts();
+        boolean hasVelocityMaxAmounts = false;
+        for (final Entry<?, ?> entry : entries(configuration.velocityMaxAmounts)) {
+            final BigDecimal maxAmount = toBigDecimal(entry.getValue());
+            if (maxAmount != null) {
+                velocityMaxAmountUnits[toCurrency(entry.getKey()).ordinal()] = DepositVelocityTracker.toAmountUnits(maxAmount);
+                hasVelocityMaxAmounts = true;
+            }
+        }
+        final boolean hasVelocityLimits = velocityWindowMillis > 0 && (configuration.velocityMaxDeposits > 0 || hasVelocityMaxAmounts);
+
+        if (builders.isEmpty() && !hasVelocityLimits) {
+            return NONE;
+        }
+
+        final CurrencyRule[] rulesByCurrency = new CurrencyRule[Currency.values().length];
+        for (final Entry<Currency, CurrencyRuleBuilder> entry : builders.entrySet()) {
+            rulesByCurrency[entry.getKey().ordinal()] = entry.getValue().build();
+        }
+        if (!hasVelocityLimits) {
+            return new DepositControlRules(rulesByCurrency, 0, 0, noVelocityMaxAmounts());
+        }
+        return new DepositControlRules(rulesByCurrency,
+                                       velocityWindowMillis,
+                                       Math.max(0, configuration.velocityMaxDeposits),
+                                       velocityMaxAmountUnits);
+    }
+
+    public boolean hasVelocityLimits() {
+        return velocityWindowMillis > 0;
+    }
+
+    public long getVelocityWindowMillis() {
+        return velocityWindowMillis;
+    }
+
+    // 0 when there is no limit
+    public int getVelocityMaxDeposits() {
+        return velocityMaxDeposits;
+    }
+
+    // -1 when there is no limit
+    public long getVelocityMaxAmountUnits(@Nullable final Currency currency) {
+        return currency == null ? -1 : velocityMaxAmountUnits[currency.ordinal()];
+    }
+
+    /**
+     * Evaluates the rules of the currency against a payment, without allocating anything unless a rule is violated.
+     *
+     * @return the first violated rule, null if the payment is allowed
+     */
+    @Nullable
+    public Violation evaluate(@Nullable final Currency currency,
+                              @Nullable final BigDecimal amount,
+                              @Nullable final UUID paymentMethodId,
+                              @Nullable final Iterable<PluginProperty> properties) {
+        if (currency == null) {
+            return null;
+        }
+        final CurrencyRule rule = rulesByCurrency[currency.ordinal()];
+        if (rule == null) {
+            return null;
+        }
+
+        if (rule.allowedPaymentMethodIds != null && !rule.isAllowed(paymentMethodId)) {
+            return Violation.PAYMENT_METHOD;
+        }
+        if (amount == null) {
+            return null;
+        }
+        if (rule.minAmount != null && rule.minAmount.compareTo(amount) > 0) {
+            return Violation.MIN_AMOUNT;
+        }
+        if (rule.maxAmount != null && rule.maxAmount.compareTo(amount) < 0) {
+            return Violation.MAX_AMOUNT;
+        }
+        if (rule.depositTypes.length == 0) {
+            return null;
+        }
+
+        final int depositTypeIndex = rule.indexOfDepositType(findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, properties));
+        if (depositTypeIndex < 0) {
+            return null;
+        }
+        final BigDecimal depositTypeMinAmount = rule.depositTypeMinAmounts[depositTypeIndex];
+        if (depositTypeMinAmount != null && depositTypeMinAmount.compareTo(amount) > 0) {
+            return Violation.DEPOSIT_TYPE_MIN_AMOUNT;
+        }
+        final BigDecimal depositTypeMaxAmount = rule.depositTypeMaxAmounts[depositTypeIndex];
+        if (depositTypeMaxAmount != null && depositTypeMaxAmount.compareTo(amount) < 0) {
+            return Violation.DEPOSIT_TYPE_MAX_AMOUNT;
+        }
+        return null;
+    }
+
+    // Payments recorded by the plugin carry the payment reference number of their deposit
+    public static boolean isDeposit(@Nullable final Iterable<PluginProperty> properties) {
+        return findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, properties) != null;
+    }
+
+    // Like PluginProperties.findPluginPropertyValue, without converting the value to a String
+    @Nullable
+    private static Object findPluginPropertyValue(final String key, @Nullable final Iterable<PluginProperty> properties) {
+        if (properties == null) {
+            return null;
+        }
+        for (final PluginProperty property : properties) {
+            if (key.equals(property.getKey())) {
+                return property.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("DepositControlRules{");
+        boolean first = true;
+        for (final Currency currency : Currency.values()) {
+            final CurrencyRule rule = rulesByCurrency[currency.ordinal()];
+            if (rule != null) {
+                sb.append(first ? "" : ", ").append(currency).append('=').append(rule);
+                first = false;
+            }
+        }
+        if (hasVelocityLimits()) {
+            sb.append(first ? "" : ", ").append("velocityWindowMillis=").append(velocityWindowMillis)
+              .append(", velocityMaxDeposits=").append(velocityMaxDeposits);
+            for (final Currency currency : Currency.values()) {
+                if (velocityMaxAmountUnits[currency.ordinal()] >= 0) {
+                    sb.append(", velocityMaxAmount.").append(currency).append('=').append(BigDecimal.valueOf(velocityMaxAmountUnits[currency.ordinal()], DepositVelocityTracker.AMOUNT_SCALE));
+                }
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private static Iterable<? extends Entry<?, ?>> entries(@Nullable final Map<?, ?> map) {
+        if (map == null) {
+            return Collections.<Entry<?, ?>>emptySet();
+        }
+        return map.entrySet();
+    }
+
+    private static CurrencyRuleBuilder builder(final Map<Currency, CurrencyRuleBuilder> builders, final Object currencyKey) {
+        final Currency currency = toCurrency(currencyKey);
+        CurrencyRuleBuilder builder = builders.get(currency);
+        if (builder == null) {
+            builder = new CurrencyRuleBuilder();
+            builders.put(currency, builder);
+        }
+        return builder;
+    }
+
+    // SnakeYAML doesn't apply the generic types of the nested maps: keys and values may be plain Strings or Numbers
+    private static Currency toCurrency(final Object currencyKey) {
+        return currencyKey instanceof Currency ? (Currency) currencyKey : Currency.valueOf(String.valueOf(currencyKey));
+    }
+
+    private static long[] noVelocityMaxAmounts() {
+        final long[] velocityMaxAmountUnits = new long[Currency.values().length];
+        Arrays.fill(velocityMaxAmountUnits, -1);
+        return velocityMaxAmountUnits;
+    }
+
+    @Nullable
+    private static BigDecimal toBigDecimal(@Nullable final Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(String.valueOf(value));
+    }
+
+    private static final class CurrencyRuleBuilder {
+
+        private final Map<String, BigDecimal> depositTypeMinAmounts = new LinkedHashMap<String, BigDecimal>();
+        private final Map<String, BigDecimal> depositTypeMaxAmounts = new LinkedHashMap<String, BigDecimal>();
+        private BigDecimal minAmount;
+        private BigDecimal maxAmount;
+        private Set<UUID> allowedPaymentMethodIds;
+
+        private CurrencyRule build() {
+            final Set<String> depositTypes = new LinkedHashSet<String>(depositTypeMinAmounts.keySet());
+            depositTypes.addAll(depositTypeMaxAmounts.keySet());
+
+            final String[] depositTypesArray = depositTypes.toArray(new String[0]);
+            final BigDecimal[] minAmounts = new BigDecimal[depositTypesArray.length];
+            final BigDecimal[] maxAmounts = new BigDecimal[depositTypesArray.length];
+            for (int i = 0; i < depositTypesArray.length; i++) {
+                minAmounts[i] = depositTypeMinAmounts.get(depositTypesArray[i]);
+                maxAmounts[i] = depositTypeMaxAmounts.get(depositTypesArray[i]);
+            }
+
+            final UUID[] allowed = allowedPaymentMethodIds == null ? null : allowedPaymentMethodIds.toArray(new UUID[0]);
+            return new CurrencyRule(minAmount, maxAmount, depositTypesArray, minAmounts, maxAmounts, allowed);
+        }
+    }
+
+    // There are only a handful of deposit types and allowed payment methods per currency: linear scans are cheaper than hashing
+    private static final class CurrencyRule {
+
+        private final BigDecimal minAmount;
+        private final BigDecimal maxAmount;
+        private final String[] depositTypes;
+        private final BigDecimal[] depositTypeMinAmounts;
+        private final BigDecimal[] depositTypeMaxAmounts;
+        // Null when all the payment methods are allowed
+        private final UUID[] allowedPaymentMethodIds;
+
+        private CurrencyRule(final BigDecimal minAmount,
+                             final BigDecimal maxAmount,
+                             final String[] depositTypes,
+                             final BigDecimal[] depositTypeMinAmounts,
+                             final BigDecimal[] depositTypeMaxAmounts,
+                             final UUID[] allowedPaymentMethodIds) {
+            this.minAmount = minAmount;
+            this.maxAmount = maxAmount;
+            this.depositTypes = depositTypes;
+            this.depositTypeMinAmounts = depositTypeMinAmounts;
+            this.depositTypeMaxAmounts = depositTypeMaxAmounts;
+            this.allowedPaymentMethodIds = allowedPaymentMethodIds;
+        }
+
+        private int indexOfDepositType(@Nullable final Object depositType) {
+            if (depositType == null) {
+                return -1;
+            }
+            for (int i = 0; i < depositTypes.length; i++) {
+                // Avoid converting non-String values
+                if (depositType instanceof String ? depositTypes[i].equals(depositType) : depositTypes[i].equals(depositType.toString())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isAllowed(@Nullable final UUID paymentMethodId) {
+            if (paymentMethodId == null) {
+                return false;
+            }
+            for (final UUID allowedPaymentMethodId : allowedPaymentMethodIds) {
+                if (allowedPaymentMethodId.equals(paymentMethodId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "{" +
+                   "minAmount=" + minAmount +
+                   ", maxAmount=" + maxAmount +
+                   ", depositTypes=" + Arrays.toString(depositTypes) +
+                   ", depositTypeMinAmounts=" + Arrays.toString(depositTypeMinAmounts) +
+                   ", depositTypeMaxAmounts=" + Arrays.toString(depositTypeMaxAmounts) +
+                   ", allowedPaymentMethodIds=" + Arrays.toString(allowedPaymentMethodIds) +
+                   '}';
+        }
+    }
+}
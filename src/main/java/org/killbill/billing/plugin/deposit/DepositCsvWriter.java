@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+
+/**
+ * Writes deposit responses as CSV (RFC 4180), one line per response, with the same column names as the search results.
+ * Lines are buffered in small chunks only: the output stream sees the rows as they are written.
+ */
+public class DepositCsvWriter {
+
+    public static final String MEDIA_TYPE = "text/csv";
+
+    private static final String[] COLUMNS = {"recordId",
+                                             "accountId",
+                                             "paymentId",
+                                             "paymentTransactionId",
+                                             "transactionType",
+                                             "amount",
+                                             "currency",
+                                             "depositType",
+                                             "paymentReferenceNumber",
+                                             "effectiveDate",
+                                             "invoiceNumber",
+                                             "createdDate"};
+
+    private static final String FORMULA_PREFIXES = "=+-@\t\r";
+
+    private final Writer writer;
+
+    public DepositCsvWriter(final OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    public void writeHeader() throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    public void write(final DepositResponsesRecord record) throws IOException {
+        writer.write(record.getRecordId().toString());
+        writeValue(record.getKbAccountId());
+        writeValue(record.getKbPaymentId());
+        writeValue(record.getKbPaymentTransactionId());
+        writeValue(record.getTransactionType());
+        writeNumber(record.getAmount() == null ? null : record.getAmount().toPlainString());
+        writeValue(record.getCurrency());
+        writeValue(record.getDepositType());
+        writeValue(record.getDepositReferenceNumber());
+        writeValue(toIsoString(record.getDepositEffectiveDate()));
+        writeValue(record.getDepositInvoiceNumber() == null ? null : record.getDepositInvoiceNumber().toString());
+        writeValue(toIsoString(record.getCreatedDate()));
+        writer.write("\r\n");
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    // Numbers are never read as formulas: negative amounts are kept as is
+    private void writeNumber(@Nullable final String value) throws IOException {
+        writer.write(',');
+        if (value != null) {
+            writer.write(value);
+        }
+    }
+
+    // Empty for null values
+    private void writeValue(@Nullable final String value) throws IOException {
+        writer.write(',');
+        if (value == null) {
+            return;
+        }
+
+        // Spreadsheets evaluate the cells starting with these as formulas (e.g. a payment reference number "=HYPERLINK(...)"):
+        // the leading quote makes them text
+        if (!value.isEmpty() && FORMULA_PREFIXES.indexOf(value.charAt(0)) >= 0) {
+            writeQuotedIfNeeded("'" + value);
+        } else {
+            writeQuotedIfNeeded(value);
+        }
+    }
+
+    private void writeQuotedIfNeeded(final String value) throws IOException {
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            final char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (needsQuotes) {
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        } else {
+            writer.write(value);
+        }
+    }
+
+    // Dates are stored in UTC
+    @Nullable
+    private static String toIsoString(@Nullable final LocalDateTime localDateTime) {
+        return localDateTime == null ? null : localDateTime.atOffset(ZoneOffset.UTC).toInstant().toString();
+    }
+}
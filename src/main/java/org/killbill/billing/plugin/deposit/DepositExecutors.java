@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded thread pools shared by the deposit routes.
+ */
+public class DepositExecutors {
+
+    public static final String BATCH_THREADS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "batchThreads";
+    public static final String BATCH_QUEUE_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "batchQueueSize";
+    public static final String PAYMENT_THREADS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "paymentThreads";
+    public static final String PAYMENT_QUEUE_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "paymentQueueSize";
+    public static final String STREAM_THREADS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "streamThreads";
+
+    public static final int DEFAULT_BATCH_THREADS = 8;
+    public static final int DEFAULT_BATCH_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_PAYMENT_THREADS = 16;
+    public static final int DEFAULT_PAYMENT_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_STREAM_THREADS = 4;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositExecutors.class);
+
+    private final ThreadPoolExecutor batchExecutor;
+    private final ThreadPoolExecutor paymentExecutor;
+    private final ThreadPoolExecutor streamExecutor;
+
+    public DepositExecutors(final int batchThreads,
+                            final int batchQueueSize,
+                            final int paymentThreads,
+                            final int paymentQueueSize,
+                            final int streamThreads) {
+        this.batchExecutor = createExecutor("deposit-batch-%d", batchThreads, batchQueueSize);
+        this.paymentExecutor = createExecutor("deposit-payment-%d", paymentThreads, paymentQueueSize);
+        this.streamExecutor = createStreamExecutor(streamThreads);
+    }
+
+    public ExecutorService getBatchExecutor() {
+        return batchExecutor;
+    }
+
+    // Shared by all tenants: the per-tenant cap (maxConcurrentPayments) only limits how many threads a single deposit uses
+    public ExecutorService getPaymentExecutor() {
+        return paymentExecutor;
+    }
+
+    // Each task holds an HTTP request open for the whole upload (or export): submissions are rejected (RejectedExecutionException) when all threads are busy
+    public ExecutorService getStreamExecutor() {
+        return streamExecutor;
+    }
+
+    // Busy threads and queued tasks of each pool (the stream pool has no queue)
+    public void registerGauges(final DepositMetrics metrics) {
+        registerGauges(metrics, "batch", batchExecutor);
+        registerGauges(metrics, "payment", paymentExecutor);
+        registerGauges(metrics, "stream", streamExecutor);
+    }
+
+    static void registerGauges(final DepositMetrics metrics, final String name, final ThreadPoolExecutor executor) {
+        metrics.registerGauge("executor_active_threads",
+                              "Threads running a task, by thread pool",
+                              "executor",
+                              name,
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return executor.getActiveCount();
+                                  }
+                              });
+        metrics.registerGauge("executor_queued_tasks",
+                              "Tasks waiting for a thread, by thread pool",
+                              "executor",
+                              name,
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return executor.getQueue().size();
+                                  }
+                              });
+    }
+
+    public void shutdown() {
+        shutdown(streamExecutor, "streamed deposits");
+        shutdown(batchExecutor, "batch deposits");
+        shutdown(paymentExecutor, "invoice payments");
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String nameFormat, final int threads, final int queueSize) {
+        // When the queue is full, the submitting thread runs the task itself: this throttles callers instead of rejecting deposits
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                                                                   threads,
+                                                                   60,
+                                                                   TimeUnit.SECONDS,
+                                                                   new LinkedBlockingQueue<Runnable>(queueSize),
+                                                                   new ThreadFactoryBuilder().setNameFormat(nameFormat)
+                                                                                             .setDaemon(true)
+                                                                                             .build(),
+                                                                   new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadPoolExecutor createStreamExecutor(final int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                                                                   threads,
+                                                                   60,
+                                                                   TimeUnit.SECONDS,
+                                                                   new SynchronousQueue<Runnable>(),
+                                                                   new ThreadFactoryBuilder().setNameFormat("deposit-stream-%d")
+                                                                                             .setDaemon(true)
+                                                                                             .build(),
+                                                                   new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static void shutdown(final ExecutorService executor, final String description) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Timed out waiting for in-flight {} to complete", description);
+                executor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
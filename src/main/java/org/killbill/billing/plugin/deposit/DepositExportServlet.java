@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Optional;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.Path;
+import org.killbill.billing.plugin.deposit.DepositServlet.ResultsProducer;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.ResponseHandler;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.SearchCriteria;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.google.inject.Inject;
+
+// Reconciliation export of the payments recorded by the plugin
+@Singleton
+@Path("/export")
+public class DepositExportServlet {
+
+    private final DepositDao depositDao;
+    private final DepositExecutors depositExecutors;
+
+    @Inject
+    public DepositExportServlet(final DepositDao depositDao, final DepositExecutors depositExecutors) {
+        this.depositDao = depositDao;
+        this.depositExecutors = depositExecutors;
+    }
+
+    // The rows are streamed from the database cursor to the client as CSV (in a stream thread, see DepositServlet#streamResults),
+    // so memory usage doesn't depend on the number of payments exported. If the export fails midway, the file is truncated.
+    @GET
+    public Result export(@Named("effectiveDateFrom") final Optional<String> effectiveDateFrom,
+                         @Named("effectiveDateTo") final Optional<String> effectiveDateTo,
+                         @Local @Named("killbill_tenant") final Tenant tenant) throws IOException {
+        final SearchCriteria criteria;
+        try {
+            criteria = DepositPaymentPluginApi.buildSearchCriteria(null,
+                                                                   null,
+                                                                   effectiveDateFrom.orElse(null),
+                                                                   effectiveDateTo.orElse(null),
+                                                                   null,
+                                                                   null);
+        } catch (final IllegalArgumentException e) {
+            return Results.with(Status.BAD_REQUEST);
+        }
+
+        final Result result = DepositServlet.streamResults(depositExecutors, DepositCsvWriter.MEDIA_TYPE, new ResultsProducer() {
+            @Override
+            public void produce(final OutputStream out) throws Exception {
+                final DepositCsvWriter csvWriter = new DepositCsvWriter(out);
+                csvWriter.writeHeader();
+                depositDao.exportResponses(criteria,
+                                           tenant.getId(),
+                                           new ResponseHandler() {
+                                               @Override
+                                               public void onResponse(final DepositResponsesRecord record) throws IOException {
+                                                   csvWriter.write(record);
+                                               }
+                                           });
+                csvWriter.flush();
+            }
+        });
+        return result.status().equals(Optional.of(Status.OK)) ? result.header("Content-Disposition", "attachment; filename=\"deposits.csv\"") : result;
+    }
+}
@@ -17,17 +17,161 @@
 
 package org.killbill.billing.plugin.deposit;
 
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.killbill.billing.osgi.api.Healthcheck;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
 import org.killbill.billing.tenant.api.Tenant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Health of the database, as seen by the plugin: a background thread probes it at a fixed interval (see DepositDao#probe), and
+ * the status computed from the last probes is cached. Checks (e.g. /healthcheck) never wait for the database.
+ * <p>
+ * The node is unhealthy when too many of the last probes failed, when their median latency is above the unhealthy threshold, or when
+ * the current probe has been running for longer than that. It is degraded (still healthy, see the details) when some probes failed
+ * or when the median latency is above the degraded threshold.
+ */
 public class DepositHealthcheck implements Healthcheck {
 
+    public static final String INTERVAL_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "healthcheckIntervalMs";
+    public static final String WINDOW_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "healthcheckWindowSize";
+    public static final String DEGRADED_LATENCY_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "healthcheckDegradedLatencyMs";
+    public static final String UNHEALTHY_LATENCY_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "healthcheckUnhealthyLatencyMs";
+    public static final String MAX_ERROR_RATE_PERCENT_PROPERTY = DepositActivator.PROPERTY_PREFIX + "healthcheckMaxErrorRatePercent";
+
+    // The status reflects the last minute
+    public static final int DEFAULT_INTERVAL_MS = 5000;
+    public static final int DEFAULT_WINDOW_SIZE = 12;
+    public static final int DEFAULT_DEGRADED_LATENCY_MS = 100;
+    public static final int DEFAULT_UNHEALTHY_LATENCY_MS = 1000;
+    public static final int DEFAULT_MAX_ERROR_RATE_PERCENT = 50;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositHealthcheck.class);
+
+    // Latency of the failed probes in the window
+    private static final long FAILED_PROBE = -1;
+
+    private final DepositDao depositDao;
+    private final int intervalMs;
+    private final long degradedLatencyNanos;
+    private final long unhealthyLatencyNanos;
+    private final int maxErrorRatePercent;
+    private final int probeTimeoutSeconds;
+    private final ScheduledExecutorService probeExecutor;
+
+    // Only accessed by the probe thread
+    private final long[] latenciesNanos;
+    private int nbProbes = 0;
+
+    private volatile HealthStatus healthStatus = HealthStatus.healthy("No database probe yet");
+    private volatile long probeStartNanos;
+    private volatile boolean probing = false;
+
+    public DepositHealthcheck(final DepositDao depositDao,
+                              final int intervalMs,
+                              final int windowSize,
+                              final int degradedLatencyMs,
+                              final int unhealthyLatencyMs,
+                              final int maxErrorRatePercent) {
+        this.depositDao = depositDao;
+        this.intervalMs = intervalMs;
+        this.latenciesNanos = new long[Math.max(1, windowSize)];
+        this.degradedLatencyNanos = TimeUnit.MILLISECONDS.toNanos(degradedLatencyMs);
+        this.unhealthyLatencyNanos = TimeUnit.MILLISECONDS.toNanos(unhealthyLatencyMs);
+        this.maxErrorRatePercent = maxErrorRatePercent;
+        // A probe which times out counts as failed
+        this.probeTimeoutSeconds = Math.max(1, (int) TimeUnit.MILLISECONDS.toSeconds(unhealthyLatencyMs + 999));
+        this.probeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("deposit-healthcheck-%d")
+                                                                                                  .setDaemon(true)
+                                                                                                  .build());
+    }
+
+    public void start() {
+        probeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        DepositExecutors.shutdown(probeExecutor, "database probes");
+    }
+
     @Override
     public HealthStatus getHealthStatus(@Nullable final Tenant tenant, @Nullable final Map properties) {
-        return HealthStatus.healthy();
+        if (probing) {
+            final long probeDurationNanos = System.nanoTime() - probeStartNanos;
+            if (probeDurationNanos > unhealthyLatencyNanos) {
+                return HealthStatus.unHealthy("Database probe running for " + TimeUnit.NANOSECONDS.toMillis(probeDurationNanos) + "ms");
+            }
+        }
+        return healthStatus;
+    }
+
+    void probe() {
+        probeStartNanos = System.nanoTime();
+        probing = true;
+        String error = null;
+        try {
+            depositDao.probe(probeTimeoutSeconds);
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Database probe failed", e);
+            error = e.toString();
+        }
+        final long latencyNanos = System.nanoTime() - probeStartNanos;
+
+        latenciesNanos[nbProbes % latenciesNanos.length] = error == null ? latencyNanos : FAILED_PROBE;
+        nbProbes++;
+        healthStatus = computeHealthStatus(latencyNanos, error);
+        probing = false;
+    }
+
+    private HealthStatus computeHealthStatus(final long lastLatencyNanos, @Nullable final String lastError) {
+        final int windowSize = Math.min(nbProbes, latenciesNanos.length);
+        final long[] succeededLatenciesNanos = new long[windowSize];
+        int nbSucceeded = 0;
+        for (int i = 0; i < windowSize; i++) {
+            if (latenciesNanos[i] != FAILED_PROBE) {
+                succeededLatenciesNanos[nbSucceeded++] = latenciesNanos[i];
+            }
+        }
+        final int errorRatePercent = 100 * (windowSize - nbSucceeded) / windowSize;
+        final Long medianLatencyNanos;
+        if (nbSucceeded == 0) {
+            medianLatencyNanos = null;
+        } else {
+            Arrays.sort(succeededLatenciesNanos, 0, nbSucceeded);
+            medianLatencyNanos = succeededLatenciesNanos[nbSucceeded / 2];
+        }
+
+        final boolean healthy = errorRatePercent < maxErrorRatePercent && (medianLatencyNanos == null || medianLatencyNanos < unhealthyLatencyNanos);
+        final boolean degraded = errorRatePercent > 0 || (medianLatencyNanos != null && medianLatencyNanos >= degradedLatencyNanos);
+
+        final Map<String, Object> details = new LinkedHashMap<String, Object>();
+        details.put("status", healthy ? (degraded ? "degraded" : "healthy") : "unhealthy");
+        details.put("probes", windowSize);
+        details.put("errorRatePercent", errorRatePercent);
+        if (medianLatencyNanos != null) {
+            details.put("medianLatencyMs", TimeUnit.NANOSECONDS.toMillis(medianLatencyNanos));
+        }
+        details.put("lastLatencyMs", TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos));
+        if (lastError != null) {
+            details.put("lastError", lastError);
+        }
+        return new HealthStatus(healthy, details);
     }
 }
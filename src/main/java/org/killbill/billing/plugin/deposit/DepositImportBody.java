@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.jooby.Parser;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceReader;
+
+import com.google.inject.TypeLiteral;
+
+/**
+ * Bank file request body (BAI2, lockbox), read line by line.
+ * <p>
+ * Like {@link DepositNdjsonBody}, only the current line is held in memory.
+ */
+final class DepositImportBody {
+
+    // Bank files have short records: anything longer is most likely not a bank file
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Registered on the application, see DepositActivator
+    public static final Parser PARSER = new Parser() {
+        @Override
+        public Object parse(final TypeLiteral<?> type, final Context ctx) throws Throwable {
+            if (type.getRawType() != DepositImportBody.class) {
+                return ctx.next();
+            }
+            return ctx.body(new Callback<BodyReference>() {
+                @Override
+                public Object invoke(final BodyReference body) {
+                    return new DepositImportBody(body);
+                }
+            });
+        }
+    };
+
+    private final Parser.BodyReference body;
+
+    DepositImportBody(final Parser.BodyReference body) {
+        this.body = body;
+    }
+
+    public void readLines(final RemittanceReader reader) throws Exception {
+        final LineFeeder lineFeeder = new LineFeeder(reader);
+        body.writeTo(lineFeeder);
+        lineFeeder.close();
+    }
+
+    static final class LineTooLongException extends IOException {
+
+        private final int lineNumber;
+
+        private LineTooLongException(final int lineNumber) {
+            super(String.format("Line %s is longer than %s bytes", lineNumber, MAX_LINE_LENGTH));
+            this.lineNumber = lineNumber;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+
+    private static final class LineFeeder extends OutputStream {
+
+        private final RemittanceReader reader;
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+        private int lineLength;
+        private int lineNumber;
+        private boolean closed;
+
+        private LineFeeder(final RemittanceReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    endLine();
+                } else if (lineLength == MAX_LINE_LENGTH) {
+                    throw new LineTooLongException(lineNumber + 1);
+                } else {
+                    line[lineLength++] = b[i];
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (lineLength > 0) {
+                endLine();
+            }
+            reader.onEndOfInput();
+        }
+
+        private void endLine() throws IOException {
+            lineNumber++;
+            final int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            lineLength = 0;
+            // Bank files are plain ASCII
+            reader.onLine(lineNumber, new String(line, 0, length, StandardCharsets.ISO_8859_1));
+        }
+    }
+}
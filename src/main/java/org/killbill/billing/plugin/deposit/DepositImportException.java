@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import org.jooby.Status;
+
+/**
+ * A remittance which can't be turned into deposits, with the status to report for it.
+ */
+class DepositImportException extends Exception {
+
+    private final Status status;
+
+    DepositImportException(final Status status, final String message) {
+        super(message);
+        this.status = status;
+    }
+
+    DepositImportException(final Status status, final String message, final Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+}
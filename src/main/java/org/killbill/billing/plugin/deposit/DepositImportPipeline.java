@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import org.jooby.Status;
+import org.killbill.billing.plugin.deposit.DepositRemittance.Item;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceHandler;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositResultJson;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Maps and records the remittances of an import file, streaming one result per deposit in file order.
+ * <p>
+ * Remittances are processed concurrently, up to a bounded number, so that reading the file never gets far ahead of the payments.
+ * Remittances of the same account are serialized, so that each one is applied to the balances left by the previous ones.
+ */
+class DepositImportPipeline implements RemittanceHandler {
+
+    interface DepositRecorder {
+
+        Status recordDeposit(DepositJson depositJson);
+    }
+
+    static final int MAX_IN_FLIGHT_REMITTANCES = 64;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositImportPipeline.class);
+
+    private final DepositRemittanceMapper mapper;
+    private final DepositRecorder recorder;
+    private final ExecutorService executor;
+    private final Striped<Lock> accountLocks;
+    private final TenantContext context;
+    private final Deque<Future<List<DepositResultJson>>> pendingResults = new ArrayDeque<Future<List<DepositResultJson>>>();
+
+    private OutputStream resultsOutputStream;
+
+    DepositImportPipeline(final DepositRemittanceMapper mapper,
+                          final DepositRecorder recorder,
+                          final ExecutorService executor,
+                          final Striped<Lock> accountLocks,
+                          final TenantContext context) {
+        this.mapper = mapper;
+        this.recorder = recorder;
+        this.executor = executor;
+        this.accountLocks = accountLocks;
+        this.context = context;
+    }
+
+    // Must be called before the file is read
+    public void start(final OutputStream resultsOutputStream) {
+        this.resultsOutputStream = resultsOutputStream;
+    }
+
+    @Override
+    public void onRemittance(final DepositRemittance remittance) throws IOException {
+        addPendingResults(executor.submit(new Callable<List<DepositResultJson>>() {
+            @Override
+            public List<DepositResultJson> call() {
+                return process(remittance);
+            }
+        }));
+    }
+
+    @Override
+    public void onInvalidRecord(final int lineNumber, final String reason) throws IOException {
+        logger.info("Invalid import record on line {}: {}", lineNumber, reason);
+        addPendingResults(Futures.<List<DepositResultJson>>immediateFuture(ImmutableList.<DepositResultJson>of(new DepositResultJson(null, null, Status.BAD_REQUEST.value()))));
+    }
+
+    // Waits for all remittances and writes their results
+    public void finish() throws IOException {
+        writeResults(true);
+    }
+
+    // The client went away: remittances which haven't started yet are not recorded
+    public void cancel() {
+        for (final Future<List<DepositResultJson>> results : pendingResults) {
+            results.cancel(false);
+        }
+        pendingResults.clear();
+    }
+
+    private List<DepositResultJson> process(final DepositRemittance remittance) {
+        try {
+            final Map<UUID, List<Item>> itemsByAccountId = mapper.resolveAccounts(remittance, context);
+
+            // Stripes are returned (and locked) in a consistent order, so that remittances of several accounts can't deadlock
+            final List<Lock> locks = ImmutableList.<Lock>copyOf(accountLocks.bulkGet(itemsByAccountId.keySet()));
+            final List<Lock> lockedLocks = new ArrayList<Lock>(locks.size());
+            try {
+                for (final Lock lock : locks) {
+                    lock.lock();
+                    lockedLocks.add(lock);
+                }
+                return record(mapper.map(remittance, itemsByAccountId, context));
+            } finally {
+                for (final Lock lock : lockedLocks) {
+                    lock.unlock();
+                }
+            }
+        } catch (final DepositImportException e) {
+            logger.info("Unable to import remittance on line {}: {}", remittance.getLineNumber(), e.getMessage(), e.getCause());
+            return ImmutableList.<DepositResultJson>of(new DepositResultJson(null, remittance.getPaymentReferenceNumber(), e.getStatus().value()));
+        } catch (final RuntimeException e) {
+            logger.warn("Unexpected error importing remittance on line {}", remittance.getLineNumber(), e);
+            return ImmutableList.<DepositResultJson>of(new DepositResultJson(null, remittance.getPaymentReferenceNumber(), Status.SERVER_ERROR.value()));
+        }
+    }
+
+    private List<DepositResultJson> record(final List<DepositJson> deposits) {
+        final List<DepositResultJson> results = new ArrayList<DepositResultJson>(deposits.size());
+        for (final DepositJson depositJson : deposits) {
+            final Status status = recorder.recordDeposit(depositJson);
+            results.add(new DepositResultJson(depositJson.accountId, depositJson.paymentReferenceNumber, status.value()));
+        }
+        return results;
+    }
+
+    private void addPendingResults(final Future<List<DepositResultJson>> results) throws IOException {
+        pendingResults.add(results);
+        writeResults(false);
+    }
+
+    // Results are written in file order: a slow remittance holds back the results of the next ones
+    private void writeResults(final boolean all) throws IOException {
+        while (!pendingResults.isEmpty() &&
+               (all || pendingResults.size() > MAX_IN_FLIGHT_REMITTANCES || pendingResults.peek().isDone())) {
+            for (final DepositResultJson result : getResults(pendingResults.poll())) {
+                DepositServlet.writeResult(resultsOutputStream, result);
+            }
+        }
+    }
+
+    private static List<DepositResultJson> getResults(final Future<List<DepositResultJson>> results) throws IOException {
+        try {
+            return results.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for imported deposits");
+        } catch (final ExecutionException e) {
+            logger.warn("Unexpected error while importing deposits", e);
+            return ImmutableList.<DepositResultJson>of(new DepositResultJson(null, null, Status.SERVER_ERROR.value()));
+        }
+    }
+}
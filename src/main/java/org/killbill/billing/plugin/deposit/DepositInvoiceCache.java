@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Per-tenant mapping from invoice number to the invoice id, currency and account id.
+ */
+public class DepositInvoiceCache implements OSGIKillbillEventHandler {
+
+    public static final String CACHE_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "invoiceCacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    // Below this number of misses, looking up the invoices one by one (by invoice number) is cheaper than listing all the
+    // invoices of the account, which can have years of them
+    static final int DEFAULT_BULK_LOAD_THRESHOLD = 20;
+
+    private final Cache<InvoiceKey, CachedInvoice> invoices;
+    // Reverse index, to handle invoice events (which only carry the invoice id)
+    private final ConcurrentMap<UUID, InvoiceKey> invoiceKeysById = new ConcurrentHashMap<UUID, InvoiceKey>();
+    private final int bulkLoadThreshold;
+
+    public DepositInvoiceCache(final long maximumSize) {
+        this(maximumSize, DEFAULT_BULK_LOAD_THRESHOLD);
+    }
+
+    DepositInvoiceCache(final long maximumSize, final int bulkLoadThreshold) {
+        this.bulkLoadThreshold = bulkLoadThreshold;
+        this.invoices = CacheBuilder.newBuilder()
+                                    .maximumSize(maximumSize)
+                                    .recordStats()
+                                    .removalListener(new RemovalListener<InvoiceKey, CachedInvoice>() {
+                                        @Override
+                                        public void onRemoval(final RemovalNotification<InvoiceKey, CachedInvoice> notification) {
+                                            if (notification.getCause() != RemovalCause.REPLACED && notification.getValue() != null) {
+                                                invoiceKeysById.remove(notification.getValue().getInvoiceId(), notification.getKey());
+                                            }
+                                        }
+                                    })
+                                    .build();
+    }
+
+    @Nullable
+    public CachedInvoice getIfPresent(final UUID kbTenantId, final Integer invoiceNumber) {
+        return invoices.getIfPresent(new InvoiceKey(kbTenantId, invoiceNumber));
+    }
+
+    public CachedInvoice put(final UUID kbTenantId, final Integer invoiceNumber, final Invoice invoice) {
+        final InvoiceKey invoiceKey = new InvoiceKey(kbTenantId, invoiceNumber);
+        final CachedInvoice cachedInvoice = new CachedInvoice(invoice.getId(), invoice.getCurrency(), invoice.getAccountId());
+        invoices.put(invoiceKey, cachedInvoice);
+        invoiceKeysById.put(invoice.getId(), invoiceKey);
+        return cachedInvoice;
+    }
+
+    public void invalidate(final UUID kbInvoiceId) {
+        final InvoiceKey invoiceKey = invoiceKeysById.remove(kbInvoiceId);
+        if (invoiceKey != null) {
+            invoices.invalidate(invoiceKey);
+        }
+    }
+
+    /**
+     * Resolves all the given invoice numbers, loading the missing ones from Kill Bill.
+     *
+     * @return the resolved invoices, by invoice number (invoices which don't exist are absent)
+     */
+    public Map<Integer, CachedInvoice> warm(final UUID kbAccountId,
+                                            final Collection<Integer> invoiceNumbers,
+                                            final InvoiceUserApi invoiceUserApi,
+                                            final TenantContext context) throws InvoiceApiException {
+        final Map<Integer, CachedInvoice> resolvedInvoices = new HashMap<Integer, CachedInvoice>();
+        final Set<Integer> missingInvoiceNumbers = new HashSet<Integer>();
+        for (final Integer invoiceNumber : invoiceNumbers) {
+            final CachedInvoice cachedInvoice = getIfPresent(context.getTenantId(), invoiceNumber);
+            if (cachedInvoice != null) {
+                resolvedInvoices.put(invoiceNumber, cachedInvoice);
+            } else {
+                missingInvoiceNumbers.add(invoiceNumber);
+            }
+        }
+
+        if (missingInvoiceNumbers.size() >= bulkLoadThreshold) {
+            // Invoices are usually paid by their own account: fetch them all at once (without their items)
+            final List<Invoice> accountInvoices = invoiceUserApi.getInvoicesByAccount(kbAccountId, true, false, false, context);
+            for (final Invoice invoice : accountInvoices) {
+                if (missingInvoiceNumbers.remove(invoice.getInvoiceNumber())) {
+                    resolvedInvoices.put(invoice.getInvoiceNumber(), put(context.getTenantId(), invoice.getInvoiceNumber(), invoice));
+                }
+            }
+        }
+
+        for (final Integer invoiceNumber : missingInvoiceNumbers) {
+            final Invoice invoice;
+            try {
+                invoice = invoiceUserApi.getInvoiceByNumber(invoiceNumber, context);
+            } catch (final InvoiceApiException e) {
+                if (e.getCode() == ErrorCode.INVOICE_NOT_FOUND.getCode()) {
+                    continue;
+                }
+                throw e;
+            }
+
+            resolvedInvoices.put(invoiceNumber, put(context.getTenantId(), invoiceNumber, invoice));
+        }
+
+        return resolvedInvoices;
+    }
+
+    public long getHitCount() {
+        return invoices.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return invoices.stats().missCount();
+    }
+
+    public long size() {
+        return invoices.size();
+    }
+
+    public void registerGauges(final DepositMetrics metrics) {
+        metrics.registerGauge("cache_hits",
+                              "Lookups answered by the caches",
+                              "cache",
+                              "invoice",
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return getHitCount();
+                                  }
+                              });
+        metrics.registerGauge("cache_misses",
+                              "Lookups not answered by the caches",
+                              "cache",
+                              "invoice",
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return getMissCount();
+                                  }
+                              });
+        metrics.registerGauge("cache_entries",
+                              "Entries of the caches",
+                              "cache",
+                              "invoice",
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return size();
+                                  }
+                              });
+    }
+
+    // The cached fields never change for a given invoice number, but adjustments (e.g. voiding the invoice) are a cheap
+    // signal to re-read it. Creations are ignored (a new invoice can't be cached yet), and so are payment events: they are
+    // the common case and don't affect the mapping
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        if (killbillEvent.getObjectType() != ObjectType.INVOICE ||
+            killbillEvent.getObjectId() == null ||
+            killbillEvent.getEventType() != ExtBusEventType.INVOICE_ADJUSTMENT) {
+            return;
+        }
+
+        invalidate(killbillEvent.getObjectId());
+    }
+
+    public static final class CachedInvoice {
+
+        private final UUID invoiceId;
+        private final Currency currency;
+        private final UUID accountId;
+
+        private CachedInvoice(final UUID invoiceId, final Currency currency, final UUID accountId) {
+            this.invoiceId = invoiceId;
+            this.currency = currency;
+            this.accountId = accountId;
+        }
+
+        public UUID getInvoiceId() {
+            return invoiceId;
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        public UUID getAccountId() {
+            return accountId;
+        }
+    }
+
+    private static final class InvoiceKey {
+
+        private final UUID kbTenantId;
+        private final Integer invoiceNumber;
+
+        private InvoiceKey(final UUID kbTenantId, final Integer invoiceNumber) {
+            this.kbTenantId = kbTenantId;
+            this.invoiceNumber = invoiceNumber;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final InvoiceKey that = (InvoiceKey) o;
+            return Objects.equals(kbTenantId, that.kbTenantId) && Objects.equals(invoiceNumber, that.invoiceNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kbTenantId, invoiceNumber);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.jooby.Status;
+import org.jooq.types.ULong;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJobJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.InvoiceDepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.InvoiceDepositResultJson;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositJobsRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Deposits recorded asynchronously: jobs are persisted in deposit_jobs and processed in the background.
+ * <p>
+ * Every node polls the table and claims pending jobs (see {@link DepositDao#claimJobs}), up to the number of idle job threads.
+ * Jobs submitted on this node are picked up right away, without waiting for the next poll. While a job runs, its node renews
+ * its lease (processing_date) at each poll: jobs whose lease isn't renewed for longer than the job timeout (e.g. the node was
+ * killed) are put back in the queue. Recording a deposit is idempotent, so the invoices already paid by the first attempt
+ * aren't paid again.
+ */
+public class DepositJobQueue {
+
+    public static final String JOB_THREADS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "jobThreads";
+    public static final String JOB_POLL_INTERVAL_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "jobPollIntervalMs";
+    public static final String JOB_TIMEOUT_MINUTES_PROPERTY = DepositActivator.PROPERTY_PREFIX + "jobTimeoutMinutes";
+    public static final String JOB_RETENTION_DAYS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "jobRetentionDays";
+
+    public static final int DEFAULT_JOB_THREADS = 4;
+    public static final int DEFAULT_JOB_POLL_INTERVAL_MS = 5000;
+    public static final int DEFAULT_JOB_TIMEOUT_MINUTES = 30;
+    public static final int DEFAULT_JOB_RETENTION_DAYS = 30;
+
+    // Completed jobs older than the retention are deleted hourly, by batches
+    private static final long JOB_PURGE_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int JOB_PURGE_BATCH_SIZE = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositJobQueue.class);
+
+    private static final ObjectReader requestReader = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.readerFor(DepositJobRequestJson.class);
+    private static final ObjectWriter requestWriter = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.writerFor(DepositJobRequestJson.class);
+    private static final ObjectReader resultReader = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.readerFor(DepositJobResultJson.class);
+    private static final ObjectWriter resultWriter = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.writerFor(DepositJobResultJson.class);
+
+    private final DepositDao depositDao;
+    private final DepositService depositService;
+    private final OSGIKillbillClock clock;
+    private final String owner;
+    private final int pollIntervalMs;
+    private final long jobTimeoutMs;
+    private final long jobRetentionMs;
+    // Jobs are only claimed when a thread is available to process them, so that idle nodes can pick up the rest
+    private final Semaphore idleJobThreads;
+    private final AtomicBoolean claimScheduled = new AtomicBoolean(false);
+    // Jobs claimed by this node and not completed yet, whose lease is renewed at each poll
+    private final Set<ULong> runningJobs = ConcurrentHashMap.<ULong>newKeySet();
+    private final ScheduledExecutorService pollExecutor;
+    private final ThreadPoolExecutor jobExecutor;
+
+    public DepositJobQueue(final DepositDao depositDao,
+                           final DepositService depositService,
+                           final OSGIKillbillClock clock,
+                           final int jobThreads,
+                           final int pollIntervalMs,
+                           final int jobTimeoutMinutes,
+                           final int jobRetentionDays) {
+        this(depositDao,
+             depositService,
+             clock,
+             jobThreads,
+             pollIntervalMs,
+             TimeUnit.MINUTES.toMillis(jobTimeoutMinutes),
+             TimeUnit.DAYS.toMillis(jobRetentionDays),
+             ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    DepositJobQueue(final DepositDao depositDao,
+                    final DepositService depositService,
+                    final OSGIKillbillClock clock,
+                    final int jobThreads,
+                    final int pollIntervalMs,
+                    final long jobTimeoutMs,
+                    final long jobRetentionMs,
+                    final String owner) {
+        this.depositDao = depositDao;
+        this.depositService = depositService;
+        this.clock = clock;
+        this.owner = owner;
+        this.pollIntervalMs = pollIntervalMs;
+        this.jobTimeoutMs = jobTimeoutMs;
+        this.jobRetentionMs = jobRetentionMs;
+        this.idleJobThreads = new Semaphore(jobThreads);
+        this.pollExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("deposit-job-poll-%d")
+                                                                                                 .setDaemon(true)
+                                                                                                 .build());
+        // Never more jobs than threads (see idleJobThreads): the queue is never used
+        this.jobExecutor = new ThreadPoolExecutor(jobThreads,
+                                                  jobThreads,
+                                                  60,
+                                                  TimeUnit.SECONDS,
+                                                  new LinkedBlockingQueue<Runnable>(),
+                                                  new ThreadFactoryBuilder().setNameFormat("deposit-job-%d")
+                                                                            .setDaemon(true)
+                                                                            .build());
+        this.jobExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Jobs being processed by this node (the jobs waiting to be claimed are in deposit_jobs)
+    public void registerGauges(final DepositMetrics metrics) {
+        DepositExecutors.registerGauges(metrics, "job", jobExecutor);
+    }
+
+    public void start() {
+        pollExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renewJobs();
+                requeueStaleJobs();
+                claimJobs();
+            }
+        }, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+        pollExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                purgeJobs();
+            }
+        }, JOB_PURGE_INTERVAL_MS, JOB_PURGE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        DepositExecutors.shutdown(pollExecutor, "deposit job polls");
+        DepositExecutors.shutdown(jobExecutor, "deposit jobs");
+    }
+
+    public DepositJobJson submit(final DepositJson depositJson,
+                                 final UUID userToken,
+                                 final Optional<String> createdBy,
+                                 final Optional<String> reason,
+                                 final Optional<String> comment,
+                                 final UUID kbTenantId) throws IOException, SQLException {
+        final UUID jobId = UUID.randomUUID();
+        final DepositJobRequestJson request = new DepositJobRequestJson(depositJson, userToken, createdBy.orElse(null), reason.orElse(null), comment.orElse(null));
+        depositDao.addJob(jobId, depositJson.accountId, requestWriter.writeValueAsString(request), clock.getClock().getUTCNow(), kbTenantId);
+        wakeUp();
+        return toDepositJobJson(jobId, DepositDao.JOB_STATUS_PENDING, request, null);
+    }
+
+    @Nullable
+    public DepositJobJson getJob(final UUID jobId, final UUID kbTenantId) throws IOException, SQLException {
+        final DepositJobsRecord job = depositDao.getJob(jobId, kbTenantId);
+        if (job == null) {
+            return null;
+        }
+
+        final DepositJobRequestJson request = requestReader.readValue(job.getRequest());
+        final DepositJobResultJson result = job.getResult() == null ? null : resultReader.<DepositJobResultJson>readValue(job.getResult());
+        return toDepositJobJson(jobId, job.getStatus(), request, result);
+    }
+
+    private static DepositJobJson toDepositJobJson(final UUID jobId,
+                                                   final String jobStatus,
+                                                   final DepositJobRequestJson request,
+                                                   @Nullable final DepositJobResultJson result) {
+        final List<InvoiceDepositResultJson> payments = new ArrayList<InvoiceDepositResultJson>();
+        if (request.deposit.payments != null) {
+            final Iterator<Integer> paymentStatuses = result == null ? null : result.paymentStatuses.iterator();
+            for (final InvoiceDepositJson invoiceDepositJson : request.deposit.payments) {
+                final Integer paymentStatus = paymentStatuses == null || !paymentStatuses.hasNext() ? null : paymentStatuses.next();
+                payments.add(new InvoiceDepositResultJson(invoiceDepositJson.invoiceNumber, invoiceDepositJson.paymentAmount, paymentStatus));
+            }
+        }
+
+        return new DepositJobJson(jobId,
+                                  jobStatus,
+                                  request.deposit.accountId,
+                                  request.deposit.paymentReferenceNumber,
+                                  result == null ? null : result.status,
+                                  payments);
+    }
+
+    // Schedules a claim right away (at most one at a time)
+    void wakeUp() {
+        if (!claimScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            pollExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    claimScheduled.set(false);
+                    claimJobs();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // Shutting down: pending jobs are claimed by the other nodes, or on restart
+            claimScheduled.set(false);
+        }
+    }
+
+    // Only called from the poll thread, before looking for stale jobs: slow jobs are never re-queued while this node is alive
+    void renewJobs() {
+        if (runningJobs.isEmpty()) {
+            return;
+        }
+
+        try {
+            depositDao.renewJobs(new ArrayList<ULong>(runningJobs), owner, clock.getClock().getUTCNow());
+        } catch (final SQLException | RuntimeException e) {
+            // Re-queued if this keeps failing until they time out
+            logger.warn("Unable to renew the deposit jobs of owner='{}'", owner, e);
+        }
+    }
+
+    // Only called from the poll thread
+    void requeueStaleJobs() {
+        final DateTime utcNow = clock.getClock().getUTCNow();
+        try {
+            final int nbJobs = depositDao.requeueStaleJobs(utcNow.minus(jobTimeoutMs), utcNow);
+            if (nbJobs > 0) {
+                logger.warn("Re-queued {} deposit job(s) not completed after {}ms", nbJobs, jobTimeoutMs);
+            }
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Unable to re-queue stale deposit jobs", e);
+        }
+    }
+
+    // Only called from the poll thread. Results are kept for the retention period, for the clients polling them.
+    void purgeJobs() {
+        final DateTime utcNow = clock.getClock().getUTCNow();
+        try {
+            int nbJobs = 0;
+            int nbPurged;
+            do {
+                nbPurged = depositDao.purgeCompletedJobs(utcNow.minus(jobRetentionMs), JOB_PURGE_BATCH_SIZE);
+                nbJobs += nbPurged;
+            } while (nbPurged == JOB_PURGE_BATCH_SIZE);
+            if (nbJobs > 0) {
+                logger.info("Purged {} deposit job(s) completed more than {}ms ago", nbJobs, jobRetentionMs);
+            }
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Unable to purge completed deposit jobs", e);
+        }
+    }
+
+    // Only called from the poll thread
+    void claimJobs() {
+        final int maxJobs = idleJobThreads.availablePermits();
+        if (maxJobs == 0) {
+            // Woken up when a job completes
+            return;
+        }
+
+        final List<DepositJobsRecord> jobs;
+        try {
+            jobs = depositDao.claimJobs(owner, maxJobs, clock.getClock().getUTCNow());
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Unable to claim deposit jobs", e);
+            return;
+        }
+
+        for (final DepositJobsRecord job : jobs) {
+            idleJobThreads.acquireUninterruptibly();
+            runningJobs.add(job.getRecordId());
+            try {
+                jobExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processJob(job);
+                        } finally {
+                            runningJobs.remove(job.getRecordId());
+                            idleJobThreads.release();
+                            wakeUp();
+                        }
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // Shutting down: the job is claimed again by the other nodes, or on restart
+                runningJobs.remove(job.getRecordId());
+                idleJobThreads.release();
+                releaseJob(job);
+            }
+        }
+    }
+
+    private void releaseJob(final DepositJobsRecord job) {
+        try {
+            depositDao.releaseJob(job.getRecordId(), owner, clock.getClock().getUTCNow());
+        } catch (final SQLException | RuntimeException e) {
+            // Re-queued once it times out
+            logger.warn("Unable to release deposit jobId='{}'", job.getJobId(), e);
+        }
+    }
+
+    private void processJob(final DepositJobsRecord job) {
+        DepositJobResultJson result;
+        try {
+            final DepositJobRequestJson request = requestReader.readValue(job.getRequest());
+            final Status[] paymentStatuses = new Status[request.deposit.payments == null ? 0 : request.deposit.payments.size()];
+            final Status status = depositService.recordDepositSafely(request.deposit,
+                                                                     request.userToken,
+                                                                     Optional.ofNullable(request.createdBy),
+                                                                     Optional.ofNullable(request.reason),
+                                                                     Optional.ofNullable(request.comment),
+                                                                     UUID.fromString(job.getKbTenantId()),
+                                                                     paymentStatuses);
+            final List<Integer> paymentStatusValues = new ArrayList<Integer>(paymentStatuses.length);
+            for (final Status paymentStatus : paymentStatuses) {
+                paymentStatusValues.add(paymentStatus == null ? null : paymentStatus.value());
+            }
+            result = new DepositJobResultJson(status.value(), paymentStatusValues);
+        } catch (final IOException e) {
+            logger.warn("Unable to read deposit jobId='{}'", job.getJobId(), e);
+            result = new DepositJobResultJson(Status.SERVER_ERROR.value(), new ArrayList<Integer>());
+        }
+
+        // If this fails, the job stays in PROCESSING until its lease times out, and is then processed again (the invoices already
+        // paid are reported as such, and not paid twice)
+        try {
+            if (!depositDao.completeJob(job.getRecordId(), owner, resultWriter.writeValueAsString(result), clock.getClock().getUTCNow())) {
+                logger.warn("Deposit jobId='{}' was re-queued before completing (status={}), leaving it to the new attempt", job.getJobId(), result.status);
+            }
+        } catch (final IOException | SQLException | RuntimeException e) {
+            logger.warn("Unable to complete deposit jobId='{}' (status={})", job.getJobId(), result.status, e);
+        }
+    }
+
+    private static final class DepositJobRequestJson {
+
+        public final DepositJson deposit;
+        public final UUID userToken;
+        public final String createdBy;
+        public final String reason;
+        public final String comment;
+
+        @JsonCreator
+        public DepositJobRequestJson(@JsonProperty("deposit") final DepositJson deposit,
+                                     @JsonProperty("userToken") final UUID userToken,
+                                     @JsonProperty("createdBy") final String createdBy,
+                                     @JsonProperty("reason") final String reason,
+                                     @JsonProperty("comment") final String comment) {
+            this.deposit = deposit;
+            this.userToken = userToken;
+            this.createdBy = createdBy;
+            this.reason = reason;
+            this.comment = comment;
+        }
+    }
+
+    private static final class DepositJobResultJson {
+
+        public final int status;
+        // One entry per payment of the request, null if the payment wasn't made
+        public final List<Integer> paymentStatuses;
+
+        @JsonCreator
+        public DepositJobResultJson(@JsonProperty("status") final int status,
+                                    @JsonProperty("paymentStatuses") final List<Integer> paymentStatuses) {
+            this.status = status;
+            this.paymentStatuses = paymentStatuses;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jooby.Status;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Counters, latency histograms and gauges of the plugin, exposed in the Prometheus text format (see DepositMetricsServlet).
+ * <p>
+ * Recording is lock-free (LongAdder cells, and a concurrent map lookup for the label value): it is cheap enough for every
+ * deposit, payment and SQL statement. Label values must come from small, fixed sets (statuses, stages, statement types...).
+ */
+public class DepositMetrics {
+
+    public static final String MEDIA_TYPE = "text/plain; version=0.0.4";
+
+    private static final String PREFIX = "killbill_deposit_";
+
+    // Upper bounds of the latency histogram buckets, in seconds
+    private static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    // Outcomes of the deposits and invoice payments, exposed even when zero
+    private static final List<Status> OUTCOMES = ImmutableList.<Status>of(Status.CREATED,
+                                                                          Status.BAD_REQUEST,
+                                                                          Status.NOT_FOUND,
+                                                                          Status.UNPROCESSABLE_ENTITY,
+                                                                          Status.SERVER_ERROR);
+
+    private final Counter deposits = new Counter("deposits_total", "Deposits recorded, by outcome", "status");
+    private final Histogram depositDuration = new Histogram("deposit_duration_seconds", "Time to record a deposit, by stage (total: the whole deposit)", "stage");
+    private final Counter payments = new Counter("payments_total", "Invoice payments of the deposits, by outcome", "status");
+    private final Histogram statementDuration = new Histogram("statement_duration_seconds", "Execution time of the SQL statements of the plugin, by type", "type");
+    private final Counter statementErrors = new Counter("statement_errors_total", "SQL statements of the plugin which failed, by type", "type");
+    private final Counter controlDecisions = new Counter("control_decisions_total", "Payment control decisions (priorCall), by outcome", "decision");
+    private final Histogram controlDuration = new Histogram("control_duration_seconds", "Time to take a payment control decision (priorCall)", null);
+    private final List<GaugeSample> gauges = new CopyOnWriteArrayList<GaugeSample>();
+
+    public DepositMetrics() {
+        for (final Status outcome : OUTCOMES) {
+            deposits.get(toLabel(outcome));
+            payments.get(toLabel(outcome));
+        }
+        controlDecisions.get("allowed");
+        controlDecisions.get("aborted");
+    }
+
+    // stage is e.g. "account" or "payments", see DepositService#recordDeposit
+    public void recordDepositStage(final String stage, final long durationNanos) {
+        depositDuration.get(stage).record(durationNanos);
+    }
+
+    public void recordDeposit(final Status status, final long durationNanos) {
+        deposits.get(toLabel(status)).increment();
+        depositDuration.get("total").record(durationNanos);
+    }
+
+    public void recordPayment(final Status status) {
+        payments.get(toLabel(status)).increment();
+    }
+
+    public void recordStatement(final String type, final long durationNanos) {
+        statementDuration.get(type).record(durationNanos);
+    }
+
+    public void recordStatementError(final String type) {
+        statementErrors.get(type).increment();
+    }
+
+    public void recordControlDecision(final boolean aborted, final long durationNanos) {
+        controlDecisions.get(aborted ? "aborted" : "allowed").increment();
+        controlDuration.get(null).record(durationNanos);
+    }
+
+    // Sampled when the metrics are scraped
+    public void registerGauge(final String name, final String help, final String labelName, final String labelValue, final Gauge gauge) {
+        gauges.add(new GaugeSample(name, help, labelName, labelValue, gauge));
+    }
+
+    public void write(final Writer writer) throws IOException {
+        deposits.write(writer);
+        depositDuration.write(writer);
+        payments.write(writer);
+        statementDuration.write(writer);
+        statementErrors.write(writer);
+        controlDecisions.write(writer);
+        controlDuration.write(writer);
+
+        // Samples of the same gauge must be consecutive
+        final Map<String, List<GaugeSample>> gaugesByName = new LinkedHashMap<String, List<GaugeSample>>();
+        for (final GaugeSample gaugeSample : gauges) {
+            List<GaugeSample> samples = gaugesByName.get(gaugeSample.name);
+            if (samples == null) {
+                samples = new ArrayList<GaugeSample>();
+                gaugesByName.put(gaugeSample.name, samples);
+            }
+            samples.add(gaugeSample);
+        }
+        for (final List<GaugeSample> samples : gaugesByName.values()) {
+            writeHeader(writer, samples.get(0).name, samples.get(0).help, "gauge");
+            for (final GaugeSample sample : samples) {
+                writeSample(writer, sample.name, sample.labelName, sample.labelValue, null, null, Long.toString(sample.gauge.getValue()));
+            }
+        }
+        writer.flush();
+    }
+
+    private static String toLabel(final Status status) {
+        for (final Status outcome : OUTCOMES) {
+            if (outcome.value() == status.value()) {
+                return outcome.reason().toUpperCase(Locale.ROOT).replace(' ', '_');
+            }
+        }
+        return Integer.toString(status.value());
+    }
+
+    private static void writeHeader(final Writer writer, final String name, final String help, final String type) throws IOException {
+        writer.write("# HELP " + PREFIX + name + " " + help + "\n");
+        writer.write("# TYPE " + PREFIX + name + " " + type + "\n");
+    }
+
+    private static void writeSample(final Writer writer,
+                                    final String name,
+                                    final String labelName,
+                                    final String labelValue,
+                                    final String extraLabelName,
+                                    final String extraLabelValue,
+                                    final String value) throws IOException {
+        writer.write(PREFIX);
+        writer.write(name);
+        if (labelName != null || extraLabelName != null) {
+            writer.write('{');
+            if (labelName != null) {
+                writer.write(labelName + "=\"" + escape(labelValue) + "\"");
+            }
+            if (extraLabelName != null) {
+                writer.write((labelName != null ? "," : "") + extraLabelName + "=\"" + escape(extraLabelValue) + "\"");
+            }
+            writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(value);
+        writer.write('\n');
+    }
+
+    private static String escape(final String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public interface Gauge {
+
+        long getValue();
+    }
+
+    // Metric with at most one label: the cells of each label value are created on first use, and never removed
+    private abstract static class Family<T> {
+
+        // Sorted, for a stable output
+        private final ConcurrentMap<String, T> cells = new ConcurrentSkipListMap<String, T>();
+        final String name;
+        final String help;
+        final String labelName;
+
+        Family(final String name, final String help, final String labelName) {
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+        }
+
+        T get(final String labelValue) {
+            final String key = labelName == null ? "" : labelValue;
+            final T cell = cells.get(key);
+            if (cell != null) {
+                return cell;
+            }
+            final T newCell = newCell();
+            final T previousCell = cells.putIfAbsent(key, newCell);
+            return previousCell == null ? newCell : previousCell;
+        }
+
+        Map<String, T> getCells() {
+            return cells;
+        }
+
+        abstract T newCell();
+    }
+
+    private static final class Counter extends Family<LongAdder> {
+
+        Counter(final String name, final String help, final String labelName) {
+            super(name, help, labelName);
+        }
+
+        @Override
+        LongAdder newCell() {
+            return new LongAdder();
+        }
+
+        void write(final Writer writer) throws IOException {
+            writeHeader(writer, name, help, "counter");
+            for (final Map.Entry<String, LongAdder> cell : getCells().entrySet()) {
+                writeSample(writer, name, labelName, cell.getKey(), null, null, Long.toString(cell.getValue().sum()));
+            }
+        }
+    }
+
+    private static final class Histogram extends Family<HistogramCell> {
+
+        Histogram(final String name, final String help, final String labelName) {
+            super(name, help, labelName);
+        }
+
+        @Override
+        HistogramCell newCell() {
+            return new HistogramCell();
+        }
+
+        void write(final Writer writer) throws IOException {
+            writeHeader(writer, name, help, "histogram");
+            for (final Map.Entry<String, HistogramCell> cell : getCells().entrySet()) {
+                final String labelValue = cell.getKey();
+                final HistogramCell histogram = cell.getValue();
+                // Buckets are cumulative. The count is read first: concurrent records can only make the buckets larger than it.
+                final long count = histogram.count.sum();
+                final double sumSeconds = histogram.sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+                long cumulativeCount = 0;
+                for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                    cumulativeCount += histogram.buckets[i].sum();
+                    writeSample(writer, name + "_bucket", labelName, labelValue, "le", Double.toString(LATENCY_BUCKETS[i]), Long.toString(Math.min(cumulativeCount, count)));
+                }
+                writeSample(writer, name + "_bucket", labelName, labelValue, "le", "+Inf", Long.toString(count));
+                writeSample(writer, name + "_sum", labelName, labelValue, null, null, Double.toString(sumSeconds));
+                writeSample(writer, name + "_count", labelName, labelValue, null, null, Long.toString(count));
+            }
+        }
+    }
+
+    private static final class HistogramCell {
+
+        // Not cumulative: the last one is the +Inf bucket
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private HistogramCell() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(final long durationNanos) {
+            final double durationSeconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && durationSeconds > LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(durationNanos);
+            count.increment();
+        }
+    }
+
+    private static final class GaugeSample {
+
+        private final String name;
+        private final String help;
+        private final String labelName;
+        private final String labelValue;
+        private final Gauge gauge;
+
+        private GaugeSample(final String name, final String help, final String labelName, final String labelValue, final Gauge gauge) {
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+            this.gauge = gauge;
+        }
+    }
+}
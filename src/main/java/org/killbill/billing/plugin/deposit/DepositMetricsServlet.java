@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.inject.Singleton;
+
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Path;
+
+import com.google.inject.Inject;
+
+// Metrics of this node, in the Prometheus text format
+@Singleton
+@Path("/metrics")
+public class DepositMetricsServlet {
+
+    private final DepositMetrics metrics;
+
+    @Inject
+    public DepositMetricsServlet(final DepositMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @GET
+    public Result scrape() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        metrics.write(writer);
+        return Results.with(out.toByteArray(), Status.OK).type(DepositMetrics.MEDIA_TYPE);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.jooby.Parser;
+import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.inject.TypeLiteral;
+
+/**
+ * Newline-delimited JSON request body (one {@link DepositJson} per line), decoded incrementally.
+ * <p>
+ * Only one deposit is held in memory at a time. Note that Jooby buffers the upload before invoking the route
+ * (on disk, above server.http.RequestBufferSize) and requires a Content-Length.
+ */
+final class DepositNdjsonBody {
+
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    // Registered on the application, see DepositActivator
+    public static final Parser PARSER = new Parser() {
+        @Override
+        public Object parse(final TypeLiteral<?> type, final Context ctx) throws Throwable {
+            if (type.getRawType() != DepositNdjsonBody.class) {
+                return ctx.next();
+            }
+            return ctx.body(new Callback<BodyReference>() {
+                @Override
+                public Object invoke(final BodyReference body) {
+                    return new DepositNdjsonBody(body);
+                }
+            });
+        }
+    };
+
+    private static final ObjectReader depositReader = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.readerFor(DepositJson.class);
+
+    private final Parser.BodyReference body;
+
+    DepositNdjsonBody(final Parser.BodyReference body) {
+        this.body = body;
+    }
+
+    /**
+     * Invokes the handler for each deposit, in order, as soon as it has been read.
+     *
+     * @throws JsonProcessingException if the body isn't well-formed JSON (deposits before the error have been handled)
+     */
+    public void readDeposits(final DepositHandler handler) throws Exception {
+        final DepositFeeder depositFeeder = new DepositFeeder(handler);
+        body.writeTo(depositFeeder);
+        depositFeeder.close();
+    }
+
+    interface DepositHandler {
+
+        void onDeposit(DepositJson depositJson) throws IOException;
+
+        // The line is well-formed JSON but doesn't map to a deposit (e.g. invalid UUID): the following lines are still read
+        void onInvalidDeposit(JsonProcessingException e) throws IOException;
+    }
+
+    // Feeds the bytes written by the body reference to a non-blocking parser, buffering the tokens of the current deposit only
+    private static final class DepositFeeder extends OutputStream {
+
+        private final DepositHandler handler;
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+
+        private TokenBuffer currentDeposit;
+        private int depth;
+        private boolean closed;
+
+        private DepositFeeder(final DepositHandler handler) throws IOException {
+            this.handler = handler;
+            this.parser = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.getFactory().createNonBlockingByteArrayParser();
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            // All available tokens are consumed after each chunk, so the parser always needs more input here
+            feeder.feedInput(b, off, off + len);
+            readTokens();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            feeder.endOfInput();
+            readTokens();
+            parser.close();
+            if (currentDeposit != null) {
+                throw new JsonParseException(parser, "Unexpected end of input in the last deposit");
+            }
+        }
+
+        private void readTokens() throws IOException {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                if (currentDeposit == null) {
+                    // Payment amounts must not go through a double
+                    currentDeposit = new TokenBuffer(parser).forceUseOfBigDecimal(true);
+                }
+                currentDeposit.copyCurrentEvent(parser);
+
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+
+                if (depth == 0) {
+                    final TokenBuffer deposit = currentDeposit;
+                    currentDeposit = null;
+                    onDeposit(deposit);
+                }
+            }
+        }
+
+        private void onDeposit(final TokenBuffer deposit) throws IOException {
+            final DepositJson depositJson;
+            try (final JsonParser depositParser = deposit.asParser()) {
+                depositJson = depositReader.readValue(depositParser);
+            } catch (final JsonProcessingException e) {
+                handler.onInvalidDeposit(e);
+                return;
+            }
+
+            if (depositJson == null) {
+                handler.onInvalidDeposit(new JsonParseException(parser, "Null deposit"));
+                return;
+            }
+            handler.onDeposit(depositJson);
+        }
+    }
+}
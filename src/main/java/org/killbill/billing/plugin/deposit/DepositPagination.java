@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.deposit;
+
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.util.entity.Pagination;
+
+/**
+ * Page of search results, seeked by record id: the offsets are record ids rather than positions in the results. The total
+ * number of results isn't known (counting them would mean scanning them all).
+ */
+public class DepositPagination<T> implements Pagination<T> {
+
+    private final Long currentOffset;
+    private final Long nextOffset;
+    private final List<T> results;
+
+    public DepositPagination(final Long currentOffset, @Nullable final Long nextOffset, final List<T> results) {
+        this.currentOffset = currentOffset;
+        this.nextOffset = nextOffset;
+        this.results = results;
+    }
+
+    @Override
+    public Long getCurrentOffset() {
+        return currentOffset;
+    }
+
+    // Null on the last page
+    @Nullable
+    @Override
+    public Long getNextOffset() {
+        return nextOffset;
+    }
+
+    @Nullable
+    @Override
+    public Long getMaxNbRecords() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Long getTotalNbRecords() {
+        return null;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return results.iterator();
+    }
+
+    @Override
+    public void close() {
+    }
+}
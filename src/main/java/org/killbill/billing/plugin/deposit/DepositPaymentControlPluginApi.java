@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.deposit;
 
+import org.killbill.billing.control.plugin.api.OnFailurePaymentControlResult;
 import org.killbill.billing.control.plugin.api.PaymentControlApiException;
 import org.killbill.billing.control.plugin.api.PaymentControlContext;
 import org.killbill.billing.control.plugin.api.PriorPaymentControlResult;
@@ -25,7 +26,9 @@ import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.api.control.PluginPaymentControlPluginApi;
 import org.killbill.billing.plugin.api.control.PluginPriorPaymentControlResult;
+import org.killbill.billing.plugin.deposit.DepositControlRules.Violation;
 import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,29 +36,83 @@ public class DepositPaymentControlPluginApi extends PluginPaymentControlPluginAp
 
     private static final Logger logger = LoggerFactory.getLogger(DepositPaymentControlPluginApi.class);
 
+    // The results are immutable: no need to allocate one per payment
+    private static final PriorPaymentControlResult ALLOWED = new PluginPriorPaymentControlResult(false);
+    private static final PriorPaymentControlResult ABORTED = new PluginPriorPaymentControlResult(true);
+
     private final DepositConfigurationHandler depositConfigurationHandler;
+    private final DepositVelocityTracker velocityTracker;
+    private final DepositMetrics metrics;
+    // DefaultClock#getUTCNow is the system time: read it without allocating a DateTime
+    private final boolean systemClock;
 
     public DepositPaymentControlPluginApi(final DepositConfigurationHandler depositConfigurationHandler,
+                                          final DepositVelocityTracker velocityTracker,
                                           final OSGIKillbillAPI killbillAPI,
                                           final OSGIConfigPropertiesService configProperties,
-                                          final Clock clock) {
+                                          final Clock clock,
+                                          final DepositMetrics metrics) {
         super(killbillAPI, configProperties, clock);
         this.depositConfigurationHandler = depositConfigurationHandler;
+        this.velocityTracker = velocityTracker;
+        this.metrics = metrics;
+        this.systemClock = clock instanceof DefaultClock;
     }
 
+    // Deposits allowed by the velocity limits are counted, and their amount reserved, right away (nothing is left to do once they
+    // succeed). Each invoice paid by a deposit is a payment of its own, and counts as one deposit.
     @Override
     public PriorPaymentControlResult priorCall(final PaymentControlContext context,
                                                final Iterable<PluginProperty> properties) throws PaymentControlApiException {
-        final DepositConfiguration depositConfiguration = depositConfigurationHandler.getConfigurable(context.getTenantId());
-        if (context.getAmount() == null ||
-            depositConfiguration == null ||
-            depositConfiguration.minAmounts == null ||
-            depositConfiguration.minAmounts.get(context.getCurrency()) == null ||
-            depositConfiguration.minAmounts.get(context.getCurrency()).compareTo(context.getAmount()) <= 0) {
-            return new PluginPriorPaymentControlResult(false);
+        final long startNanos = System.nanoTime();
+        final boolean aborted = isAborted(context, properties);
+        metrics.recordControlDecision(aborted, System.nanoTime() - startNanos);
+        return aborted ? ABORTED : ALLOWED;
+    }
+
+    @Override
+    public OnFailurePaymentControlResult onFailureCall(final PaymentControlContext context,
+                                                       final Iterable<PluginProperty> properties) throws PaymentControlApiException {
+        // Failed deposits count towards the number of deposits, but not towards their amount
+        final DepositControlRules rules = getControlRules(context);
+        final long maxAmountUnits = rules.getVelocityMaxAmountUnits(context.getCurrency());
+        if (rules.hasVelocityLimits() && maxAmountUnits >= 0 && context.getAccountId() != null && DepositControlRules.isDeposit(properties)) {
+            velocityTracker.release(context.getAccountId(),
+                                    currentTimeMillis(),
+                                    rules.getVelocityWindowMillis(),
+                                    DepositVelocityTracker.toAmountUnits(context.getAmount()));
+        }
+        return super.onFailureCall(context, properties);
+    }
+
+    private boolean isAborted(final PaymentControlContext context, final Iterable<PluginProperty> properties) {
+        final DepositControlRules rules = getControlRules(context);
+        Violation violation = rules.evaluate(context.getCurrency(), context.getAmount(), context.getPaymentMethodId(), properties);
+        if (violation == null && rules.hasVelocityLimits() && context.getAccountId() != null && DepositControlRules.isDeposit(properties)) {
+            // Amounts are only converted when they are limited
+            final long maxAmountUnits = rules.getVelocityMaxAmountUnits(context.getCurrency());
+            violation = velocityTracker.reserve(context.getAccountId(),
+                                                currentTimeMillis(),
+                                                rules.getVelocityWindowMillis(),
+                                                rules.getVelocityMaxDeposits(),
+                                                maxAmountUnits,
+                                                maxAmountUnits >= 0 ? DepositVelocityTracker.toAmountUnits(context.getAmount()) : 0);
+        }
+        if (violation == null) {
+            return false;
         }
 
-        logger.info("Aborting payment: amount='{}', minAmount='{}'", context.getAmount(), depositConfiguration.minAmounts.get(context.getCurrency()));
-        return new PluginPriorPaymentControlResult(true);
+        logger.info("Aborting payment: violation='{}', accountId='{}', amount='{}', currency='{}', paymentMethodId='{}'",
+                    violation, context.getAccountId(), context.getAmount(), context.getCurrency(), context.getPaymentMethodId());
+        return true;
+    }
+
+    private long currentTimeMillis() {
+        return systemClock ? System.currentTimeMillis() : clock.getUTCNow().getMillis();
+    }
+
+    private DepositControlRules getControlRules(final PaymentControlContext context) {
+        final DepositConfiguration depositConfiguration = depositConfigurationHandler.getConfigurable(context.getTenantId());
+        return depositConfiguration == null ? DepositControlRules.NONE : depositConfiguration.getControlRules();
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Per-tenant mapping from Kill Bill account id to the id of its deposit payment method.
+ */
+public class DepositPaymentMethodCache implements OSGIKillbillEventHandler {
+
+    public static final String CACHE_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "paymentMethodCacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+    public static final String EXPIRATION_SECONDS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "paymentMethodCacheExpirationSeconds";
+    public static final int DEFAULT_EXPIRATION_SECONDS = 60;
+
+    private final Cache<AccountKey, UUID> paymentMethodIds;
+
+    public DepositPaymentMethodCache(final long maximumSize) {
+        this(maximumSize, DEFAULT_EXPIRATION_SECONDS);
+    }
+
+    public DepositPaymentMethodCache(final long maximumSize, final long expirationSeconds) {
+        this.paymentMethodIds = CacheBuilder.newBuilder()
+                                            .maximumSize(maximumSize)
+                                            .expireAfterWrite(expirationSeconds, TimeUnit.SECONDS)
+                                            .recordStats()
+                                            .build();
+    }
+
+    @Nullable
+    public UUID getIfPresent(final UUID kbTenantId, final UUID kbAccountId) {
+        return paymentMethodIds.getIfPresent(new AccountKey(kbTenantId, kbAccountId));
+    }
+
+    public void put(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentMethodId) {
+        paymentMethodIds.put(new AccountKey(kbTenantId, kbAccountId), kbPaymentMethodId);
+    }
+
+    public void invalidate(final UUID kbTenantId, final UUID kbAccountId) {
+        paymentMethodIds.invalidate(new AccountKey(kbTenantId, kbAccountId));
+    }
+
+    public long getHitCount() {
+        return paymentMethodIds.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return paymentMethodIds.stats().missCount();
+    }
+
+    public long size() {
+        return paymentMethodIds.size();
+    }
+
+    public void registerGauges(final DepositMetrics metrics) {
+        metrics.registerGauge("cache_hits",
+                              "Lookups answered by the caches",
+                              "cache",
+                              "payment_method",
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return getHitCount();
+                                  }
+                              });
+        metrics.registerGauge("cache_misses",
+                              "Lookups not answered by the caches",
+                              "cache",
+                              "payment_method",
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return getMissCount();
+                                  }
+                              });
+        metrics.registerGauge("cache_entries",
+                              "Entries of the caches",
+                              "cache",
+                              "payment_method",
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return size();
+                                  }
+                              });
+    }
+
+    // No external bus event is emitted when a payment method is deleted: the node which deletes it drops the entry
+    // (DepositPaymentPluginApi#deletePaymentMethod), and the other nodes re-resolve it once it expires. Deleting the default
+    // payment method of an account changes the account though, in which case the entry is dropped right away
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        if (killbillEvent.getEventType() != ExtBusEventType.ACCOUNT_CHANGE ||
+            killbillEvent.getTenantId() == null ||
+            killbillEvent.getAccountId() == null) {
+            return;
+        }
+
+        invalidate(killbillEvent.getTenantId(), killbillEvent.getAccountId());
+    }
+
+    private static final class AccountKey {
+
+        private final UUID kbTenantId;
+        private final UUID kbAccountId;
+
+        private AccountKey(final UUID kbTenantId, final UUID kbAccountId) {
+            this.kbTenantId = kbTenantId;
+            this.kbAccountId = kbAccountId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final AccountKey that = (AccountKey) o;
+            return Objects.equals(kbTenantId, that.kbTenantId) && Objects.equals(kbAccountId, that.kbAccountId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kbTenantId, kbAccountId);
+        }
+    }
+}
@@ -20,11 +20,17 @@ package org.killbill.billing.plugin.deposit;
 import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.jooq.exception.DataAccessException;
+import org.jooq.types.ULong;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
@@ -43,31 +49,62 @@ import org.killbill.billing.plugin.api.payment.PluginPaymentMethodPlugin;
 import org.killbill.billing.plugin.api.payment.PluginPaymentPluginApi;
 import org.killbill.billing.plugin.api.payment.PluginPaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.PendingResponse;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.SearchCriteria;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositPaymentMethodsRecord;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
 import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.entity.Pagination;
 import org.killbill.clock.Clock;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 
 public class DepositPaymentPluginApi extends PluginPaymentPluginApi<DepositResponsesRecord, DepositResponses, DepositPaymentMethodsRecord, DepositPaymentMethods> {
 
     public static final String PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER = "depositPaymentReferenceNumber";
     public static final String PLUGIN_PROPERTY_DEPOSIT_TYPE = "depositType";
     public static final String PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE = "depositEffectiveDate";
+    public static final String PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER = "depositInvoiceNumber";
+    // Search criteria (see searchPayments)
+    public static final String PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_FROM = "depositEffectiveDateFrom";
+    public static final String PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_TO = "depositEffectiveDateTo";
+    public static final String PLUGIN_PROPERTY_DEPOSIT_MIN_AMOUNT = "depositMinAmount";
+    public static final String PLUGIN_PROPERTY_DEPOSIT_MAX_AMOUNT = "depositMaxAmount";
+
+    public static final int DEFAULT_SEARCH_LIMIT = 100;
+    public static final int MAX_SEARCH_LIMIT = 1000;
 
     private final DepositDao dao;
+    private final DepositPaymentMethodCache paymentMethodCache;
+    private final DepositResponseWriter responseWriter;
+
+    public DepositPaymentPluginApi(final OSGIKillbillAPI killbillAPI,
+                                   final OSGIConfigPropertiesService configProperties,
+                                   final Clock clock,
+                                   final DepositDao dao,
+                                   final DepositPaymentMethodCache paymentMethodCache) {
+        this(killbillAPI,
+             configProperties,
+             clock,
+             dao,
+             paymentMethodCache,
+             new DepositResponseWriter(dao, clock, DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_WAIT_MS, DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE));
+    }
 
     public DepositPaymentPluginApi(final OSGIKillbillAPI killbillAPI,
                                    final OSGIConfigPropertiesService configProperties,
                                    final Clock clock,
-                                   final DepositDao dao) {
+                                   final DepositDao dao,
+                                   final DepositPaymentMethodCache paymentMethodCache,
+                                   final DepositResponseWriter responseWriter) {
         super(killbillAPI, configProperties, clock, dao);
         this.dao = dao;
+        this.paymentMethodCache = paymentMethodCache;
+        this.responseWriter = responseWriter;
     }
 
     @Override
@@ -84,9 +121,21 @@ public class DepositPaymentPluginApi extends PluginPaymentPluginApi<DepositRespo
             this.dao.addPaymentMethod(kbAccountId, kbPaymentMethodId, mergedProperties, utcNow, context.getTenantId());
         } catch (final SQLException e) {
             throw new PaymentPluginApiException("Unable to add payment method for kbPaymentMethodId " + kbPaymentMethodId, e);
+        } catch (final DataAccessException e) {
+            // E.g. the account already has an active deposit payment method (deposit_payment_methods_active_kb_account_id)
+            throw new PaymentPluginApiException("Unable to add payment method for kbPaymentMethodId " + kbPaymentMethodId, e);
         }
     }
 
+    @Override
+    public void deletePaymentMethod(final UUID kbAccountId,
+                                    final UUID kbPaymentMethodId,
+                                    final Iterable<PluginProperty> properties,
+                                    final CallContext context) throws PaymentPluginApiException {
+        super.deletePaymentMethod(kbAccountId, kbPaymentMethodId, properties, context);
+        paymentMethodCache.invalidate(context.getTenantId(), kbAccountId);
+    }
+
     @Override
     public PaymentTransactionInfoPlugin purchasePayment(final UUID kbAccountId,
                                                         final UUID kbPaymentId,
@@ -97,25 +146,85 @@ public class DepositPaymentPluginApi extends PluginPaymentPluginApi<DepositRespo
                                                         final Iterable<PluginProperty> properties,
                                                         final CallContext context) throws PaymentPluginApiException {
         try {
-            dao.addResponse(kbAccountId,
-                            kbPaymentId,
-                            kbTransactionId,
-                            TransactionType.PURCHASE,
-                            amount,
-                            currency,
-                            properties,
-                            clock.getUTCNow(),
-                            context.getTenantId());
-            return Iterables.<PaymentTransactionInfoPlugin>getLast(getPaymentInfo(kbAccountId, kbPaymentId, properties, context));
+            final DepositResponsesRecord record = responseWriter.addResponse(new PendingResponse(kbAccountId,
+                                                                                                 kbPaymentId,
+                                                                                                 kbTransactionId,
+                                                                                                 TransactionType.PURCHASE,
+                                                                                                 amount,
+                                                                                                 currency,
+                                                                                                 properties,
+                                                                                                 context.getTenantId()));
+            // Built from the inserted values: no need to read the payment back
+            return buildPaymentTransactionInfoPlugin(record);
+        } catch (final SQLException e) {
+            throw new PaymentPluginApiException("We encountered a database error", e);
+        } catch (final DataAccessException e) {
+            // E.g. the invoice has already been paid for this deposit (deposit_responses_deposit_reference_invoice_number)
+            throw new PaymentPluginApiException("Unable to record payment for kbPaymentId " + kbPaymentId, e);
+        }
+    }
+
+    // searchKey, if any, is a deposit reference number, and the other criteria are plugin properties. The offset is the record id
+    // of the last payment of the previous page (0 for the first page), as returned by getNextOffset: deep pages are as fast as
+    // the first one.
+    @Override
+    public Pagination<PaymentTransactionInfoPlugin> searchPayments(final String searchKey,
+                                                                   final Long offset,
+                                                                   final Long limit,
+                                                                   final Iterable<PluginProperty> properties,
+                                                                   final TenantContext context) throws PaymentPluginApiException {
+        final SearchCriteria criteria;
+        try {
+            criteria = buildSearchCriteria(searchKey,
+                                           PluginProperties.findPluginPropertyValue(PLUGIN_PROPERTY_DEPOSIT_TYPE, properties),
+                                           PluginProperties.findPluginPropertyValue(PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_FROM, properties),
+                                           PluginProperties.findPluginPropertyValue(PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_TO, properties),
+                                           PluginProperties.findPluginPropertyValue(PLUGIN_PROPERTY_DEPOSIT_MIN_AMOUNT, properties),
+                                           PluginProperties.findPluginPropertyValue(PLUGIN_PROPERTY_DEPOSIT_MAX_AMOUNT, properties));
+        } catch (final IllegalArgumentException e) {
+            throw new PaymentPluginApiException("Invalid search criteria", e);
+        }
+        final long afterRecordId = offset == null ? 0 : offset;
+        if (afterRecordId < 0) {
+            throw new PaymentPluginApiException("Invalid search offset", new IllegalArgumentException("offset=" + offset));
+        }
+        final int maxRecords = limit == null ? DEFAULT_SEARCH_LIMIT : (int) Math.max(1, Math.min(limit, MAX_SEARCH_LIMIT));
+
+        final List<DepositResponsesRecord> records;
+        try {
+            // One more, to know whether there is a next page
+            records = dao.searchResponses(criteria, ULong.valueOf(afterRecordId), maxRecords + 1, context.getTenantId());
         } catch (final SQLException e) {
             throw new PaymentPluginApiException("We encountered a database error", e);
         }
+
+        final List<PaymentTransactionInfoPlugin> results = new ArrayList<PaymentTransactionInfoPlugin>(Math.min(records.size(), maxRecords));
+        for (final DepositResponsesRecord record : records.subList(0, Math.min(records.size(), maxRecords))) {
+            results.add(buildPaymentTransactionInfoPlugin(record));
+        }
+        final Long nextOffset = records.size() > maxRecords ? records.get(maxRecords - 1).getRecordId().longValue() : null;
+        return new DepositPagination<PaymentTransactionInfoPlugin>(afterRecordId, nextOffset, results);
+    }
+
+    // Effective dates are ISO 8601 dates or date-times, amounts decimal numbers: throws IllegalArgumentException otherwise
+    public static SearchCriteria buildSearchCriteria(@Nullable final String depositReferenceNumber,
+                                                     @Nullable final String depositType,
+                                                     @Nullable final String effectiveDateFrom,
+                                                     @Nullable final String effectiveDateTo,
+                                                     @Nullable final String minAmount,
+                                                     @Nullable final String maxAmount) {
+        return new SearchCriteria(Strings.emptyToNull(depositReferenceNumber),
+                                  Strings.emptyToNull(depositType),
+                                  Strings.isNullOrEmpty(effectiveDateFrom) ? null : new DateTime(effectiveDateFrom, DateTimeZone.UTC),
+                                  Strings.isNullOrEmpty(effectiveDateTo) ? null : new DateTime(effectiveDateTo, DateTimeZone.UTC),
+                                  Strings.isNullOrEmpty(minAmount) ? null : new BigDecimal(minAmount),
+                                  Strings.isNullOrEmpty(maxAmount) ? null : new BigDecimal(maxAmount));
     }
 
     @Override
     protected PaymentTransactionInfoPlugin buildPaymentTransactionInfoPlugin(final DepositResponsesRecord record) {
-        final Map additionalData = DepositDao.fromAdditionalData(record.getAdditionalData());
-        final String firstPaymentReferenceId = (String) additionalData.get(PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER);
+        // The payment reference number has its own column: additional_data is only decoded if the properties are read
+        final String firstPaymentReferenceId = record.getDepositReferenceNumber();
 
         final DateTime responseDate = new DateTime(record.getCreatedDate()
                                                          .atZone(ZoneOffset.UTC)
@@ -134,7 +243,7 @@ public class DepositPaymentPluginApi extends PluginPaymentPluginApi<DepositRespo
                                                       null,
                                                       responseDate,
                                                       responseDate,
-                                                      PluginProperties.buildPluginProperties(additionalData));
+                                                      new DepositAdditionalDataProperties(record.getAdditionalData()));
     }
 
     @Override
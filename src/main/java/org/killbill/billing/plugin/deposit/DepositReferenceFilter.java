@@ -0,0 +1,231 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jooq.types.ULong;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Probabilistic set of the invoices recently paid by a deposit (tenant, payment reference number, invoice number), used to skip
+ * the database lookup of retried deposits for the (vast) majority of payments which are new.
+ * <p>
+ * The filter only covers the latest deposits: it is made of two generations of expectedDeposits payments each, the older one
+ * being dropped when the newer one is full. It is loaded on startup with the last expectedDeposits responses, then kept
+ * up-to-date from the payments of this node and, periodically, from the ones of the other nodes. Until it is loaded, every
+ * payment is looked up. False negatives (payments made by another node since the last refresh, or older than the filter)
+ * are still rejected by the unique index on deposit_responses, once the payment has been attempted.
+ */
+public class DepositReferenceFilter {
+
+    public static final String EXPECTED_DEPOSITS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "referenceFilterExpectedDeposits";
+    public static final String REFRESH_INTERVAL_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "referenceFilterRefreshIntervalMs";
+
+    // Per generation: about 1.2MB for 1M payments
+    public static final int DEFAULT_EXPECTED_DEPOSITS = 1000000;
+    public static final int DEFAULT_REFRESH_INTERVAL_MS = 1000;
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int REFRESH_BATCH_SIZE = 10000;
+
+    // Record ids skipped by a refresh may belong to transactions which haven't committed yet: they are read again until they
+    // show up or for this long (rolled back transactions and auto-increment gaps never show up)
+    static final long MISSING_RECORD_ID_TIMEOUT_MS = 60 * 1000;
+    // Larger gaps (e.g. auto-increment jumps after a restart) aren't tracked
+    private static final int MAX_TRACKED_GAP = 1000;
+    private static final int MAX_MISSING_RECORD_IDS = 10000;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositReferenceFilter.class);
+
+    private static final Funnel<DepositReference> DEPOSIT_REFERENCE_FUNNEL = new Funnel<DepositReference>() {
+        @Override
+        public void funnel(final DepositReference from, final PrimitiveSink into) {
+            into.putLong(from.kbTenantId.getMostSignificantBits())
+                .putLong(from.kbTenantId.getLeastSignificantBits())
+                .putInt(from.invoiceNumber)
+                .putString(from.paymentReferenceNumber, StandardCharsets.UTF_8);
+        }
+    };
+
+    private final int expectedDeposits;
+    private final int refreshIntervalMs;
+    private final ScheduledExecutorService refreshExecutor;
+
+    // Thread-safe: lookups and insertions don't need to be synchronized. Rotated by the refresh thread: previous is set
+    // before current, so that a concurrent lookup always sees the payments of the current generation.
+    private volatile BloomFilter<DepositReference> current;
+    private volatile BloomFilter<DepositReference> previous;
+
+    // Only accessed by the refresh thread
+    private ULong lastRecordId = null;
+    // Record id -> when it was found missing (System.nanoTime), oldest first
+    private final Map<ULong, Long> missingRecordIds = new LinkedHashMap<ULong, Long>();
+    private volatile boolean loaded = false;
+
+    public DepositReferenceFilter(final int expectedDeposits, final int refreshIntervalMs) {
+        this.expectedDeposits = expectedDeposits;
+        this.current = createFilter(expectedDeposits);
+        this.previous = createFilter(expectedDeposits);
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("deposit-reference-filter-%d")
+                                                                                                    .setDaemon(true)
+                                                                                                    .build());
+    }
+
+    public void start(final DepositDao depositDao) {
+        // The initial load runs in the background: deposits are looked up in the meantime
+        refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh(depositDao);
+            }
+        }, 0, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        DepositExecutors.shutdown(refreshExecutor, "deposit reference filter refreshes");
+    }
+
+    // If false, the invoice has definitely not been paid recently for this deposit (as far as this node knows)
+    public boolean mightContain(final UUID kbTenantId, final String paymentReferenceNumber, final Integer invoiceNumber) {
+        if (!loaded) {
+            return true;
+        }
+        final DepositReference depositReference = new DepositReference(kbTenantId, paymentReferenceNumber, invoiceNumber);
+        return current.mightContain(depositReference) || previous.mightContain(depositReference);
+    }
+
+    public void put(final UUID kbTenantId, final String paymentReferenceNumber, final Integer invoiceNumber) {
+        current.put(new DepositReference(kbTenantId, paymentReferenceNumber, invoiceNumber));
+    }
+
+    void refresh(final DepositDao depositDao) {
+        try {
+            if (lastRecordId == null) {
+                // Only the latest deposits fit in the filter
+                final long lastExistingRecordId = depositDao.getLastRecordId().longValue();
+                lastRecordId = ULong.valueOf(Math.max(0, lastExistingRecordId - expectedDeposits));
+            }
+
+            refreshMissingRecordIds(depositDao);
+
+            List<DepositResponsesRecord> depositReferences;
+            do {
+                depositReferences = depositDao.getDepositReferences(lastRecordId, REFRESH_BATCH_SIZE);
+                for (final DepositResponsesRecord depositReference : depositReferences) {
+                    trackMissingRecordIds(lastRecordId, depositReference.getRecordId());
+                    add(depositReference);
+                    lastRecordId = depositReference.getRecordId();
+                }
+            } while (depositReferences.size() == REFRESH_BATCH_SIZE);
+
+            if (current.approximateElementCount() >= expectedDeposits) {
+                previous = current;
+                current = createFilter(expectedDeposits);
+            }
+
+            if (!loaded) {
+                logger.info("Deposit reference filter loaded, approximateElementCount={}", current.approximateElementCount());
+                loaded = true;
+            }
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Unable to refresh the deposit reference filter", e);
+        }
+    }
+
+    private void refreshMissingRecordIds(final DepositDao depositDao) throws SQLException {
+        final long expiredNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MISSING_RECORD_ID_TIMEOUT_MS);
+        final Iterator<Long> missingSinceNanos = missingRecordIds.values().iterator();
+        while (missingSinceNanos.hasNext() && missingSinceNanos.next() - expiredNanos < 0) {
+            missingSinceNanos.remove();
+        }
+        if (missingRecordIds.isEmpty()) {
+            return;
+        }
+
+        for (final DepositResponsesRecord depositReference : depositDao.getDepositReferences(ImmutableList.<ULong>copyOf(missingRecordIds.keySet()))) {
+            add(depositReference);
+            missingRecordIds.remove(depositReference.getRecordId());
+        }
+    }
+
+    private void trackMissingRecordIds(final ULong previousRecordId, final ULong recordId) {
+        // Nothing is missing before the initial load
+        if (!loaded || recordId.longValue() - previousRecordId.longValue() > MAX_TRACKED_GAP) {
+            return;
+        }
+
+        final long nowNanos = System.nanoTime();
+        for (long missingRecordId = previousRecordId.longValue() + 1; missingRecordId < recordId.longValue(); missingRecordId++) {
+            if (missingRecordIds.size() >= MAX_MISSING_RECORD_IDS) {
+                final Iterator<ULong> oldest = missingRecordIds.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            missingRecordIds.put(ULong.valueOf(missingRecordId), nowNanos);
+        }
+    }
+
+    private void add(final DepositResponsesRecord depositReference) {
+        // Responses recorded before deposits were idempotent don't have an invoice number
+        if (depositReference.getDepositInvoiceNumber() != null && depositReference.getDepositReferenceNumber() != null) {
+            put(UUID.fromString(depositReference.getKbTenantId()), depositReference.getDepositReferenceNumber(), depositReference.getDepositInvoiceNumber());
+        }
+    }
+
+    // Visible for testing
+    int getMissingRecordIdsCount() {
+        return missingRecordIds.size();
+    }
+
+    private static BloomFilter<DepositReference> createFilter(final int expectedDeposits) {
+        return BloomFilter.<DepositReference>create(DEPOSIT_REFERENCE_FUNNEL, expectedDeposits, FALSE_POSITIVE_PROBABILITY);
+    }
+
+    private static final class DepositReference {
+
+        private final UUID kbTenantId;
+        private final String paymentReferenceNumber;
+        private final int invoiceNumber;
+
+        private DepositReference(final UUID kbTenantId, final String paymentReferenceNumber, final int invoiceNumber) {
+            this.kbTenantId = kbTenantId;
+            this.paymentReferenceNumber = paymentReferenceNumber;
+            this.invoiceNumber = invoiceNumber;
+        }
+    }
+}
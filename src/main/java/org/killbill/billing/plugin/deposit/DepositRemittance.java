@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+
+/**
+ * A payment received by the bank (e.g. a lockbox check or a wire), as read from an import file.
+ */
+final class DepositRemittance {
+
+    private final int lineNumber;
+    private final String paymentReferenceNumber;
+    private final String depositType;
+    private final DateTime effectiveDate;
+    private final BigDecimal amount;
+    private final List<Item> items = new ArrayList<Item>();
+
+    DepositRemittance(final int lineNumber,
+                      final String paymentReferenceNumber,
+                      final String depositType,
+                      final DateTime effectiveDate,
+                      final BigDecimal amount) {
+        this.lineNumber = lineNumber;
+        this.paymentReferenceNumber = paymentReferenceNumber;
+        this.depositType = depositType;
+        this.effectiveDate = effectiveDate;
+        this.amount = amount;
+    }
+
+    void addItem(final Item item) {
+        items.add(item);
+    }
+
+    // Line of the first record of the remittance in the file
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getPaymentReferenceNumber() {
+        return paymentReferenceNumber;
+    }
+
+    public String getDepositType() {
+        return depositType;
+    }
+
+    public DateTime getEffectiveDate() {
+        return effectiveDate;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return "DepositRemittance{" +
+               "lineNumber=" + lineNumber +
+               ", paymentReferenceNumber='" + paymentReferenceNumber + '\'' +
+               ", depositType='" + depositType + '\'' +
+               ", effectiveDate=" + effectiveDate +
+               ", amount=" + amount +
+               ", items=" + items +
+               '}';
+    }
+
+    /**
+     * What the payer says the money is for: either an invoice, or an account (the amount is then applied to its oldest unpaid invoices).
+     */
+    static final class Item {
+
+        private final Integer invoiceNumber;
+        private final String accountExternalKey;
+        private final BigDecimal amount;
+
+        Item(@Nullable final Integer invoiceNumber, @Nullable final String accountExternalKey, final BigDecimal amount) {
+            this.invoiceNumber = invoiceNumber;
+            this.accountExternalKey = accountExternalKey;
+            this.amount = amount;
+        }
+
+        @Nullable
+        public Integer getInvoiceNumber() {
+            return invoiceNumber;
+        }
+
+        @Nullable
+        public String getAccountExternalKey() {
+            return accountExternalKey;
+        }
+
+        public BigDecimal getAmount() {
+            return amount;
+        }
+
+        @Override
+        public String toString() {
+            return "Item{" +
+                   "invoiceNumber=" + invoiceNumber +
+                   ", accountExternalKey='" + accountExternalKey + '\'' +
+                   ", amount=" + amount +
+                   '}';
+        }
+    }
+
+    interface RemittanceHandler {
+
+        void onRemittance(DepositRemittance remittance) throws IOException;
+
+        // The record can't be read: the reader skips to the next remittance
+        void onInvalidRecord(int lineNumber, String reason) throws IOException;
+    }
+
+    /**
+     * Push-based reader for a file format: lines are fed in order, remittances are emitted as soon as they are complete.
+     */
+    interface RemittanceReader {
+
+        void onLine(int lineNumber, String line) throws IOException;
+
+        void onEndOfInput() throws IOException;
+    }
+}
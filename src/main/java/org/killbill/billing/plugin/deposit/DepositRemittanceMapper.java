@@ -0,0 +1,230 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jooby.Status;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.deposit.DepositInvoiceCache.CachedInvoice;
+import org.killbill.billing.plugin.deposit.DepositRemittance.Item;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.InvoiceDepositJson;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+/**
+ * Turns a remittance into deposits (one per account), resolving invoice numbers and account external keys.
+ */
+class DepositRemittanceMapper {
+
+    // Oldest invoices are paid first
+    private static final Comparator<Invoice> INVOICE_ORDERING = new Comparator<Invoice>() {
+        @Override
+        public int compare(final Invoice o1, final Invoice o2) {
+            final int invoiceDateComparison = o1.getInvoiceDate().compareTo(o2.getInvoiceDate());
+            return invoiceDateComparison != 0 ? invoiceDateComparison : o1.getInvoiceNumber().compareTo(o2.getInvoiceNumber());
+        }
+    };
+
+    private final OSGIKillbillAPI killbillAPI;
+    private final DepositInvoiceCache invoiceCache;
+    private final DepositService depositService;
+
+    DepositRemittanceMapper(final OSGIKillbillAPI killbillAPI, final DepositInvoiceCache invoiceCache, final DepositService depositService) {
+        this.killbillAPI = killbillAPI;
+        this.invoiceCache = invoiceCache;
+        this.depositService = depositService;
+    }
+
+    // Account of each item, in file order. Balances aren't read yet: see map.
+    public Map<UUID, List<Item>> resolveAccounts(final DepositRemittance remittance, final TenantContext context) throws DepositImportException {
+        final Map<UUID, List<Item>> itemsByAccountId = new LinkedHashMap<UUID, List<Item>>();
+        for (final Item item : remittance.getItems()) {
+            final UUID accountId;
+            if (item.getInvoiceNumber() != null) {
+                accountId = getInvoice(item.getInvoiceNumber(), context).getAccountId();
+            } else {
+                accountId = getAccountId(item.getAccountExternalKey(), context);
+            }
+            if (itemsByAccountId.get(accountId) == null) {
+                itemsByAccountId.put(accountId, new ArrayList<Item>());
+            }
+            itemsByAccountId.get(accountId).add(item);
+        }
+        return itemsByAccountId;
+    }
+
+    // One deposit per account, with one payment per invoice. The caller must prevent concurrent payments for these accounts
+    // (e.g. from another remittance of the same file) until the deposits are recorded, as amounts are applied to the current balances.
+    public List<DepositJson> map(final DepositRemittance remittance,
+                                 final Map<UUID, List<Item>> itemsByAccountId,
+                                 final TenantContext context) throws DepositImportException {
+        final List<DepositJson> deposits = new ArrayList<DepositJson>(itemsByAccountId.size());
+        for (final Map.Entry<UUID, List<Item>> entry : itemsByAccountId.entrySet()) {
+            final UUID accountId = entry.getKey();
+            // Items of the same invoice are merged into one payment: a deposit pays each invoice number at most once (a second
+            // payment of the same invoice number would be taken for a replay of the first one, and skipped)
+            final Map<Integer, BigDecimal> amountsByInvoiceNumber = new LinkedHashMap<Integer, BigDecimal>();
+            Map<Integer, BigDecimal> previouslyAllocatedAmounts = null;
+            List<Invoice> sortedUnpaidInvoices = null;
+            for (final Item item : entry.getValue()) {
+                if (item.getInvoiceNumber() != null) {
+                    addAmount(amountsByInvoiceNumber, item.getInvoiceNumber(), item.getAmount());
+                } else {
+                    if (sortedUnpaidInvoices == null) {
+                        previouslyAllocatedAmounts = getPreviouslyAllocatedAmounts(remittance, accountId, entry.getValue(), context);
+                        sortedUnpaidInvoices = getSortedUnpaidInvoices(accountId, context);
+                    }
+                    allocate(item.getAmount(), accountId, previouslyAllocatedAmounts, sortedUnpaidInvoices, amountsByInvoiceNumber, context);
+                }
+            }
+
+            final List<InvoiceDepositJson> payments = new ArrayList<InvoiceDepositJson>(amountsByInvoiceNumber.size());
+            for (final Map.Entry<Integer, BigDecimal> amountEntry : amountsByInvoiceNumber.entrySet()) {
+                payments.add(new InvoiceDepositJson(amountEntry.getKey(), amountEntry.getValue()));
+            }
+            deposits.add(new DepositJson(accountId,
+                                         remittance.getEffectiveDate(),
+                                         remittance.getPaymentReferenceNumber(),
+                                         remittance.getDepositType(),
+                                         payments));
+        }
+        return deposits;
+    }
+
+    private CachedInvoice getInvoice(final Integer invoiceNumber, final TenantContext context) throws DepositImportException {
+        final CachedInvoice cachedInvoice = invoiceCache.getIfPresent(context.getTenantId(), invoiceNumber);
+        if (cachedInvoice != null) {
+            return cachedInvoice;
+        }
+
+        try {
+            return invoiceCache.put(context.getTenantId(), invoiceNumber, killbillAPI.getInvoiceUserApi().getInvoiceByNumber(invoiceNumber, context));
+        } catch (final InvoiceApiException e) {
+            if (e.getCode() == ErrorCode.INVOICE_NOT_FOUND.getCode()) {
+                throw new DepositImportException(Status.NOT_FOUND, "Invoice not found for invoiceNumber=" + invoiceNumber);
+            }
+            throw new DepositImportException(Status.SERVER_ERROR, "Error retrieving invoiceNumber=" + invoiceNumber, e);
+        }
+    }
+
+    private UUID getAccountId(final String accountExternalKey, final TenantContext context) throws DepositImportException {
+        try {
+            return killbillAPI.getAccountUserApi().getIdFromKey(accountExternalKey, context);
+        } catch (final AccountApiException e) {
+            if (e.getCode() == ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_KEY.getCode()) {
+                throw new DepositImportException(Status.NOT_FOUND, "Account not found for externalKey=" + accountExternalKey);
+            }
+            throw new DepositImportException(Status.SERVER_ERROR, "Error retrieving externalKey=" + accountExternalKey, e);
+        }
+    }
+
+    private List<Invoice> getSortedUnpaidInvoices(final UUID accountId, final TenantContext context) {
+        final Collection<Invoice> unpaidInvoices = killbillAPI.getInvoiceUserApi().getUnpaidInvoicesByAccountId(accountId, null, null, context);
+        final List<Invoice> sortedUnpaidInvoices = new ArrayList<Invoice>(unpaidInvoices);
+        sortedUnpaidInvoices.sort(INVOICE_ORDERING);
+        return sortedUnpaidInvoices;
+    }
+
+    // Amounts allocated to the invoices of the account by a previous import of the remittance (e.g. interrupted by a 503), keyed on
+    // its payment reference number: its payments of the invoices the remittance doesn't list by number
+    private Map<Integer, BigDecimal> getPreviouslyAllocatedAmounts(final DepositRemittance remittance,
+                                                                   final UUID accountId,
+                                                                   final List<Item> items,
+                                                                   final TenantContext context) throws DepositImportException {
+        final Map<Integer, BigDecimal> previouslyAllocatedAmounts;
+        try {
+            previouslyAllocatedAmounts = new LinkedHashMap<Integer, BigDecimal>(depositService.getPaidAmounts(remittance.getPaymentReferenceNumber(), accountId, context.getTenantId()));
+        } catch (final SQLException e) {
+            throw new DepositImportException(Status.SERVER_ERROR, "Error retrieving the payments of paymentReferenceNumber=" + remittance.getPaymentReferenceNumber(), e);
+        }
+        for (final Item item : items) {
+            if (item.getInvoiceNumber() != null) {
+                previouslyAllocatedAmounts.remove(item.getInvoiceNumber());
+            }
+        }
+        return previouslyAllocatedAmounts;
+    }
+
+    // The amounts previously allocated by the remittance are allocated again to the same invoices first, so that they're reported as
+    // already paid instead of paying the next unpaid invoices twice. The rest is allocated to the other unpaid invoices, minus the
+    // amounts already applied by the remittance.
+    private void allocate(final BigDecimal amount,
+                          final UUID accountId,
+                          final Map<Integer, BigDecimal> previouslyAllocatedAmounts,
+                          final List<Invoice> sortedUnpaidInvoices,
+                          final Map<Integer, BigDecimal> amountsByInvoiceNumber,
+                          final TenantContext context) throws DepositImportException {
+        BigDecimal remainingAmount = amount;
+        for (final Map.Entry<Integer, BigDecimal> previouslyAllocatedAmount : previouslyAllocatedAmounts.entrySet()) {
+            if (remainingAmount.compareTo(BigDecimal.ZERO) <= 0) {
+                break;
+            }
+            if (previouslyAllocatedAmount.getValue().compareTo(BigDecimal.ZERO) <= 0) {
+                continue;
+            }
+
+            final BigDecimal paymentAmount = remainingAmount.min(previouslyAllocatedAmount.getValue());
+            addAmount(amountsByInvoiceNumber, previouslyAllocatedAmount.getKey(), paymentAmount);
+            previouslyAllocatedAmount.setValue(previouslyAllocatedAmount.getValue().subtract(paymentAmount));
+            remainingAmount = remainingAmount.subtract(paymentAmount);
+        }
+
+        for (final Invoice invoice : sortedUnpaidInvoices) {
+            if (remainingAmount.compareTo(BigDecimal.ZERO) <= 0) {
+                break;
+            }
+            // Already paid by the deposit: it can't be paid again
+            if (previouslyAllocatedAmounts.containsKey(invoice.getInvoiceNumber())) {
+                continue;
+            }
+            final BigDecimal allocatedAmount = amountsByInvoiceNumber.get(invoice.getInvoiceNumber());
+            final BigDecimal balance = allocatedAmount == null ? invoice.getBalance() : invoice.getBalance().subtract(allocatedAmount);
+            if (balance.compareTo(BigDecimal.ZERO) <= 0) {
+                continue;
+            }
+
+            final BigDecimal paymentAmount = remainingAmount.min(balance);
+            invoiceCache.put(context.getTenantId(), invoice.getInvoiceNumber(), invoice);
+            addAmount(amountsByInvoiceNumber, invoice.getInvoiceNumber(), paymentAmount);
+            remainingAmount = remainingAmount.subtract(paymentAmount);
+        }
+
+        if (remainingAmount.compareTo(BigDecimal.ZERO) > 0) {
+            throw new DepositImportException(Status.UNPROCESSABLE_ENTITY,
+                                             String.format("Unable to apply %s: the unpaid invoices of accountId=%s add up to %s", amount, accountId, amount.subtract(remainingAmount)));
+        }
+    }
+
+    private static void addAmount(final Map<Integer, BigDecimal> amountsByInvoiceNumber, final Integer invoiceNumber, final BigDecimal amount) {
+        final BigDecimal previousAmount = amountsByInvoiceNumber.get(invoiceNumber);
+        amountsByInvoiceNumber.put(invoiceNumber, previousAmount == null ? amount : previousAmount.add(amount));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.PendingResponse;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.clock.Clock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Records the responses of payment transactions, optionally with group commit: concurrent writes are coalesced into one
+ * multi-row INSERT (see {@link DepositDao#addResponses}), i.e. a single commit.
+ * <p>
+ * There is no background thread: the first caller to find no flush in progress becomes the leader, waits up to maxWaitMs for
+ * other callers to queue their responses (or until maxBatchSize responses are queued) and writes them all. The other callers
+ * block until their own response has been written. If the batch fails (e.g. an invoice has already been paid for a deposit),
+ * its responses are written one by one, so that each caller gets its own outcome.
+ */
+public class DepositResponseWriter {
+
+    public static final String GROUP_COMMIT_MAX_WAIT_MS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "groupCommitMaxWaitMs";
+    public static final String GROUP_COMMIT_MAX_BATCH_SIZE_PROPERTY = DepositActivator.PROPERTY_PREFIX + "groupCommitMaxBatchSize";
+
+    // Disabled by default: each response is committed on its own
+    public static final int DEFAULT_GROUP_COMMIT_MAX_WAIT_MS = 0;
+    public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE = 100;
+
+    private final DepositDao depositDao;
+    private final Clock clock;
+    private final long maxWaitNanos;
+    private final int maxBatchSize;
+    private final LinkedBlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<PendingWrite>();
+    // Held by the leader
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    public DepositResponseWriter(final DepositDao depositDao, final Clock clock, final int maxWaitMs, final int maxBatchSize) {
+        this.depositDao = depositDao;
+        this.clock = clock;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMs));
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, DepositDao.MAX_RESPONSES_PER_INSERT));
+    }
+
+    public boolean isGroupCommitEnabled() {
+        return maxWaitNanos > 0 && maxBatchSize > 1;
+    }
+
+    public void registerGauges(final DepositMetrics metrics) {
+        metrics.registerGauge("group_commit_pending_responses",
+                              "Responses waiting to be written by a group commit",
+                              null,
+                              null,
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return pendingWrites.size();
+                                  }
+                              });
+    }
+
+    // Returns once the response has been committed
+    public DepositResponsesRecord addResponse(final PendingResponse response) throws SQLException {
+        if (!isGroupCommitEnabled()) {
+            return depositDao.addResponses(ImmutableList.<PendingResponse>of(response), clock.getUTCNow()).get(0);
+        }
+
+        final PendingWrite pendingWrite = new PendingWrite(response);
+        pendingWrites.add(pendingWrite);
+        while (!pendingWrite.result.isDone()) {
+            if (flushLock.tryLock()) {
+                try {
+                    // The previous leader may have written it in the meantime
+                    if (!pendingWrite.result.isDone()) {
+                        flush();
+                    }
+                } finally {
+                    flushLock.unlock();
+                }
+            } else {
+                try {
+                    // Woken up as soon as the response is written, otherwise try to become the leader
+                    Uninterruptibles.getUninterruptibly(pendingWrite.result, maxWaitNanos, TimeUnit.NANOSECONDS);
+                } catch (final ExecutionException | TimeoutException ignored) {
+                    // Handled below
+                }
+            }
+        }
+
+        try {
+            return Uninterruptibles.getUninterruptibly(pendingWrite.result);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private void flush() {
+        final List<PendingWrite> batch = new ArrayList<PendingWrite>(maxBatchSize);
+        final long deadline = System.nanoTime() + maxWaitNanos;
+        pendingWrites.drainTo(batch, maxBatchSize);
+        while (batch.size() < maxBatchSize) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                break;
+            }
+
+            final PendingWrite next;
+            try {
+                next = pendingWrites.poll(remainingNanos, TimeUnit.NANOSECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+            pendingWrites.drainTo(batch, maxBatchSize - batch.size());
+        }
+
+        try {
+            write(batch);
+        } finally {
+            // Never leave a caller hanging (e.g. on an Error)
+            for (final PendingWrite pendingWrite : batch) {
+                pendingWrite.result.setException(new IllegalStateException("Response not written"));
+            }
+        }
+    }
+
+    private void write(final List<PendingWrite> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final List<PendingResponse> responses = new ArrayList<PendingResponse>(batch.size());
+        for (final PendingWrite pendingWrite : batch) {
+            responses.add(pendingWrite.response);
+        }
+
+        try {
+            final List<DepositResponsesRecord> records = depositDao.addResponses(responses, clock.getUTCNow());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.set(records.get(i));
+            }
+            return;
+        } catch (final SQLException | RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).result.setException(e);
+                return;
+            }
+        }
+
+        // The whole batch was rolled back: retry each response on its own to find out which one(s) failed
+        for (final PendingWrite pendingWrite : batch) {
+            try {
+                pendingWrite.result.set(depositDao.addResponses(ImmutableList.<PendingResponse>of(pendingWrite.response), clock.getUTCNow()).get(0));
+            } catch (final SQLException | RuntimeException e) {
+                pendingWrite.result.setException(e);
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final PendingResponse response;
+        private final SettableFuture<DepositResponsesRecord> result = SettableFuture.<DepositResponsesRecord>create();
+
+        private PendingWrite(final PendingResponse response) {
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.Path;
+import org.jooq.types.ULong;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.SearchCriteria;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.inject.Inject;
+
+// Search of the payments recorded by the plugin, see DepositPaymentPluginApi#searchPayments
+@Singleton
+@Path("/search")
+public class DepositSearchServlet {
+
+    private final DepositDao depositDao;
+
+    @Inject
+    public DepositSearchServlet(final DepositDao depositDao) {
+        this.depositDao = depositDao;
+    }
+
+    // All the criteria are optional. Pages are seeked by cursor (the nextCursor of the previous page) rather than by offset.
+    @GET
+    public Result search(@Named("paymentReferenceNumber") final Optional<String> paymentReferenceNumber,
+                         @Named("depositType") final Optional<String> depositType,
+                         @Named("effectiveDateFrom") final Optional<String> effectiveDateFrom,
+                         @Named("effectiveDateTo") final Optional<String> effectiveDateTo,
+                         @Named("minAmount") final Optional<String> minAmount,
+                         @Named("maxAmount") final Optional<String> maxAmount,
+                         @Named("cursor") final Optional<Long> cursor,
+                         @Named("limit") final Optional<Integer> limit,
+                         @Local @Named("killbill_tenant") final Tenant tenant) throws SQLException {
+        final SearchCriteria criteria;
+        try {
+            criteria = DepositPaymentPluginApi.buildSearchCriteria(paymentReferenceNumber.orElse(null),
+                                                                   depositType.orElse(null),
+                                                                   effectiveDateFrom.orElse(null),
+                                                                   effectiveDateTo.orElse(null),
+                                                                   minAmount.orElse(null),
+                                                                   maxAmount.orElse(null));
+        } catch (final IllegalArgumentException e) {
+            return Results.with(Status.BAD_REQUEST);
+        }
+        final long afterRecordId = cursor.orElse(0L);
+        final int maxRecords = limit.orElse(DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT);
+        if (afterRecordId < 0 || maxRecords < 1 || maxRecords > DepositPaymentPluginApi.MAX_SEARCH_LIMIT) {
+            return Results.with(Status.BAD_REQUEST);
+        }
+
+        // One more, to know whether there is a next page
+        final List<DepositResponsesRecord> records = depositDao.searchResponses(criteria, ULong.valueOf(afterRecordId), maxRecords + 1, tenant.getId());
+        final List<DepositPaymentJson> payments = new ArrayList<DepositPaymentJson>(Math.min(records.size(), maxRecords));
+        for (final DepositResponsesRecord record : records.subList(0, Math.min(records.size(), maxRecords))) {
+            payments.add(new DepositPaymentJson(UUID.fromString(record.getKbAccountId()),
+                                                UUID.fromString(record.getKbPaymentId()),
+                                                UUID.fromString(record.getKbPaymentTransactionId()),
+                                                record.getTransactionType(),
+                                                record.getAmount(),
+                                                record.getCurrency(),
+                                                record.getDepositType(),
+                                                record.getDepositReferenceNumber(),
+                                                toDateTime(record.getDepositEffectiveDate()),
+                                                record.getDepositInvoiceNumber(),
+                                                toDateTime(record.getCreatedDate())));
+        }
+        final Long nextCursor = records.size() > maxRecords ? records.get(maxRecords - 1).getRecordId().longValue() : null;
+        return Results.with(new DepositSearchResultJson(payments, nextCursor), Status.OK);
+    }
+
+    @Nullable
+    private static DateTime toDateTime(@Nullable final LocalDateTime localDateTime) {
+        return localDateTime == null ? null : new DateTime(localDateTime.toInstant(ZoneOffset.UTC).toEpochMilli(), DateTimeZone.UTC);
+    }
+
+    static final class DepositSearchResultJson {
+
+        public final List<DepositPaymentJson> payments;
+        // Null on the last page
+        public final Long nextCursor;
+
+        @JsonCreator
+        public DepositSearchResultJson(@JsonProperty("payments") final List<DepositPaymentJson> payments,
+                                       @JsonProperty("nextCursor") final Long nextCursor) {
+            this.payments = payments;
+            this.nextCursor = nextCursor;
+        }
+
+        @Override
+        public String toString() {
+            return "DepositSearchResultJson{" +
+                   "payments=" + payments +
+                   ", nextCursor=" + nextCursor +
+                   '}';
+        }
+    }
+
+    static final class DepositPaymentJson {
+
+        public final UUID accountId;
+        public final UUID paymentId;
+        public final UUID paymentTransactionId;
+        public final String transactionType;
+        public final BigDecimal amount;
+        public final String currency;
+        public final String depositType;
+        public final String paymentReferenceNumber;
+        public final DateTime effectiveDate;
+        public final Integer invoiceNumber;
+        public final DateTime createdDate;
+
+        @JsonCreator
+        public DepositPaymentJson(@JsonProperty("accountId") final UUID accountId,
+                                  @JsonProperty("paymentId") final UUID paymentId,
+                                  @JsonProperty("paymentTransactionId") final UUID paymentTransactionId,
+                                  @JsonProperty("transactionType") final String transactionType,
+                                  @JsonProperty("amount") final BigDecimal amount,
+                                  @JsonProperty("currency") final String currency,
+                                  @JsonProperty("depositType") final String depositType,
+                                  @JsonProperty("paymentReferenceNumber") final String paymentReferenceNumber,
+                                  @JsonProperty("effectiveDate") final DateTime effectiveDate,
+                                  @JsonProperty("invoiceNumber") final Integer invoiceNumber,
+                                  @JsonProperty("createdDate") final DateTime createdDate) {
+            this.accountId = accountId;
+            this.paymentId = paymentId;
+            this.paymentTransactionId = paymentTransactionId;
+            this.transactionType = transactionType;
+            this.amount = amount;
+            this.currency = currency;
+            this.depositType = depositType;
+            this.paymentReferenceNumber = paymentReferenceNumber;
+            this.effectiveDate = effectiveDate;
+            this.invoiceNumber = invoiceNumber;
+            this.createdDate = createdDate;
+        }
+
+        @Override
+        public String toString() {
+            return "DepositPaymentJson{" +
+                   "accountId=" + accountId +
+                   ", paymentId=" + paymentId +
+                   ", paymentTransactionId=" + paymentTransactionId +
+                   ", transactionType='" + transactionType + '\'' +
+                   ", amount=" + amount +
+                   ", currency='" + currency + '\'' +
+                   ", depositType='" + depositType + '\'' +
+                   ", paymentReferenceNumber='" + paymentReferenceNumber + '\'' +
+                   ", effectiveDate=" + effectiveDate +
+                   ", invoiceNumber=" + invoiceNumber +
+                   ", createdDate=" + createdDate +
+                   '}';
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.jooby.Status;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.api.core.PluginPaymentOptions;
+import org.killbill.billing.plugin.api.payment.PluginPaymentMethodPlugin;
+import org.killbill.billing.plugin.deposit.DepositInvoiceCache.CachedInvoice;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.InvoiceDepositJson;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.CallOrigin;
+import org.killbill.billing.util.callcontext.UserType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Records deposits, i.e. pays the invoices of an account with its deposit payment method. Shared by the routes and the job queue.
+ */
+public class DepositService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositService.class);
+
+    private static final int PAYMENT_METHOD_LOCK_STRIPES = 256;
+
+    private final OSGIKillbillAPI killbillAPI;
+    private final OSGIKillbillClock clock;
+    private final DepositExecutors depositExecutors;
+    private final DepositConfigurationHandler depositConfigurationHandler;
+    private final DepositPaymentMethodCache paymentMethodCache;
+    private final DepositInvoiceCache invoiceCache;
+    private final DepositDao depositDao;
+    private final DepositReferenceFilter depositReferenceFilter;
+    private final DepositMetrics metrics;
+    private final Striped<Lock> paymentMethodLocks;
+
+    public DepositService(final OSGIKillbillAPI killbillAPI,
+                          final OSGIKillbillClock clock,
+                          final DepositExecutors depositExecutors,
+                          final DepositConfigurationHandler depositConfigurationHandler,
+                          final DepositPaymentMethodCache paymentMethodCache,
+                          final DepositInvoiceCache invoiceCache,
+                          final DepositDao depositDao,
+                          final DepositReferenceFilter depositReferenceFilter,
+                          final DepositMetrics metrics) {
+        this.killbillAPI = killbillAPI;
+        this.clock = clock;
+        this.depositExecutors = depositExecutors;
+        this.depositConfigurationHandler = depositConfigurationHandler;
+        this.paymentMethodCache = paymentMethodCache;
+        this.invoiceCache = invoiceCache;
+        this.depositDao = depositDao;
+        this.depositReferenceFilter = depositReferenceFilter;
+        this.metrics = metrics;
+        this.paymentMethodLocks = Striped.<Lock>lock(PAYMENT_METHOD_LOCK_STRIPES);
+    }
+
+    public Status recordDepositSafely(final DepositJson depositJson,
+                                      final UUID userToken,
+                                      final Optional<String> createdBy,
+                                      final Optional<String> reason,
+                                      final Optional<String> comment,
+                                      final UUID kbTenantId) {
+        return recordDepositSafely(depositJson, userToken, createdBy, reason, comment, kbTenantId, null);
+    }
+
+    public Status recordDepositSafely(final DepositJson depositJson,
+                                      final UUID userToken,
+                                      final Optional<String> createdBy,
+                                      final Optional<String> reason,
+                                      final Optional<String> comment,
+                                      final UUID kbTenantId,
+                                      @Nullable final Status[] paymentStatuses) {
+        try {
+            return recordDeposit(depositJson, userToken, createdBy, reason, comment, kbTenantId, paymentStatuses);
+        } catch (final PaymentApiException e) {
+            logger.warn("Error recording deposit for accountId='{}'", depositJson.accountId, e);
+            return Status.SERVER_ERROR;
+        } catch (final RuntimeException e) {
+            logger.warn("Unexpected error recording deposit for accountId='{}'", depositJson.accountId, e);
+            return Status.SERVER_ERROR;
+        }
+    }
+
+    public Status recordDeposit(final DepositJson depositJson,
+                                final UUID userToken,
+                                final Optional<String> createdBy,
+                                final Optional<String> reason,
+                                final Optional<String> comment,
+                                final UUID kbTenantId) throws PaymentApiException {
+        return recordDeposit(depositJson, userToken, createdBy, reason, comment, kbTenantId, null);
+    }
+
+    // If specified, paymentStatuses (one entry per element of depositJson.payments) is filled with the status of each invoice
+    // payment. Entries of payments which were skipped (zero amount) or not attempted (e.g. after a failure) are left null.
+    public Status recordDeposit(final DepositJson depositJson,
+                                final UUID userToken,
+                                final Optional<String> createdBy,
+                                final Optional<String> reason,
+                                final Optional<String> comment,
+                                final UUID kbTenantId,
+                                @Nullable final Status[] paymentStatuses) throws PaymentApiException {
+        final long startNanos = System.nanoTime();
+        Status status = null;
+        try {
+            status = doRecordDeposit(depositJson, userToken, createdBy, reason, comment, kbTenantId, paymentStatuses);
+            return status;
+        } finally {
+            // Exceptions are reported as a SERVER_ERROR (see recordDepositSafely)
+            metrics.recordDeposit(status == null ? Status.SERVER_ERROR : status, System.nanoTime() - startNanos);
+        }
+    }
+
+    private Status doRecordDeposit(final DepositJson depositJson,
+                                   final UUID userToken,
+                                   final Optional<String> createdBy,
+                                   final Optional<String> reason,
+                                   final Optional<String> comment,
+                                   final UUID kbTenantId,
+                                   @Nullable final Status[] paymentStatuses) throws PaymentApiException {
+        final DateTime utcNow = clock.getClock().getUTCNow();
+        final CallContext callContext = new PluginCallContext(userToken,
+                                                              createdBy.orElse(DepositActivator.PLUGIN_NAME),
+                                                              CallOrigin.EXTERNAL,
+                                                              UserType.ADMIN,
+                                                              reason.orElse(null),
+                                                              comment.orElse(null),
+                                                              utcNow,
+                                                              utcNow,
+                                                              depositJson.accountId,
+                                                              kbTenantId);
+
+        long stageStartNanos = System.nanoTime();
+        final Account account;
+        try {
+            account = killbillAPI.getAccountUserApi().getAccountById(depositJson.accountId, callContext);
+        } catch (final AccountApiException e) {
+            if (e.getCode() == ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID.getCode()) {
+                logger.info("Account not found for accountId='{}'", depositJson.accountId);
+                return Status.NOT_FOUND;
+            } else {
+                logger.warn("Error retrieving accountId='{}'", depositJson.accountId, e);
+                return Status.SERVER_ERROR;
+            }
+        }
+
+        final UUID depositPaymentMethodId = getOrCreateDepositPaymentMethod(callContext, account);
+        stageStartNanos = recordStage("account", stageStartNanos);
+
+        if (depositJson.paymentReferenceNumber == null || depositJson.depositType == null || depositJson.effectiveDate == null) {
+            return Status.BAD_REQUEST;
+        }
+
+        final Iterable<PluginProperty> purchasePluginProperties = ImmutableList.<PluginProperty>of(
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, depositJson.paymentReferenceNumber, false),
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, depositJson.depositType, false),
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, depositJson.effectiveDate, false)
+                                                                                                  );
+
+        // Resolve all invoices before making any payment, so that a deposit referencing an unknown invoice is rejected as a whole
+        final Set<Integer> invoiceNumbers = new LinkedHashSet<Integer>();
+        int invoiceNumberIndex = 0;
+        for (final InvoiceDepositJson invoiceDepositJson : depositJson.payments) {
+            if (invoiceDepositJson.paymentAmount == null || invoiceDepositJson.paymentAmount.compareTo(BigDecimal.ZERO) == 0) {
+                invoiceNumberIndex++;
+                continue;
+            }
+            if (invoiceDepositJson.invoiceNumber == null) {
+                return Status.BAD_REQUEST;
+            }
+            if (!invoiceNumbers.add(invoiceDepositJson.invoiceNumber)) {
+                // Payments are idempotent per invoice number: the second one would be reported as paid without being made
+                logger.info("Duplicate invoiceNumber='{}' for paymentReferenceNumber='{}'", invoiceDepositJson.invoiceNumber, depositJson.paymentReferenceNumber);
+                setPaymentStatus(paymentStatuses, invoiceNumberIndex, Status.BAD_REQUEST);
+                return Status.BAD_REQUEST;
+            }
+            invoiceNumberIndex++;
+        }
+
+        final Map<Integer, CachedInvoice> invoices;
+        try {
+            invoices = invoiceCache.warm(account.getId(), invoiceNumbers, killbillAPI.getInvoiceUserApi(), callContext);
+        } catch (final InvoiceApiException e) {
+            logger.warn("Error retrieving invoiceNumbers='{}'", invoiceNumbers, e);
+            return Status.SERVER_ERROR;
+        }
+        stageStartNanos = recordStage("invoices", stageStartNanos);
+
+        // Index in depositJson.payments of each payment to make
+        final List<Integer> invoicePaymentIndexes = new ArrayList<Integer>();
+        final List<InvoiceDepositJson> invoicePayments = new ArrayList<InvoiceDepositJson>();
+        int paymentIndex = 0;
+        for (final InvoiceDepositJson invoiceDepositJson : depositJson.payments) {
+            if (invoiceDepositJson.paymentAmount != null && invoiceDepositJson.paymentAmount.compareTo(BigDecimal.ZERO) != 0) {
+                invoicePaymentIndexes.add(paymentIndex);
+                invoicePayments.add(invoiceDepositJson);
+            }
+            paymentIndex++;
+        }
+
+        boolean invoiceNotFound = false;
+        for (int i = 0; i < invoicePayments.size(); i++) {
+            if (invoices.get(invoicePayments.get(i).invoiceNumber) == null) {
+                logger.info("Invoice not found for invoiceNumber='{}'", invoicePayments.get(i).invoiceNumber);
+                setPaymentStatus(paymentStatuses, invoicePaymentIndexes.get(i), Status.NOT_FOUND);
+                invoiceNotFound = true;
+            }
+        }
+        if (invoiceNotFound) {
+            return Status.NOT_FOUND;
+        }
+
+        final Status[] invoicePaymentStatuses = new Status[invoicePayments.size()];
+        final AtomicReference<UUID> depositPaymentMethodIdRef = new AtomicReference<UUID>(depositPaymentMethodId);
+        final int maxConcurrentPayments = getMaxConcurrentPayments(kbTenantId);
+        final Status status;
+        if (maxConcurrentPayments > 1 && invoicePayments.size() > 1) {
+            status = payInvoicesConcurrently(account, invoicePayments, invoices, depositPaymentMethodIdRef, depositJson.paymentReferenceNumber, depositJson.effectiveDate, purchasePluginProperties, callContext, maxConcurrentPayments, invoicePaymentStatuses);
+        } else {
+            status = payInvoicesSequentially(account, invoicePayments, invoices, depositPaymentMethodIdRef, depositJson.paymentReferenceNumber, depositJson.effectiveDate, purchasePluginProperties, callContext, invoicePaymentStatuses);
+        }
+        recordStage("payments", stageStartNanos);
+
+        for (int i = 0; i < invoicePayments.size(); i++) {
+            setPaymentStatus(paymentStatuses, invoicePaymentIndexes.get(i), invoicePaymentStatuses[i]);
+            if (invoicePaymentStatuses[i] != null) {
+                metrics.recordPayment(invoicePaymentStatuses[i]);
+            }
+        }
+        return status;
+    }
+
+    // Returns the end of the stage, i.e. the start of the next one
+    private long recordStage(final String stage, final long stageStartNanos) {
+        final long nowNanos = System.nanoTime();
+        metrics.recordDepositStage(stage, nowNanos - stageStartNanos);
+        return nowNanos;
+    }
+
+    private Status payInvoicesSequentially(final Account account,
+                                           final List<InvoiceDepositJson> invoicePayments,
+                                           final Map<Integer, CachedInvoice> invoices,
+                                           final AtomicReference<UUID> depositPaymentMethodIdRef,
+                                           final String paymentReferenceNumber,
+                                           final DateTime effectiveDate,
+                                           final Iterable<PluginProperty> purchasePluginProperties,
+                                           final CallContext callContext,
+                                           final Status[] statuses) {
+        for (int i = 0; i < invoicePayments.size(); i++) {
+            final InvoiceDepositJson invoiceDepositJson = invoicePayments.get(i);
+            statuses[i] = payInvoice(account, invoiceDepositJson, invoices.get(invoiceDepositJson.invoiceNumber), depositPaymentMethodIdRef, paymentReferenceNumber, effectiveDate, purchasePluginProperties, callContext);
+            if (statuses[i] != Status.CREATED) {
+                return statuses[i];
+            }
+        }
+
+        return Status.CREATED;
+    }
+
+    // Runs the payments on up to maxConcurrentPayments lanes (the calling thread being one of them). Like in the sequential case,
+    // no new payment is started after a failure, and the reported status is the one of the first failed payment in request order.
+    private Status payInvoicesConcurrently(final Account account,
+                                           final List<InvoiceDepositJson> invoicePayments,
+                                           final Map<Integer, CachedInvoice> invoices,
+                                           final AtomicReference<UUID> depositPaymentMethodIdRef,
+                                           final String paymentReferenceNumber,
+                                           final DateTime effectiveDate,
+                                           final Iterable<PluginProperty> purchasePluginProperties,
+                                           final CallContext callContext,
+                                           final int maxConcurrentPayments,
+                                           final Status[] statuses) {
+        final AtomicInteger nextPaymentIndex = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Runnable lane = new Runnable() {
+            @Override
+            public void run() {
+                while (!failed.get()) {
+                    final int paymentIndex = nextPaymentIndex.getAndIncrement();
+                    if (paymentIndex >= invoicePayments.size()) {
+                        return;
+                    }
+
+                    final InvoiceDepositJson invoiceDepositJson = invoicePayments.get(paymentIndex);
+                    Status status;
+                    try {
+                        status = payInvoice(account, invoiceDepositJson, invoices.get(invoiceDepositJson.invoiceNumber), depositPaymentMethodIdRef, paymentReferenceNumber, effectiveDate, purchasePluginProperties, callContext);
+                    } catch (final RuntimeException e) {
+                        logger.warn("Unexpected error paying invoiceNumber='{}'", invoiceDepositJson.invoiceNumber, e);
+                        status = Status.SERVER_ERROR;
+                    }
+                    statuses[paymentIndex] = status;
+                    if (status != Status.CREATED) {
+                        failed.set(true);
+                    }
+                }
+            }
+        };
+
+        final int nbLanes = Math.min(maxConcurrentPayments, invoicePayments.size());
+        final List<Future<?>> futures = new ArrayList<Future<?>>(nbLanes - 1);
+        for (int i = 1; i < nbLanes; i++) {
+            futures.add(depositExecutors.getPaymentExecutor().submit(lane));
+        }
+        lane.run();
+
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for invoice payments");
+                return Status.SERVER_ERROR;
+            } catch (final ExecutionException e) {
+                logger.warn("Unexpected error while paying invoices", e);
+            }
+        }
+
+        // Payments are started in request order: payments which weren't started are all after the first failure
+        for (final Status status : statuses) {
+            if (status != Status.CREATED) {
+                return status == null ? Status.SERVER_ERROR : status;
+            }
+        }
+        return Status.CREATED;
+    }
+
+    private Status payInvoice(final Account account,
+                              final InvoiceDepositJson invoiceDepositJson,
+                              final CachedInvoice invoice,
+                              final AtomicReference<UUID> depositPaymentMethodIdRef,
+                              final String paymentReferenceNumber,
+                              final DateTime effectiveDate,
+                              final Iterable<PluginProperty> purchasePluginProperties,
+                              final CallContext callContext) {
+        // Deposits are idempotent on (tenant, payment reference number, invoice number): replays return the original result
+        if (depositReferenceFilter.mightContain(callContext.getTenantId(), paymentReferenceNumber, invoiceDepositJson.invoiceNumber) &&
+            isInvoicePaid(paymentReferenceNumber, invoiceDepositJson.invoiceNumber, callContext.getTenantId())) {
+            logger.info("Invoice already paid for paymentReferenceNumber='{}', invoiceNumber='{}'", paymentReferenceNumber, invoiceDepositJson.invoiceNumber);
+            return Status.CREATED;
+        }
+
+        final Iterable<PluginProperty> invoicePurchasePluginProperties = ImmutableList.<PluginProperty>builder()
+                                                                                      .addAll(purchasePluginProperties)
+                                                                                      .add(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, invoiceDepositJson.invoiceNumber, false))
+                                                                                      .build();
+        try {
+            final UUID depositPaymentMethodId = depositPaymentMethodIdRef.get();
+            try {
+                createPurchase(account, invoice, depositPaymentMethodId, invoiceDepositJson.paymentAmount, effectiveDate, invoicePurchasePluginProperties, callContext);
+            } catch (final PaymentApiException e) {
+                if (e.getCode() != ErrorCode.PAYMENT_NO_SUCH_PAYMENT_METHOD.getCode()) {
+                    throw e;
+                }
+                // The cached payment method has been deleted in the meantime (e.g. through another node): resolve it again and retry once
+                logger.info("Deposit payment method {} not found for accountId='{}', retrying", depositPaymentMethodId, account.getId());
+                paymentMethodCache.invalidate(callContext.getTenantId(), account.getId());
+                final UUID newDepositPaymentMethodId = getOrCreateDepositPaymentMethod(callContext, account);
+                depositPaymentMethodIdRef.set(newDepositPaymentMethodId);
+                createPurchase(account, invoice, newDepositPaymentMethodId, invoiceDepositJson.paymentAmount, effectiveDate, invoicePurchasePluginProperties, callContext);
+            }
+        } catch (final PaymentApiException e) {
+            if (e.getCode() == ErrorCode.PAYMENT_PLUGIN_API_ABORTED.getCode()) {
+                logger.info("Payment aborted for invoiceNumber='{}'", invoiceDepositJson.invoiceNumber);
+                return Status.UNPROCESSABLE_ENTITY;
+            } else if (isInvoicePaid(paymentReferenceNumber, invoiceDepositJson.invoiceNumber, callContext.getTenantId())) {
+                // Concurrent replay (e.g. through another node, before our filter was refreshed): the unique index rejected our response
+                logger.info("Invoice concurrently paid for paymentReferenceNumber='{}', invoiceNumber='{}'", paymentReferenceNumber, invoiceDepositJson.invoiceNumber);
+                depositReferenceFilter.put(callContext.getTenantId(), paymentReferenceNumber, invoiceDepositJson.invoiceNumber);
+                return Status.CREATED;
+            } else {
+                logger.warn("Error paying invoiceNumber='{}'", invoiceDepositJson.invoiceNumber, e);
+                return Status.SERVER_ERROR;
+            }
+        }
+
+        depositReferenceFilter.put(callContext.getTenantId(), paymentReferenceNumber, invoiceDepositJson.invoiceNumber);
+        return Status.CREATED;
+    }
+
+    // Amounts already paid by the deposit to the invoices of the account (e.g. by a previous import of the same remittance), by
+    // invoice number, in payment order
+    public Map<Integer, BigDecimal> getPaidAmounts(final String paymentReferenceNumber, final UUID accountId, final UUID kbTenantId) throws SQLException {
+        final Map<Integer, BigDecimal> paidAmounts = new LinkedHashMap<Integer, BigDecimal>();
+        for (final DepositResponsesRecord record : depositDao.getDepositResponses(paymentReferenceNumber, accountId, kbTenantId)) {
+            if (record.getDepositInvoiceNumber() != null && record.getAmount() != null) {
+                paidAmounts.put(record.getDepositInvoiceNumber(), record.getAmount());
+            }
+        }
+        return paidAmounts;
+    }
+
+    private boolean isInvoicePaid(final String paymentReferenceNumber, final Integer invoiceNumber, final UUID kbTenantId) {
+        try {
+            return depositDao.getDepositResponse(paymentReferenceNumber, invoiceNumber, kbTenantId) != null;
+        } catch (final SQLException e) {
+            // The unique index on deposit_responses still prevents double payments
+            logger.warn("Error retrieving the deposit response for paymentReferenceNumber='{}', invoiceNumber='{}'", paymentReferenceNumber, invoiceNumber, e);
+            return false;
+        }
+    }
+
+    private int getMaxConcurrentPayments(final UUID kbTenantId) {
+        final DepositConfiguration depositConfiguration = depositConfigurationHandler.getConfigurable(kbTenantId);
+        return depositConfiguration == null ? 1 : depositConfiguration.maxConcurrentPayments;
+    }
+
+    private void createPurchase(final Account account,
+                                final CachedInvoice invoice,
+                                final UUID depositPaymentMethodId,
+                                final BigDecimal paymentAmount,
+                                final DateTime effectiveDate,
+                                final Iterable<PluginProperty> purchasePluginProperties,
+                                final CallContext callContext) throws PaymentApiException {
+        killbillAPI.getInvoicePaymentApi().createPurchaseForInvoicePayment(account,
+                                                                           invoice.getInvoiceId(),
+                                                                           depositPaymentMethodId,
+                                                                           null,
+                                                                           paymentAmount,
+                                                                           invoice.getCurrency(),
+                                                                           effectiveDate,
+                                                                           null,
+                                                                           null,
+                                                                           purchasePluginProperties,
+                                                                           new PluginPaymentOptions(),
+                                                                           callContext);
+    }
+
+    private UUID getOrCreateDepositPaymentMethod(final CallContext callContext, final Account account) throws PaymentApiException {
+        final UUID cachedDepositPaymentMethodId = paymentMethodCache.getIfPresent(callContext.getTenantId(), account.getId());
+        if (cachedDepositPaymentMethodId != null) {
+            return cachedDepositPaymentMethodId;
+        }
+
+        // Concurrent deposits for the same account on this node wait for the first one to resolve the payment method
+        final Lock lock = paymentMethodLocks.get(account.getId());
+        lock.lock();
+        try {
+            final UUID resolvedDepositPaymentMethodId = paymentMethodCache.getIfPresent(callContext.getTenantId(), account.getId());
+            if (resolvedDepositPaymentMethodId != null) {
+                return resolvedDepositPaymentMethodId;
+            }
+
+            final List<PaymentMethod> accountPaymentMethods = killbillAPI.getPaymentApi().getAccountPaymentMethods(account.getId(),
+                                                                                                                   false,
+                                                                                                                   false,
+                                                                                                                   ImmutableList.<PluginProperty>of(),
+                                                                                                                   callContext);
+            UUID depositPaymentMethodId = null;
+            for (final PaymentMethod paymentMethod : accountPaymentMethods) {
+                if (paymentMethod.getPluginName().equals(DepositActivator.PLUGIN_NAME)) {
+                    depositPaymentMethodId = paymentMethod.getId();
+                    break;
+                }
+            }
+
+            if (depositPaymentMethodId == null) {
+                depositPaymentMethodId = addDepositPaymentMethod(callContext, account);
+            }
+
+            paymentMethodCache.put(callContext.getTenantId(), account.getId(), depositPaymentMethodId);
+            return depositPaymentMethodId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private UUID addDepositPaymentMethod(final CallContext callContext, final Account account) throws PaymentApiException {
+        try {
+            return killbillAPI.getPaymentApi().addPaymentMethod(account,
+                                                                null,
+                                                                DepositActivator.PLUGIN_NAME,
+                                                                false,
+                                                                new PluginPaymentMethodPlugin(null, null, false, ImmutableList.<PluginProperty>of()),
+                                                                ImmutableList.<PluginProperty>of(),
+                                                                callContext);
+        } catch (final PaymentApiException e) {
+            // Another node may have won the race: the unique index on deposit_payment_methods rejected our row, use theirs instead.
+            // If Kill Bill hasn't committed it yet, the purchase fails with PAYMENT_NO_SUCH_PAYMENT_METHOD and is retried once.
+            final UUID existingDepositPaymentMethodId;
+            try {
+                existingDepositPaymentMethodId = depositDao.getActivePaymentMethodId(account.getId(), callContext.getTenantId());
+            } catch (final SQLException sqlException) {
+                logger.warn("Error retrieving the deposit payment method for accountId='{}'", account.getId(), sqlException);
+                throw e;
+            }
+
+            if (existingDepositPaymentMethodId == null) {
+                throw e;
+            }
+
+            logger.info("Deposit payment method concurrently created for accountId='{}', using kbPaymentMethodId='{}'", account.getId(), existingDepositPaymentMethodId);
+            return existingDepositPaymentMethodId;
+        }
+    }
+
+    private static void setPaymentStatus(@Nullable final Status[] paymentStatuses, final int paymentIndex, final Status status) {
+        if (paymentStatuses != null) {
+            paymentStatuses[paymentIndex] = status;
+        }
+    }
+}
@@ -17,11 +17,25 @@
 
 package org.killbill.billing.plugin.deposit;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -31,33 +45,28 @@ import org.jooby.Result;
 import org.jooby.Results;
 import org.jooby.Status;
 import org.jooby.mvc.Body;
+import org.jooby.mvc.GET;
 import org.jooby.mvc.Header;
 import org.jooby.mvc.Local;
 import org.jooby.mvc.POST;
 import org.jooby.mvc.Path;
-import org.killbill.billing.ErrorCode;
-import org.killbill.billing.account.api.Account;
-import org.killbill.billing.account.api.AccountApiException;
-import org.killbill.billing.invoice.api.Invoice;
-import org.killbill.billing.invoice.api.InvoiceApiException;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
 import org.killbill.billing.payment.api.PaymentApiException;
-import org.killbill.billing.payment.api.PaymentMethod;
-import org.killbill.billing.payment.api.PluginProperty;
-import org.killbill.billing.plugin.api.PluginCallContext;
-import org.killbill.billing.plugin.api.core.PluginPaymentOptions;
-import org.killbill.billing.plugin.api.payment.PluginPaymentMethodPlugin;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.deposit.DepositImportBody.LineTooLongException;
+import org.killbill.billing.plugin.deposit.DepositImportPipeline.DepositRecorder;
+import org.killbill.billing.plugin.deposit.DepositNdjsonBody.DepositHandler;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceReader;
 import org.killbill.billing.tenant.api.Tenant;
-import org.killbill.billing.util.callcontext.CallContext;
-import org.killbill.billing.util.callcontext.CallOrigin;
-import org.killbill.billing.util.callcontext.UserType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.google.common.collect.ImmutableList;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.Inject;
 
 @Singleton
@@ -66,13 +75,30 @@ public class DepositServlet {
 
     private static final Logger logger = LoggerFactory.getLogger(DepositServlet.class);
 
-    private final OSGIKillbillAPI killbillAPI;
-    private final OSGIKillbillClock clock;
+    // Results not yet sent to the client: the deposits processing blocks when it is full
+    private static final int STREAM_RESULTS_BUFFER_SIZE = 64 * 1024;
+    private static final int IMPORT_ACCOUNT_LOCK_STRIPES = 256;
+
+    private static final ObjectWriter resultWriter = PluginAppBuilder.DEFAULT_OBJECT_MAPPER.writerFor(DepositResultJson.class);
+
+    private final DepositExecutors depositExecutors;
+    private final DepositService depositService;
+    private final DepositJobQueue depositJobQueue;
+    private final DepositRemittanceMapper remittanceMapper;
+    // Shared by all imports: remittances of an account are applied one at a time
+    private final Striped<Lock> importAccountLocks;
 
     @Inject
-    public DepositServlet(final OSGIKillbillAPI killbillAPI, final OSGIKillbillClock clock) {
-        this.killbillAPI = killbillAPI;
-        this.clock = clock;
+    public DepositServlet(final OSGIKillbillAPI killbillAPI,
+                          final DepositExecutors depositExecutors,
+                          final DepositInvoiceCache invoiceCache,
+                          final DepositService depositService,
+                          final DepositJobQueue depositJobQueue) {
+        this.depositExecutors = depositExecutors;
+        this.depositService = depositService;
+        this.depositJobQueue = depositJobQueue;
+        this.remittanceMapper = new DepositRemittanceMapper(killbillAPI, invoiceCache, depositService);
+        this.importAccountLocks = Striped.<Lock>lock(IMPORT_ACCOUNT_LOCK_STRIPES);
     }
 
     @POST
@@ -83,112 +109,265 @@ public class DepositServlet {
                                  @Header("X-Killbill-Reason") final Optional<String> reason,
                                  @Header("X-Killbill-Comment") final Optional<String> comment,
                                  @Local @Named("killbill_tenant") final Tenant tenant) throws PaymentApiException {
-        final DateTime utcNow = clock.getClock().getUTCNow();
-        final CallContext callContext = new PluginCallContext(getOrCreateUserToken(xRequestId),
-                                                              createdBy.orElse(DepositActivator.PLUGIN_NAME),
-                                                              CallOrigin.EXTERNAL,
-                                                              UserType.ADMIN,
-                                                              reason.orElse(null),
-                                                              comment.orElse(null),
-                                                              utcNow,
-                                                              utcNow,
-                                                              depositJson.accountId,
-                                                              tenant.getId());
-
-        final Account account;
-        try {
-            account = killbillAPI.getAccountUserApi().getAccountById(depositJson.accountId, callContext);
-        } catch (final AccountApiException e) {
-            if (e.getCode() == ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID.getCode()) {
-                logger.info("Account not found for accountId='{}'", depositJson.accountId);
-                return Results.with(Status.NOT_FOUND);
-            } else {
-                logger.warn("Error retrieving accountId='{}'", depositJson.accountId, e);
-                return Results.with(Status.SERVER_ERROR);
-            }
+        final UUID userToken = getOrCreateUserToken(xRequestId);
+        return Results.with(depositService.recordDeposit(depositJson, userToken, createdBy, reason, comment, tenant.getId()));
+    }
+
+    // The deposit is recorded in the background, possibly by another node: its outcome is available at the returned location
+    @POST
+    @Path("/record/async")
+    public Result recordAsyncPayments(@Body final DepositJson depositJson,
+                                      @Header("X-Request-Id") final Optional<String> xRequestId,
+                                      @Header("X-Killbill-Createdby") final Optional<String> createdBy,
+                                      @Header("X-Killbill-Reason") final Optional<String> reason,
+                                      @Header("X-Killbill-Comment") final Optional<String> comment,
+                                      @Local @Named("killbill_tenant") final Tenant tenant) throws IOException, SQLException {
+        if (depositJson == null || depositJson.accountId == null) {
+            return Results.with(Status.BAD_REQUEST);
         }
 
-        final UUID depositPaymentMethodId = getOrCreateDepositPaymentMethod(callContext, account);
+        final UUID userToken = getOrCreateUserToken(xRequestId);
+        final DepositJobJson depositJobJson = depositJobQueue.submit(depositJson, userToken, createdBy, reason, comment, tenant.getId());
+        return Results.with(depositJobJson, Status.ACCEPTED)
+                      .header("Location", String.format("/plugins/%s/jobs/%s", DepositActivator.PLUGIN_NAME, depositJobJson.jobId));
+    }
 
-        if (depositJson.paymentReferenceNumber == null || depositJson.depositType == null || depositJson.effectiveDate == null) {
-            return Results.with(Status.BAD_REQUEST);
+    @GET
+    @Path("/jobs/:jobId")
+    public Result getJob(@Named("jobId") final UUID jobId,
+                         @Local @Named("killbill_tenant") final Tenant tenant) throws IOException, SQLException {
+        final DepositJobJson depositJobJson = depositJobQueue.getJob(jobId, tenant.getId());
+        if (depositJobJson == null) {
+            return Results.with(Status.NOT_FOUND);
         }
+        return Results.with(depositJobJson, Status.OK);
+    }
 
-        final Iterable<PluginProperty> purchasePluginProperties = ImmutableList.<PluginProperty>of(
-                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, depositJson.paymentReferenceNumber, false),
-                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, depositJson.depositType, false),
-                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, depositJson.effectiveDate, false)
-                                                                                                  );
+    @POST
+    @Path("/record/batch")
+    public Result recordBatchPayments(@Body final List<DepositJson> depositJsons,
+                                      @Header("X-Request-Id") final Optional<String> xRequestId,
+                                      @Header("X-Killbill-Createdby") final Optional<String> createdBy,
+                                      @Header("X-Killbill-Reason") final Optional<String> reason,
+                                      @Header("X-Killbill-Comment") final Optional<String> comment,
+                                      @Local @Named("killbill_tenant") final Tenant tenant) {
+        if (depositJsons == null) {
+            return Results.with(Status.BAD_REQUEST);
+        }
 
-        for (final InvoiceDepositJson invoiceDepositJson : depositJson.payments) {
-            if (invoiceDepositJson.paymentAmount == null || invoiceDepositJson.paymentAmount.compareTo(BigDecimal.ZERO) == 0) {
+        final UUID userToken = getOrCreateUserToken(xRequestId);
+        // Written by the batch threads, which may still be running once the results are built (interrupted request)
+        final AtomicReferenceArray<Status> statuses = new AtomicReferenceArray<Status>(depositJsons.size());
+        final AtomicBoolean abandoned = new AtomicBoolean(false);
+
+        // Deposits for a given account are recorded sequentially, in the order of the request. Accounts are processed concurrently.
+        final Map<UUID, List<Integer>> depositIndexesByAccountId = new LinkedHashMap<UUID, List<Integer>>();
+        for (int i = 0; i < depositJsons.size(); i++) {
+            final DepositJson depositJson = depositJsons.get(i);
+            if (depositJson == null || depositJson.accountId == null) {
+                statuses.set(i, Status.BAD_REQUEST);
                 continue;
             }
+            if (depositIndexesByAccountId.get(depositJson.accountId) == null) {
+                depositIndexesByAccountId.put(depositJson.accountId, new ArrayList<Integer>());
+            }
+            depositIndexesByAccountId.get(depositJson.accountId).add(i);
+        }
 
-            final Invoice invoice;
-            try {
-                invoice = killbillAPI.getInvoiceUserApi().getInvoiceByNumber(invoiceDepositJson.invoiceNumber, callContext);
-            } catch (final InvoiceApiException e) {
-                if (e.getCode() == ErrorCode.INVOICE_NOT_FOUND.getCode()) {
-                    logger.info("Invoice not found for invoiceNumber='{}'", invoiceDepositJson.invoiceNumber);
-                    return Results.with(Status.NOT_FOUND);
-                } else {
-                    logger.warn("Error retrieving invoiceNumber='{}'", invoiceDepositJson.invoiceNumber, e);
-                    return Results.with(Status.SERVER_ERROR);
+        final List<Future<?>> futures = new ArrayList<Future<?>>(depositIndexesByAccountId.size());
+        for (final List<Integer> depositIndexes : depositIndexesByAccountId.values()) {
+            futures.add(depositExecutors.getBatchExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (final Integer depositIndex : depositIndexes) {
+                        if (abandoned.get()) {
+                            return;
+                        }
+                        statuses.set(depositIndex, depositService.recordDepositSafely(depositJsons.get(depositIndex), userToken, createdBy, reason, comment, tenant.getId()));
+                    }
                 }
-            }
+            }));
+        }
 
+        for (final Future<?> future : futures) {
             try {
-                killbillAPI.getInvoicePaymentApi().createPurchaseForInvoicePayment(account,
-                                                                                   invoice.getId(),
-                                                                                   depositPaymentMethodId,
-                                                                                   null,
-                                                                                   invoiceDepositJson.paymentAmount,
-                                                                                   invoice.getCurrency(),
-                                                                                   depositJson.effectiveDate,
-                                                                                   null,
-                                                                                   null,
-                                                                                   purchasePluginProperties,
-                                                                                   new PluginPaymentOptions(),
-                                                                                   callContext);
-            } catch (final PaymentApiException e) {
-                if (e.getCode() == ErrorCode.PAYMENT_PLUGIN_API_ABORTED.getCode()) {
-                    logger.info("Payment aborted for invoiceNumber='{}'", invoiceDepositJson.invoiceNumber);
-                    return Results.with(Status.UNPROCESSABLE_ENTITY);
-                } else {
-                    logger.warn("Error paying invoiceNumber='{}'", invoiceDepositJson.invoiceNumber, e);
-                    return Results.with(Status.SERVER_ERROR);
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for batch deposits");
+                // Deposits not started yet are dropped, and the ones in progress are the last of their account
+                abandoned.set(true);
+                for (final Future<?> remainingFuture : futures) {
+                    remainingFuture.cancel(false);
                 }
+                break;
+            } catch (final ExecutionException e) {
+                logger.warn("Unexpected error while recording batch deposits", e);
             }
         }
 
-        return Results.with(Status.CREATED);
+        final List<DepositResultJson> results = new ArrayList<DepositResultJson>(depositJsons.size());
+        for (int i = 0; i < depositJsons.size(); i++) {
+            final DepositJson depositJson = depositJsons.get(i);
+            // Deposits which didn't complete (interrupted batch) can be retried: recording a deposit is idempotent
+            final Status status = statuses.get(i) == null ? Status.SERVICE_UNAVAILABLE : statuses.get(i);
+            results.add(new DepositResultJson(depositJson == null ? null : depositJson.accountId,
+                                              depositJson == null ? null : depositJson.paymentReferenceNumber,
+                                              status.value()));
+        }
+
+        return Results.with(results, Status.OK);
     }
 
-    private UUID getOrCreateDepositPaymentMethod(final CallContext callContext, final Account account) throws PaymentApiException {
-        final List<PaymentMethod> accountPaymentMethods = killbillAPI.getPaymentApi().getAccountPaymentMethods(account.getId(),
-                                                                                                               false,
-                                                                                                               false,
-                                                                                                               ImmutableList.<PluginProperty>of(),
-                                                                                                               callContext);
-        UUID depositPaymentMethodId = null;
-        for (final PaymentMethod paymentMethod : accountPaymentMethods) {
-            if (paymentMethod.getPluginName().equals(DepositActivator.PLUGIN_NAME)) {
-                depositPaymentMethodId = paymentMethod.getId();
-                break;
+    // Deposits are recorded one at a time, in a dedicated thread, as they are read from the body. One result is streamed back
+    // per line, in order. A malformed line ends the stream with a last 400 result (the following lines are not read).
+    @POST
+    @Path("/record/stream")
+    public Result recordStreamPayments(@Body final DepositNdjsonBody depositNdjsonBody,
+                                       @Header("X-Request-Id") final Optional<String> xRequestId,
+                                       @Header("X-Killbill-Createdby") final Optional<String> createdBy,
+                                       @Header("X-Killbill-Reason") final Optional<String> reason,
+                                       @Header("X-Killbill-Comment") final Optional<String> comment,
+                                       @Local @Named("killbill_tenant") final Tenant tenant) throws IOException {
+        final UUID userToken = getOrCreateUserToken(xRequestId);
+        return streamResults(depositExecutors, DepositNdjsonBody.MEDIA_TYPE, new ResultsProducer() {
+            @Override
+            public void produce(final OutputStream out) throws Exception {
+                try {
+                    depositNdjsonBody.readDeposits(new DepositHandler() {
+                        @Override
+                        public void onDeposit(final DepositJson depositJson) throws IOException {
+                            final Status status = depositJson.accountId == null ? Status.BAD_REQUEST : depositService.recordDepositSafely(depositJson, userToken, createdBy, reason, comment, tenant.getId());
+                            writeResult(out, new DepositResultJson(depositJson.accountId, depositJson.paymentReferenceNumber, status.value()));
+                        }
+
+                        @Override
+                        public void onInvalidDeposit(final JsonProcessingException e) throws IOException {
+                            logger.info("Invalid streamed deposit: {}", e.getOriginalMessage());
+                            writeResult(out, new DepositResultJson(null, null, Status.BAD_REQUEST.value()));
+                        }
+                    });
+                } catch (final JsonProcessingException e) {
+                    logger.info("Malformed deposit stream: {}", e.getOriginalMessage());
+                    writeResult(out, new DepositResultJson(null, null, Status.BAD_REQUEST.value()));
+                }
             }
+        });
+    }
+
+    // The customer reference of each transaction is either an invoice number (default) or an account external key (matchBy=accountExternalKey)
+    @POST
+    @Path("/import/bai2")
+    public Result importBai2(@Body final DepositImportBody depositImportBody,
+                             @Named("matchBy") final Optional<String> matchBy,
+                             @Header("X-Request-Id") final Optional<String> xRequestId,
+                             @Header("X-Killbill-Createdby") final Optional<String> createdBy,
+                             @Header("X-Killbill-Reason") final Optional<String> reason,
+                             @Header("X-Killbill-Comment") final Optional<String> comment,
+                             @Local @Named("killbill_tenant") final Tenant tenant) throws IOException {
+        final Bai2RemittanceReader.MatchBy bai2MatchBy;
+        if (!matchBy.isPresent() || "invoiceNumber".equals(matchBy.get())) {
+            bai2MatchBy = Bai2RemittanceReader.MatchBy.INVOICE_NUMBER;
+        } else if ("accountExternalKey".equals(matchBy.get())) {
+            bai2MatchBy = Bai2RemittanceReader.MatchBy.ACCOUNT_EXTERNAL_KEY;
+        } else {
+            return Results.with(Status.BAD_REQUEST);
         }
 
-        if (depositPaymentMethodId == null) {
-            depositPaymentMethodId = killbillAPI.getPaymentApi().addPaymentMethod(account,
-                                                                                  null,
-                                                                                  DepositActivator.PLUGIN_NAME,
-                                                                                  false,
-                                                                                  new PluginPaymentMethodPlugin(null, null, false, ImmutableList.<PluginProperty>of()),
-                                                                                  ImmutableList.<PluginProperty>of(),
-                                                                                  callContext);
+        final DepositImportPipeline pipeline = createImportPipeline(xRequestId, createdBy, reason, comment, tenant);
+        return importRemittances(depositImportBody, pipeline, new Bai2RemittanceReader(pipeline, bai2MatchBy));
+    }
+
+    @POST
+    @Path("/import/lockbox")
+    public Result importLockbox(@Body final DepositImportBody depositImportBody,
+                                @Header("X-Request-Id") final Optional<String> xRequestId,
+                                @Header("X-Killbill-Createdby") final Optional<String> createdBy,
+                                @Header("X-Killbill-Reason") final Optional<String> reason,
+                                @Header("X-Killbill-Comment") final Optional<String> comment,
+                                @Local @Named("killbill_tenant") final Tenant tenant) throws IOException {
+        final DepositImportPipeline pipeline = createImportPipeline(xRequestId, createdBy, reason, comment, tenant);
+        return importRemittances(depositImportBody, pipeline, new LockboxRemittanceReader(pipeline));
+    }
+
+    private DepositImportPipeline createImportPipeline(final Optional<String> xRequestId,
+                                                       final Optional<String> createdBy,
+                                                       final Optional<String> reason,
+                                                       final Optional<String> comment,
+                                                       final Tenant tenant) {
+        final UUID userToken = getOrCreateUserToken(xRequestId);
+        return new DepositImportPipeline(remittanceMapper,
+                                         new DepositRecorder() {
+                                             @Override
+                                             public Status recordDeposit(final DepositJson depositJson) {
+                                                 return depositService.recordDepositSafely(depositJson, userToken, createdBy, reason, comment, tenant.getId());
+                                             }
+                                         },
+                                         depositExecutors.getBatchExecutor(),
+                                         importAccountLocks,
+                                         new PluginTenantContext(null, tenant.getId()));
+    }
+
+    private Result importRemittances(final DepositImportBody depositImportBody,
+                                     final DepositImportPipeline pipeline,
+                                     final RemittanceReader reader) throws IOException {
+        return streamResults(depositExecutors, DepositNdjsonBody.MEDIA_TYPE, new ResultsProducer() {
+            @Override
+            public void produce(final OutputStream out) throws Exception {
+                pipeline.start(out);
+                try {
+                    try {
+                        depositImportBody.readLines(reader);
+                    } catch (final LineTooLongException e) {
+                        // Not a bank file: stop reading
+                        pipeline.onInvalidRecord(e.getLineNumber(), e.getMessage());
+                    }
+                    pipeline.finish();
+                } catch (final IOException e) {
+                    pipeline.cancel();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    // Runs the producer in a dedicated thread, streaming what it writes back to the client
+    static Result streamResults(final DepositExecutors depositExecutors, final String mediaType, final ResultsProducer resultsProducer) throws IOException {
+        final PipedInputStream results = new PipedInputStream(STREAM_RESULTS_BUFFER_SIZE);
+        final OutputStream resultsOutputStream = new PipedOutputStream(results);
+        try {
+            depositExecutors.getStreamExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (final OutputStream out = resultsOutputStream) {
+                        resultsProducer.produce(out);
+                    } catch (final IOException e) {
+                        // Most likely the client went away: the remaining deposits are not recorded (or exported)
+                        logger.warn("Unable to stream deposit results", e);
+                    } catch (final Exception e) {
+                        logger.warn("Unexpected error streaming deposit results", e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            logger.warn("Too many concurrent deposit streams, rejecting request");
+            resultsOutputStream.close();
+            return Results.with(Status.SERVICE_UNAVAILABLE);
         }
-        return depositPaymentMethodId;
+
+        // Jooby copies the results to the response as they are written, and closes the pipe if the client goes away
+        return Results.with(results, Status.OK).type(mediaType);
+    }
+
+    static void writeResult(final OutputStream out, final DepositResultJson depositResultJson) throws IOException {
+        out.write(resultWriter.writeValueAsBytes(depositResultJson));
+        out.write('\n');
+        out.flush();
+    }
+
+    interface ResultsProducer {
+
+        void produce(OutputStream out) throws Exception;
     }
 
     // Use X-Request-Id if this is provided and looks like a UUID, if not allocate a random one.
@@ -206,7 +385,7 @@ public class DepositServlet {
         return userToken;
     }
 
-    private static final class DepositJson {
+    static final class DepositJson {
 
         public UUID accountId;
         public DateTime effectiveDate;
@@ -275,7 +454,7 @@ public class DepositServlet {
         }
     }
 
-    private static final class InvoiceDepositJson {
+    static final class InvoiceDepositJson {
 
         public Integer invoiceNumber;
         public BigDecimal paymentAmount;
@@ -319,4 +498,94 @@ public class DepositServlet {
             return result;
         }
     }
+
+    static final class DepositJobJson {
+
+        public final UUID jobId;
+        // PENDING, PROCESSING or COMPLETED
+        public final String jobStatus;
+        public final UUID accountId;
+        public final String paymentReferenceNumber;
+        // Same as the one /record would have returned, once the job is completed
+        public final Integer status;
+        public final List<InvoiceDepositResultJson> payments;
+
+        @JsonCreator
+        public DepositJobJson(@JsonProperty("jobId") final UUID jobId,
+                              @JsonProperty("jobStatus") final String jobStatus,
+                              @JsonProperty("accountId") final UUID accountId,
+                              @JsonProperty("paymentReferenceNumber") final String paymentReferenceNumber,
+                              @JsonProperty("status") final Integer status,
+                              @JsonProperty("payments") final List<InvoiceDepositResultJson> payments) {
+            this.jobId = jobId;
+            this.jobStatus = jobStatus;
+            this.accountId = accountId;
+            this.paymentReferenceNumber = paymentReferenceNumber;
+            this.status = status;
+            this.payments = payments;
+        }
+
+        @Override
+        public String toString() {
+            return "DepositJobJson{" +
+                   "jobId=" + jobId +
+                   ", jobStatus='" + jobStatus + '\'' +
+                   ", accountId=" + accountId +
+                   ", paymentReferenceNumber='" + paymentReferenceNumber + '\'' +
+                   ", status=" + status +
+                   ", payments=" + payments +
+                   '}';
+        }
+    }
+
+    static final class InvoiceDepositResultJson {
+
+        public final Integer invoiceNumber;
+        public final BigDecimal paymentAmount;
+        // Null if no payment was attempted (zero amount, or a previous payment of the deposit failed)
+        public final Integer status;
+
+        @JsonCreator
+        public InvoiceDepositResultJson(@JsonProperty("invoiceNumber") final Integer invoiceNumber,
+                                        @JsonProperty("paymentAmount") final BigDecimal paymentAmount,
+                                        @JsonProperty("status") final Integer status) {
+            this.invoiceNumber = invoiceNumber;
+            this.paymentAmount = paymentAmount;
+            this.status = status;
+        }
+
+        @Override
+        public String toString() {
+            return "InvoiceDepositResultJson{" +
+                   "invoiceNumber=" + invoiceNumber +
+                   ", paymentAmount=" + paymentAmount +
+                   ", status=" + status +
+                   '}';
+        }
+    }
+
+    static final class DepositResultJson {
+
+        public final UUID accountId;
+        public final String paymentReferenceNumber;
+        public final int status;
+
+        @JsonCreator
+        public DepositResultJson(@JsonProperty("accountId") final UUID accountId,
+                                 @JsonProperty("paymentReferenceNumber") final String paymentReferenceNumber,
+                                 @JsonProperty("status") final int status) {
+            this.accountId = accountId;
+            this.paymentReferenceNumber = paymentReferenceNumber;
+            this.status = status;
+        }
+
+        @Override
+        public String toString() {
+            return "DepositResultJson{" +
+                   "accountId=" + accountId +
+                   ", paymentReferenceNumber='" + paymentReferenceNumber + '\'' +
+                   ", status=" + status +
+                   '}';
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.POST;
+import org.jooby.mvc.Path;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositDailyTotalsRecord;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.inject.Inject;
+
+// Daily totals of the payments recorded by the plugin (UTC days of their effective date), see DepositDao#addResponses
+@Singleton
+@Path("/totals")
+public class DepositTotalsServlet {
+
+    private final DepositDao depositDao;
+    private final OSGIKillbillClock clock;
+
+    @Inject
+    public DepositTotalsServlet(final DepositDao depositDao, final OSGIKillbillClock clock) {
+        this.depositDao = depositDao;
+        this.clock = clock;
+    }
+
+    // Dates are ISO 8601 dates (e.g. 2021-03-16), both inclusive and optional
+    @GET
+    public Result getTotals(@Named("from") final Optional<String> from,
+                            @Named("to") final Optional<String> to,
+                            @Local @Named("killbill_tenant") final Tenant tenant) throws SQLException {
+        final LocalDate fromDate;
+        final LocalDate toDate;
+        try {
+            fromDate = from.isPresent() ? LocalDate.parse(from.get()) : null;
+            toDate = to.isPresent() ? LocalDate.parse(to.get()) : null;
+        } catch (final DateTimeParseException e) {
+            return Results.with(Status.BAD_REQUEST);
+        }
+
+        final List<DepositDailyTotalsRecord> records = depositDao.getDailyTotals(fromDate, toDate, tenant.getId());
+        final List<DepositDailyTotalJson> totals = new ArrayList<DepositDailyTotalJson>(records.size());
+        for (final DepositDailyTotalsRecord record : records) {
+            totals.add(new DepositDailyTotalJson(new org.joda.time.LocalDate(record.getDepositDate().toString()),
+                                                 record.getCurrency(),
+                                                 DepositDao.NO_DEPOSIT_TYPE.equals(record.getDepositType()) ? null : record.getDepositType(),
+                                                 record.getAmount(),
+                                                 record.getNbPayments()));
+        }
+        return Results.with(totals, Status.OK);
+    }
+
+    // Recomputes the totals of the tenant from its payments (backfill after the upgrade, or after a manual fix of deposit_responses),
+    // while the payments keep being recorded. One rebuild at a time per tenant (409 if one is already running).
+    @POST
+    @Path("/rebuild")
+    public Result rebuild(@Local @Named("killbill_tenant") final Tenant tenant) throws SQLException {
+        final Integer nbTotals = depositDao.rebuildDailyTotals(clock.getClock().getUTCNow(), tenant.getId());
+        if (nbTotals == null) {
+            return Results.with(Status.CONFLICT);
+        }
+        return Results.with(new DepositRebuildJson(nbTotals), Status.OK);
+    }
+
+    static final class DepositDailyTotalJson {
+
+        public final org.joda.time.LocalDate date;
+        public final String currency;
+        public final String depositType;
+        public final BigDecimal amount;
+        public final Integer nbPayments;
+
+        @JsonCreator
+        public DepositDailyTotalJson(@JsonProperty("date") final org.joda.time.LocalDate date,
+                                     @JsonProperty("currency") final String currency,
+                                     @JsonProperty("depositType") final String depositType,
+                                     @JsonProperty("amount") final BigDecimal amount,
+                                     @JsonProperty("nbPayments") final Integer nbPayments) {
+            this.date = date;
+            this.currency = currency;
+            this.depositType = depositType;
+            this.amount = amount;
+            this.nbPayments = nbPayments;
+        }
+
+        @Override
+        public String toString() {
+            return "DepositDailyTotalJson{" +
+                   "date=" + date +
+                   ", currency='" + currency + '\'' +
+                   ", depositType='" + depositType + '\'' +
+                   ", amount=" + amount +
+                   ", nbPayments=" + nbPayments +
+                   '}';
+        }
+    }
+
+    static final class DepositRebuildJson {
+
+        public final Integer nbTotals;
+
+        @JsonCreator
+        public DepositRebuildJson(@JsonProperty("nbTotals") final Integer nbTotals) {
+            this.nbTotals = nbTotals;
+        }
+
+        @Override
+        public String toString() {
+            return "DepositRebuildJson{" +
+                   "nbTotals=" + nbTotals +
+                   '}';
+        }
+    }
+}
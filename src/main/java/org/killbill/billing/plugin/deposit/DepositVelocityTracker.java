@@ -0,0 +1,220 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.deposit.DepositControlRules.Violation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * In-memory number and amount of the recent deposits of each account, over a sliding window split into time buckets.
+ */
+public class DepositVelocityTracker {
+
+    public static final String MAX_ACCOUNTS_PROPERTY = DepositActivator.PROPERTY_PREFIX + "velocityMaxAccounts";
+    public static final int DEFAULT_MAX_ACCOUNTS = 100000;
+    public static final String IDLE_EXPIRATION_MINUTES_PROPERTY = DepositActivator.PROPERTY_PREFIX + "velocityIdleExpirationMinutes";
+    public static final int DEFAULT_IDLE_EXPIRATION_MINUTES = 24 * 60;
+
+    // The window slides by 1/BUCKETS of its size
+    static final int BUCKETS = 10;
+
+    // Amounts are summed as longs, in 1/10000 of the currency unit
+    static final int AMOUNT_SCALE = 4;
+
+    // Guava's cache is split into independently locked segments, and each window has its own lock
+    private static final int CONCURRENCY_LEVEL = 16;
+
+    // Account ids are unique across tenants
+    private final Cache<UUID, Window> windows;
+
+    public DepositVelocityTracker(final long maximumAccounts, final long idleExpirationMinutes) {
+        this.windows = CacheBuilder.newBuilder()
+                                   .maximumSize(maximumAccounts)
+                                   .expireAfterAccess(idleExpirationMinutes, TimeUnit.MINUTES)
+                                   .concurrencyLevel(CONCURRENCY_LEVEL)
+                                   .build();
+    }
+
+    public static long toAmountUnits(@Nullable final BigDecimal amount) {
+        return amount == null ? 0 : amount.movePointRight(AMOUNT_SCALE).longValue();
+    }
+
+    /**
+     * Counts the new deposit, and reserves its amount, unless it would exceed a limit: the check and the reservation are atomic,
+     * so that concurrent deposits of an account can't all pass the check before any of them is counted.
+     *
+     * @param maxDeposits     maximum number of deposits in the window, 0 for no limit
+     * @param maxAmountUnits  maximum amount of the deposits in the window (see {@link #toAmountUnits(BigDecimal)}), -1 for no limit
+     * @param amountUnits     amount of the new deposit
+     * @return the exceeded limit (nothing is reserved), null if the new deposit is allowed
+     */
+    @Nullable
+    public Violation reserve(final UUID kbAccountId,
+                             final long nowMillis,
+                             final long windowMillis,
+                             final int maxDeposits,
+                             final long maxAmountUnits,
+                             final long amountUnits) {
+        if (maxAmountUnits >= 0 && amountUnits > maxAmountUnits) {
+            return Violation.VELOCITY_AMOUNT;
+        }
+
+        Window window = windows.getIfPresent(kbAccountId);
+        if (window == null) {
+            final Window newWindow = new Window();
+            window = windows.asMap().putIfAbsent(kbAccountId, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+
+        synchronized (window) {
+            if (maxDeposits > 0 && window.count(nowMillis, windowMillis) >= maxDeposits) {
+                return Violation.VELOCITY_COUNT;
+            }
+            if (maxAmountUnits >= 0 && window.amountUnits(nowMillis, windowMillis) + amountUnits > maxAmountUnits) {
+                return Violation.VELOCITY_AMOUNT;
+            }
+            window.add(nowMillis, windowMillis, amountUnits);
+        }
+        return null;
+    }
+
+    /**
+     * Gives back the amount reserved for a deposit which failed (it still counts towards the number of deposits).
+     */
+    public void release(final UUID kbAccountId, final long nowMillis, final long windowMillis, final long amountUnits) {
+        final Window window = windows.getIfPresent(kbAccountId);
+        if (window == null || amountUnits == 0) {
+            return;
+        }
+
+        synchronized (window) {
+            window.remove(nowMillis, windowMillis, amountUnits);
+        }
+    }
+
+    public long size() {
+        return windows.size();
+    }
+
+    public void registerGauges(final DepositMetrics metrics) {
+        metrics.registerGauge("velocity_tracked_accounts",
+                              "Accounts with deposits tracked by the velocity limits",
+                              null,
+                              null,
+                              new DepositMetrics.Gauge() {
+                                  @Override
+                                  public long getValue() {
+                                      return size();
+                                  }
+                              });
+    }
+
+    // Guarded by its own monitor
+    private static final class Window {
+
+        private final long[] bucketIds = new long[BUCKETS];
+        private final int[] counts = new int[BUCKETS];
+        private final long[] amountUnits = new long[BUCKETS];
+        private long bucketMillis;
+
+        private Window() {
+            Arrays.fill(bucketIds, Long.MIN_VALUE);
+        }
+
+        private void add(final long nowMillis, final long windowMillis, final long amount) {
+            final long newBucketMillis = bucketMillis(windowMillis);
+            if (newBucketMillis != bucketMillis) {
+                // The window of the tenant has changed: start over
+                Arrays.fill(bucketIds, Long.MIN_VALUE);
+                bucketMillis = newBucketMillis;
+            }
+
+            final long bucketId = nowMillis / bucketMillis;
+            final int i = (int) (bucketId % BUCKETS);
+            if (bucketIds[i] != bucketId) {
+                bucketIds[i] = bucketId;
+                counts[i] = 0;
+                amountUnits[i] = 0;
+            }
+            counts[i]++;
+            amountUnits[i] += amount;
+        }
+
+        // Payments complete well within a bucket: the amount is taken back from the most recent bucket holding it (the bucket of
+        // the reservation, unless the window has moved on since)
+        private void remove(final long nowMillis, final long windowMillis, final long amount) {
+            if (bucketMillis(windowMillis) != bucketMillis) {
+                return;
+            }
+
+            final long bucketId = nowMillis / bucketMillis;
+            for (long id = bucketId; id > bucketId - BUCKETS; id--) {
+                final int i = (int) (id % BUCKETS);
+                if (bucketIds[i] == id && amountUnits[i] >= amount) {
+                    amountUnits[i] -= amount;
+                    return;
+                }
+            }
+        }
+
+        private int count(final long nowMillis, final long windowMillis) {
+            if (bucketMillis(windowMillis) != bucketMillis) {
+                return 0;
+            }
+
+            final long oldestBucketId = nowMillis / bucketMillis - BUCKETS;
+            int count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (bucketIds[i] > oldestBucketId) {
+                    count += counts[i];
+                }
+            }
+            return count;
+        }
+
+        private long amountUnits(final long nowMillis, final long windowMillis) {
+            if (bucketMillis(windowMillis) != bucketMillis) {
+                return 0;
+            }
+
+            final long oldestBucketId = nowMillis / bucketMillis - BUCKETS;
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (bucketIds[i] > oldestBucketId) {
+                    total += amountUnits[i];
+                }
+            }
+            return total;
+        }
+
+        private static long bucketMillis(final long windowMillis) {
+            return Math.max(1, windowMillis / BUCKETS);
+        }
+    }
+}
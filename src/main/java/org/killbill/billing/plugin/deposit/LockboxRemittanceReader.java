@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.killbill.billing.plugin.deposit.DepositRemittance.Item;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceHandler;
+import org.killbill.billing.plugin.deposit.DepositRemittance.RemittanceReader;
+
+/**
+ * Reads fixed-width lockbox files. Positions are 1-based, amounts are in cents without a decimal point:
+ * <pre>
+ * 5 Batch header   1 type | 2-4 batch number | 5-11 lockbox number | 12-17 deposit date (YYMMDD)
+ * 6 Payment        1 type | 2-4 batch number | 5-7 item number | 8-17 amount | 18-26 routing number | 27-36 account number
+ *                  | 37-46 check number | 47-66 account external key (optional)
+ * 4 Remittance     1 type | 2-4 batch number | 5-7 item number | 8-22 invoice number (optional) | 23-32 amount
+ *                  | 33-52 account external key (optional)
+ * </pre>
+ * Other record types (file header, service record, trailers) are ignored. Remittance (4) records break a payment down
+ * by invoice or account and must add up to the payment amount. Without them, the payment is applied to the account of the
+ * payment record. The payment reference number is lockbox number-deposit date-batch number-item number.
+ */
+final class LockboxRemittanceReader implements RemittanceReader {
+
+    static final String DEPOSIT_TYPE = "lockbox";
+
+    private static final DateTimeFormatter DEPOSIT_DATE_FORMATTER = DateTimeFormat.forPattern("yyMMdd").withZoneUTC();
+
+    private final RemittanceHandler handler;
+
+    private String lockboxNumber;
+    private String depositDate;
+    private DateTime effectiveDate;
+
+    private DepositRemittance pendingRemittance;
+    private String pendingBatchItem;
+    private String pendingAccountExternalKey;
+    private String pendingInvalidReason;
+
+    LockboxRemittanceReader(final RemittanceHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void onLine(final int lineNumber, final String line) throws IOException {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+
+        final char recordType = line.charAt(0);
+        if (recordType == '4') {
+            onRemittanceRecord(lineNumber, line);
+            return;
+        }
+
+        flushPendingRemittance();
+        if (recordType == '5') {
+            onBatchHeader(lineNumber, line);
+        } else if (recordType == '6') {
+            onPaymentRecord(lineNumber, line);
+        }
+    }
+
+    @Override
+    public void onEndOfInput() throws IOException {
+        flushPendingRemittance();
+    }
+
+    private void onBatchHeader(final int lineNumber, final String line) throws IOException {
+        lockboxNumber = field(line, 5, 11);
+        depositDate = field(line, 12, 17);
+        try {
+            effectiveDate = DEPOSIT_DATE_FORMATTER.parseDateTime(depositDate);
+        } catch (final IllegalArgumentException e) {
+            effectiveDate = null;
+            handler.onInvalidRecord(lineNumber, "Invalid deposit date " + depositDate);
+        }
+    }
+
+    private void onPaymentRecord(final int lineNumber, final String line) throws IOException {
+        if (effectiveDate == null) {
+            handler.onInvalidRecord(lineNumber, "Payment outside of a valid batch");
+            return;
+        }
+
+        final String batchNumber = field(line, 2, 4);
+        final String itemNumber = field(line, 5, 7);
+        final BigDecimal amount = parseAmount(field(line, 8, 17));
+        if (amount == null) {
+            handler.onInvalidRecord(lineNumber, "Invalid payment amount");
+            return;
+        }
+
+        pendingRemittance = new DepositRemittance(lineNumber,
+                                                  String.format("%s-%s-%s-%s", lockboxNumber, depositDate, batchNumber, itemNumber),
+                                                  DEPOSIT_TYPE,
+                                                  effectiveDate,
+                                                  amount);
+        pendingBatchItem = batchNumber + "-" + itemNumber;
+        pendingAccountExternalKey = field(line, 47, 66);
+        pendingInvalidReason = null;
+    }
+
+    private void onRemittanceRecord(final int lineNumber, final String line) throws IOException {
+        if (pendingRemittance == null || !pendingBatchItem.equals(field(line, 2, 4) + "-" + field(line, 5, 7))) {
+            handler.onInvalidRecord(lineNumber, "Remittance record without a matching payment");
+            return;
+        }
+        if (pendingInvalidReason != null) {
+            return;
+        }
+
+        final String invoiceNumber = field(line, 8, 22);
+        final BigDecimal amount = parseAmount(field(line, 23, 32));
+        final String accountExternalKey = field(line, 33, 52);
+        if (amount == null) {
+            pendingInvalidReason = "Invalid remittance amount on line " + lineNumber;
+        } else if (!invoiceNumber.isEmpty()) {
+            try {
+                pendingRemittance.addItem(new Item(Integer.valueOf(invoiceNumber), null, amount));
+            } catch (final NumberFormatException e) {
+                pendingInvalidReason = "Invalid invoice number " + invoiceNumber + " on line " + lineNumber;
+            }
+        } else if (!accountExternalKey.isEmpty()) {
+            pendingRemittance.addItem(new Item(null, accountExternalKey, amount));
+        } else {
+            pendingInvalidReason = "Missing invoice number and account on line " + lineNumber;
+        }
+    }
+
+    private void flushPendingRemittance() throws IOException {
+        if (pendingRemittance == null) {
+            return;
+        }
+
+        final DepositRemittance remittance = pendingRemittance;
+        pendingRemittance = null;
+
+        if (pendingInvalidReason == null && remittance.getItems().isEmpty()) {
+            if (pendingAccountExternalKey.isEmpty()) {
+                pendingInvalidReason = "Payment without remittance records nor account";
+            } else {
+                remittance.addItem(new Item(null, pendingAccountExternalKey, remittance.getAmount()));
+            }
+        }
+        if (pendingInvalidReason == null) {
+            BigDecimal itemsAmount = BigDecimal.ZERO;
+            for (final Item item : remittance.getItems()) {
+                itemsAmount = itemsAmount.add(item.getAmount());
+            }
+            if (itemsAmount.compareTo(remittance.getAmount()) != 0) {
+                pendingInvalidReason = "Remittance records add up to " + itemsAmount + " instead of " + remittance.getAmount();
+            }
+        }
+
+        if (pendingInvalidReason != null) {
+            handler.onInvalidRecord(remittance.getLineNumber(), pendingInvalidReason);
+        } else {
+            handler.onRemittance(remittance);
+        }
+    }
+
+    private static BigDecimal parseAmount(final String cents) {
+        try {
+            final long value = Long.parseLong(cents);
+            return value < 0 ? null : BigDecimal.valueOf(value, 2);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Trimmed content of the (1-based, inclusive) columns, empty if the line is shorter
+    private static String field(final String line, final int from, final int to) {
+        if (line.length() < from) {
+            return "";
+        }
+        return line.substring(from - 1, Math.min(to, line.length())).trim();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+
+import javax.annotation.Nullable;
+
+import org.jooq.Binding;
+import org.jooq.BindingGetResultSetContext;
+import org.jooq.BindingGetSQLInputContext;
+import org.jooq.BindingGetStatementContext;
+import org.jooq.BindingRegisterContext;
+import org.jooq.BindingSQLContext;
+import org.jooq.BindingSetSQLOutputContext;
+import org.jooq.BindingSetStatementContext;
+import org.jooq.Converter;
+import org.jooq.conf.ParamType;
+import org.jooq.impl.AbstractConverter;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * Binding of additional_data, stored as text (longtext) by default, or as bytes (longblob on MySQL, bytea on PostgreSQL) with the
+ * binary-additional-data schema variant (see src/main/resources/binary-additional-data), which is required to store Smile.
+ * <p>
+ * The values are bytes in both cases (UTF-8 JSON in text columns), and are read whatever the column type. They are bound according
+ * to the column types of their table, looked up by DepositDao (see ColumnTypes): one subclass per table.
+ */
+public abstract class AdditionalDataBinding implements Binding<String, byte[]> {
+
+    private static final long serialVersionUID = 3380214471655412840L;
+
+    // Only used to inline the values (e.g. when logging the statements)
+    private static final Converter<String, byte[]> CONVERTER = new AbstractConverter<String, byte[]>(String.class, byte[].class) {
+
+        private static final long serialVersionUID = -6803315478093458807L;
+
+        @Override
+        public byte[] from(final String databaseObject) {
+            return databaseObject == null ? null : databaseObject.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String to(final byte[] userObject) {
+            return userObject == null ? null : new String(userObject, StandardCharsets.UTF_8);
+        }
+    };
+
+    private final String table;
+
+    protected AdditionalDataBinding(final String table) {
+        this.table = table;
+    }
+
+    public static final class Responses extends AdditionalDataBinding {
+
+        private static final long serialVersionUID = -1939318213536190263L;
+
+        public Responses() {
+            super("deposit_responses");
+        }
+    }
+
+    public static final class PaymentMethods extends AdditionalDataBinding {
+
+        private static final long serialVersionUID = 5147096313398064211L;
+
+        public PaymentMethods() {
+            super("deposit_payment_methods");
+        }
+    }
+
+    @Override
+    public Converter<String, byte[]> converter() {
+        return CONVERTER;
+    }
+
+    @Override
+    public void sql(final BindingSQLContext<byte[]> ctx) throws SQLException {
+        if (ctx.render().paramType() == ParamType.INLINED) {
+            ctx.render().visit(DSL.inline(CONVERTER.to(ctx.value()), SQLDataType.CLOB));
+        } else {
+            ctx.render().sql(ctx.variable());
+        }
+    }
+
+    @Override
+    public void register(final BindingRegisterContext<byte[]> ctx) throws SQLException {
+        ctx.statement().registerOutParameter(ctx.index(), Types.LONGVARBINARY);
+    }
+
+    @Override
+    public void set(final BindingSetStatementContext<byte[]> ctx) throws SQLException {
+        final PreparedStatement statement = ctx.statement();
+        final byte[] value = ctx.value();
+        if (ColumnTypes.get(ctx.configuration()).isBinary(table, "additional_data")) {
+            if (value == null) {
+                statement.setNull(ctx.index(), Types.BINARY);
+            } else {
+                statement.setBytes(ctx.index(), value);
+            }
+        } else if (value == null) {
+            statement.setNull(ctx.index(), Types.VARCHAR);
+        } else if (value.length > 0 && value[0] == DepositDao.SMILE_V1_MARKER) {
+            // DepositDao only writes JSON to text columns: e.g. the table has just been swapped back
+            throw new SQLException("Unable to store Smile in " + table + ".additional_data, which is a text column", "22000");
+        } else {
+            statement.setString(ctx.index(), new String(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public void set(final BindingSetSQLOutputContext<byte[]> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public void get(final BindingGetResultSetContext<byte[]> ctx) throws SQLException {
+        ctx.value(fromDatabase(ctx.resultSet().getObject(ctx.index())));
+    }
+
+    @Override
+    public void get(final BindingGetStatementContext<byte[]> ctx) throws SQLException {
+        ctx.value(fromDatabase(ctx.statement().getObject(ctx.index())));
+    }
+
+    @Override
+    public void get(final BindingGetSQLInputContext<byte[]> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    // String (text columns), byte[] (binary columns), or Clob and Blob (e.g. H2)
+    @Nullable
+    private static byte[] fromDatabase(@Nullable final Object value) throws SQLException {
+        if (value == null) {
+            return null;
+        } else if (value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof Blob) {
+            final Blob blob = (Blob) value;
+            return blob.getBytes(1, (int) blob.length());
+        } else if (value instanceof Clob) {
+            final Clob clob = (Clob) value;
+            return clob.getSubString(1, (int) clob.length()).getBytes(StandardCharsets.UTF_8);
+        } else {
+            return value.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit.dao;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.jooq.Configuration;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Columns of the deposit tables which are binary in this database (e.g. kb_account_id with the binary-uuids schema variant),
+ * looked up by DepositDao outside of the statements, and passed to the bindings through the jOOQ configuration.
+ */
+final class ColumnTypes {
+
+    // Key of the configuration data (see DepositDao#using)
+    static final String CONFIGURATION_KEY = ColumnTypes.class.getName();
+
+    // Default schema, e.g. for the statements not run through DepositDao#using
+    static final ColumnTypes DEFAULT = new ColumnTypes(ImmutableSet.<String>of());
+
+    private static final Set<String> TABLES = ImmutableSet.<String>of("deposit_responses", "deposit_payment_methods");
+
+    private static final Set<Integer> BINARY_TYPES = ImmutableSet.<Integer>of(Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY, Types.BLOB);
+
+    // table.column
+    private final Set<String> binaryColumns;
+
+    private ColumnTypes(final Set<String> binaryColumns) {
+        this.binaryColumns = binaryColumns;
+    }
+
+    static ColumnTypes lookUp(final Connection connection) throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        final Set<String> binaryColumns = new HashSet<String>();
+        for (final String table : TABLES) {
+            // E.g. H2
+            final String tableName = metaData.storesUpperCaseIdentifiers() ? table.toUpperCase(Locale.ROOT) : table;
+            try (final ResultSet columns = metaData.getColumns(connection.getCatalog(), null, tableName, null)) {
+                while (columns.next()) {
+                    if (BINARY_TYPES.contains(columns.getInt("DATA_TYPE"))) {
+                        binaryColumns.add(table + "." + columns.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+        return new ColumnTypes(ImmutableSet.<String>copyOf(binaryColumns));
+    }
+
+    static ColumnTypes get(final Configuration configuration) {
+        final Object columnTypes = configuration.data(CONFIGURATION_KEY);
+        return columnTypes == null ? DEFAULT : (ColumnTypes) columnTypes;
+    }
+
+    boolean isBinary(final String table, final String column) {
+        return binaryColumns.contains(table + "." + column);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof ColumnTypes && binaryColumns.equals(((ColumnTypes) o).binaryColumns);
+    }
+
+    @Override
+    public int hashCode() {
+        return binaryColumns.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnTypes{binaryColumns=" + binaryColumns + '}';
+    }
+}
@@ -18,41 +18,279 @@
 package org.killbill.billing.plugin.deposit.dao;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
 import org.joda.time.DateTime;
+import org.jooq.Condition;
+import org.jooq.Configuration;
+import org.jooq.Cursor;
+import org.jooq.DSLContext;
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteListenerProvider;
+import org.jooq.Field;
+import org.jooq.InsertValuesStepN;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record2;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.SortField;
+import org.jooq.Table;
+import org.jooq.TableField;
+import org.jooq.TransactionalCallable;
+import org.jooq.TransactionalRunnable;
+import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultExecuteListener;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.jooq.impl.SQLDataType;
+import org.jooq.types.ULong;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.plugin.api.PluginProperties;
 import org.killbill.billing.plugin.dao.payment.PluginPaymentDao;
+import org.killbill.billing.plugin.deposit.DepositMetrics;
 import org.killbill.billing.plugin.deposit.DepositPaymentPluginApi;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositDailyTotalsRecord;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositJobsRecord;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositPaymentMethodsRecord;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositReencodesRecord;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositDailyTotals.DEPOSIT_DAILY_TOTALS;
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositJobs.DEPOSIT_JOBS;
 import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS;
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositReencodes.DEPOSIT_REENCODES;
 import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses.DEPOSIT_RESPONSES;
 
 public class DepositDao extends PluginPaymentDao<DepositResponsesRecord, DepositResponses, DepositPaymentMethodsRecord, DepositPaymentMethods> {
 
+    public static final String JOB_STATUS_PENDING = "PENDING";
+    public static final String JOB_STATUS_PROCESSING = "PROCESSING";
+    public static final String JOB_STATUS_COMPLETED = "COMPLETED";
+
+    // 13 bind variables per row: this stays below the 32767 limit of the PostgreSQL driver
+    public static final int MAX_RESPONSES_PER_INSERT = 1000;
+
+    // Rows fetched per round trip by exportResponses
+    public static final int EXPORT_FETCH_SIZE = 1000;
+
+    // deposit_type of the daily totals of the payments without one (part of the unique key, which can't be null)
+    public static final String NO_DEPOSIT_TYPE = "";
+
+    // Rows per day, currency and deposit type in deposit_daily_totals: each transaction updates a random one
+    static final int DAILY_TOTALS_STRIPES = 16;
+    // Days of daily totals fixed at a time by rebuildDailyTotals
+    private static final int DAILY_TOTALS_REBUILD_CHUNK_DAYS = 31;
+
+    // How often the column types are looked up again (see refreshColumnTypes), so that swapped tables are picked up
+    public static final long COLUMN_TYPES_REFRESH_INTERVAL_MS = 60 * 1000L;
+
+    // First byte of additional_data values encoded with Smile (version 1, without the Smile header). JSON values start with '{'.
+    static final byte SMILE_V1_MARKER = 0x01;
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositDao.class);
+
+    private static final TypeReference<Map<String, Object>> ADDITIONAL_DATA_TYPE = new TypeReference<Map<String, Object>>() {};
+    // Thread-safe and reusable, unlike a lookup of the Map deserializer by the ObjectMapper on each call
+    private static final ObjectReader additionalDataReader = objectMapper.readerFor(ADDITIONAL_DATA_TYPE);
+    private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory().disable(SmileGenerator.Feature.WRITE_HEADER)
+                                                                                       .disable(SmileParser.Feature.REQUIRE_HEADER))
+            .setSerializationInclusion(Include.NON_EMPTY);
+    private static final ObjectReader smileAdditionalDataReader = smileMapper.readerFor(ADDITIONAL_DATA_TYPE);
+    private static final ObjectWriter smileAdditionalDataWriter = smileMapper.writer();
+
+    private static final List<Field<?>> RESPONSE_FIELDS = ImmutableList.<Field<?>>of(DEPOSIT_RESPONSES.KB_ACCOUNT_ID,
+                                                                                     DEPOSIT_RESPONSES.KB_PAYMENT_ID,
+                                                                                     DEPOSIT_RESPONSES.KB_PAYMENT_TRANSACTION_ID,
+                                                                                     DEPOSIT_RESPONSES.TRANSACTION_TYPE,
+                                                                                     DEPOSIT_RESPONSES.AMOUNT,
+                                                                                     DEPOSIT_RESPONSES.CURRENCY,
+                                                                                     DEPOSIT_RESPONSES.DEPOSIT_TYPE,
+                                                                                     DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER,
+                                                                                     DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE,
+                                                                                     DEPOSIT_RESPONSES.ADDITIONAL_DATA,
+                                                                                     DEPOSIT_RESPONSES.CREATED_DATE,
+                                                                                     DEPOSIT_RESPONSES.KB_TENANT_ID,
+                                                                                     DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER);
+    // additional_data isn't exported
+    private static final List<Field<?>> EXPORT_FIELDS = ImmutableList.<Field<?>>of(DEPOSIT_RESPONSES.RECORD_ID,
+                                                                                   DEPOSIT_RESPONSES.KB_ACCOUNT_ID,
+                                                                                   DEPOSIT_RESPONSES.KB_PAYMENT_ID,
+                                                                                   DEPOSIT_RESPONSES.KB_PAYMENT_TRANSACTION_ID,
+                                                                                   DEPOSIT_RESPONSES.TRANSACTION_TYPE,
+                                                                                   DEPOSIT_RESPONSES.AMOUNT,
+                                                                                   DEPOSIT_RESPONSES.CURRENCY,
+                                                                                   DEPOSIT_RESPONSES.DEPOSIT_TYPE,
+                                                                                   DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER,
+                                                                                   DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE,
+                                                                                   DEPOSIT_RESPONSES.CREATED_DATE,
+                                                                                   DEPOSIT_RESPONSES.KB_TENANT_ID,
+                                                                                   DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER);
+
+    public enum AdditionalDataEncoding {
+        // Text, readable by all versions of the plugin
+        JSON,
+        // Binary, more compact and faster to decode
+        SMILE
+    }
+
+    private final AdditionalDataEncoding additionalDataEncoding;
+    private final ExecuteListenerProvider executeListenerProvider;
+    private final ScheduledExecutorService columnTypesExecutor;
+
+    // Looked up on first use, then refreshed periodically (once started) and after data errors
+    private volatile ColumnTypes columnTypes;
+
     public DepositDao(final DataSource dataSource) throws SQLException {
+        this(dataSource, AdditionalDataEncoding.JSON);
+    }
+
+    public DepositDao(final DataSource dataSource, final AdditionalDataEncoding additionalDataEncoding) throws SQLException {
+        this(dataSource, additionalDataEncoding, new DepositMetrics());
+    }
+
+    public DepositDao(final DataSource dataSource, final AdditionalDataEncoding additionalDataEncoding, final DepositMetrics metrics) throws SQLException {
         super(DEPOSIT_RESPONSES, DEPOSIT_PAYMENT_METHODS, dataSource);
         // Save space in the database
         objectMapper.setSerializationInclusion(Include.NON_EMPTY);
+        this.additionalDataEncoding = additionalDataEncoding;
+        this.executeListenerProvider = new DefaultExecuteListenerProvider(new MetricsExecuteListener(metrics));
+        this.columnTypesExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("deposit-column-types-%d")
+                                                                                                       .setDaemon(true)
+                                                                                                       .build());
+    }
+
+    public void start() {
+        columnTypesExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshColumnTypes();
+                } catch (final SQLException | RuntimeException e) {
+                    logger.warn("Unable to look up the column types", e);
+                }
+            }
+        }, COLUMN_TYPES_REFRESH_INTERVAL_MS, COLUMN_TYPES_REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        columnTypesExecutor.shutdownNow();
+    }
+
+    public void refreshColumnTypes() throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<Void>() {
+                    @Override
+                    public Void withConnection(final Connection conn) throws SQLException {
+                        setColumnTypes(ColumnTypes.lookUp(conn));
+                        return null;
+                    }
+                });
+    }
+
+    private ColumnTypes getColumnTypes() throws SQLException {
+        final ColumnTypes currentColumnTypes = columnTypes;
+        if (currentColumnTypes != null) {
+            return currentColumnTypes;
+        }
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<ColumnTypes>() {
+                           @Override
+                           public ColumnTypes withConnection(final Connection conn) throws SQLException {
+                               return getColumnTypes(conn);
+                           }
+                       });
+    }
+
+    private ColumnTypes getColumnTypes(final Connection conn) throws SQLException {
+        ColumnTypes currentColumnTypes = columnTypes;
+        if (currentColumnTypes == null) {
+            currentColumnTypes = ColumnTypes.lookUp(conn);
+            setColumnTypes(currentColumnTypes);
+        }
+        return currentColumnTypes;
+    }
+
+    private void setColumnTypes(final ColumnTypes newColumnTypes) {
+        if (!newColumnTypes.equals(columnTypes)) {
+            if (columnTypes != null) {
+                logger.info("Column types changed: {}", newColumnTypes);
+            }
+            for (final Table<?> table : ImmutableList.<Table<?>>of(DEPOSIT_RESPONSES, DEPOSIT_PAYMENT_METHODS)) {
+                if (additionalDataEncoding == AdditionalDataEncoding.SMILE && !newColumnTypes.isBinary(table.getName(), DEPOSIT_RESPONSES.ADDITIONAL_DATA.getName())) {
+                    logger.warn("{}.additional_data is a text column: written as JSON rather than Smile until it is migrated (see binary-additional-data)", table.getName());
+                }
+            }
+        }
+        columnTypes = newColumnTypes;
+    }
+
+    // Times the statements (see MetricsExecuteListener), and binds the values according to the column types (see UUIDBinding)
+    private DSLContext using(final Connection conn) {
+        final ColumnTypes currentColumnTypes;
+        try {
+            currentColumnTypes = getColumnTypes(conn);
+        } catch (final SQLException e) {
+            throw new DataAccessException("Unable to look up the column types", e);
+        }
+
+        final DSLContext dslContext = DSL.using(conn, dialect, settings);
+        dslContext.configuration().set(executeListenerProvider);
+        dslContext.configuration().data(ColumnTypes.CONFIGURATION_KEY, currentColumnTypes);
+        return dslContext;
+    }
+
+    public AdditionalDataEncoding getAdditionalDataEncoding() {
+        return additionalDataEncoding;
+    }
+
+    // The configured encoding, except for text columns (Smile requires the binary-additional-data schema variant): JSON then
+    public AdditionalDataEncoding getAdditionalDataEncoding(final Table<?> table) throws SQLException {
+        if (additionalDataEncoding == AdditionalDataEncoding.SMILE && !getColumnTypes().isBinary(table.getName(), DEPOSIT_RESPONSES.ADDITIONAL_DATA.getName())) {
+            return AdditionalDataEncoding.JSON;
+        }
+        return additionalDataEncoding;
     }
 
     public void addPaymentMethod(final UUID kbAccountId,
@@ -64,7 +302,7 @@ public class DepositDao extends PluginPaymentDao<DepositResponsesRecord, Deposit
                 new WithConnectionCallback<DepositResponsesRecord>() {
                     @Override
                     public DepositResponsesRecord withConnection(final Connection conn) throws SQLException {
-                        DSL.using(conn, dialect, settings)
+                        using(conn)
                            .insertInto(DEPOSIT_PAYMENT_METHODS,
                                        DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID,
                                        DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID,
@@ -76,7 +314,7 @@ public class DepositDao extends PluginPaymentDao<DepositResponsesRecord, Deposit
                            .values(kbAccountId.toString(),
                                    kbPaymentMethodId.toString(),
                                    (short) FALSE,
-                                   asString(additionalDataMap),
+                                   toAdditionalData(additionalDataMap, getAdditionalDataEncoding(DEPOSIT_PAYMENT_METHODS)),
                                    toLocalDateTime(utcNow),
                                    toLocalDateTime(utcNow),
                                    kbTenantId.toString()
@@ -88,47 +326,781 @@ public class DepositDao extends PluginPaymentDao<DepositResponsesRecord, Deposit
                 });
     }
 
-    public void addResponse(final UUID kbAccountId,
-                            final UUID kbPaymentId,
-                            final UUID kbPaymentTransactionId,
-                            final TransactionType transactionType,
-                            final BigDecimal amount,
-                            final Currency currency,
-                            final Iterable<PluginProperty> properties,
-                            final DateTime utcNow,
-                            final UUID kbTenantId) throws SQLException {
-        final Map additionalDataMap = PluginProperties.toStringMap(properties);
+    // Same rows as kb_active_account_id = kbAccountId, but read from deposit_payment_methods_kb_tenant_id_kb_account_id only (covering index)
+    @Nullable
+    public UUID getActivePaymentMethodId(final UUID kbAccountId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<UUID>() {
+                           @Override
+                           public UUID withConnection(final Connection conn) throws SQLException {
+                               final String kbPaymentMethodId = using(conn)
+                                                                   .select(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID)
+                                                                   .from(DEPOSIT_PAYMENT_METHODS)
+                                                                   .where(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                   .and(DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                                                   .and(DEPOSIT_PAYMENT_METHODS.IS_DELETED.notEqual((short) TRUE))
+                                                                   .fetchOne(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID);
+                               return kbPaymentMethodId == null ? null : UUID.fromString(kbPaymentMethodId);
+                           }
+                       });
+    }
 
+    // The PluginPaymentDao implementations below use untyped fields, which bypass the binding of the Kill Bill ids (see UUIDBinding)
+
+    @Override
+    public List<DepositResponsesRecord> getResponses(final UUID kbPaymentId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositResponsesRecord>>() {
+                           @Override
+                           public List<DepositResponsesRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_RESPONSES)
+                                         .where(DEPOSIT_RESPONSES.KB_PAYMENT_ID.equal(kbPaymentId.toString()))
+                                         .and(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                                         .fetch();
+                           }
+                       });
+    }
+
+    @Override
+    public DepositResponsesRecord getSuccessfulAuthorizationResponse(final UUID kbPaymentId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<DepositResponsesRecord>() {
+                           @Override
+                           public DepositResponsesRecord withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_RESPONSES)
+                                         .where(DEPOSIT_RESPONSES.KB_PAYMENT_ID.equal(kbPaymentId.toString()))
+                                         .and(DEPOSIT_RESPONSES.TRANSACTION_TYPE.equal(TransactionType.AUTHORIZE.toString()))
+                                         .and(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .orderBy(DEPOSIT_RESPONSES.RECORD_ID.desc())
+                                         .limit(1)
+                                         .fetchOne();
+                           }
+                       });
+    }
+
+    @Override
+    public void deletePaymentMethod(final UUID kbPaymentMethodId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
         execute(dataSource.getConnection(),
-                new WithConnectionCallback<DepositResponsesRecord>() {
+                new WithConnectionCallback<Void>() {
                     @Override
-                    public DepositResponsesRecord withConnection(final Connection conn) throws SQLException {
-                        final String depositEffectiveDateOrNull = PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, properties);
-                        final LocalDateTime localDepositEffectiveDate = depositEffectiveDateOrNull == null ? null : toLocalDateTime(new DateTime(depositEffectiveDateOrNull));
-                        DSL.using(conn, dialect, settings)
-                           .insertInto(DEPOSIT_RESPONSES,
-                                       DEPOSIT_RESPONSES.KB_ACCOUNT_ID,
-                                       DEPOSIT_RESPONSES.KB_PAYMENT_ID,
-                                       DEPOSIT_RESPONSES.KB_PAYMENT_TRANSACTION_ID,
-                                       DEPOSIT_RESPONSES.TRANSACTION_TYPE,
-                                       DEPOSIT_RESPONSES.AMOUNT,
-                                       DEPOSIT_RESPONSES.CURRENCY,
-                                       DEPOSIT_RESPONSES.DEPOSIT_TYPE,
-                                       DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER,
-                                       DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE,
-                                       DEPOSIT_RESPONSES.ADDITIONAL_DATA,
-                                       DEPOSIT_RESPONSES.CREATED_DATE,
-                                       DEPOSIT_RESPONSES.KB_TENANT_ID)
-                           .values(kbAccountId.toString(),
-                                   kbPaymentId.toString(),
-                                   kbPaymentTransactionId.toString(),
-                                   transactionType.toString(),
-                                   amount,
-                                   currency == null ? null : currency.name(),
-                                   PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, properties),
-                                   PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, properties),
-                                   localDepositEffectiveDate,
-                                   asString(additionalDataMap),
+                    public Void withConnection(final Connection conn) throws SQLException {
+                        using(conn)
+                           .update(DEPOSIT_PAYMENT_METHODS)
+                           .set(DEPOSIT_PAYMENT_METHODS.IS_DELETED, (short) TRUE)
+                           .set(DEPOSIT_PAYMENT_METHODS.UPDATED_DATE, toLocalDateTime(utcNow))
+                           .where(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+                           .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                           .execute();
+                        return null;
+                    }
+                });
+    }
+
+    @Override
+    public DepositPaymentMethodsRecord getPaymentMethod(final UUID kbPaymentMethodId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<DepositPaymentMethodsRecord>() {
+                           @Override
+                           public DepositPaymentMethodsRecord withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_PAYMENT_METHODS)
+                                         .where(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+                                         .and(DEPOSIT_PAYMENT_METHODS.IS_DELETED.equal((short) FALSE))
+                                         .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .orderBy(DEPOSIT_PAYMENT_METHODS.RECORD_ID.desc())
+                                         .fetchOne();
+                           }
+                       });
+    }
+
+    @Override
+    public void setDefaultPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<Void>() {
+                    @Override
+                    public Void withConnection(final Connection conn) throws SQLException {
+                        using(conn)
+                           .transaction(new TransactionalRunnable() {
+                               @Override
+                               public void run(final Configuration configuration) {
+                                   final DSLContext dslContext = DSL.using(configuration);
+                                   dslContext.update(DEPOSIT_PAYMENT_METHODS)
+                                             .set(DEPOSIT_PAYMENT_METHODS.IS_DEFAULT, (short) FALSE)
+                                             .set(DEPOSIT_PAYMENT_METHODS.UPDATED_DATE, toLocalDateTime(utcNow))
+                                             .where(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID.notEqual(kbPaymentMethodId.toString()))
+                                             .and(DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                             .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                             .execute();
+                                   dslContext.update(DEPOSIT_PAYMENT_METHODS)
+                                             .set(DEPOSIT_PAYMENT_METHODS.IS_DEFAULT, (short) TRUE)
+                                             .set(DEPOSIT_PAYMENT_METHODS.UPDATED_DATE, toLocalDateTime(utcNow))
+                                             .where(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+                                             .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                             .execute();
+                               }
+                           });
+                        return null;
+                    }
+                });
+    }
+
+    @Override
+    public List<DepositPaymentMethodsRecord> getPaymentMethods(final UUID kbAccountId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositPaymentMethodsRecord>>() {
+                           @Override
+                           public List<DepositPaymentMethodsRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_PAYMENT_METHODS)
+                                         .where(DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                         .and(DEPOSIT_PAYMENT_METHODS.IS_DELETED.equal((short) FALSE))
+                                         .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .orderBy(DEPOSIT_PAYMENT_METHODS.RECORD_ID.asc())
+                                         .fetch();
+                           }
+                       });
+    }
+
+    public DepositResponsesRecord addResponse(final UUID kbAccountId,
+                                              final UUID kbPaymentId,
+                                              final UUID kbPaymentTransactionId,
+                                              final TransactionType transactionType,
+                                              final BigDecimal amount,
+                                              final Currency currency,
+                                              final Iterable<PluginProperty> properties,
+                                              final DateTime utcNow,
+                                              final UUID kbTenantId) throws SQLException {
+        return addResponses(ImmutableList.<PendingResponse>of(new PendingResponse(kbAccountId,
+                                                                                  kbPaymentId,
+                                                                                  kbPaymentTransactionId,
+                                                                                  transactionType,
+                                                                                  amount,
+                                                                                  currency,
+                                                                                  properties,
+                                                                                  kbTenantId)),
+                            utcNow).get(0);
+    }
+
+    // Insert the responses on a single connection, using multi-row INSERT statements, and add them to the daily totals, in one transaction.
+    // The inserted records are returned in the same order, built from the inserted values: only the record ids are read back
+    // (INSERT ... RETURNING on PostgreSQL, generated keys on MySQL), so that callers don't need to query them again. Nothing else
+    // than the upserted daily totals rows is locked (rebuilds don't need the payments to wait, see rebuildDailyTotals).
+    public List<DepositResponsesRecord> addResponses(final List<PendingResponse> responses, final DateTime utcNow) throws SQLException {
+        final List<DepositResponsesRecord> records = new ArrayList<DepositResponsesRecord>(responses.size());
+        for (final PendingResponse response : responses) {
+            records.add(toRecord(response, utcNow));
+        }
+        if (records.isEmpty()) {
+            return records;
+        }
+
+        final int stripe = ThreadLocalRandom.current().nextInt(DAILY_TOTALS_STRIPES);
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositResponsesRecord>>() {
+                           @Override
+                           public List<DepositResponsesRecord> withConnection(final Connection conn) throws SQLException {
+                               using(conn)
+                                  .transaction(new TransactionalRunnable() {
+                                      @Override
+                                      public void run(final Configuration configuration) {
+                                          final DSLContext dslContext = DSL.using(configuration);
+                                          addToDailyTotals(dslContext, records, (short) stripe, toLocalDateTime(utcNow));
+                                          for (final List<DepositResponsesRecord> partition : Lists.partition(records, MAX_RESPONSES_PER_INSERT)) {
+                                              insertResponses(dslContext, partition);
+                                          }
+                                      }
+                                  });
+                               return records;
+                           }
+                       });
+    }
+
+    // One upsert per day, currency and deposit type, in the same order for all transactions (no deadlock between concurrent batches).
+    // The upserted row is locked until the transaction commits: the totals are split into DAILY_TOTALS_STRIPES rows, so that
+    // concurrent payments of the same day only wait on each other when they pick the same stripe.
+    private void addToDailyTotals(final DSLContext dslContext, final List<DepositResponsesRecord> records, final short stripe, final LocalDateTime utcNow) {
+        final Map<DailyTotalKey, DailyTotal> dailyTotals = new TreeMap<DailyTotalKey, DailyTotal>();
+        for (final DepositResponsesRecord record : records) {
+            if (!isCountedInDailyTotals(record)) {
+                continue;
+            }
+            final DailyTotalKey key = new DailyTotalKey(record.getKbTenantId(),
+                                                        getDepositDate(record),
+                                                        record.getCurrency(),
+                                                        record.getDepositType() == null ? NO_DEPOSIT_TYPE : record.getDepositType());
+            DailyTotal dailyTotal = dailyTotals.get(key);
+            if (dailyTotal == null) {
+                dailyTotal = new DailyTotal();
+                dailyTotals.put(key, dailyTotal);
+            }
+            dailyTotal.amount = dailyTotal.amount.add(record.getAmount());
+            dailyTotal.nbPayments++;
+        }
+
+        upsertDailyTotals(dslContext, dailyTotals, stripe, utcNow);
+    }
+
+    // Adds the amounts and numbers of payments to the rows of the stripe
+    private static void upsertDailyTotals(final DSLContext dslContext,
+                                          final Map<DailyTotalKey, DailyTotal> dailyTotals,
+                                          final short stripe,
+                                          final LocalDateTime utcNow) {
+        final List<Query> upserts = new ArrayList<Query>(dailyTotals.size());
+        for (final Map.Entry<DailyTotalKey, DailyTotal> entry : dailyTotals.entrySet()) {
+            upserts.add(dslContext.insertInto(DEPOSIT_DAILY_TOTALS,
+                                              DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE,
+                                              DEPOSIT_DAILY_TOTALS.CURRENCY,
+                                              DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE,
+                                              DEPOSIT_DAILY_TOTALS.AMOUNT,
+                                              DEPOSIT_DAILY_TOTALS.NB_PAYMENTS,
+                                              DEPOSIT_DAILY_TOTALS.CREATED_DATE,
+                                              DEPOSIT_DAILY_TOTALS.UPDATED_DATE,
+                                              DEPOSIT_DAILY_TOTALS.KB_TENANT_ID,
+                                              DEPOSIT_DAILY_TOTALS.STRIPE)
+                                  .values(entry.getKey().depositDate,
+                                          entry.getKey().currency,
+                                          entry.getKey().depositType,
+                                          entry.getValue().amount,
+                                          entry.getValue().nbPayments,
+                                          utcNow,
+                                          utcNow,
+                                          entry.getKey().kbTenantId,
+                                          stripe)
+                                  .onConflict(DEPOSIT_DAILY_TOTALS.KB_TENANT_ID,
+                                              DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE,
+                                              DEPOSIT_DAILY_TOTALS.CURRENCY,
+                                              DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE,
+                                              DEPOSIT_DAILY_TOTALS.STRIPE)
+                                  .doUpdate()
+                                  .set(DEPOSIT_DAILY_TOTALS.AMOUNT, DEPOSIT_DAILY_TOTALS.AMOUNT.plus(entry.getValue().amount))
+                                  .set(DEPOSIT_DAILY_TOTALS.NB_PAYMENTS, DEPOSIT_DAILY_TOTALS.NB_PAYMENTS.plus(entry.getValue().nbPayments))
+                                  .set(DEPOSIT_DAILY_TOTALS.UPDATED_DATE, utcNow));
+        }
+        if (upserts.size() == 1) {
+            upserts.get(0).execute();
+        } else if (!upserts.isEmpty()) {
+            dslContext.batch(upserts).execute();
+        }
+    }
+
+    // Only the payments are recorded (the other transaction types are not supported)
+    private static boolean isCountedInDailyTotals(final DepositResponsesRecord record) {
+        return TransactionType.PURCHASE.toString().equals(record.getTransactionType()) && record.getAmount() != null && record.getCurrency() != null;
+    }
+
+    // Day of the effective date (the creation date if there is none), in UTC
+    private static LocalDate getDepositDate(final DepositResponsesRecord record) {
+        return (record.getDepositEffectiveDate() == null ? record.getCreatedDate() : record.getDepositEffectiveDate()).toLocalDate();
+    }
+
+    // Daily totals of the tenant between the two dates (inclusive), by day then currency and deposit type (stripes summed up,
+    // only the totals fields are set)
+    public List<DepositDailyTotalsRecord> getDailyTotals(@Nullable final LocalDate fromDate,
+                                                         @Nullable final LocalDate toDate,
+                                                         final UUID kbTenantId) throws SQLException {
+        final List<Condition> conditions = new ArrayList<Condition>();
+        conditions.add(DEPOSIT_DAILY_TOTALS.KB_TENANT_ID.equal(kbTenantId.toString()));
+        if (fromDate != null) {
+            conditions.add(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.greaterOrEqual(fromDate));
+        }
+        if (toDate != null) {
+            conditions.add(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.lessOrEqual(toDate));
+        }
+
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositDailyTotalsRecord>>() {
+                           @Override
+                           public List<DepositDailyTotalsRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .select(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE,
+                                                 DEPOSIT_DAILY_TOTALS.CURRENCY,
+                                                 DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE,
+                                                 DSL.sum(DEPOSIT_DAILY_TOTALS.AMOUNT).as(DEPOSIT_DAILY_TOTALS.AMOUNT.getName()),
+                                                 DSL.sum(DEPOSIT_DAILY_TOTALS.NB_PAYMENTS).as(DEPOSIT_DAILY_TOTALS.NB_PAYMENTS.getName()),
+                                                 DEPOSIT_DAILY_TOTALS.KB_TENANT_ID)
+                                         .from(DEPOSIT_DAILY_TOTALS)
+                                         .where(conditions)
+                                         .groupBy(DEPOSIT_DAILY_TOTALS.KB_TENANT_ID,
+                                                  DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE,
+                                                  DEPOSIT_DAILY_TOTALS.CURRENCY,
+                                                  DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE)
+                                         // Totals left without payments by a rebuild
+                                         .having(DSL.sum(DEPOSIT_DAILY_TOTALS.NB_PAYMENTS).notEqual(BigDecimal.ZERO))
+                                         .orderBy(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.asc(),
+                                                  DEPOSIT_DAILY_TOTALS.CURRENCY.asc(),
+                                                  DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE.asc())
+                                         .fetchInto(DEPOSIT_DAILY_TOTALS);
+                           }
+                       });
+    }
+
+    // Recomputes the daily totals of the tenant from its responses (e.g. to backfill them), DAILY_TOTALS_REBUILD_CHUNK_DAYS days at
+    // a time. The payments aren't blocked: each chunk reads the responses and the totals in a single statement (same snapshot,
+    // in which each payment is either counted on both sides or not at all), and adds the differences to the stripe 0 rows. The
+    // payments committed in the meantime have added to both sides, and are counted once. Only the rebuilds are locked (see
+    // lockDailyTotalsRebuild). Returns the number of daily totals fixed, or null if the tenant is already being rebuilt.
+    @Nullable
+    public Integer rebuildDailyTotals(final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<Integer>() {
+                           @Override
+                           public Integer withConnection(final Connection conn) throws SQLException {
+                               if (!lockDailyTotalsRebuild(conn, kbTenantId)) {
+                                   return null;
+                               }
+
+                               try {
+                                   final LocalDate[] dates = getDailyTotalsDates(using(conn), kbTenantId);
+                                   int nbTotals = 0;
+                                   for (LocalDate fromDate = dates[0]; fromDate != null && !fromDate.isAfter(dates[1]); fromDate = fromDate.plusDays(DAILY_TOTALS_REBUILD_CHUNK_DAYS)) {
+                                       nbTotals += rebuildDailyTotalsChunk(conn, fromDate, fromDate.plusDays(DAILY_TOTALS_REBUILD_CHUNK_DAYS), toLocalDateTime(utcNow), kbTenantId);
+                                   }
+                                   return nbTotals;
+                               } finally {
+                                   unlockDailyTotalsRebuild(conn, kbTenantId);
+                               }
+                           }
+                       });
+    }
+
+    // First and last days of the responses and of the daily totals of the tenant (null if there are none)
+    private static LocalDate[] getDailyTotalsDates(final DSLContext dslContext, final UUID kbTenantId) {
+        final Record2<LocalDateTime, LocalDateTime> effectiveDates = dslContext.select(DSL.min(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE),
+                                                                                       DSL.max(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE))
+                                                                               .from(DEPOSIT_RESPONSES)
+                                                                               .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                               .fetchOne();
+        final Record2<LocalDateTime, LocalDateTime> createdDates = dslContext.select(DSL.min(DEPOSIT_RESPONSES.CREATED_DATE),
+                                                                                     DSL.max(DEPOSIT_RESPONSES.CREATED_DATE))
+                                                                             .from(DEPOSIT_RESPONSES)
+                                                                             .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                             .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.isNull())
+                                                                             .fetchOne();
+        final Record2<LocalDate, LocalDate> totalsDates = dslContext.select(DSL.min(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE),
+                                                                            DSL.max(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE))
+                                                                    .from(DEPOSIT_DAILY_TOTALS)
+                                                                    .where(DEPOSIT_DAILY_TOTALS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                    .fetchOne();
+
+        final LocalDate[] dates = new LocalDate[]{totalsDates.value1(), totalsDates.value2()};
+        for (final Record2<LocalDateTime, LocalDateTime> responseDates : ImmutableList.<Record2<LocalDateTime, LocalDateTime>>of(effectiveDates, createdDates)) {
+            if (responseDates.value1() != null && (dates[0] == null || responseDates.value1().toLocalDate().isBefore(dates[0]))) {
+                dates[0] = responseDates.value1().toLocalDate();
+            }
+            if (responseDates.value2() != null && (dates[1] == null || responseDates.value2().toLocalDate().isAfter(dates[1]))) {
+                dates[1] = responseDates.value2().toLocalDate();
+            }
+        }
+        return dates;
+    }
+
+    // Fixes the daily totals of the tenant from fromDate (inclusive) to toDate (exclusive). Returns the number of daily totals fixed.
+    private int rebuildDailyTotalsChunk(final Connection conn,
+                                        final LocalDate fromDate,
+                                        final LocalDate toDate,
+                                        final LocalDateTime utcNow,
+                                        final UUID kbTenantId) {
+        final Field<LocalDate> depositDate = DSL.cast(DSL.coalesce(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE, DEPOSIT_RESPONSES.CREATED_DATE), SQLDataType.LOCALDATE);
+        final Field<String> depositType = DSL.coalesce(DEPOSIT_RESPONSES.DEPOSIT_TYPE, DSL.inline(NO_DEPOSIT_TYPE));
+        // Index friendly (see deposit_responses_kb_tenant_id_deposit_effective_date)
+        final Condition inChunk = DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterOrEqual(fromDate.atStartOfDay())
+                                                                          .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.lessThan(toDate.atStartOfDay()))
+                                                                          .or(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.isNull()
+                                                                                                                     .and(DEPOSIT_RESPONSES.CREATED_DATE.greaterOrEqual(fromDate.atStartOfDay()))
+                                                                                                                     .and(DEPOSIT_RESPONSES.CREATED_DATE.lessThan(toDate.atStartOfDay())));
+
+        // Payments counted in the responses, minus the ones counted in the totals
+        final Table<?> differences = DSL.select(depositDate.as(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.getName()),
+                                                DEPOSIT_RESPONSES.CURRENCY.as(DEPOSIT_DAILY_TOTALS.CURRENCY.getName()),
+                                                depositType.as(DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE.getName()),
+                                                DEPOSIT_RESPONSES.AMOUNT.as(DEPOSIT_DAILY_TOTALS.AMOUNT.getName()),
+                                                DSL.inline(1).as(DEPOSIT_DAILY_TOTALS.NB_PAYMENTS.getName()))
+                                        .from(DEPOSIT_RESPONSES)
+                                        .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                        .and(DEPOSIT_RESPONSES.TRANSACTION_TYPE.equal(TransactionType.PURCHASE.toString()))
+                                        .and(DEPOSIT_RESPONSES.AMOUNT.isNotNull())
+                                        .and(DEPOSIT_RESPONSES.CURRENCY.isNotNull())
+                                        .and(inChunk)
+                                        .unionAll(DSL.select(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE,
+                                                             DEPOSIT_DAILY_TOTALS.CURRENCY,
+                                                             DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE,
+                                                             DEPOSIT_DAILY_TOTALS.AMOUNT.neg(),
+                                                             DEPOSIT_DAILY_TOTALS.NB_PAYMENTS.neg())
+                                                     .from(DEPOSIT_DAILY_TOTALS)
+                                                     .where(DEPOSIT_DAILY_TOTALS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                     .and(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.greaterOrEqual(fromDate))
+                                                     .and(DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.lessThan(toDate)))
+                                        .asTable("differences");
+        final Field<LocalDate> differenceDate = DSL.field(DSL.name(differences.getName(), DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE.getName()), LocalDate.class);
+        final Field<String> differenceCurrency = DSL.field(DSL.name(differences.getName(), DEPOSIT_DAILY_TOTALS.CURRENCY.getName()), String.class);
+        final Field<String> differenceDepositType = DSL.field(DSL.name(differences.getName(), DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE.getName()), String.class);
+        final Field<BigDecimal> differenceAmount = DSL.sum(DSL.field(DSL.name(differences.getName(), DEPOSIT_DAILY_TOTALS.AMOUNT.getName()), BigDecimal.class));
+        final Field<BigDecimal> differenceNbPayments = DSL.sum(DSL.field(DSL.name(differences.getName(), DEPOSIT_DAILY_TOTALS.NB_PAYMENTS.getName()), Integer.class));
+
+        final Map<DailyTotalKey, DailyTotal> dailyTotals = new TreeMap<DailyTotalKey, DailyTotal>();
+        for (final Record record : using(conn).select(differenceDate, differenceCurrency, differenceDepositType, differenceAmount, differenceNbPayments)
+                                              .from(differences)
+                                              .groupBy(differenceDate, differenceCurrency, differenceDepositType)
+                                              .having(differenceAmount.notEqual(BigDecimal.ZERO).or(differenceNbPayments.notEqual(BigDecimal.ZERO)))
+                                              .fetch()) {
+            final DailyTotal dailyTotal = new DailyTotal();
+            dailyTotal.amount = record.get(differenceAmount);
+            dailyTotal.nbPayments = record.get(differenceNbPayments).intValue();
+            dailyTotals.put(new DailyTotalKey(kbTenantId.toString(), record.get(differenceDate), record.get(differenceCurrency), record.get(differenceDepositType)), dailyTotal);
+        }
+        if (dailyTotals.isEmpty()) {
+            return 0;
+        }
+
+        using(conn).transaction(new TransactionalRunnable() {
+            @Override
+            public void run(final Configuration configuration) {
+                upsertDailyTotals(DSL.using(configuration), dailyTotals, (short) 0, utcNow);
+            }
+        });
+        return dailyTotals.size();
+    }
+
+    // Only one rebuild at a time per tenant (the differences would be added twice), without waiting: with a MySQL named lock or a
+    // PostgreSQL session-level advisory lock, held by the connection of the rebuild. Other databases (e.g. H2 for tests) aren't
+    // locked. The payments never take it.
+    private boolean lockDailyTotalsRebuild(final Connection conn, final UUID kbTenantId) {
+        if (dialect.family() == SQLDialect.MYSQL || dialect.family() == SQLDialect.MARIADB) {
+            final Integer locked = using(conn).select(DSL.field("get_lock(?, 0)", Integer.class, getDailyTotalsRebuildLockName(kbTenantId)))
+                                              .fetchOne()
+                                              .value1();
+            return locked != null && locked == 1;
+        } else if (dialect.family() == SQLDialect.POSTGRES) {
+            return using(conn).select(DSL.field("pg_try_advisory_lock(?)", Boolean.class, getDailyTotalsRebuildLockKey(kbTenantId)))
+                              .fetchOne()
+                              .value1();
+        } else {
+            return true;
+        }
+    }
+
+    private void unlockDailyTotalsRebuild(final Connection conn, final UUID kbTenantId) {
+        try {
+            if (dialect.family() == SQLDialect.MYSQL || dialect.family() == SQLDialect.MARIADB) {
+                using(conn).select(DSL.field("release_lock(?)", Integer.class, getDailyTotalsRebuildLockName(kbTenantId))).fetchOne();
+            } else if (dialect.family() == SQLDialect.POSTGRES) {
+                using(conn).select(DSL.field("pg_advisory_unlock(?)", Boolean.class, getDailyTotalsRebuildLockKey(kbTenantId))).fetchOne();
+            }
+        } catch (final RuntimeException e) {
+            // Released when the connection is closed
+            logger.warn("Unable to release lock {}", getDailyTotalsRebuildLockName(kbTenantId), e);
+        }
+    }
+
+    private static String getDailyTotalsRebuildLockName(final UUID kbTenantId) {
+        return "deposit_daily_totals_rebuild_" + kbTenantId;
+    }
+
+    private static long getDailyTotalsRebuildLockKey(final UUID kbTenantId) {
+        final UUID uuid = UUID.nameUUIDFromBytes(getDailyTotalsRebuildLockName(kbTenantId).getBytes(StandardCharsets.UTF_8));
+        return uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+    }
+
+    private void insertResponses(final DSLContext dslContext, final List<DepositResponsesRecord> records) {
+        final InsertValuesStepN<DepositResponsesRecord> insert = dslContext.insertInto(DEPOSIT_RESPONSES, RESPONSE_FIELDS);
+        for (final DepositResponsesRecord record : records) {
+            final Object[] values = new Object[RESPONSE_FIELDS.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = record.get(RESPONSE_FIELDS.get(i));
+            }
+            insert.values(values);
+        }
+
+        final List<ULong> recordIds = insert.returningResult(DEPOSIT_RESPONSES.RECORD_ID).fetch(DEPOSIT_RESPONSES.RECORD_ID);
+        // Dialects without RETURNING nor generated keys support: the record ids are left unset
+        if (recordIds.size() == records.size()) {
+            for (int i = 0; i < recordIds.size(); i++) {
+                records.get(i).setRecordId(recordIds.get(i));
+            }
+        }
+    }
+
+    private DepositResponsesRecord toRecord(final PendingResponse response, final DateTime utcNow) throws SQLException {
+        final Map additionalDataMap = PluginProperties.toStringMap(response.properties);
+        final String depositEffectiveDateOrNull = PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, response.properties);
+        final String depositInvoiceNumberOrNull = PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, response.properties);
+
+        final DepositResponsesRecord record = new DepositResponsesRecord();
+        record.setKbAccountId(response.kbAccountId.toString());
+        record.setKbPaymentId(response.kbPaymentId.toString());
+        record.setKbPaymentTransactionId(response.kbPaymentTransactionId.toString());
+        record.setTransactionType(response.transactionType.toString());
+        record.setAmount(response.amount);
+        record.setCurrency(response.currency == null ? null : response.currency.name());
+        record.setDepositType(PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, response.properties));
+        record.setDepositReferenceNumber(PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, response.properties));
+        record.setDepositEffectiveDate(depositEffectiveDateOrNull == null ? null : toLocalDateTime(new DateTime(depositEffectiveDateOrNull)));
+        record.setAdditionalData(toAdditionalData(additionalDataMap, getAdditionalDataEncoding(DEPOSIT_RESPONSES)));
+        // Stored as a DATETIME on MySQL: the returned record must match what would be read back
+        record.setCreatedDate(toLocalDateTime(utcNow.withMillisOfSecond(0)));
+        record.setKbTenantId(response.kbTenantId.toString());
+        record.setDepositInvoiceNumber(depositInvoiceNumberOrNull == null ? null : Integer.valueOf(depositInvoiceNumberOrNull));
+        return record;
+    }
+
+    // Response of the payment of an invoice for a deposit, if any
+    @Nullable
+    public DepositResponsesRecord getDepositResponse(final String depositReferenceNumber,
+                                                     final Integer depositInvoiceNumber,
+                                                     final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<DepositResponsesRecord>() {
+                           @Override
+                           public DepositResponsesRecord withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_RESPONSES)
+                                         .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .and(DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER.equal(depositReferenceNumber))
+                                         .and(DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER.equal(depositInvoiceNumber))
+                                         .fetchOne();
+                           }
+                       });
+    }
+
+    // Responses of the payments of a deposit for an account, in payment order
+    public List<DepositResponsesRecord> getDepositResponses(final String depositReferenceNumber,
+                                                            final UUID kbAccountId,
+                                                            final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositResponsesRecord>>() {
+                           @Override
+                           public List<DepositResponsesRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_RESPONSES)
+                                         .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .and(DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER.equal(depositReferenceNumber))
+                                         .and(DEPOSIT_RESPONSES.KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                         .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                                         .fetch();
+                           }
+                       });
+    }
+
+    // Lightweight round trip for the healthcheck: a connection from the pool, and an index lookup on deposit_responses (no row matches)
+    public void probe(final int queryTimeoutSeconds) throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<Void>() {
+                    @Override
+                    public Void withConnection(final Connection conn) throws SQLException {
+                        using(conn).select(DEPOSIT_RESPONSES.RECORD_ID)
+                                   .from(DEPOSIT_RESPONSES)
+                                   .where(DEPOSIT_RESPONSES.RECORD_ID.equal(ULong.valueOf(0)))
+                                   .queryTimeout(queryTimeoutSeconds)
+                                   .fetch();
+                        return null;
+                    }
+                });
+    }
+
+    // Record id of the latest response, 0 if there is none
+    public ULong getLastRecordId() throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<ULong>() {
+                           @Override
+                           public ULong withConnection(final Connection conn) throws SQLException {
+                               final ULong lastRecordId = using(conn).select(DSL.max(DEPOSIT_RESPONSES.RECORD_ID))
+                                                                     .from(DEPOSIT_RESPONSES)
+                                                                     .fetchOne(0, ULong.class);
+                               return lastRecordId == null ? ULong.valueOf(0) : lastRecordId;
+                           }
+                       });
+    }
+
+    // Deposit keys of the specified record ids, if they exist (e.g. committed since they were found missing)
+    public List<DepositResponsesRecord> getDepositReferences(final Collection<ULong> recordIds) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositResponsesRecord>>() {
+                           @Override
+                           public List<DepositResponsesRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .select(DEPOSIT_RESPONSES.RECORD_ID,
+                                                 DEPOSIT_RESPONSES.KB_TENANT_ID,
+                                                 DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER,
+                                                 DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER)
+                                         .from(DEPOSIT_RESPONSES)
+                                         .where(DEPOSIT_RESPONSES.RECORD_ID.in(recordIds))
+                                         .fetchInto(DEPOSIT_RESPONSES);
+                           }
+                       });
+    }
+
+    // Deposit keys (record id, tenant, reference number and invoice number only) recorded after the specified record id, oldest first
+    public List<DepositResponsesRecord> getDepositReferences(final ULong afterRecordId, final int maxRecords) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositResponsesRecord>>() {
+                           @Override
+                           public List<DepositResponsesRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .select(DEPOSIT_RESPONSES.RECORD_ID,
+                                                 DEPOSIT_RESPONSES.KB_TENANT_ID,
+                                                 DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER,
+                                                 DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER)
+                                         .from(DEPOSIT_RESPONSES)
+                                         .where(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(afterRecordId))
+                                         .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                                         .limit(maxRecords)
+                                         .fetchInto(DEPOSIT_RESPONSES);
+                           }
+                       });
+    }
+
+    // Responses of the tenant matching the criteria and found after the response with the specified record id (0 for the first
+    // page). Pages are seeked rather than skipped with an offset: the record id of the last response of a page is the one to
+    // search after for the next page. Responses are sorted by record id (oldest first, deposit_responses_kb_tenant_id_record_id),
+    // or by effective date then record id when the search is on a range of effective dates, so that only the responses of the
+    // range are read (deposit_responses_kb_tenant_id_deposit_effective_date).
+    public List<DepositResponsesRecord> searchResponses(final SearchCriteria criteria,
+                                                        final ULong afterRecordId,
+                                                        final int maxRecords,
+                                                        final UUID kbTenantId) throws SQLException {
+        final List<Condition> conditions = getSearchConditions(criteria, kbTenantId);
+        final boolean byEffectiveDate = isSortedByEffectiveDate(criteria);
+
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositResponsesRecord>>() {
+                           @Override
+                           public List<DepositResponsesRecord> withConnection(final Connection conn) throws SQLException {
+                               if (!byEffectiveDate) {
+                                   conditions.add(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(afterRecordId));
+                               } else if (afterRecordId.longValue() > 0) {
+                                   // Primary key lookup of the last response of the previous page
+                                   final LocalDateTime afterEffectiveDate = using(conn).select(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE)
+                                                                                       .from(DEPOSIT_RESPONSES)
+                                                                                       .where(DEPOSIT_RESPONSES.RECORD_ID.equal(afterRecordId))
+                                                                                       .and(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                                       .fetchOne(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE);
+                                   if (afterEffectiveDate == null) {
+                                       // Not a cursor of this search
+                                       return new ArrayList<DepositResponsesRecord>();
+                                   }
+                                   // (deposit_effective_date, record_id) > (afterEffectiveDate, afterRecordId), spelled out so that
+                                   // MySQL seeks the index to afterEffectiveDate
+                                   conditions.add(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterOrEqual(afterEffectiveDate));
+                                   conditions.add(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterThan(afterEffectiveDate)
+                                                                                          .or(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(afterRecordId)));
+                               }
+
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_RESPONSES)
+                                         .where(conditions)
+                                         .orderBy(getSearchOrder(byEffectiveDate))
+                                         .limit(maxRecords)
+                                         .fetch();
+                           }
+                       });
+    }
+
+    // All the responses of the tenant matching the criteria, in the order of searchResponses, without their additional data. The
+    // rows are read through a server-side cursor, EXPORT_FETCH_SIZE at a time, and handed over one by one: the result set is
+    // never held in memory. The connection is held until the last row has been handled.
+    public void exportResponses(final SearchCriteria criteria,
+                                final UUID kbTenantId,
+                                final ResponseHandler handler) throws SQLException, IOException {
+        final List<Condition> conditions = getSearchConditions(criteria, kbTenantId);
+        final List<SortField<?>> order = getSearchOrder(isSortedByEffectiveDate(criteria));
+        // The PostgreSQL driver only uses a cursor outside of auto-commit mode. MySQL Connector/J ignores the fetch size
+        // (unless useCursorFetch is set), but streams the rows one by one when it is Integer.MIN_VALUE.
+        final int fetchSize = dialect.family() == SQLDialect.MYSQL || dialect.family() == SQLDialect.MARIADB ? Integer.MIN_VALUE : EXPORT_FETCH_SIZE;
+
+        try {
+            execute(dataSource.getConnection(),
+                    new WithConnectionCallback<Void>() {
+                        @Override
+                        public Void withConnection(final Connection conn) throws SQLException {
+                            final boolean autoCommit = conn.getAutoCommit();
+                            conn.setAutoCommit(false);
+                            try (final Cursor<Record> cursor = using(conn)
+                                                                  .select(EXPORT_FIELDS)
+                                                                  .from(DEPOSIT_RESPONSES)
+                                                                  .where(conditions)
+                                                                  .orderBy(order)
+                                                                  .fetchSize(fetchSize)
+                                                                  .fetchLazy()) {
+                                for (final Record record : cursor) {
+                                    handler.onResponse(record.into(DEPOSIT_RESPONSES));
+                                }
+                            } catch (final IOException e) {
+                                throw new UncheckedIOException(e);
+                            } finally {
+                                // Read-only: this ends the transaction
+                                conn.setAutoCommit(autoCommit);
+                            }
+                            return null;
+                        }
+                    });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // A reference number is more selective than a range of effective dates (deposit_responses_deposit_reference_invoice_number)
+    private static boolean isSortedByEffectiveDate(final SearchCriteria criteria) {
+        return criteria.getDepositReferenceNumber() == null && (criteria.getEffectiveDateFrom() != null || criteria.getEffectiveDateTo() != null);
+    }
+
+    private static List<SortField<?>> getSearchOrder(final boolean byEffectiveDate) {
+        if (byEffectiveDate) {
+            return ImmutableList.<SortField<?>>of(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.asc(), DEPOSIT_RESPONSES.RECORD_ID.asc());
+        } else {
+            return ImmutableList.<SortField<?>>of(DEPOSIT_RESPONSES.RECORD_ID.asc());
+        }
+    }
+
+    private static List<Condition> getSearchConditions(final SearchCriteria criteria, final UUID kbTenantId) {
+        final List<Condition> conditions = new ArrayList<Condition>();
+        conditions.add(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()));
+        if (criteria.getDepositReferenceNumber() != null) {
+            conditions.add(DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER.equal(criteria.getDepositReferenceNumber()));
+        }
+        if (criteria.getDepositType() != null) {
+            conditions.add(DEPOSIT_RESPONSES.DEPOSIT_TYPE.equal(criteria.getDepositType()));
+        }
+        if (criteria.getEffectiveDateFrom() != null) {
+            conditions.add(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterOrEqual(toLocalDateTime(criteria.getEffectiveDateFrom())));
+        }
+        if (criteria.getEffectiveDateTo() != null) {
+            conditions.add(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.lessThan(toLocalDateTime(criteria.getEffectiveDateTo())));
+        }
+        if (criteria.getMinAmount() != null) {
+            conditions.add(DEPOSIT_RESPONSES.AMOUNT.greaterOrEqual(criteria.getMinAmount()));
+        }
+        if (criteria.getMaxAmount() != null) {
+            conditions.add(DEPOSIT_RESPONSES.AMOUNT.lessOrEqual(criteria.getMaxAmount()));
+        }
+        return conditions;
+    }
+
+    public void addJob(final UUID jobId,
+                       final UUID kbAccountId,
+                       final String request,
+                       final DateTime utcNow,
+                       final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<DepositJobsRecord>() {
+                    @Override
+                    public DepositJobsRecord withConnection(final Connection conn) throws SQLException {
+                        using(conn)
+                           .insertInto(DEPOSIT_JOBS,
+                                       DEPOSIT_JOBS.JOB_ID,
+                                       DEPOSIT_JOBS.KB_ACCOUNT_ID,
+                                       DEPOSIT_JOBS.STATUS,
+                                       DEPOSIT_JOBS.REQUEST,
+                                       DEPOSIT_JOBS.CREATED_DATE,
+                                       DEPOSIT_JOBS.UPDATED_DATE,
+                                       DEPOSIT_JOBS.KB_TENANT_ID)
+                           .values(jobId.toString(),
+                                   kbAccountId.toString(),
+                                   JOB_STATUS_PENDING,
+                                   request,
+                                   toLocalDateTime(utcNow),
                                    toLocalDateTime(utcNow),
                                    kbTenantId.toString())
                            .execute();
@@ -138,15 +1110,510 @@ public class DepositDao extends PluginPaymentDao<DepositResponsesRecord, Deposit
                 });
     }
 
-    public static Map fromAdditionalData(@Nullable final String additionalData) {
-        if (additionalData == null) {
+    // Marks up to maxJobs pending jobs (oldest first) as being processed by owner. Rows locked by a concurrent claim
+    // (e.g. from another node) are skipped rather than waited for, so that each job is claimed exactly once.
+    public List<DepositJobsRecord> claimJobs(final String owner, final int maxJobs, final DateTime utcNow) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<List<DepositJobsRecord>>() {
+                           @Override
+                           public List<DepositJobsRecord> withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .transactionResult(new TransactionalCallable<List<DepositJobsRecord>>() {
+                                             @Override
+                                             public List<DepositJobsRecord> run(final Configuration configuration) {
+                                                 final DSLContext dslContext = DSL.using(configuration);
+                                                 final List<DepositJobsRecord> jobs = dslContext.selectFrom(DEPOSIT_JOBS)
+                                                                                                .where(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_PENDING))
+                                                                                                .orderBy(DEPOSIT_JOBS.RECORD_ID.asc())
+                                                                                                .limit(maxJobs)
+                                                                                                .forUpdate()
+                                                                                                .skipLocked()
+                                                                                                .fetch();
+                                                 if (jobs.isEmpty()) {
+                                                     return jobs;
+                                                 }
+
+                                                 final List<ULong> recordIds = new ArrayList<ULong>(jobs.size());
+                                                 for (final DepositJobsRecord job : jobs) {
+                                                     recordIds.add(job.getRecordId());
+                                                     job.setStatus(JOB_STATUS_PROCESSING);
+                                                     job.setProcessingOwner(owner);
+                                                     job.setProcessingDate(toLocalDateTime(utcNow));
+                                                     job.setUpdatedDate(toLocalDateTime(utcNow));
+                                                 }
+                                                 dslContext.update(DEPOSIT_JOBS)
+                                                           .set(DEPOSIT_JOBS.STATUS, JOB_STATUS_PROCESSING)
+                                                           .set(DEPOSIT_JOBS.PROCESSING_OWNER, owner)
+                                                           .set(DEPOSIT_JOBS.PROCESSING_DATE, toLocalDateTime(utcNow))
+                                                           .set(DEPOSIT_JOBS.UPDATED_DATE, toLocalDateTime(utcNow))
+                                                           .where(DEPOSIT_JOBS.RECORD_ID.in(recordIds))
+                                                           .execute();
+                                                 return jobs;
+                                             }
+                                         });
+                           }
+                       });
+    }
+
+    // Renews the lease of the jobs still being processed by owner, so that they aren't considered stale (see requeueStaleJobs)
+    public void renewJobs(final Collection<ULong> recordIds, final String owner, final DateTime utcNow) throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<DepositJobsRecord>() {
+                    @Override
+                    public DepositJobsRecord withConnection(final Connection conn) throws SQLException {
+                        using(conn)
+                           .update(DEPOSIT_JOBS)
+                           .set(DEPOSIT_JOBS.PROCESSING_DATE, toLocalDateTime(utcNow))
+                           .set(DEPOSIT_JOBS.UPDATED_DATE, toLocalDateTime(utcNow))
+                           .where(DEPOSIT_JOBS.RECORD_ID.in(recordIds))
+                           .and(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_PROCESSING))
+                           .and(DEPOSIT_JOBS.PROCESSING_OWNER.equal(owner))
+                           .execute();
+
+                        return null;
+                    }
+                });
+    }
+
+    // Puts back in the queue the jobs whose lease was last renewed before processingDateBefore and never completed (e.g. the node was
+    // killed), so that they get claimed again. Returns the number of jobs re-queued.
+    public int requeueStaleJobs(final DateTime processingDateBefore, final DateTime utcNow) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<Integer>() {
+                           @Override
+                           public Integer withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .update(DEPOSIT_JOBS)
+                                         .set(DEPOSIT_JOBS.STATUS, JOB_STATUS_PENDING)
+                                         .set(DEPOSIT_JOBS.PROCESSING_OWNER, (String) null)
+                                         .set(DEPOSIT_JOBS.PROCESSING_DATE, (LocalDateTime) null)
+                                         .set(DEPOSIT_JOBS.UPDATED_DATE, toLocalDateTime(utcNow))
+                                         .where(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_PROCESSING))
+                                         .and(DEPOSIT_JOBS.PROCESSING_DATE.lessThan(toLocalDateTime(processingDateBefore)))
+                                         .execute();
+                           }
+                       });
+    }
+
+    // Puts back in the queue a job claimed by owner which couldn't be processed
+    public void releaseJob(final ULong recordId, final String owner, final DateTime utcNow) throws SQLException {
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<DepositJobsRecord>() {
+                    @Override
+                    public DepositJobsRecord withConnection(final Connection conn) throws SQLException {
+                        using(conn)
+                           .update(DEPOSIT_JOBS)
+                           .set(DEPOSIT_JOBS.STATUS, JOB_STATUS_PENDING)
+                           .set(DEPOSIT_JOBS.PROCESSING_OWNER, (String) null)
+                           .set(DEPOSIT_JOBS.PROCESSING_DATE, (LocalDateTime) null)
+                           .set(DEPOSIT_JOBS.UPDATED_DATE, toLocalDateTime(utcNow))
+                           .where(DEPOSIT_JOBS.RECORD_ID.equal(recordId))
+                           .and(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_PROCESSING))
+                           .and(DEPOSIT_JOBS.PROCESSING_OWNER.equal(owner))
+                           .execute();
+
+                        return null;
+                    }
+                });
+    }
+
+    // Completes a job claimed by owner. Returns false if it was re-queued in the meantime (its lease timed out), in which case
+    // it is processed again (or already was) and its result is left to the new attempt.
+    public boolean completeJob(final ULong recordId, final String owner, final String result, final DateTime utcNow) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<Boolean>() {
+                           @Override
+                           public Boolean withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .update(DEPOSIT_JOBS)
+                                         .set(DEPOSIT_JOBS.STATUS, JOB_STATUS_COMPLETED)
+                                         .set(DEPOSIT_JOBS.RESULT, result)
+                                         .set(DEPOSIT_JOBS.UPDATED_DATE, toLocalDateTime(utcNow))
+                                         .where(DEPOSIT_JOBS.RECORD_ID.equal(recordId))
+                                         .and(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_PROCESSING))
+                                         .and(DEPOSIT_JOBS.PROCESSING_OWNER.equal(owner))
+                                         .execute() == 1;
+                           }
+                       });
+    }
+
+    // Deletes up to batchSize jobs completed before updatedDateBefore (oldest first). Returns the number of jobs deleted.
+    public int purgeCompletedJobs(final DateTime updatedDateBefore, final int batchSize) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<Integer>() {
+                           @Override
+                           public Integer withConnection(final Connection conn) throws SQLException {
+                               final DSLContext dslContext = using(conn);
+                               final List<ULong> recordIds = dslContext.select(DEPOSIT_JOBS.RECORD_ID)
+                                                                       .from(DEPOSIT_JOBS)
+                                                                       .where(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_COMPLETED))
+                                                                       .and(DEPOSIT_JOBS.UPDATED_DATE.lessThan(toLocalDateTime(updatedDateBefore)))
+                                                                       .orderBy(DEPOSIT_JOBS.RECORD_ID.asc())
+                                                                       .limit(batchSize)
+                                                                       .fetch(DEPOSIT_JOBS.RECORD_ID);
+                               if (recordIds.isEmpty()) {
+                                   return 0;
+                               }
+
+                               return dslContext.deleteFrom(DEPOSIT_JOBS)
+                                                .where(DEPOSIT_JOBS.RECORD_ID.in(recordIds))
+                                                .and(DEPOSIT_JOBS.STATUS.equal(JOB_STATUS_COMPLETED))
+                                                .execute();
+                           }
+                       });
+    }
+
+    @Nullable
+    public DepositJobsRecord getJob(final UUID jobId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<DepositJobsRecord>() {
+                           @Override
+                           public DepositJobsRecord withConnection(final Connection conn) throws SQLException {
+                               return using(conn)
+                                         .selectFrom(DEPOSIT_JOBS)
+                                         .where(DEPOSIT_JOBS.JOB_ID.equal(jobId.toString()))
+                                         .and(DEPOSIT_JOBS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                         .fetchOne();
+                           }
+                       });
+    }
+
+    // Re-encodes, with the encoding written to the table (see getAdditionalDataEncoding), the additional data of up to maxRecords responses recorded after the specified record id.
+    // Returns the record id of the last response looked at, null if there is none.
+    @Nullable
+    public ULong reencodeResponsesAdditionalData(final ULong afterRecordId, final int maxRecords) throws SQLException {
+        return reencodeAdditionalData(DEPOSIT_RESPONSES, DEPOSIT_RESPONSES.RECORD_ID, DEPOSIT_RESPONSES.ADDITIONAL_DATA, afterRecordId, maxRecords);
+    }
+
+    // Same as reencodeResponsesAdditionalData, for payment methods
+    @Nullable
+    public ULong reencodePaymentMethodsAdditionalData(final ULong afterRecordId, final int maxRecords) throws SQLException {
+        return reencodeAdditionalData(DEPOSIT_PAYMENT_METHODS, DEPOSIT_PAYMENT_METHODS.RECORD_ID, DEPOSIT_PAYMENT_METHODS.ADDITIONAL_DATA, afterRecordId, maxRecords);
+    }
+
+    // Record id of the last row of the table re-encoded with the encoding currently written to it (see DepositAdditionalDataReencoder),
+    // 0 if none (e.g. the rows were re-encoded with another encoding)
+    public ULong getReencodedRecordId(final Table<?> table) throws SQLException {
+        final AdditionalDataEncoding encoding = getAdditionalDataEncoding(table);
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<ULong>() {
+                           @Override
+                           public ULong withConnection(final Connection conn) throws SQLException {
+                               final DepositReencodesRecord record = using(conn)
+                                                                        .selectFrom(DEPOSIT_REENCODES)
+                                                                        .where(DEPOSIT_REENCODES.TABLE_NAME.equal(table.getName()))
+                                                                        .fetchOne();
+                               if (record == null || !encoding.name().equals(record.getEncoding())) {
+                                   return ULong.valueOf(0);
+                               }
+                               return record.getLastRecordId();
+                           }
+                       });
+    }
+
+    public void setReencodedRecordId(final Table<?> table, final ULong recordId, final DateTime utcNow) throws SQLException {
+        final AdditionalDataEncoding encoding = getAdditionalDataEncoding(table);
+        execute(dataSource.getConnection(),
+                new WithConnectionCallback<Void>() {
+                    @Override
+                    public Void withConnection(final Connection conn) throws SQLException {
+                        using(conn).insertInto(DEPOSIT_REENCODES,
+                                               DEPOSIT_REENCODES.TABLE_NAME,
+                                               DEPOSIT_REENCODES.ENCODING,
+                                               DEPOSIT_REENCODES.LAST_RECORD_ID,
+                                               DEPOSIT_REENCODES.CREATED_DATE,
+                                               DEPOSIT_REENCODES.UPDATED_DATE)
+                                   .values(table.getName(),
+                                           encoding.name(),
+                                           recordId,
+                                           toLocalDateTime(utcNow),
+                                           toLocalDateTime(utcNow))
+                                   .onConflict(DEPOSIT_REENCODES.TABLE_NAME)
+                                   .doUpdate()
+                                   .set(DEPOSIT_REENCODES.ENCODING, encoding.name())
+                                   .set(DEPOSIT_REENCODES.LAST_RECORD_ID, recordId)
+                                   .set(DEPOSIT_REENCODES.UPDATED_DATE, toLocalDateTime(utcNow))
+                                   .execute();
+                        return null;
+                    }
+                });
+    }
+
+    // additional_data is never updated once written (deletePaymentMethod and setDefaultPaymentMethod only update the flags of the
+    // payment methods): the rows can be re-encoded without locking them, as the updates only set additional_data
+    private <R extends Record> ULong reencodeAdditionalData(final Table<R> table,
+                                                            final TableField<R, ULong> recordIdField,
+                                                            final TableField<R, byte[]> additionalDataField,
+                                                            final ULong afterRecordId,
+                                                            final int maxRecords) throws SQLException {
+        final AdditionalDataEncoding encoding = getAdditionalDataEncoding(table);
+        return execute(dataSource.getConnection(),
+                       new WithConnectionCallback<ULong>() {
+                           @Override
+                           public ULong withConnection(final Connection conn) throws SQLException {
+                               final DSLContext dslContext = using(conn);
+                               final Result<Record2<ULong, byte[]>> rows = dslContext.select(recordIdField, additionalDataField)
+                                                                                     .from(table)
+                                                                                     .where(recordIdField.greaterThan(afterRecordId))
+                                                                                     .orderBy(recordIdField.asc())
+                                                                                     .limit(maxRecords)
+                                                                                     .fetch();
+                               if (rows.isEmpty()) {
+                                   return null;
+                               }
+
+                               final List<Query> updates = new ArrayList<Query>();
+                               for (final Record2<ULong, byte[]> row : rows) {
+                                   final byte[] additionalData = row.value2();
+                                   if (additionalData != null && getAdditionalDataEncoding(additionalData) != encoding) {
+                                       updates.add(dslContext.update(table)
+                                                             .set(additionalDataField, toAdditionalData(fromAdditionalData(additionalData), encoding))
+                                                             .where(recordIdField.equal(row.value1())));
+                                   }
+                               }
+                               if (!updates.isEmpty()) {
+                                   dslContext.batch(updates).execute();
+                               }
+
+                               return rows.get(rows.size() - 1).value1();
+                           }
+                       });
+    }
+
+    public byte[] toAdditionalData(final Map<String, ?> additionalDataMap) throws SQLException {
+        return toAdditionalData(additionalDataMap, additionalDataEncoding);
+    }
+
+    public static byte[] toAdditionalData(final Map<String, ?> additionalDataMap, final AdditionalDataEncoding additionalDataEncoding) throws SQLException {
+        try {
+            if (additionalDataEncoding == AdditionalDataEncoding.SMILE) {
+                final byte[] smile = smileAdditionalDataWriter.writeValueAsBytes(additionalDataMap);
+                final byte[] additionalData = new byte[smile.length + 1];
+                additionalData[0] = SMILE_V1_MARKER;
+                System.arraycopy(smile, 0, additionalData, 1, smile.length);
+                return additionalData;
+            } else {
+                return objectMapper.writeValueAsBytes(additionalDataMap);
+            }
+        } catch (final JsonProcessingException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    // Decodes both encodings, whatever the configured one
+    public static Map fromAdditionalData(@Nullable final byte[] additionalData) {
+        if (additionalData == null || additionalData.length == 0) {
             return ImmutableMap.of();
         }
 
         try {
-            return objectMapper.readValue(additionalData, Map.class);
+            if (getAdditionalDataEncoding(additionalData) == AdditionalDataEncoding.SMILE) {
+                return smileAdditionalDataReader.readValue(additionalData, 1, additionalData.length - 1);
+            } else {
+                return additionalDataReader.readValue(additionalData);
+            }
         } catch (final IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static AdditionalDataEncoding getAdditionalDataEncoding(final byte[] additionalData) {
+        return additionalData.length > 0 && additionalData[0] == SMILE_V1_MARKER ? AdditionalDataEncoding.SMILE : AdditionalDataEncoding.JSON;
+    }
+
+    // Key of deposit_daily_totals, ordered like its unique index
+    private static final class DailyTotalKey implements Comparable<DailyTotalKey> {
+
+        private final String kbTenantId;
+        private final LocalDate depositDate;
+        private final String currency;
+        private final String depositType;
+
+        private DailyTotalKey(final String kbTenantId, final LocalDate depositDate, final String currency, final String depositType) {
+            this.kbTenantId = kbTenantId;
+            this.depositDate = depositDate;
+            this.currency = currency;
+            this.depositType = depositType;
+        }
+
+        @Override
+        public int compareTo(final DailyTotalKey other) {
+            return ComparisonChain.start()
+                                  .compare(kbTenantId, other.kbTenantId)
+                                  .compare(depositDate, other.depositDate)
+                                  .compare(currency, other.currency)
+                                  .compare(depositType, other.depositType)
+                                  .result();
+        }
+    }
+
+    private static final class DailyTotal {
+
+        private BigDecimal amount = BigDecimal.ZERO;
+        private int nbPayments = 0;
+    }
+
+    // Execution time of each statement (from its execution to its first results, i.e. without fetching the rows of large
+    // results), by type (read, write, batch...). The start time is kept in the context of the execution: the listener is shared.
+    // Data errors also make the DAO look up the column types again.
+    private final class MetricsExecuteListener extends DefaultExecuteListener {
+
+        private static final String START_NANOS_KEY = MetricsExecuteListener.class.getName() + ".startNanos";
+
+        private final DepositMetrics metrics;
+
+        private MetricsExecuteListener(final DepositMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void executeStart(final ExecuteContext ctx) {
+            ctx.data(START_NANOS_KEY, System.nanoTime());
+        }
+
+        @Override
+        public void executeEnd(final ExecuteContext ctx) {
+            final Object startNanos = ctx.data(START_NANOS_KEY);
+            if (startNanos != null) {
+                metrics.recordStatement(ctx.type().name().toLowerCase(Locale.ROOT), System.nanoTime() - (Long) startNanos);
+            }
+        }
+
+        @Override
+        public void exception(final ExecuteContext ctx) {
+            metrics.recordStatementError(ctx.type().name().toLowerCase(Locale.ROOT));
+            // Data exception (e.g. an id bound as binary(16) to a char(36) column): the tables may have been swapped
+            if (ctx.sqlException() != null && ctx.sqlException().getSQLState() != null && ctx.sqlException().getSQLState().startsWith("22")) {
+                columnTypes = null;
+            }
+        }
+    }
+
+    // See exportResponses
+    public interface ResponseHandler {
+
+        void onResponse(DepositResponsesRecord record) throws IOException;
+    }
+
+    // Payment transaction to record, see addResponse
+    public static final class PendingResponse {
+
+        private final UUID kbAccountId;
+        private final UUID kbPaymentId;
+        private final UUID kbPaymentTransactionId;
+        private final TransactionType transactionType;
+        private final BigDecimal amount;
+        private final Currency currency;
+        private final Iterable<PluginProperty> properties;
+        private final UUID kbTenantId;
+
+        public PendingResponse(final UUID kbAccountId,
+                               final UUID kbPaymentId,
+                               final UUID kbPaymentTransactionId,
+                               final TransactionType transactionType,
+                               final BigDecimal amount,
+                               final Currency currency,
+                               final Iterable<PluginProperty> properties,
+                               final UUID kbTenantId) {
+            this.kbAccountId = kbAccountId;
+            this.kbPaymentId = kbPaymentId;
+            this.kbPaymentTransactionId = kbPaymentTransactionId;
+            this.transactionType = transactionType;
+            this.amount = amount;
+            this.currency = currency;
+            this.properties = properties;
+            this.kbTenantId = kbTenantId;
+        }
+
+        public UUID getKbAccountId() {
+            return kbAccountId;
+        }
+
+        public UUID getKbPaymentId() {
+            return kbPaymentId;
+        }
+
+        public UUID getKbPaymentTransactionId() {
+            return kbPaymentTransactionId;
+        }
+
+        public TransactionType getTransactionType() {
+            return transactionType;
+        }
+
+        public BigDecimal getAmount() {
+            return amount;
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        public Iterable<PluginProperty> getProperties() {
+            return properties;
+        }
+
+        public UUID getKbTenantId() {
+            return kbTenantId;
+        }
+    }
+
+    // Filters of searchResponses: null ones match all the responses
+    public static final class SearchCriteria {
+
+        private final String depositReferenceNumber;
+        private final String depositType;
+        // Inclusive
+        private final DateTime effectiveDateFrom;
+        // Exclusive
+        private final DateTime effectiveDateTo;
+        // Inclusive
+        private final BigDecimal minAmount;
+        // Inclusive
+        private final BigDecimal maxAmount;
+
+        public SearchCriteria(@Nullable final String depositReferenceNumber,
+                              @Nullable final String depositType,
+                              @Nullable final DateTime effectiveDateFrom,
+                              @Nullable final DateTime effectiveDateTo,
+                              @Nullable final BigDecimal minAmount,
+                              @Nullable final BigDecimal maxAmount) {
+            this.depositReferenceNumber = depositReferenceNumber;
+            this.depositType = depositType;
+            this.effectiveDateFrom = effectiveDateFrom;
+            this.effectiveDateTo = effectiveDateTo;
+            this.minAmount = minAmount;
+            this.maxAmount = maxAmount;
+        }
+
+        @Nullable
+        public String getDepositReferenceNumber() {
+            return depositReferenceNumber;
+        }
+
+        @Nullable
+        public String getDepositType() {
+            return depositType;
+        }
+
+        @Nullable
+        public DateTime getEffectiveDateFrom() {
+            return effectiveDateFrom;
+        }
+
+        @Nullable
+        public DateTime getEffectiveDateTo() {
+            return effectiveDateTo;
+        }
+
+        @Nullable
+        public BigDecimal getMinAmount() {
+            return minAmount;
+        }
+
+        @Nullable
+        public BigDecimal getMaxAmount() {
+            return maxAmount;
+        }
+    }
 }
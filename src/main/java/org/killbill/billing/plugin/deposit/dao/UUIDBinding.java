@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit.dao;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.jooq.Binding;
+import org.jooq.BindingGetResultSetContext;
+import org.jooq.BindingGetSQLInputContext;
+import org.jooq.BindingGetStatementContext;
+import org.jooq.BindingRegisterContext;
+import org.jooq.BindingSQLContext;
+import org.jooq.BindingSetSQLOutputContext;
+import org.jooq.BindingSetStatementContext;
+import org.jooq.Converter;
+import org.jooq.SQLDialect;
+import org.jooq.conf.ParamType;
+import org.jooq.impl.DSL;
+import org.jooq.impl.IdentityConverter;
+import org.jooq.impl.SQLDataType;
+
+/**
+ * Binding of the Kill Bill ids of deposit_responses and deposit_payment_methods, stored as char(36) by default, or as binary(16)
+ * (MySQL) and uuid (PostgreSQL) with the binary-uuids schema variant (see src/main/resources/binary-uuids).
+ * <p>
+ * The ids are Strings in both cases, and are read whatever the column type. On PostgreSQL, they are bound untyped and cast
+ * by the server to the column type. On MySQL, they are bound according to the column types of their table, looked up by
+ * DepositDao (see ColumnTypes): one subclass per table, as the tables are swapped one at a time.
+ */
+public abstract class UUIDBinding implements Binding<String, String> {
+
+    private static final long serialVersionUID = -2372613986047145102L;
+
+    private static final Converter<String, String> CONVERTER = new IdentityConverter<String>(String.class);
+
+    private final String table;
+
+    protected UUIDBinding(final String table) {
+        this.table = table;
+    }
+
+    public static final class Responses extends UUIDBinding {
+
+        private static final long serialVersionUID = 6205429406150412127L;
+
+        public Responses() {
+            super("deposit_responses");
+        }
+    }
+
+    public static final class PaymentMethods extends UUIDBinding {
+
+        private static final long serialVersionUID = -4521713946734128766L;
+
+        public PaymentMethods() {
+            super("deposit_payment_methods");
+        }
+    }
+
+    @Override
+    public Converter<String, String> converter() {
+        return CONVERTER;
+    }
+
+    @Override
+    public void sql(final BindingSQLContext<String> ctx) throws SQLException {
+        if (ctx.render().paramType() == ParamType.INLINED) {
+            // E.g. when logging the statement
+            ctx.render().visit(DSL.inline(ctx.value(), SQLDataType.VARCHAR));
+        } else {
+            ctx.render().sql(ctx.variable());
+        }
+    }
+
+    @Override
+    public void register(final BindingRegisterContext<String> ctx) throws SQLException {
+        ctx.statement().registerOutParameter(ctx.index(), Types.VARCHAR);
+    }
+
+    @Override
+    public void set(final BindingSetStatementContext<String> ctx) throws SQLException {
+        final PreparedStatement statement = ctx.statement();
+        if (ctx.family() == SQLDialect.POSTGRES) {
+            statement.setObject(ctx.index(), ctx.value(), Types.OTHER);
+        } else if ((ctx.family() == SQLDialect.MYSQL || ctx.family() == SQLDialect.MARIADB) && ColumnTypes.get(ctx.configuration()).isBinary(table, "kb_account_id")) {
+            if (ctx.value() == null) {
+                statement.setNull(ctx.index(), Types.BINARY);
+            } else {
+                statement.setBytes(ctx.index(), toBytes(ctx.value()));
+            }
+        } else {
+            statement.setString(ctx.index(), ctx.value());
+        }
+    }
+
+    @Override
+    public void set(final BindingSetSQLOutputContext<String> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public void get(final BindingGetResultSetContext<String> ctx) throws SQLException {
+        ctx.value(fromDatabase(ctx.resultSet().getObject(ctx.index())));
+    }
+
+    @Override
+    public void get(final BindingGetStatementContext<String> ctx) throws SQLException {
+        ctx.value(fromDatabase(ctx.statement().getObject(ctx.index())));
+    }
+
+    @Override
+    public void get(final BindingGetSQLInputContext<String> ctx) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    // binary(16) as returned by MySQL UUID_TO_BIN(uuid) (i.e. without swapping the time fields)
+    public static byte[] toBytes(final String uuid) {
+        final UUID value = UUID.fromString(uuid);
+        return ByteBuffer.allocate(16)
+                         .putLong(value.getMostSignificantBits())
+                         .putLong(value.getLeastSignificantBits())
+                         .array();
+    }
+
+    public static String fromBytes(final byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+
+    // String (char(36)), byte[] (MySQL binary(16)) or UUID (PostgreSQL uuid)
+    @Nullable
+    private static String fromDatabase(@Nullable final Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof byte[]) {
+            return fromBytes((byte[]) value);
+        } else {
+            return value.toString();
+        }
+    }
+}
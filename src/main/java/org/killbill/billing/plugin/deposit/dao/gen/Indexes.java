@@ -7,7 +7,10 @@ package org.killbill.billing.plugin.deposit.dao.gen;
 import org.jooq.Index;
 import org.jooq.OrderField;
 import org.jooq.impl.Internal;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositDailyTotals;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositJobs;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositReencodes;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
 
 
@@ -21,19 +24,33 @@ public class Indexes {
     // INDEX definitions
     // -------------------------------------------------------------------------
 
+    public static final Index DEPOSIT_DAILY_TOTALS_DEPOSIT_DAILY_TOTALS_KB_TENANT_ID_DEPOSIT_DATE = Indexes0.DEPOSIT_DAILY_TOTALS_DEPOSIT_DAILY_TOTALS_KB_TENANT_ID_DEPOSIT_DATE;
+    public static final Index DEPOSIT_JOBS_DEPOSIT_JOBS_JOB_ID = Indexes0.DEPOSIT_JOBS_DEPOSIT_JOBS_JOB_ID;
+    public static final Index DEPOSIT_JOBS_DEPOSIT_JOBS_STATUS = Indexes0.DEPOSIT_JOBS_DEPOSIT_JOBS_STATUS;
+    public static final Index DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID = Indexes0.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID;
     public static final Index DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID = Indexes0.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID;
-    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_NUMBER = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_NUMBER;
-    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_ID = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_ID;
-    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_TRANSACTION_ID = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_TRANSACTION_ID;
+    public static final Index DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_TENANT_ID_KB_ACCOUNT_ID = Indexes0.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_TENANT_ID_KB_ACCOUNT_ID;
+    public static final Index DEPOSIT_REENCODES_DEPOSIT_REENCODES_TABLE_NAME = Indexes0.DEPOSIT_REENCODES_DEPOSIT_REENCODES_TABLE_NAME;
+    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER;
+    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_DEPOSIT_EFFECTIVE_DATE = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_DEPOSIT_EFFECTIVE_DATE;
+    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_KB_PAYMENT_ID = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_KB_PAYMENT_ID;
+    public static final Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_RECORD_ID = Indexes0.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_RECORD_ID;
 
     // -------------------------------------------------------------------------
     // [#1459] distribute members to avoid static initialisers > 64kb
     // -------------------------------------------------------------------------
 
     private static class Indexes0 {
+        public static Index DEPOSIT_DAILY_TOTALS_DEPOSIT_DAILY_TOTALS_KB_TENANT_ID_DEPOSIT_DATE = Internal.createIndex("deposit_daily_totals_kb_tenant_id_deposit_date", DepositDailyTotals.DEPOSIT_DAILY_TOTALS, new OrderField[] { DepositDailyTotals.DEPOSIT_DAILY_TOTALS.KB_TENANT_ID, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.CURRENCY, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.STRIPE }, true);
+        public static Index DEPOSIT_JOBS_DEPOSIT_JOBS_JOB_ID = Internal.createIndex("deposit_jobs_job_id", DepositJobs.DEPOSIT_JOBS, new OrderField[] { DepositJobs.DEPOSIT_JOBS.JOB_ID }, true);
+        public static Index DEPOSIT_JOBS_DEPOSIT_JOBS_STATUS = Internal.createIndex("deposit_jobs_status", DepositJobs.DEPOSIT_JOBS, new OrderField[] { DepositJobs.DEPOSIT_JOBS.STATUS, DepositJobs.DEPOSIT_JOBS.RECORD_ID }, false);
+        public static Index DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID = Internal.createIndex("deposit_payment_methods_active_kb_account_id", DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, new OrderField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID, DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_ACTIVE_ACCOUNT_ID }, true);
         public static Index DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID = Internal.createIndex("deposit_payment_methods_kb_payment_id", DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, new OrderField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID }, true);
-        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_NUMBER = Internal.createIndex("deposit_responses_deposit_reference_number", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER }, false);
-        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_ID = Internal.createIndex("deposit_responses_kb_payment_id", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.KB_PAYMENT_ID }, false);
-        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_TRANSACTION_ID = Internal.createIndex("deposit_responses_kb_payment_transaction_id", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.KB_PAYMENT_TRANSACTION_ID }, false);
+        public static Index DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_TENANT_ID_KB_ACCOUNT_ID = Internal.createIndex("deposit_payment_methods_kb_tenant_id_kb_account_id", DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, new OrderField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID, DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID, DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.IS_DELETED, DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID }, false);
+        public static Index DEPOSIT_REENCODES_DEPOSIT_REENCODES_TABLE_NAME = Internal.createIndex("deposit_reencodes_table_name", DepositReencodes.DEPOSIT_REENCODES, new OrderField[] { DepositReencodes.DEPOSIT_REENCODES.TABLE_NAME }, true);
+        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER = Internal.createIndex("deposit_responses_deposit_reference_invoice_number", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.KB_TENANT_ID, DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER, DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER }, true);
+        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_DEPOSIT_EFFECTIVE_DATE = Internal.createIndex("deposit_responses_kb_tenant_id_deposit_effective_date", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.KB_TENANT_ID, DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE, DepositResponses.DEPOSIT_RESPONSES.RECORD_ID }, false);
+        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_KB_PAYMENT_ID = Internal.createIndex("deposit_responses_kb_tenant_id_kb_payment_id", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.KB_TENANT_ID, DepositResponses.DEPOSIT_RESPONSES.KB_PAYMENT_ID, DepositResponses.DEPOSIT_RESPONSES.RECORD_ID }, false);
+        public static Index DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_RECORD_ID = Internal.createIndex("deposit_responses_kb_tenant_id_record_id", DepositResponses.DEPOSIT_RESPONSES, new OrderField[] { DepositResponses.DEPOSIT_RESPONSES.KB_TENANT_ID, DepositResponses.DEPOSIT_RESPONSES.RECORD_ID }, false);
     }
 }
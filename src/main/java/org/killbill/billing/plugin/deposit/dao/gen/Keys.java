@@ -9,9 +9,15 @@ import org.jooq.TableField;
 import org.jooq.UniqueKey;
 import org.jooq.impl.Internal;
 import org.jooq.types.ULong;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositDailyTotals;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositJobs;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositReencodes;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositDailyTotalsRecord;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositJobsRecord;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositPaymentMethodsRecord;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositReencodesRecord;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
 
 
@@ -26,18 +32,32 @@ public class Keys {
     // IDENTITY definitions
     // -------------------------------------------------------------------------
 
+    public static final Identity<DepositDailyTotalsRecord, ULong> IDENTITY_DEPOSIT_DAILY_TOTALS = Identities0.IDENTITY_DEPOSIT_DAILY_TOTALS;
+    public static final Identity<DepositJobsRecord, ULong> IDENTITY_DEPOSIT_JOBS = Identities0.IDENTITY_DEPOSIT_JOBS;
     public static final Identity<DepositPaymentMethodsRecord, ULong> IDENTITY_DEPOSIT_PAYMENT_METHODS = Identities0.IDENTITY_DEPOSIT_PAYMENT_METHODS;
+    public static final Identity<DepositReencodesRecord, ULong> IDENTITY_DEPOSIT_REENCODES = Identities0.IDENTITY_DEPOSIT_REENCODES;
     public static final Identity<DepositResponsesRecord, ULong> IDENTITY_DEPOSIT_RESPONSES = Identities0.IDENTITY_DEPOSIT_RESPONSES;
 
     // -------------------------------------------------------------------------
     // UNIQUE and PRIMARY KEY definitions
     // -------------------------------------------------------------------------
 
+    public static final UniqueKey<DepositDailyTotalsRecord> KEY_DEPOSIT_DAILY_TOTALS_PRIMARY = UniqueKeys0.KEY_DEPOSIT_DAILY_TOTALS_PRIMARY;
+    public static final UniqueKey<DepositDailyTotalsRecord> KEY_DEPOSIT_DAILY_TOTALS_RECORD_ID = UniqueKeys0.KEY_DEPOSIT_DAILY_TOTALS_RECORD_ID;
+    public static final UniqueKey<DepositDailyTotalsRecord> KEY_DEPOSIT_DAILY_TOTALS_DEPOSIT_DAILY_TOTALS_KB_TENANT_ID_DEPOSIT_DATE = UniqueKeys0.KEY_DEPOSIT_DAILY_TOTALS_DEPOSIT_DAILY_TOTALS_KB_TENANT_ID_DEPOSIT_DATE;
+    public static final UniqueKey<DepositJobsRecord> KEY_DEPOSIT_JOBS_PRIMARY = UniqueKeys0.KEY_DEPOSIT_JOBS_PRIMARY;
+    public static final UniqueKey<DepositJobsRecord> KEY_DEPOSIT_JOBS_RECORD_ID = UniqueKeys0.KEY_DEPOSIT_JOBS_RECORD_ID;
+    public static final UniqueKey<DepositJobsRecord> KEY_DEPOSIT_JOBS_DEPOSIT_JOBS_JOB_ID = UniqueKeys0.KEY_DEPOSIT_JOBS_DEPOSIT_JOBS_JOB_ID;
     public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_PRIMARY = UniqueKeys0.KEY_DEPOSIT_PAYMENT_METHODS_PRIMARY;
     public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_RECORD_ID = UniqueKeys0.KEY_DEPOSIT_PAYMENT_METHODS_RECORD_ID;
     public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID = UniqueKeys0.KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID;
+    public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID = UniqueKeys0.KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID;
+    public static final UniqueKey<DepositReencodesRecord> KEY_DEPOSIT_REENCODES_PRIMARY = UniqueKeys0.KEY_DEPOSIT_REENCODES_PRIMARY;
+    public static final UniqueKey<DepositReencodesRecord> KEY_DEPOSIT_REENCODES_RECORD_ID = UniqueKeys0.KEY_DEPOSIT_REENCODES_RECORD_ID;
+    public static final UniqueKey<DepositReencodesRecord> KEY_DEPOSIT_REENCODES_DEPOSIT_REENCODES_TABLE_NAME = UniqueKeys0.KEY_DEPOSIT_REENCODES_DEPOSIT_REENCODES_TABLE_NAME;
     public static final UniqueKey<DepositResponsesRecord> KEY_DEPOSIT_RESPONSES_PRIMARY = UniqueKeys0.KEY_DEPOSIT_RESPONSES_PRIMARY;
     public static final UniqueKey<DepositResponsesRecord> KEY_DEPOSIT_RESPONSES_RECORD_ID = UniqueKeys0.KEY_DEPOSIT_RESPONSES_RECORD_ID;
+    public static final UniqueKey<DepositResponsesRecord> KEY_DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER = UniqueKeys0.KEY_DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER;
 
     // -------------------------------------------------------------------------
     // FOREIGN KEY definitions
@@ -49,15 +69,29 @@ public class Keys {
     // -------------------------------------------------------------------------
 
     private static class Identities0 {
+        public static Identity<DepositDailyTotalsRecord, ULong> IDENTITY_DEPOSIT_DAILY_TOTALS = Internal.createIdentity(DepositDailyTotals.DEPOSIT_DAILY_TOTALS, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.RECORD_ID);
+        public static Identity<DepositJobsRecord, ULong> IDENTITY_DEPOSIT_JOBS = Internal.createIdentity(DepositJobs.DEPOSIT_JOBS, DepositJobs.DEPOSIT_JOBS.RECORD_ID);
         public static Identity<DepositPaymentMethodsRecord, ULong> IDENTITY_DEPOSIT_PAYMENT_METHODS = Internal.createIdentity(DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.RECORD_ID);
+        public static Identity<DepositReencodesRecord, ULong> IDENTITY_DEPOSIT_REENCODES = Internal.createIdentity(DepositReencodes.DEPOSIT_REENCODES, DepositReencodes.DEPOSIT_REENCODES.RECORD_ID);
         public static Identity<DepositResponsesRecord, ULong> IDENTITY_DEPOSIT_RESPONSES = Internal.createIdentity(DepositResponses.DEPOSIT_RESPONSES, DepositResponses.DEPOSIT_RESPONSES.RECORD_ID);
     }
 
     private static class UniqueKeys0 {
+        public static final UniqueKey<DepositDailyTotalsRecord> KEY_DEPOSIT_DAILY_TOTALS_PRIMARY = Internal.createUniqueKey(DepositDailyTotals.DEPOSIT_DAILY_TOTALS, "KEY_deposit_daily_totals_PRIMARY", new TableField[] { DepositDailyTotals.DEPOSIT_DAILY_TOTALS.RECORD_ID }, true);
+        public static final UniqueKey<DepositDailyTotalsRecord> KEY_DEPOSIT_DAILY_TOTALS_RECORD_ID = Internal.createUniqueKey(DepositDailyTotals.DEPOSIT_DAILY_TOTALS, "KEY_deposit_daily_totals_record_id", new TableField[] { DepositDailyTotals.DEPOSIT_DAILY_TOTALS.RECORD_ID }, true);
+        public static final UniqueKey<DepositDailyTotalsRecord> KEY_DEPOSIT_DAILY_TOTALS_DEPOSIT_DAILY_TOTALS_KB_TENANT_ID_DEPOSIT_DATE = Internal.createUniqueKey(DepositDailyTotals.DEPOSIT_DAILY_TOTALS, "KEY_deposit_daily_totals_deposit_daily_totals_kb_tenant_id_deposit_date", new TableField[] { DepositDailyTotals.DEPOSIT_DAILY_TOTALS.KB_TENANT_ID, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.DEPOSIT_DATE, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.CURRENCY, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.DEPOSIT_TYPE, DepositDailyTotals.DEPOSIT_DAILY_TOTALS.STRIPE }, true);
+        public static final UniqueKey<DepositJobsRecord> KEY_DEPOSIT_JOBS_PRIMARY = Internal.createUniqueKey(DepositJobs.DEPOSIT_JOBS, "KEY_deposit_jobs_PRIMARY", new TableField[] { DepositJobs.DEPOSIT_JOBS.RECORD_ID }, true);
+        public static final UniqueKey<DepositJobsRecord> KEY_DEPOSIT_JOBS_RECORD_ID = Internal.createUniqueKey(DepositJobs.DEPOSIT_JOBS, "KEY_deposit_jobs_record_id", new TableField[] { DepositJobs.DEPOSIT_JOBS.RECORD_ID }, true);
+        public static final UniqueKey<DepositJobsRecord> KEY_DEPOSIT_JOBS_DEPOSIT_JOBS_JOB_ID = Internal.createUniqueKey(DepositJobs.DEPOSIT_JOBS, "KEY_deposit_jobs_deposit_jobs_job_id", new TableField[] { DepositJobs.DEPOSIT_JOBS.JOB_ID }, true);
         public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_PRIMARY = Internal.createUniqueKey(DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, "KEY_deposit_payment_methods_PRIMARY", new TableField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.RECORD_ID }, true);
         public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_RECORD_ID = Internal.createUniqueKey(DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, "KEY_deposit_payment_methods_record_id", new TableField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.RECORD_ID }, true);
         public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID = Internal.createUniqueKey(DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, "KEY_deposit_payment_methods_deposit_payment_methods_kb_payment_id", new TableField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID }, true);
+        public static final UniqueKey<DepositPaymentMethodsRecord> KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID = Internal.createUniqueKey(DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS, "KEY_deposit_payment_methods_deposit_payment_methods_active_kb_account_id", new TableField[] { DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID, DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_ACTIVE_ACCOUNT_ID }, true);
+        public static final UniqueKey<DepositReencodesRecord> KEY_DEPOSIT_REENCODES_PRIMARY = Internal.createUniqueKey(DepositReencodes.DEPOSIT_REENCODES, "KEY_deposit_reencodes_PRIMARY", new TableField[] { DepositReencodes.DEPOSIT_REENCODES.RECORD_ID }, true);
+        public static final UniqueKey<DepositReencodesRecord> KEY_DEPOSIT_REENCODES_RECORD_ID = Internal.createUniqueKey(DepositReencodes.DEPOSIT_REENCODES, "KEY_deposit_reencodes_record_id", new TableField[] { DepositReencodes.DEPOSIT_REENCODES.RECORD_ID }, true);
+        public static final UniqueKey<DepositReencodesRecord> KEY_DEPOSIT_REENCODES_DEPOSIT_REENCODES_TABLE_NAME = Internal.createUniqueKey(DepositReencodes.DEPOSIT_REENCODES, "KEY_deposit_reencodes_deposit_reencodes_table_name", new TableField[] { DepositReencodes.DEPOSIT_REENCODES.TABLE_NAME }, true);
         public static final UniqueKey<DepositResponsesRecord> KEY_DEPOSIT_RESPONSES_PRIMARY = Internal.createUniqueKey(DepositResponses.DEPOSIT_RESPONSES, "KEY_deposit_responses_PRIMARY", new TableField[] { DepositResponses.DEPOSIT_RESPONSES.RECORD_ID }, true);
         public static final UniqueKey<DepositResponsesRecord> KEY_DEPOSIT_RESPONSES_RECORD_ID = Internal.createUniqueKey(DepositResponses.DEPOSIT_RESPONSES, "KEY_deposit_responses_record_id", new TableField[] { DepositResponses.DEPOSIT_RESPONSES.RECORD_ID }, true);
+        public static final UniqueKey<DepositResponsesRecord> KEY_DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER = Internal.createUniqueKey(DepositResponses.DEPOSIT_RESPONSES, "KEY_deposit_responses_deposit_responses_deposit_reference_invoice_number", new TableField[] { DepositResponses.DEPOSIT_RESPONSES.KB_TENANT_ID, DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER, DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER }, true);
     }
 }
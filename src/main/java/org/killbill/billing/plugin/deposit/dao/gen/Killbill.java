@@ -10,7 +10,10 @@ import java.util.List;
 import org.jooq.Catalog;
 import org.jooq.Table;
 import org.jooq.impl.SchemaImpl;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositDailyTotals;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositJobs;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositReencodes;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
 
 
@@ -27,11 +30,26 @@ public class Killbill extends SchemaImpl {
      */
     public static final Killbill KILLBILL = new Killbill();
 
+    /**
+     * The table <code>killbill.deposit_daily_totals</code>.
+     */
+    public final DepositDailyTotals DEPOSIT_DAILY_TOTALS = DepositDailyTotals.DEPOSIT_DAILY_TOTALS;
+
+    /**
+     * The table <code>killbill.deposit_jobs</code>.
+     */
+    public final DepositJobs DEPOSIT_JOBS = DepositJobs.DEPOSIT_JOBS;
+
     /**
      * The table <code>killbill.deposit_payment_methods</code>.
      */
     public final DepositPaymentMethods DEPOSIT_PAYMENT_METHODS = DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS;
 
+    /**
+     * The table <code>killbill.deposit_reencodes</code>.
+     */
+    public final DepositReencodes DEPOSIT_REENCODES = DepositReencodes.DEPOSIT_REENCODES;
+
     /**
      * The table <code>killbill.deposit_responses</code>.
      */
@@ -53,7 +71,10 @@ public class Killbill extends SchemaImpl {
     @Override
     public final List<Table<?>> getTables() {
         return Arrays.<Table<?>>asList(
+            DepositDailyTotals.DEPOSIT_DAILY_TOTALS,
+            DepositJobs.DEPOSIT_JOBS,
             DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS,
+            DepositReencodes.DEPOSIT_REENCODES,
             DepositResponses.DEPOSIT_RESPONSES);
     }
 }
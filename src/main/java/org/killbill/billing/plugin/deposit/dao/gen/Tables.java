@@ -4,7 +4,10 @@
 package org.killbill.billing.plugin.deposit.dao.gen;
 
 
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositDailyTotals;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositJobs;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositReencodes;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
 
 
@@ -14,11 +17,26 @@ import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
 @SuppressWarnings({ "all", "unchecked", "rawtypes" })
 public class Tables {
 
+    /**
+     * The table <code>killbill.deposit_daily_totals</code>.
+     */
+    public static final DepositDailyTotals DEPOSIT_DAILY_TOTALS = DepositDailyTotals.DEPOSIT_DAILY_TOTALS;
+
+    /**
+     * The table <code>killbill.deposit_jobs</code>.
+     */
+    public static final DepositJobs DEPOSIT_JOBS = DepositJobs.DEPOSIT_JOBS;
+
     /**
      * The table <code>killbill.deposit_payment_methods</code>.
      */
     public static final DepositPaymentMethods DEPOSIT_PAYMENT_METHODS = DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS;
 
+    /**
+     * The table <code>killbill.deposit_reencodes</code>.
+     */
+    public static final DepositReencodes DEPOSIT_REENCODES = DepositReencodes.DEPOSIT_REENCODES;
+
     /**
      * The table <code>killbill.deposit_responses</code>.
      */
@@ -14,7 +14,7 @@ import org.jooq.Identity;
 import org.jooq.Index;
 import org.jooq.Name;
 import org.jooq.Record;
-import org.jooq.Row9;
+import org.jooq.Row10;
 import org.jooq.Schema;
 import org.jooq.Table;
 import org.jooq.TableField;
@@ -58,12 +58,12 @@ public class DepositPaymentMethods extends TableImpl<DepositPaymentMethodsRecord
     /**
      * The column <code>killbill.deposit_payment_methods.kb_account_id</code>.
      */
-    public final TableField<DepositPaymentMethodsRecord, String> KB_ACCOUNT_ID = createField(DSL.name("kb_account_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositPaymentMethodsRecord, String> KB_ACCOUNT_ID = createField(DSL.name("kb_account_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.PaymentMethods());
 
     /**
      * The column <code>killbill.deposit_payment_methods.kb_payment_method_id</code>.
      */
-    public final TableField<DepositPaymentMethodsRecord, String> KB_PAYMENT_METHOD_ID = createField(DSL.name("kb_payment_method_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositPaymentMethodsRecord, String> KB_PAYMENT_METHOD_ID = createField(DSL.name("kb_payment_method_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.PaymentMethods());
 
     /**
      * The column <code>killbill.deposit_payment_methods.is_default</code>.
@@ -78,7 +78,7 @@ public class DepositPaymentMethods extends TableImpl<DepositPaymentMethodsRecord
     /**
      * The column <code>killbill.deposit_payment_methods.additional_data</code>.
      */
-    public final TableField<DepositPaymentMethodsRecord, String> ADDITIONAL_DATA = createField(DSL.name("additional_data"), org.jooq.impl.SQLDataType.CLOB, this, "");
+    public final TableField<DepositPaymentMethodsRecord, byte[]> ADDITIONAL_DATA = createField(DSL.name("additional_data"), org.jooq.impl.SQLDataType.CLOB, this, "", new org.killbill.billing.plugin.deposit.dao.AdditionalDataBinding.PaymentMethods());
 
     /**
      * The column <code>killbill.deposit_payment_methods.created_date</code>.
@@ -93,7 +93,12 @@ public class DepositPaymentMethods extends TableImpl<DepositPaymentMethodsRecord
     /**
      * The column <code>killbill.deposit_payment_methods.kb_tenant_id</code>.
      */
-    public final TableField<DepositPaymentMethodsRecord, String> KB_TENANT_ID = createField(DSL.name("kb_tenant_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositPaymentMethodsRecord, String> KB_TENANT_ID = createField(DSL.name("kb_tenant_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.PaymentMethods());
+
+    /**
+     * The column <code>killbill.deposit_payment_methods.kb_active_account_id</code>.
+     */
+    public final TableField<DepositPaymentMethodsRecord, String> KB_ACTIVE_ACCOUNT_ID = createField(DSL.name("kb_active_account_id"), org.jooq.impl.SQLDataType.CHAR(36), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.PaymentMethods());
 
     /**
      * Create a <code>killbill.deposit_payment_methods</code> table reference
@@ -135,7 +140,7 @@ public class DepositPaymentMethods extends TableImpl<DepositPaymentMethodsRecord
 
     @Override
     public List<Index> getIndexes() {
-        return Arrays.<Index>asList(Indexes.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID);
+        return Arrays.<Index>asList(Indexes.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID, Indexes.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID, Indexes.DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_TENANT_ID_KB_ACCOUNT_ID);
     }
 
     @Override
@@ -150,7 +155,7 @@ public class DepositPaymentMethods extends TableImpl<DepositPaymentMethodsRecord
 
     @Override
     public List<UniqueKey<DepositPaymentMethodsRecord>> getKeys() {
-        return Arrays.<UniqueKey<DepositPaymentMethodsRecord>>asList(Keys.KEY_DEPOSIT_PAYMENT_METHODS_PRIMARY, Keys.KEY_DEPOSIT_PAYMENT_METHODS_RECORD_ID, Keys.KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID);
+        return Arrays.<UniqueKey<DepositPaymentMethodsRecord>>asList(Keys.KEY_DEPOSIT_PAYMENT_METHODS_PRIMARY, Keys.KEY_DEPOSIT_PAYMENT_METHODS_RECORD_ID, Keys.KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_KB_PAYMENT_ID, Keys.KEY_DEPOSIT_PAYMENT_METHODS_DEPOSIT_PAYMENT_METHODS_ACTIVE_KB_ACCOUNT_ID);
     }
 
     @Override
@@ -180,11 +185,11 @@ public class DepositPaymentMethods extends TableImpl<DepositPaymentMethodsRecord
     }
 
     // -------------------------------------------------------------------------
-    // Row9 type methods
+    // Row10 type methods
     // -------------------------------------------------------------------------
 
     @Override
-    public Row9<ULong, String, String, Short, Short, String, LocalDateTime, LocalDateTime, String> fieldsRow() {
-        return (Row9) super.fieldsRow();
+    public Row10<ULong, String, String, Short, Short, byte[], LocalDateTime, LocalDateTime, String, String> fieldsRow() {
+        return (Row10) super.fieldsRow();
     }
 }
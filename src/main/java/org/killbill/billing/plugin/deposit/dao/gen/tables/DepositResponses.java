@@ -15,7 +15,7 @@ import org.jooq.Identity;
 import org.jooq.Index;
 import org.jooq.Name;
 import org.jooq.Record;
-import org.jooq.Row13;
+import org.jooq.Row14;
 import org.jooq.Schema;
 import org.jooq.Table;
 import org.jooq.TableField;
@@ -36,7 +36,7 @@ import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositRespons
 @SuppressWarnings({ "all", "unchecked", "rawtypes" })
 public class DepositResponses extends TableImpl<DepositResponsesRecord> {
 
-    private static final long serialVersionUID = 1729032749;
+    private static final long serialVersionUID = -862019417;
 
     /**
      * The reference instance of <code>killbill.deposit_responses</code>
@@ -59,17 +59,17 @@ public class DepositResponses extends TableImpl<DepositResponsesRecord> {
     /**
      * The column <code>killbill.deposit_responses.kb_account_id</code>.
      */
-    public final TableField<DepositResponsesRecord, String> KB_ACCOUNT_ID = createField(DSL.name("kb_account_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositResponsesRecord, String> KB_ACCOUNT_ID = createField(DSL.name("kb_account_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.Responses());
 
     /**
      * The column <code>killbill.deposit_responses.kb_payment_id</code>.
      */
-    public final TableField<DepositResponsesRecord, String> KB_PAYMENT_ID = createField(DSL.name("kb_payment_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositResponsesRecord, String> KB_PAYMENT_ID = createField(DSL.name("kb_payment_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.Responses());
 
     /**
      * The column <code>killbill.deposit_responses.kb_payment_transaction_id</code>.
      */
-    public final TableField<DepositResponsesRecord, String> KB_PAYMENT_TRANSACTION_ID = createField(DSL.name("kb_payment_transaction_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositResponsesRecord, String> KB_PAYMENT_TRANSACTION_ID = createField(DSL.name("kb_payment_transaction_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.Responses());
 
     /**
      * The column <code>killbill.deposit_responses.transaction_type</code>.
@@ -104,7 +104,7 @@ public class DepositResponses extends TableImpl<DepositResponsesRecord> {
     /**
      * The column <code>killbill.deposit_responses.additional_data</code>.
      */
-    public final TableField<DepositResponsesRecord, String> ADDITIONAL_DATA = createField(DSL.name("additional_data"), org.jooq.impl.SQLDataType.CLOB, this, "");
+    public final TableField<DepositResponsesRecord, byte[]> ADDITIONAL_DATA = createField(DSL.name("additional_data"), org.jooq.impl.SQLDataType.CLOB, this, "", new org.killbill.billing.plugin.deposit.dao.AdditionalDataBinding.Responses());
 
     /**
      * The column <code>killbill.deposit_responses.created_date</code>.
@@ -114,7 +114,12 @@ public class DepositResponses extends TableImpl<DepositResponsesRecord> {
     /**
      * The column <code>killbill.deposit_responses.kb_tenant_id</code>.
      */
-    public final TableField<DepositResponsesRecord, String> KB_TENANT_ID = createField(DSL.name("kb_tenant_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "");
+    public final TableField<DepositResponsesRecord, String> KB_TENANT_ID = createField(DSL.name("kb_tenant_id"), org.jooq.impl.SQLDataType.CHAR(36).nullable(false), this, "", new org.killbill.billing.plugin.deposit.dao.UUIDBinding.Responses());
+
+    /**
+     * The column <code>killbill.deposit_responses.deposit_invoice_number</code>.
+     */
+    public final TableField<DepositResponsesRecord, Integer> DEPOSIT_INVOICE_NUMBER = createField(DSL.name("deposit_invoice_number"), org.jooq.impl.SQLDataType.INTEGER, this, "");
 
     /**
      * Create a <code>killbill.deposit_responses</code> table reference
@@ -156,7 +161,7 @@ public class DepositResponses extends TableImpl<DepositResponsesRecord> {
 
     @Override
     public List<Index> getIndexes() {
-        return Arrays.<Index>asList(Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_NUMBER, Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_ID, Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_PAYMENT_TRANSACTION_ID);
+        return Arrays.<Index>asList(Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER, Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_DEPOSIT_EFFECTIVE_DATE, Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_KB_PAYMENT_ID, Indexes.DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_KB_TENANT_ID_RECORD_ID);
     }
 
     @Override
@@ -171,7 +176,7 @@ public class DepositResponses extends TableImpl<DepositResponsesRecord> {
 
     @Override
     public List<UniqueKey<DepositResponsesRecord>> getKeys() {
-        return Arrays.<UniqueKey<DepositResponsesRecord>>asList(Keys.KEY_DEPOSIT_RESPONSES_PRIMARY, Keys.KEY_DEPOSIT_RESPONSES_RECORD_ID);
+        return Arrays.<UniqueKey<DepositResponsesRecord>>asList(Keys.KEY_DEPOSIT_RESPONSES_PRIMARY, Keys.KEY_DEPOSIT_RESPONSES_RECORD_ID, Keys.KEY_DEPOSIT_RESPONSES_DEPOSIT_RESPONSES_DEPOSIT_REFERENCE_INVOICE_NUMBER);
     }
 
     @Override
@@ -201,11 +206,11 @@ public class DepositResponses extends TableImpl<DepositResponsesRecord> {
     }
 
     // -------------------------------------------------------------------------
-    // Row13 type methods
+    // Row14 type methods
     // -------------------------------------------------------------------------
 
     @Override
-    public Row13<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, String, LocalDateTime, String> fieldsRow() {
-        return (Row13) super.fieldsRow();
+    public Row14<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, byte[], LocalDateTime, String, Integer> fieldsRow() {
+        return (Row14) super.fieldsRow();
     }
 }
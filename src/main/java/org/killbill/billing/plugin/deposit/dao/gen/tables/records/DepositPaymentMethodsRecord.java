@@ -8,8 +8,8 @@ import java.time.LocalDateTime;
 
 import org.jooq.Field;
 import org.jooq.Record1;
-import org.jooq.Record9;
-import org.jooq.Row9;
+import org.jooq.Record10;
+import org.jooq.Row10;
 import org.jooq.impl.UpdatableRecordImpl;
 import org.jooq.types.ULong;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
@@ -19,7 +19,7 @@ import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods;
  * This class is generated by jOOQ.
  */
 @SuppressWarnings({ "all", "unchecked", "rawtypes" })
-public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaymentMethodsRecord> implements Record9<ULong, String, String, Short, Short, String, LocalDateTime, LocalDateTime, String> {
+public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaymentMethodsRecord> implements Record10<ULong, String, String, Short, Short, byte[], LocalDateTime, LocalDateTime, String, String> {
 
     private static final long serialVersionUID = -16807289;
 
@@ -96,15 +96,15 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     /**
      * Setter for <code>killbill.deposit_payment_methods.additional_data</code>.
      */
-    public void setAdditionalData(String value) {
+    public void setAdditionalData(byte[] value) {
         set(5, value);
     }
 
     /**
      * Getter for <code>killbill.deposit_payment_methods.additional_data</code>.
      */
-    public String getAdditionalData() {
-        return (String) get(5);
+    public byte[] getAdditionalData() {
+        return (byte[]) get(5);
     }
 
     /**
@@ -149,6 +149,20 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
         return (String) get(8);
     }
 
+    /**
+     * Setter for <code>killbill.deposit_payment_methods.kb_active_account_id</code>.
+     */
+    public void setKbActiveAccountId(String value) {
+        set(9, value);
+    }
+
+    /**
+     * Getter for <code>killbill.deposit_payment_methods.kb_active_account_id</code>.
+     */
+    public String getKbActiveAccountId() {
+        return (String) get(9);
+    }
+
     // -------------------------------------------------------------------------
     // Primary key information
     // -------------------------------------------------------------------------
@@ -159,17 +173,17 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     }
 
     // -------------------------------------------------------------------------
-    // Record9 type implementation
+    // Record10 type implementation
     // -------------------------------------------------------------------------
 
     @Override
-    public Row9<ULong, String, String, Short, Short, String, LocalDateTime, LocalDateTime, String> fieldsRow() {
-        return (Row9) super.fieldsRow();
+    public Row10<ULong, String, String, Short, Short, byte[], LocalDateTime, LocalDateTime, String, String> fieldsRow() {
+        return (Row10) super.fieldsRow();
     }
 
     @Override
-    public Row9<ULong, String, String, Short, Short, String, LocalDateTime, LocalDateTime, String> valuesRow() {
-        return (Row9) super.valuesRow();
+    public Row10<ULong, String, String, Short, Short, byte[], LocalDateTime, LocalDateTime, String, String> valuesRow() {
+        return (Row10) super.valuesRow();
     }
 
     @Override
@@ -198,7 +212,7 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     }
 
     @Override
-    public Field<String> field6() {
+    public Field<byte[]> field6() {
         return DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.ADDITIONAL_DATA;
     }
 
@@ -217,6 +231,11 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
         return DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID;
     }
 
+    @Override
+    public Field<String> field10() {
+        return DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS.KB_ACTIVE_ACCOUNT_ID;
+    }
+
     @Override
     public ULong component1() {
         return getRecordId();
@@ -243,7 +262,7 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     }
 
     @Override
-    public String component6() {
+    public byte[] component6() {
         return getAdditionalData();
     }
 
@@ -262,6 +281,11 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
         return getKbTenantId();
     }
 
+    @Override
+    public String component10() {
+        return getKbActiveAccountId();
+    }
+
     @Override
     public ULong value1() {
         return getRecordId();
@@ -288,7 +312,7 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     }
 
     @Override
-    public String value6() {
+    public byte[] value6() {
         return getAdditionalData();
     }
 
@@ -307,6 +331,11 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
         return getKbTenantId();
     }
 
+    @Override
+    public String value10() {
+        return getKbActiveAccountId();
+    }
+
     @Override
     public DepositPaymentMethodsRecord value1(ULong value) {
         setRecordId(value);
@@ -338,7 +367,7 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     }
 
     @Override
-    public DepositPaymentMethodsRecord value6(String value) {
+    public DepositPaymentMethodsRecord value6(byte[] value) {
         setAdditionalData(value);
         return this;
     }
@@ -362,7 +391,13 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     }
 
     @Override
-    public DepositPaymentMethodsRecord values(ULong value1, String value2, String value3, Short value4, Short value5, String value6, LocalDateTime value7, LocalDateTime value8, String value9) {
+    public DepositPaymentMethodsRecord value10(String value) {
+        setKbActiveAccountId(value);
+        return this;
+    }
+
+    @Override
+    public DepositPaymentMethodsRecord values(ULong value1, String value2, String value3, Short value4, Short value5, byte[] value6, LocalDateTime value7, LocalDateTime value8, String value9, String value10) {
         value1(value1);
         value2(value2);
         value3(value3);
@@ -372,6 +407,7 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
         value7(value7);
         value8(value8);
         value9(value9);
+        value10(value10);
         return this;
     }
 
@@ -389,7 +425,7 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
     /**
      * Create a detached, initialised DepositPaymentMethodsRecord
      */
-    public DepositPaymentMethodsRecord(ULong recordId, String kbAccountId, String kbPaymentMethodId, Short isDefault, Short isDeleted, String additionalData, LocalDateTime createdDate, LocalDateTime updatedDate, String kbTenantId) {
+    public DepositPaymentMethodsRecord(ULong recordId, String kbAccountId, String kbPaymentMethodId, Short isDefault, Short isDeleted, byte[] additionalData, LocalDateTime createdDate, LocalDateTime updatedDate, String kbTenantId, String kbActiveAccountId) {
         super(DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS);
 
         set(0, recordId);
@@ -401,5 +437,6 @@ public class DepositPaymentMethodsRecord extends UpdatableRecordImpl<DepositPaym
         set(6, createdDate);
         set(7, updatedDate);
         set(8, kbTenantId);
+        set(9, kbActiveAccountId);
     }
 }
@@ -9,8 +9,8 @@ import java.time.LocalDateTime;
 
 import org.jooq.Field;
 import org.jooq.Record1;
-import org.jooq.Record13;
-import org.jooq.Row13;
+import org.jooq.Record14;
+import org.jooq.Row14;
 import org.jooq.impl.UpdatableRecordImpl;
 import org.jooq.types.ULong;
 import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
@@ -20,9 +20,9 @@ import org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses;
  * This class is generated by jOOQ.
  */
 @SuppressWarnings({ "all", "unchecked", "rawtypes" })
-public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponsesRecord> implements Record13<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, String, LocalDateTime, String> {
+public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponsesRecord> implements Record14<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, byte[], LocalDateTime, String, Integer> {
 
-    private static final long serialVersionUID = -275697833;
+    private static final long serialVersionUID = 1400588123;
 
     /**
      * Setter for <code>killbill.deposit_responses.record_id</code>.
@@ -167,15 +167,15 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     /**
      * Setter for <code>killbill.deposit_responses.additional_data</code>.
      */
-    public void setAdditionalData(String value) {
+    public void setAdditionalData(byte[] value) {
         set(10, value);
     }
 
     /**
      * Getter for <code>killbill.deposit_responses.additional_data</code>.
      */
-    public String getAdditionalData() {
-        return (String) get(10);
+    public byte[] getAdditionalData() {
+        return (byte[]) get(10);
     }
 
     /**
@@ -206,6 +206,20 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
         return (String) get(12);
     }
 
+    /**
+     * Setter for <code>killbill.deposit_responses.deposit_invoice_number</code>.
+     */
+    public void setDepositInvoiceNumber(Integer value) {
+        set(13, value);
+    }
+
+    /**
+     * Getter for <code>killbill.deposit_responses.deposit_invoice_number</code>.
+     */
+    public Integer getDepositInvoiceNumber() {
+        return (Integer) get(13);
+    }
+
     // -------------------------------------------------------------------------
     // Primary key information
     // -------------------------------------------------------------------------
@@ -216,17 +230,17 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     }
 
     // -------------------------------------------------------------------------
-    // Record13 type implementation
+    // Record14 type implementation
     // -------------------------------------------------------------------------
 
     @Override
-    public Row13<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, String, LocalDateTime, String> fieldsRow() {
-        return (Row13) super.fieldsRow();
+    public Row14<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, byte[], LocalDateTime, String, Integer> fieldsRow() {
+        return (Row14) super.fieldsRow();
     }
 
     @Override
-    public Row13<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, String, LocalDateTime, String> valuesRow() {
-        return (Row13) super.valuesRow();
+    public Row14<ULong, String, String, String, String, BigDecimal, String, String, String, LocalDateTime, byte[], LocalDateTime, String, Integer> valuesRow() {
+        return (Row14) super.valuesRow();
     }
 
     @Override
@@ -280,7 +294,7 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     }
 
     @Override
-    public Field<String> field11() {
+    public Field<byte[]> field11() {
         return DepositResponses.DEPOSIT_RESPONSES.ADDITIONAL_DATA;
     }
 
@@ -294,6 +308,11 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
         return DepositResponses.DEPOSIT_RESPONSES.KB_TENANT_ID;
     }
 
+    @Override
+    public Field<Integer> field14() {
+        return DepositResponses.DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER;
+    }
+
     @Override
     public ULong component1() {
         return getRecordId();
@@ -345,7 +364,7 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     }
 
     @Override
-    public String component11() {
+    public byte[] component11() {
         return getAdditionalData();
     }
 
@@ -359,6 +378,11 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
         return getKbTenantId();
     }
 
+    @Override
+    public Integer component14() {
+        return getDepositInvoiceNumber();
+    }
+
     @Override
     public ULong value1() {
         return getRecordId();
@@ -410,7 +434,7 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     }
 
     @Override
-    public String value11() {
+    public byte[] value11() {
         return getAdditionalData();
     }
 
@@ -424,6 +448,11 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
         return getKbTenantId();
     }
 
+    @Override
+    public Integer value14() {
+        return getDepositInvoiceNumber();
+    }
+
     @Override
     public DepositResponsesRecord value1(ULong value) {
         setRecordId(value);
@@ -485,7 +514,7 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     }
 
     @Override
-    public DepositResponsesRecord value11(String value) {
+    public DepositResponsesRecord value11(byte[] value) {
         setAdditionalData(value);
         return this;
     }
@@ -503,7 +532,13 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     }
 
     @Override
-    public DepositResponsesRecord values(ULong value1, String value2, String value3, String value4, String value5, BigDecimal value6, String value7, String value8, String value9, LocalDateTime value10, String value11, LocalDateTime value12, String value13) {
+    public DepositResponsesRecord value14(Integer value) {
+        setDepositInvoiceNumber(value);
+        return this;
+    }
+
+    @Override
+    public DepositResponsesRecord values(ULong value1, String value2, String value3, String value4, String value5, BigDecimal value6, String value7, String value8, String value9, LocalDateTime value10, byte[] value11, LocalDateTime value12, String value13, Integer value14) {
         value1(value1);
         value2(value2);
         value3(value3);
@@ -517,6 +552,7 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
         value11(value11);
         value12(value12);
         value13(value13);
+        value14(value14);
         return this;
     }
 
@@ -534,7 +570,7 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
     /**
      * Create a detached, initialised DepositResponsesRecord
      */
-    public DepositResponsesRecord(ULong recordId, String kbAccountId, String kbPaymentId, String kbPaymentTransactionId, String transactionType, BigDecimal amount, String currency, String depositType, String depositReferenceNumber, LocalDateTime depositEffectiveDate, String additionalData, LocalDateTime createdDate, String kbTenantId) {
+    public DepositResponsesRecord(ULong recordId, String kbAccountId, String kbPaymentId, String kbPaymentTransactionId, String transactionType, BigDecimal amount, String currency, String depositType, String depositReferenceNumber, LocalDateTime depositEffectiveDate, byte[] additionalData, LocalDateTime createdDate, String kbTenantId, Integer depositInvoiceNumber) {
         super(DepositResponses.DEPOSIT_RESPONSES);
 
         set(0, recordId);
@@ -550,5 +586,6 @@ public class DepositResponsesRecord extends UpdatableRecordImpl<DepositResponses
         set(10, additionalData);
         set(11, createdDate);
         set(12, kbTenantId);
+        set(13, depositInvoiceNumber);
     }
 }
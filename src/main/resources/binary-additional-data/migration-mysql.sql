@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Optional schema variant: store additional_data as bytes (longblob) instead of text (longtext), which is required to write it
+ * with the compact Smile encoding (see the additionalDataEncoding property). The existing JSON rows are kept as-is (UTF-8), and
+ * the plugin reads both column types: it picks up the new type within a minute, without a restart.
+ *
+ * The tables are rebuilt: reads go on, but writes wait until the end (expect a few seconds per million rows). To migrate a large
+ * install without blocking the payments, run the same change with an online schema change tool instead, e.g.
+ *
+ *   pt-online-schema-change --alter "modify additional_data longblob default null" D=killbill,t=deposit_responses --execute
+ *   pt-online-schema-change --alter "modify additional_data longblob default null" D=killbill,t=deposit_payment_methods --execute
+ *
+ * On a new install, run it right after ddl.sql.
+ */
+alter table deposit_responses modify additional_data longblob default null, algorithm=copy, lock=shared;
+alter table deposit_payment_methods modify additional_data longblob default null, algorithm=copy, lock=shared;
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Optional schema variant: store additional_data as bytes (bytea) instead of text, which is required to write it with the
+ * compact Smile encoding (see the additionalDataEncoding property). The existing JSON rows are converted to UTF-8, and the
+ * plugin reads both column types: it picks up the new type within a minute, without a restart.
+ *
+ * The tables are rewritten under an exclusive lock: reads and writes wait until the end (expect a few seconds per million rows).
+ * On a new install, run it right after ddl.sql.
+ *
+ * Run it with e.g. psql -v ON_ERROR_STOP=1 -f migration-postgresql.sql.
+ */
+alter table deposit_responses alter column additional_data type bytea using convert_to(additional_data, 'UTF8');
+alter table deposit_payment_methods alter column additional_data type bytea using convert_to(additional_data, 'UTF8');
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Optional schema variant: store the Kill Bill ids of deposit_responses and deposit_payment_methods as binary(16)
+ * (i.e. UUID_TO_BIN(uuid)) instead of char(36). This can run while Kill Bill is up:
+ *
+ *   1. new tables are created, and kept in sync with the current ones by triggers
+ *   2. the existing rows are copied, in batches (the long step, which doesn't lock the current tables)
+ *   3. the tables are swapped with one atomic rename
+ *
+ * The plugin looks up the column types of each table again every minute, and right after a statement fails with a data error
+ * (e.g. a char(36) id written to a binary(16) column): it picks up the swap within a minute, without a restart. Until then,
+ * writes are rejected and lookups by id find nothing, so swap when few payments are recorded (or restart the plugin right after).
+ * The previous tables are kept as deposit_responses_chars and deposit_payment_methods_chars: drop them once checked.
+ * On a new install, run it right after ddl.sql. If additional_data is stored as bytes (see binary-additional-data), replace its
+ * longtext type with longblob in the new tables below.
+ *
+ * Run it with the mysql client (for the DELIMITER commands), e.g. mysql killbill < migration-mysql.sql.
+ */
+
+/* 1. New tables */
+create table deposit_responses_uuids (
+  record_id serial
+, kb_account_id binary(16) not null
+, kb_payment_id binary(16) not null
+, kb_payment_transaction_id binary(16) not null
+, transaction_type varchar(32) not null
+, amount numeric(15,9)
+, currency char(3)
+, deposit_type varchar(255) default null
+, deposit_reference_number varchar(255) default null
+, deposit_effective_date datetime default null
+, additional_data longtext default null
+, created_date datetime not null
+, kb_tenant_id binary(16) not null
+, deposit_invoice_number integer default null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create index deposit_responses_kb_tenant_id_kb_payment_id on deposit_responses_uuids(kb_tenant_id, kb_payment_id, record_id);
+create index deposit_responses_kb_tenant_id_record_id on deposit_responses_uuids(kb_tenant_id, record_id);
+create index deposit_responses_kb_tenant_id_deposit_effective_date on deposit_responses_uuids(kb_tenant_id, deposit_effective_date, record_id);
+create unique index deposit_responses_deposit_reference_invoice_number on deposit_responses_uuids(kb_tenant_id, deposit_reference_number, deposit_invoice_number);
+
+create table deposit_payment_methods_uuids (
+  record_id serial
+, kb_account_id binary(16) not null
+, kb_payment_method_id binary(16) not null
+, is_default smallint not null default 0
+, is_deleted smallint not null default 0
+, additional_data longtext default null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id binary(16) not null
+, kb_active_account_id binary(16) generated always as (case when is_deleted = 49 then null else kb_account_id end) stored
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index deposit_payment_methods_kb_payment_id on deposit_payment_methods_uuids(kb_payment_method_id);
+create index deposit_payment_methods_kb_tenant_id_kb_account_id on deposit_payment_methods_uuids(kb_tenant_id, kb_account_id, is_deleted, kb_payment_method_id);
+create unique index deposit_payment_methods_active_kb_account_id on deposit_payment_methods_uuids(kb_tenant_id, kb_active_account_id);
+
+/* Wait for the in-flight writes: rows committed from now on are copied by the triggers */
+create trigger deposit_responses_uuids_insert after insert on deposit_responses for each row
+  replace into deposit_responses_uuids (record_id, kb_account_id, kb_payment_id, kb_payment_transaction_id, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, kb_tenant_id, deposit_invoice_number)
+  values (new.record_id, unhex(replace(new.kb_account_id, '-', '')), unhex(replace(new.kb_payment_id, '-', '')), unhex(replace(new.kb_payment_transaction_id, '-', '')), new.transaction_type, new.amount, new.currency, new.deposit_type, new.deposit_reference_number, new.deposit_effective_date, new.additional_data, new.created_date, unhex(replace(new.kb_tenant_id, '-', '')), new.deposit_invoice_number);
+create trigger deposit_responses_uuids_update after update on deposit_responses for each row
+  replace into deposit_responses_uuids (record_id, kb_account_id, kb_payment_id, kb_payment_transaction_id, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, kb_tenant_id, deposit_invoice_number)
+  values (new.record_id, unhex(replace(new.kb_account_id, '-', '')), unhex(replace(new.kb_payment_id, '-', '')), unhex(replace(new.kb_payment_transaction_id, '-', '')), new.transaction_type, new.amount, new.currency, new.deposit_type, new.deposit_reference_number, new.deposit_effective_date, new.additional_data, new.created_date, unhex(replace(new.kb_tenant_id, '-', '')), new.deposit_invoice_number);
+create trigger deposit_responses_uuids_delete after delete on deposit_responses for each row
+  delete from deposit_responses_uuids where record_id = old.record_id;
+
+create trigger deposit_payment_methods_uuids_insert after insert on deposit_payment_methods for each row
+  replace into deposit_payment_methods_uuids (record_id, kb_account_id, kb_payment_method_id, is_default, is_deleted, additional_data, created_date, updated_date, kb_tenant_id)
+  values (new.record_id, unhex(replace(new.kb_account_id, '-', '')), unhex(replace(new.kb_payment_method_id, '-', '')), new.is_default, new.is_deleted, new.additional_data, new.created_date, new.updated_date, unhex(replace(new.kb_tenant_id, '-', '')));
+create trigger deposit_payment_methods_uuids_update after update on deposit_payment_methods for each row
+  replace into deposit_payment_methods_uuids (record_id, kb_account_id, kb_payment_method_id, is_default, is_deleted, additional_data, created_date, updated_date, kb_tenant_id)
+  values (new.record_id, unhex(replace(new.kb_account_id, '-', '')), unhex(replace(new.kb_payment_method_id, '-', '')), new.is_default, new.is_deleted, new.additional_data, new.created_date, new.updated_date, unhex(replace(new.kb_tenant_id, '-', '')));
+create trigger deposit_payment_methods_uuids_delete after delete on deposit_payment_methods for each row
+  delete from deposit_payment_methods_uuids where record_id = old.record_id;
+
+/* 2. Existing rows, 10000 at a time: the ones already copied by the triggers are more recent */
+delimiter //
+create procedure deposit_copy_uuids()
+begin
+  declare last_record_id bigint unsigned default 0;
+  declare max_record_id bigint unsigned;
+
+  select coalesce(max(record_id), 0) into max_record_id from deposit_responses;
+  while last_record_id < max_record_id do
+    insert ignore into deposit_responses_uuids (record_id, kb_account_id, kb_payment_id, kb_payment_transaction_id, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, kb_tenant_id, deposit_invoice_number)
+    select record_id, unhex(replace(kb_account_id, '-', '')), unhex(replace(kb_payment_id, '-', '')), unhex(replace(kb_payment_transaction_id, '-', '')), transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, unhex(replace(kb_tenant_id, '-', '')), deposit_invoice_number
+    from deposit_responses
+    where record_id > last_record_id and record_id <= last_record_id + 10000;
+    set last_record_id = last_record_id + 10000;
+  end while;
+
+  set last_record_id = 0;
+  select coalesce(max(record_id), 0) into max_record_id from deposit_payment_methods;
+  while last_record_id < max_record_id do
+    insert ignore into deposit_payment_methods_uuids (record_id, kb_account_id, kb_payment_method_id, is_default, is_deleted, additional_data, created_date, updated_date, kb_tenant_id)
+    select record_id, unhex(replace(kb_account_id, '-', '')), unhex(replace(kb_payment_method_id, '-', '')), is_default, is_deleted, additional_data, created_date, updated_date, unhex(replace(kb_tenant_id, '-', ''))
+    from deposit_payment_methods
+    where record_id > last_record_id and record_id <= last_record_id + 10000;
+    set last_record_id = last_record_id + 10000;
+  end while;
+end //
+delimiter ;
+call deposit_copy_uuids();
+drop procedure deposit_copy_uuids;
+
+analyze table deposit_responses_uuids, deposit_payment_methods_uuids;
+
+/* 3. Swap: the triggers follow the previous tables */
+rename table deposit_responses to deposit_responses_chars,
+             deposit_responses_uuids to deposit_responses,
+             deposit_payment_methods to deposit_payment_methods_chars,
+             deposit_payment_methods_uuids to deposit_payment_methods;
+drop trigger deposit_responses_uuids_insert;
+drop trigger deposit_responses_uuids_update;
+drop trigger deposit_responses_uuids_delete;
+drop trigger deposit_payment_methods_uuids_insert;
+drop trigger deposit_payment_methods_uuids_update;
+drop trigger deposit_payment_methods_uuids_delete;
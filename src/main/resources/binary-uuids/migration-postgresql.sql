@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Optional schema variant: store the Kill Bill ids of deposit_responses and deposit_payment_methods as uuid (16 bytes)
+ * instead of char(36). The plugin works with both schemas (the ids are bound untyped, and cast by the server to the column type),
+ * so this can run while Kill Bill is up, without a restart:
+ *
+ *   1. new tables are created, and kept in sync with the current ones by triggers
+ *   2. the existing rows are copied (the long step, which doesn't block writes)
+ *   3. the tables are swapped in one short transaction
+ *
+ * The previous tables are kept as deposit_responses_chars and deposit_payment_methods_chars: drop them once checked.
+ * On a new install, run it right after ddl.sql. If additional_data is stored as bytes (see binary-additional-data), replace its
+ * longtext type with bytea in the new tables below.
+ *
+ * Run it with e.g. psql -v ON_ERROR_STOP=1 -f migration-postgresql.sql. Note that statements prepared before the swap
+ * (see the prepareThreshold option of the JDBC driver) may fail once with "cached plan must not change result type".
+ */
+
+/* 1. New tables */
+create table deposit_responses_uuids (
+  record_id integer not null default nextval('deposit_responses_record_id_seq')
+, kb_account_id uuid not null
+, kb_payment_id uuid not null
+, kb_payment_transaction_id uuid not null
+, transaction_type varchar(32) not null
+, amount numeric(15,9)
+, currency char(3)
+, deposit_type varchar(255) default null
+, deposit_reference_number varchar(255) default null
+, deposit_effective_date datetime default null
+, additional_data longtext default null
+, created_date datetime not null
+, kb_tenant_id uuid not null
+, deposit_invoice_number integer default null
+, constraint deposit_responses_uuids_pkey primary key(record_id)
+);
+create index deposit_responses_uuids_kb_tenant_id_kb_payment_id on deposit_responses_uuids(kb_tenant_id, kb_payment_id, record_id);
+create index deposit_responses_uuids_kb_tenant_id_record_id on deposit_responses_uuids(kb_tenant_id, record_id);
+create index deposit_responses_uuids_kb_tenant_id_deposit_effective_date on deposit_responses_uuids(kb_tenant_id, deposit_effective_date, record_id);
+create unique index deposit_responses_uuids_deposit_reference_invoice_number on deposit_responses_uuids(kb_tenant_id, deposit_reference_number, deposit_invoice_number);
+
+create table deposit_payment_methods_uuids (
+  record_id integer not null default nextval('deposit_payment_methods_record_id_seq')
+, kb_account_id uuid not null
+, kb_payment_method_id uuid not null
+, is_default smallint not null default 0
+, is_deleted smallint not null default 0
+, additional_data longtext default null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id uuid not null
+, kb_active_account_id uuid generated always as (case when is_deleted = 49 then null else kb_account_id end) stored
+, constraint deposit_payment_methods_uuids_pkey primary key(record_id)
+);
+create unique index deposit_payment_methods_uuids_kb_payment_id on deposit_payment_methods_uuids(kb_payment_method_id);
+create index deposit_payment_methods_uuids_kb_tenant_id_kb_account_id on deposit_payment_methods_uuids(kb_tenant_id, kb_account_id, is_deleted, kb_payment_method_id);
+create unique index deposit_payment_methods_uuids_active_kb_account_id on deposit_payment_methods_uuids(kb_tenant_id, kb_active_account_id);
+
+create function deposit_responses_uuids_sync() returns trigger language plpgsql as $$
+begin
+  if tg_op = 'DELETE' then
+    delete from deposit_responses_uuids where record_id = old.record_id;
+    return null;
+  end if;
+  insert into deposit_responses_uuids (record_id, kb_account_id, kb_payment_id, kb_payment_transaction_id, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, kb_tenant_id, deposit_invoice_number)
+  values (new.record_id, new.kb_account_id::uuid, new.kb_payment_id::uuid, new.kb_payment_transaction_id::uuid, new.transaction_type, new.amount, new.currency, new.deposit_type, new.deposit_reference_number, new.deposit_effective_date, new.additional_data, new.created_date, new.kb_tenant_id::uuid, new.deposit_invoice_number)
+  on conflict (record_id) do update
+  set kb_account_id = excluded.kb_account_id, kb_payment_id = excluded.kb_payment_id, kb_payment_transaction_id = excluded.kb_payment_transaction_id, transaction_type = excluded.transaction_type, amount = excluded.amount, currency = excluded.currency, deposit_type = excluded.deposit_type, deposit_reference_number = excluded.deposit_reference_number, deposit_effective_date = excluded.deposit_effective_date, additional_data = excluded.additional_data, created_date = excluded.created_date, kb_tenant_id = excluded.kb_tenant_id, deposit_invoice_number = excluded.deposit_invoice_number;
+  return null;
+end;
+$$;
+/* Waits for the in-flight writes: rows committed from now on are copied by the trigger */
+create trigger deposit_responses_uuids_sync after insert or update or delete on deposit_responses for each row execute procedure deposit_responses_uuids_sync();
+
+create function deposit_payment_methods_uuids_sync() returns trigger language plpgsql as $$
+begin
+  if tg_op = 'DELETE' then
+    delete from deposit_payment_methods_uuids where record_id = old.record_id;
+    return null;
+  end if;
+  insert into deposit_payment_methods_uuids (record_id, kb_account_id, kb_payment_method_id, is_default, is_deleted, additional_data, created_date, updated_date, kb_tenant_id)
+  values (new.record_id, new.kb_account_id::uuid, new.kb_payment_method_id::uuid, new.is_default, new.is_deleted, new.additional_data, new.created_date, new.updated_date, new.kb_tenant_id::uuid)
+  on conflict (record_id) do update
+  set kb_account_id = excluded.kb_account_id, kb_payment_method_id = excluded.kb_payment_method_id, is_default = excluded.is_default, is_deleted = excluded.is_deleted, additional_data = excluded.additional_data, created_date = excluded.created_date, updated_date = excluded.updated_date, kb_tenant_id = excluded.kb_tenant_id;
+  return null;
+end;
+$$;
+create trigger deposit_payment_methods_uuids_sync after insert or update or delete on deposit_payment_methods for each row execute procedure deposit_payment_methods_uuids_sync();
+
+/* 2. Existing rows: the ones already copied by the triggers are more recent */
+insert into deposit_responses_uuids (record_id, kb_account_id, kb_payment_id, kb_payment_transaction_id, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, kb_tenant_id, deposit_invoice_number)
+select record_id, kb_account_id::uuid, kb_payment_id::uuid, kb_payment_transaction_id::uuid, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, additional_data, created_date, kb_tenant_id::uuid, deposit_invoice_number
+from deposit_responses
+on conflict (record_id) do nothing;
+
+insert into deposit_payment_methods_uuids (record_id, kb_account_id, kb_payment_method_id, is_default, is_deleted, additional_data, created_date, updated_date, kb_tenant_id)
+select record_id, kb_account_id::uuid, kb_payment_method_id::uuid, is_default, is_deleted, additional_data, created_date, updated_date, kb_tenant_id::uuid
+from deposit_payment_methods
+on conflict (record_id) do nothing;
+
+analyze deposit_responses_uuids;
+analyze deposit_payment_methods_uuids;
+
+/* 3. Swap */
+begin;
+lock table deposit_responses, deposit_payment_methods in access exclusive mode;
+
+drop trigger deposit_responses_uuids_sync on deposit_responses;
+drop function deposit_responses_uuids_sync();
+drop trigger deposit_payment_methods_uuids_sync on deposit_payment_methods;
+drop function deposit_payment_methods_uuids_sync();
+
+alter table deposit_responses rename to deposit_responses_chars;
+alter table deposit_responses_chars alter column record_id drop default;
+alter index deposit_responses_pkey rename to deposit_responses_chars_pkey;
+alter index deposit_responses_kb_tenant_id_kb_payment_id rename to deposit_responses_chars_kb_tenant_id_kb_payment_id;
+alter index deposit_responses_kb_tenant_id_record_id rename to deposit_responses_chars_kb_tenant_id_record_id;
+alter index deposit_responses_kb_tenant_id_deposit_effective_date rename to deposit_responses_chars_kb_tenant_id_deposit_effective_date;
+alter index deposit_responses_deposit_reference_invoice_number rename to deposit_responses_chars_deposit_reference_invoice_number;
+alter table deposit_responses_uuids rename to deposit_responses;
+alter index deposit_responses_uuids_pkey rename to deposit_responses_pkey;
+alter index deposit_responses_uuids_kb_tenant_id_kb_payment_id rename to deposit_responses_kb_tenant_id_kb_payment_id;
+alter index deposit_responses_uuids_kb_tenant_id_record_id rename to deposit_responses_kb_tenant_id_record_id;
+alter index deposit_responses_uuids_kb_tenant_id_deposit_effective_date rename to deposit_responses_kb_tenant_id_deposit_effective_date;
+alter index deposit_responses_uuids_deposit_reference_invoice_number rename to deposit_responses_deposit_reference_invoice_number;
+alter sequence deposit_responses_record_id_seq owned by deposit_responses.record_id;
+
+alter table deposit_payment_methods rename to deposit_payment_methods_chars;
+alter table deposit_payment_methods_chars alter column record_id drop default;
+alter index deposit_payment_methods_pkey rename to deposit_payment_methods_chars_pkey;
+alter index deposit_payment_methods_kb_payment_id rename to deposit_payment_methods_chars_kb_payment_id;
+alter index deposit_payment_methods_kb_tenant_id_kb_account_id rename to deposit_payment_methods_chars_kb_tenant_id_kb_account_id;
+alter index deposit_payment_methods_active_kb_account_id rename to deposit_payment_methods_chars_active_kb_account_id;
+alter table deposit_payment_methods_uuids rename to deposit_payment_methods;
+alter index deposit_payment_methods_uuids_pkey rename to deposit_payment_methods_pkey;
+alter index deposit_payment_methods_uuids_kb_payment_id rename to deposit_payment_methods_kb_payment_id;
+alter index deposit_payment_methods_uuids_kb_tenant_id_kb_account_id rename to deposit_payment_methods_kb_tenant_id_kb_account_id;
+alter index deposit_payment_methods_uuids_active_kb_account_id rename to deposit_payment_methods_active_kb_account_id;
+alter sequence deposit_payment_methods_record_id_seq owned by deposit_payment_methods.record_id;
+
+commit;
@@ -31,11 +31,17 @@ create table deposit_responses (
 , additional_data longtext default null
 , created_date datetime not null
 , kb_tenant_id char(36) not null
+, deposit_invoice_number integer default null
 , primary key(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
-create index deposit_responses_kb_payment_id on deposit_responses(kb_payment_id);
-create index deposit_responses_kb_payment_transaction_id on deposit_responses(kb_payment_transaction_id);
-create index deposit_responses_deposit_reference_number on deposit_responses(deposit_reference_number);
+/* Payment lookups (PluginPaymentDao), in record_id order */
+create index deposit_responses_kb_tenant_id_kb_payment_id on deposit_responses(kb_tenant_id, kb_payment_id, record_id);
+/* Pages of search results, seeked by record_id (see DepositDao#searchResponses) */
+create index deposit_responses_kb_tenant_id_record_id on deposit_responses(kb_tenant_id, record_id);
+/* Searches and exports on a range of effective dates, seeked by (deposit_effective_date, record_id) */
+create index deposit_responses_kb_tenant_id_deposit_effective_date on deposit_responses(kb_tenant_id, deposit_effective_date, record_id);
+/* An invoice is paid at most once per deposit: retried deposits are not applied twice */
+create unique index deposit_responses_deposit_reference_invoice_number on deposit_responses(kb_tenant_id, deposit_reference_number, deposit_invoice_number);
 
 create table deposit_payment_methods (
   record_id serial
@@ -47,6 +53,60 @@ create table deposit_payment_methods (
 , created_date datetime not null
 , updated_date datetime not null
 , kb_tenant_id char(36) not null
+, kb_active_account_id char(36) generated always as (case when is_deleted = 49 then null else kb_account_id end) stored
 , primary key(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 create unique index deposit_payment_methods_kb_payment_id on deposit_payment_methods(kb_payment_method_id);
+/* Payment methods of an account: also covers the lookup of its active payment method (see DepositDao#getActivePaymentMethodId) */
+create index deposit_payment_methods_kb_tenant_id_kb_account_id on deposit_payment_methods(kb_tenant_id, kb_account_id, is_deleted, kb_payment_method_id);
+/* At most one active deposit payment method per account: deleted rows (is_deleted set to the '1' character by PluginDao) have a null kb_active_account_id */
+create unique index deposit_payment_methods_active_kb_account_id on deposit_payment_methods(kb_tenant_id, kb_active_account_id);
+
+create table deposit_jobs (
+  record_id serial
+, job_id char(36) not null
+, kb_account_id char(36) not null
+, status varchar(32) not null
+, request longtext not null
+, result longtext default null
+, processing_owner varchar(255) default null
+, processing_date datetime default null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index deposit_jobs_job_id on deposit_jobs(job_id);
+/* Workers claim the oldest pending jobs first */
+create index deposit_jobs_status on deposit_jobs(status, record_id);
+
+create table deposit_daily_totals (
+  record_id serial
+, deposit_date date not null
+, currency char(3) not null
+, deposit_type varchar(255) not null
+, amount numeric(24,9) not null
+, nb_payments integer not null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, stripe smallint not null default 0
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+/*
+ * Upserted with the responses of the payments (see DepositDao#addResponses): deposit_type is '' for the payments without one.
+ * Each day, currency and deposit type is split into several rows (stripes), summed when read.
+ */
+create unique index deposit_daily_totals_kb_tenant_id_deposit_date on deposit_daily_totals(kb_tenant_id, deposit_date, currency, deposit_type, stripe);
+
+/* Progress of the re-encoding of additional_data (see DepositAdditionalDataReencoder): one row per table */
+create table deposit_reencodes (
+  record_id serial
+, table_name varchar(64) not null
+, encoding varchar(32) not null
+, last_record_id bigint /*! unsigned */ not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index deposit_reencodes_table_name on deposit_reencodes(table_name);
@@ -0,0 +1,10 @@
+/*
+ * Enforce at most one active deposit payment method per account.
+ *
+ * Accounts which already have several active rows must be cleaned up first, otherwise the unique index creation fails.
+ * They can be found with:
+ *
+ *   select kb_tenant_id, kb_account_id, count(*) from deposit_payment_methods where is_deleted != 49 group by kb_tenant_id, kb_account_id having count(*) > 1;
+ */
+alter table deposit_payment_methods add column kb_active_account_id char(36) generated always as (case when is_deleted = 49 then null else kb_account_id end) stored;
+create unique index deposit_payment_methods_active_kb_account_id on deposit_payment_methods(kb_tenant_id, kb_active_account_id);
@@ -0,0 +1,21 @@
+/*
+ * Queue of the deposits recorded asynchronously (/record/async).
+ *
+ * Claiming jobs relies on SELECT ... FOR UPDATE SKIP LOCKED: MySQL 8.0+ or PostgreSQL 9.5+ is required.
+ */
+create table deposit_jobs (
+  record_id serial
+, job_id char(36) not null
+, kb_account_id char(36) not null
+, status varchar(32) not null
+, request longtext not null
+, result longtext default null
+, processing_owner varchar(255) default null
+, processing_date datetime default null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index deposit_jobs_job_id on deposit_jobs(job_id);
+create index deposit_jobs_status on deposit_jobs(status, record_id);
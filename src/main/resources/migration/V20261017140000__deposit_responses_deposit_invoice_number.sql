@@ -0,0 +1,7 @@
+/*
+ * Make deposits idempotent: an invoice is paid at most once per (tenant, deposit reference number).
+ *
+ * Existing rows have a null deposit_invoice_number and are not constrained.
+ */
+alter table deposit_responses add column deposit_invoice_number integer default null;
+create unique index deposit_responses_deposit_reference_invoice_number on deposit_responses(kb_tenant_id, deposit_reference_number, deposit_invoice_number);
@@ -0,0 +1,16 @@
+/*
+ * Index deposit_responses and deposit_payment_methods for the DAO lookups, which are all by tenant: payments by
+ * (kb_tenant_id, kb_payment_id) and payment methods by (kb_tenant_id, kb_account_id). The indexes on
+ * kb_payment_transaction_id and deposit_reference_number alone aren't used by any query.
+ *
+ * The indexes are built online (in place, without blocking writes). On PostgreSQL, run instead:
+ *
+ *   create index concurrently deposit_responses_kb_tenant_id_kb_payment_id on deposit_responses(kb_tenant_id, kb_payment_id, record_id);
+ *   drop index concurrently deposit_responses_kb_payment_id;
+ *   drop index concurrently deposit_responses_kb_payment_transaction_id;
+ *   drop index concurrently deposit_responses_deposit_reference_number;
+ *   create index concurrently deposit_payment_methods_kb_tenant_id_kb_account_id on deposit_payment_methods(kb_tenant_id, kb_account_id, is_deleted, kb_payment_method_id);
+ */
+alter table deposit_responses add index deposit_responses_kb_tenant_id_kb_payment_id(kb_tenant_id, kb_payment_id, record_id), algorithm=inplace, lock=none;
+alter table deposit_responses drop index deposit_responses_kb_payment_id, drop index deposit_responses_kb_payment_transaction_id, drop index deposit_responses_deposit_reference_number, algorithm=inplace, lock=none;
+alter table deposit_payment_methods add index deposit_payment_methods_kb_tenant_id_kb_account_id(kb_tenant_id, kb_account_id, is_deleted, kb_payment_method_id), algorithm=inplace, lock=none;
@@ -0,0 +1,8 @@
+/*
+ * Index the pages of deposit searches: the responses of a tenant, seeked by record_id.
+ *
+ * The index is built online (in place, without blocking writes). On PostgreSQL, run instead:
+ *
+ *   create index concurrently deposit_responses_kb_tenant_id_record_id on deposit_responses(kb_tenant_id, record_id);
+ */
+alter table deposit_responses add index deposit_responses_kb_tenant_id_record_id(kb_tenant_id, record_id), algorithm=inplace, lock=none;
@@ -0,0 +1,20 @@
+/*
+ * Totals of the payments per day, currency and deposit type (/totals), maintained with the responses. Each day, currency and
+ * deposit type is split into several rows (stripes), so that concurrent payments of the same day don't all wait on the same row.
+ *
+ * On an existing install, backfill them once the plugin is upgraded, for each tenant: POST /plugins/killbill-deposit/totals/rebuild
+ */
+create table deposit_daily_totals (
+  record_id serial
+, deposit_date date not null
+, currency char(3) not null
+, deposit_type varchar(255) not null
+, amount numeric(24,9) not null
+, nb_payments integer not null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, stripe smallint not null default 0
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index deposit_daily_totals_kb_tenant_id_deposit_date on deposit_daily_totals(kb_tenant_id, deposit_date, currency, deposit_type, stripe);
@@ -0,0 +1,8 @@
+/*
+ * Index the searches and exports on a range of effective dates: the responses of a tenant, seeked by (deposit_effective_date, record_id).
+ *
+ * The index is built online (in place, without blocking writes). On PostgreSQL, run instead:
+ *
+ *   create index concurrently deposit_responses_kb_tenant_id_deposit_effective_date on deposit_responses(kb_tenant_id, deposit_effective_date, record_id);
+ */
+alter table deposit_responses add index deposit_responses_kb_tenant_id_deposit_effective_date(kb_tenant_id, deposit_effective_date, record_id), algorithm=inplace, lock=none;
@@ -0,0 +1,13 @@
+/*
+ * Progress of the re-encoding of additional_data (see DepositAdditionalDataReencoder), so that it resumes where it stopped.
+ */
+create table deposit_reencodes (
+  record_id serial
+, table_name varchar(64) not null
+, encoding varchar(32) not null
+, last_record_id bigint /*! unsigned */ not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index deposit_reencodes_table_name on deposit_reencodes(table_name);
@@ -20,6 +20,8 @@ package org.killbill.billing.plugin.deposit;
 import java.io.IOException;
 import java.sql.SQLException;
 
+import javax.sql.DataSource;
+
 import org.killbill.billing.platform.test.PlatformDBTestingHelper;
 import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.deposit.dao.DepositDao;
@@ -60,6 +62,31 @@ public class EmbeddedDbHelper {
         return new DepositDao(embeddedDB.getDataSource());
     }
 
+    public DepositDao getDepositDao(final DepositDao.AdditionalDataEncoding additionalDataEncoding) throws IOException, SQLException {
+        return new DepositDao(embeddedDB.getDataSource(), additionalDataEncoding);
+    }
+
+    public EmbeddedDB.DBEngine getDBEngine() {
+        return embeddedDB.getDBEngine();
+    }
+
+    public DataSource getDataSource() throws IOException {
+        return embeddedDB.getDataSource();
+    }
+
+    public void executeScript(final String fileName) throws IOException {
+        embeddedDB.executeScript(TestUtils.toString(fileName));
+        embeddedDB.refreshTableNames();
+    }
+
+    // Drops all the tables (e.g. after a schema migration) and loads the DDL again
+    public void recreateSchema() throws IOException {
+        for (final String tableName : embeddedDB.getAllTables()) {
+            embeddedDB.executeScript("drop table " + tableName);
+        }
+        executeScript(DDL_FILE_NAME);
+    }
+
     public void resetDB() throws Exception {
         embeddedDB.cleanupAllTables();
     }
@@ -17,12 +17,15 @@
 
 package org.killbill.billing.plugin.deposit;
 
+import java.math.BigDecimal;
 import java.util.UUID;
 
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.deposit.dao.DepositDao;
 import org.killbill.billing.util.api.CustomFieldUserApi;
@@ -34,6 +37,8 @@ import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.BeforeSuite;
 
+import com.google.common.collect.ImmutableList;
+
 public class TestBase {
 
     public static final Currency DEFAULT_CURRENCY = Currency.USD;
@@ -70,7 +75,8 @@ public class TestBase {
         depositPaymentPluginApi = new DepositPaymentPluginApi(killbillApi,
                                                               configPropertiesService,
                                                               clock,
-                                                              dao);
+                                                              dao,
+                                                              new DepositPaymentMethodCache(DepositPaymentMethodCache.DEFAULT_CACHE_SIZE));
 
         TestUtils.updateOSGIKillbillAPI(killbillApi, depositPaymentPluginApi);
     }
@@ -84,4 +90,36 @@ public class TestBase {
     public void tearDownAfterSuite() throws Exception {
         EmbeddedDbHelper.instance().stopDB();
     }
+
+    // Wire payment of 10 of the invoice, without an effective date
+    protected DepositDao.PendingResponse pendingResponse(final String refNumber, final Integer invoiceNumber) {
+        return new DepositDao.PendingResponse(account.getId(),
+                                              UUID.randomUUID(),
+                                              UUID.randomUUID(),
+                                              TransactionType.PURCHASE,
+                                              BigDecimal.TEN,
+                                              account.getCurrency(),
+                                              ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, refNumber, false),
+                                                                               new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, "wire", false),
+                                                                               new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, invoiceNumber, false)),
+                                              context.getTenantId());
+    }
+
+    protected DepositDao.PendingResponse pendingResponse(final String refNumber,
+                                                         final Integer invoiceNumber,
+                                                         final String depositType,
+                                                         final String effectiveDate,
+                                                         final String amount) {
+        return new DepositDao.PendingResponse(account.getId(),
+                                              UUID.randomUUID(),
+                                              UUID.randomUUID(),
+                                              TransactionType.PURCHASE,
+                                              new BigDecimal(amount),
+                                              account.getCurrency(),
+                                              ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, refNumber, false),
+                                                                               new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, depositType, false),
+                                                                               new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, effectiveDate, false),
+                                                                               new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, invoiceNumber, false)),
+                                              context.getTenantId());
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.UUIDBinding;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestDepositBinaryUuids extends TestBase {
+
+    @Test(groups = "fast")
+    public void testBinaryUuids() {
+        final String uuid = "5ce3f4a8-0d95-4c46-9e5a-1b5f6f3b2f1e";
+        final byte[] bytes = UUIDBinding.toBytes(uuid);
+        Assert.assertEquals(bytes.length, 16);
+        // Same as unhex(replace(uuid, '-', '')) in the migration
+        Assert.assertEquals(bytes[0], (byte) 0x5c);
+        Assert.assertEquals(bytes[15], (byte) 0x1e);
+        Assert.assertEquals(UUIDBinding.fromBytes(bytes), uuid);
+    }
+
+    @Test(groups = "slow")
+    public void testMigration() throws Exception {
+        // The MySQL migration relies on the DELIMITER command of the mysql client
+        if (EmbeddedDbHelper.instance().getDBEngine() != EmbeddedDB.DBEngine.POSTGRESQL) {
+            throw new SkipException("The migration is only run against PostgreSQL");
+        }
+
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        dao.addPaymentMethod(account.getId(), kbPaymentMethodId, ImmutableMap.<String, Object>of(), clock.getUTCNow(), context.getTenantId());
+        final DepositResponsesRecord before = addResponse(dao, 1);
+
+        try {
+            EmbeddedDbHelper.instance().executeScript("binary-uuids/migration-postgresql.sql");
+            Assert.assertEquals(getColumnType("deposit_responses", "kb_account_id"), "uuid");
+            Assert.assertEquals(getColumnType("deposit_payment_methods", "kb_active_account_id"), "uuid");
+
+            // Rows written before the migration
+            final List<PaymentTransactionInfoPlugin> paymentInfo = depositPaymentPluginApi.getPaymentInfo(account.getId(),
+                                                                                                          UUID.fromString(before.getKbPaymentId()),
+                                                                                                          ImmutableList.<PluginProperty>of(),
+                                                                                                          context);
+            Assert.assertEquals(paymentInfo.size(), 1);
+            Assert.assertEquals(paymentInfo.get(0).getKbTransactionPaymentId().toString(), before.getKbPaymentTransactionId());
+            Assert.assertEquals(dao.getActivePaymentMethodId(account.getId(), context.getTenantId()), kbPaymentMethodId);
+
+            // Rows written after the migration
+            final DepositResponsesRecord after = addResponse(dao, 2);
+            Assert.assertEquals(dao.getDepositResponse("WIRE-12345", 2, context.getTenantId()).getKbPaymentId(), after.getKbPaymentId());
+            Assert.assertEquals(dao.getResponses(UUID.fromString(after.getKbPaymentId()), context.getTenantId()).get(0).getKbAccountId(), account.getId().toString());
+        } finally {
+            EmbeddedDbHelper.instance().recreateSchema();
+        }
+    }
+
+    private DepositResponsesRecord addResponse(final DepositDao dao, final Integer invoiceNumber) throws Exception {
+        return dao.addResponse(account.getId(),
+                               UUID.randomUUID(),
+                               UUID.randomUUID(),
+                               TransactionType.PURCHASE,
+                               BigDecimal.TEN,
+                               account.getCurrency(),
+                               ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, "WIRE-12345", false),
+                                                                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, invoiceNumber, false)),
+                               clock.getUTCNow(),
+                               context.getTenantId());
+    }
+
+    private String getColumnType(final String tableName, final String columnName) throws Exception {
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("select data_type from information_schema.columns where table_name = '" + tableName + "' and column_name = '" + columnName + "'")) {
+            Assert.assertTrue(resultSet.next());
+            return resultSet.getString(1);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.api.Healthcheck.HealthStatus;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestDepositHealthcheck extends TestBase {
+
+    private static final int WINDOW_SIZE = 4;
+    private static final int DEGRADED_LATENCY_MS = 50;
+    private static final int UNHEALTHY_LATENCY_MS = 200;
+
+    @Test(groups = "fast")
+    public void testThresholds() throws Exception {
+        final DepositDao depositDao = Mockito.mock(DepositDao.class);
+        final DepositHealthcheck healthcheck = new DepositHealthcheck(depositDao, 1000, WINDOW_SIZE, DEGRADED_LATENCY_MS, UNHEALTHY_LATENCY_MS, 50);
+        Assert.assertTrue(healthcheck.getHealthStatus(null, null).isHealthy());
+
+        probe(healthcheck, 3);
+        checkStatus(healthcheck, true, "healthy");
+
+        // Errors: degraded, then unhealthy once they reach the maximum rate
+        Mockito.doThrow(new SQLException("Connection refused")).when(depositDao).probe(Mockito.anyInt());
+        probe(healthcheck, 1);
+        checkStatus(healthcheck, true, "degraded");
+        Assert.assertEquals(healthcheck.getHealthStatus(null, null).getDetails().get("lastError"), "java.sql.SQLException: Connection refused");
+        probe(healthcheck, 1);
+        checkStatus(healthcheck, false, "unhealthy");
+
+        // The failed probes leave the window
+        Mockito.doNothing().when(depositDao).probe(Mockito.anyInt());
+        probe(healthcheck, WINDOW_SIZE);
+        checkStatus(healthcheck, true, "healthy");
+
+        // Slow probes: the median latency is above the degraded threshold
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(DEGRADED_LATENCY_MS + 10);
+                return null;
+            }
+        }).when(depositDao).probe(Mockito.anyInt());
+        probe(healthcheck, WINDOW_SIZE - 1);
+        checkStatus(healthcheck, true, "degraded");
+    }
+
+    @Test(groups = "fast")
+    public void testHangingProbe() throws Exception {
+        final DepositDao depositDao = Mockito.mock(DepositDao.class);
+        final DepositHealthcheck healthcheck = new DepositHealthcheck(depositDao, 1000, WINDOW_SIZE, DEGRADED_LATENCY_MS, UNHEALTHY_LATENCY_MS, 50);
+        probe(healthcheck, 2);
+
+        final CountDownLatch probeLatch = new CountDownLatch(1);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                probeLatch.await();
+                return null;
+            }
+        }).when(depositDao).probe(Mockito.anyInt());
+        final Thread probeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                healthcheck.probe();
+            }
+        });
+        probeThread.start();
+        try {
+            Assert.assertTrue(healthcheck.getHealthStatus(null, null).isHealthy());
+            Thread.sleep(UNHEALTHY_LATENCY_MS + 50);
+
+            // The check doesn't wait for the probe
+            final long startNanos = System.nanoTime();
+            final HealthStatus healthStatus = healthcheck.getHealthStatus(null, null);
+            Assert.assertTrue(System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(DEGRADED_LATENCY_MS));
+            Assert.assertFalse(healthStatus.isHealthy());
+        } finally {
+            probeLatch.countDown();
+            probeThread.join();
+        }
+        // A single slow probe: the median latency is still fine
+        checkStatus(healthcheck, true, "healthy");
+    }
+
+    @Test(groups = "slow")
+    public void testProbe() throws Exception {
+        final DepositHealthcheck healthcheck = new DepositHealthcheck(EmbeddedDbHelper.instance().getDepositDao(),
+                                                                      1000,
+                                                                      WINDOW_SIZE,
+                                                                      DepositHealthcheck.DEFAULT_DEGRADED_LATENCY_MS,
+                                                                      DepositHealthcheck.DEFAULT_UNHEALTHY_LATENCY_MS,
+                                                                      DepositHealthcheck.DEFAULT_MAX_ERROR_RATE_PERCENT);
+        probe(healthcheck, 1);
+        Assert.assertTrue(healthcheck.getHealthStatus(null, null).isHealthy(), String.valueOf(healthcheck.getHealthStatus(null, null).getDetails()));
+        Assert.assertEquals(healthcheck.getHealthStatus(null, null).getDetails().get("errorRatePercent"), 0);
+    }
+
+    private static void probe(final DepositHealthcheck healthcheck, final int nbProbes) {
+        for (int i = 0; i < nbProbes; i++) {
+            healthcheck.probe();
+        }
+    }
+
+    private static void checkStatus(final DepositHealthcheck healthcheck, final boolean healthy, final String status) {
+        final HealthStatus healthStatus = healthcheck.getHealthStatus(null, null);
+        Assert.assertEquals(healthStatus.isHealthy(), healthy, String.valueOf(healthStatus.getDetails()));
+        Assert.assertEquals(healthStatus.getDetails().get("status"), status);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.jooby.Parser;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.jooq.types.ULong;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.InvoicePaymentApi;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.tenant.api.TenantUserApi;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Import throughput on synthetic 100k-line files, Kill Bill calls being mocked (i.e. this measures the plugin overhead only).
+ * Run with -Ptest-stress.
+ */
+public class TestDepositImportThroughput extends TestBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestDepositImportThroughput.class);
+
+    private static final int NB_LINES = 100000;
+    private static final int NB_INVOICES = 1000;
+
+    private final AtomicLong nbPurchases = new AtomicLong();
+
+    private DepositExecutors depositExecutors;
+    private DepositServlet depositServlet;
+    private Tenant tenant;
+
+    @BeforeMethod(groups = "stress")
+    public void setUpImport() throws Exception {
+        setUp();
+        nbPurchases.set(0);
+
+        tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(UUID.randomUUID());
+
+        final AccountUserApi accountUserApi = Mockito.mock(AccountUserApi.class);
+        Mockito.when(accountUserApi.getAccountById(Mockito.<UUID>any(), Mockito.<TenantContext>any())).thenReturn(account);
+        Mockito.when(killbillApi.getAccountUserApi()).thenReturn(accountUserApi);
+
+        final PaymentMethod depositPaymentMethod = Mockito.mock(PaymentMethod.class);
+        Mockito.when(depositPaymentMethod.getId()).thenReturn(UUID.randomUUID());
+        Mockito.when(depositPaymentMethod.getPluginName()).thenReturn(DepositActivator.PLUGIN_NAME);
+        final PaymentApi paymentApi = Mockito.mock(PaymentApi.class);
+        Mockito.when(paymentApi.getAccountPaymentMethods(Mockito.<UUID>any(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.<Iterable<PluginProperty>>any(),
+                                                         Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<PaymentMethod>of(depositPaymentMethod));
+        Mockito.when(killbillApi.getPaymentApi()).thenReturn(paymentApi);
+
+        // Mocks can't be created concurrently: build all the invoices upfront
+        final UUID accountId = account.getId();
+        final Map<Integer, Invoice> invoices = new HashMap<Integer, Invoice>();
+        for (int invoiceNumber = 1; invoiceNumber <= NB_INVOICES; invoiceNumber++) {
+            final UUID invoiceId = UUID.randomUUID();
+            final Invoice invoice = Mockito.mock(Invoice.class);
+            Mockito.when(invoice.getId()).thenReturn(invoiceId);
+            Mockito.when(invoice.getAccountId()).thenReturn(accountId);
+            Mockito.when(invoice.getCurrency()).thenReturn(DEFAULT_CURRENCY);
+            Mockito.when(invoice.getInvoiceNumber()).thenReturn(invoiceNumber);
+            invoices.put(invoiceNumber, invoice);
+        }
+        final InvoiceUserApi invoiceUserApi = Mockito.mock(InvoiceUserApi.class);
+        Mockito.when(invoiceUserApi.getInvoiceByNumber(Mockito.<Integer>any(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<Invoice>() {
+                   @Override
+                   public Invoice answer(final InvocationOnMock invocation) {
+                       return invoices.get(invocation.<Integer>getArgument(0));
+                   }
+               });
+        Mockito.when(killbillApi.getInvoiceUserApi()).thenReturn(invoiceUserApi);
+
+        final InvoicePaymentApi invoicePaymentApi = Mockito.mock(InvoicePaymentApi.class);
+        Mockito.when(invoicePaymentApi.createPurchaseForInvoicePayment(Mockito.<Account>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<BigDecimal>any(),
+                                                                       Mockito.any(),
+                                                                       Mockito.<DateTime>any(),
+                                                                       Mockito.<String>any(),
+                                                                       Mockito.<String>any(),
+                                                                       Mockito.<Iterable<PluginProperty>>any(),
+                                                                       Mockito.any(),
+                                                                       Mockito.<CallContext>any()))
+               .thenAnswer(new Answer<Object>() {
+                   @Override
+                   public Object answer(final InvocationOnMock invocation) {
+                       nbPurchases.incrementAndGet();
+                       return null;
+                   }
+               });
+        Mockito.when(killbillApi.getInvoicePaymentApi()).thenReturn(invoicePaymentApi);
+
+        final OSGIKillbillClock osgiKillbillClock = Mockito.mock(OSGIKillbillClock.class);
+        Mockito.when(osgiKillbillClock.getClock()).thenReturn(clock);
+
+        final TenantUserApi tenantUserApi = Mockito.mock(TenantUserApi.class);
+        Mockito.when(killbillApi.getTenantUserApi()).thenReturn(tenantUserApi);
+        final DepositConfigurationHandler configurationHandler = new DepositConfigurationHandler(null, DepositActivator.PLUGIN_NAME, killbillApi);
+        configurationHandler.setDefaultConfigurable(new DepositConfiguration());
+
+        depositExecutors = new DepositExecutors(DepositExecutors.DEFAULT_BATCH_THREADS,
+                                                DepositExecutors.DEFAULT_BATCH_QUEUE_SIZE,
+                                                DepositExecutors.DEFAULT_PAYMENT_THREADS,
+                                                DepositExecutors.DEFAULT_PAYMENT_QUEUE_SIZE,
+                                                DepositExecutors.DEFAULT_STREAM_THREADS);
+        final DepositInvoiceCache invoiceCache = new DepositInvoiceCache(DepositInvoiceCache.DEFAULT_CACHE_SIZE);
+        final DepositDao dao = Mockito.mock(DepositDao.class);
+        Mockito.when(dao.getLastRecordId()).thenReturn(ULong.valueOf(0));
+        // Loaded (empty), so that new deposits aren't looked up
+        final DepositReferenceFilter depositReferenceFilter = new DepositReferenceFilter(DepositReferenceFilter.DEFAULT_EXPECTED_DEPOSITS, DepositReferenceFilter.DEFAULT_REFRESH_INTERVAL_MS);
+        depositReferenceFilter.refresh(dao);
+        final DepositService depositService = new DepositService(killbillApi,
+                                                                 osgiKillbillClock,
+                                                                 depositExecutors,
+                                                                 configurationHandler,
+                                                                 new DepositPaymentMethodCache(DepositPaymentMethodCache.DEFAULT_CACHE_SIZE),
+                                                                 invoiceCache,
+                                                                 dao,
+                                                                 depositReferenceFilter,
+                                                                 new DepositMetrics());
+        depositServlet = new DepositServlet(killbillApi, depositExecutors, invoiceCache, depositService, Mockito.mock(DepositJobQueue.class));
+    }
+
+    @AfterMethod(groups = "stress")
+    public void tearDownImport() {
+        depositExecutors.shutdown();
+    }
+
+    @Test(groups = "stress")
+    public void testBai2ImportThroughput() throws Exception {
+        final StringBuilder bai2 = new StringBuilder("01,BANK,COMPANY,210316,1200,1,,,2/\n" +
+                                                     "02,COMPANY,BANK,1,210316,,USD,2/\n" +
+                                                     "03,123456789,USD,010,0,,/\n");
+        final int nbTransactions = NB_LINES - 6;
+        for (int i = 0; i < nbTransactions; i++) {
+            bai2.append("16,115,").append(100 + i % 10000).append(",0,LOCKBOX-").append(i).append(',').append(1 + i % NB_INVOICES).append("/\n");
+        }
+        bai2.append("49,0,").append(nbTransactions + 2).append("/\n")
+            .append("98,0,1,").append(nbTransactions + 4).append("/\n")
+            .append("99,0,1,").append(nbTransactions + 6).append("/\n");
+        final byte[] body = bai2.toString().getBytes(StandardCharsets.US_ASCII);
+
+        final long startNanos = System.nanoTime();
+        final Result result = depositServlet.importBai2(new DepositImportBody(toBodyReference(body)),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        tenant);
+        final int nbCreated = countCreatedResults(result);
+        logThroughput("BAI2", body.length, startNanos);
+
+        Assert.assertEquals(nbCreated, nbTransactions);
+        Assert.assertEquals(nbPurchases.get(), nbTransactions);
+    }
+
+    @Test(groups = "stress")
+    public void testLockboxImportThroughput() throws Exception {
+        final StringBuilder lockbox = new StringBuilder("100COMPANY    BANK      2103161200\n");
+        // Each payment pays two invoices: one payment record and two remittance records
+        final int nbPayments = (NB_LINES - 1) / 3;
+        int batchNumber = 0;
+        for (int i = 0; i < nbPayments; i++) {
+            final int itemNumber = i % 999 + 1;
+            if (itemNumber == 1) {
+                batchNumber++;
+                lockbox.append(String.format("5%03d%7s%6s\n", batchNumber % 1000, "LB00012", "210316"));
+            }
+            lockbox.append(String.format("6%03d%03d%010d%9s%10s%10s%-20s\n", batchNumber % 1000, itemNumber, 300, "021000021", "1234567890", i, ""));
+            lockbox.append(String.format("4%03d%03d%15s%010d%-20s\n", batchNumber % 1000, itemNumber, 1 + i % NB_INVOICES, 100, ""));
+            lockbox.append(String.format("4%03d%03d%15s%010d%-20s\n", batchNumber % 1000, itemNumber, 1 + (i + 1) % NB_INVOICES, 200, ""));
+        }
+        final byte[] body = lockbox.toString().getBytes(StandardCharsets.US_ASCII);
+
+        final long startNanos = System.nanoTime();
+        final Result result = depositServlet.importLockbox(new DepositImportBody(toBodyReference(body)),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           tenant);
+        final int nbCreated = countCreatedResults(result);
+        logThroughput("Lockbox", body.length, startNanos);
+
+        Assert.assertEquals(nbCreated, nbPayments);
+        Assert.assertEquals(nbPurchases.get(), 2 * nbPayments);
+    }
+
+    private void logThroughput(final String format, final int nbBytes, final long startNanos) {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        logger.info("{} import: {} lines ({} bytes) in {} s, {} lines/s, {} purchases",
+                    format, NB_LINES, nbBytes, String.format("%.2f", seconds), String.format("%.0f", NB_LINES / seconds), nbPurchases.get());
+    }
+
+    private static int countCreatedResults(final Result result) throws Exception {
+        Assert.assertEquals(result.status().get(), Status.OK);
+
+        int nbCreated = 0;
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(result.<InputStream>get(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (PluginAppBuilder.DEFAULT_OBJECT_MAPPER.readValue(line, DepositServlet.DepositResultJson.class).status == Status.CREATED.value()) {
+                    nbCreated++;
+                }
+            }
+        }
+        return nbCreated;
+    }
+
+    // 8 KB chunks, like a body buffered on disk
+    private static Parser.BodyReference toBodyReference(final byte[] body) {
+        return new Parser.BodyReference() {
+            @Override
+            public byte[] bytes() {
+                return body;
+            }
+
+            @Override
+            public String text() {
+                return new String(body, StandardCharsets.US_ASCII);
+            }
+
+            @Override
+            public long length() {
+                return body.length;
+            }
+
+            @Override
+            public void writeTo(final OutputStream output) throws Exception {
+                for (int i = 0; i < body.length; i += 8192) {
+                    output.write(body, i, Math.min(8192, body.length - i));
+                }
+            }
+        };
+    }
+}
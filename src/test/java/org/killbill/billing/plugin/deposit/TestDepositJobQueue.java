@@ -0,0 +1,329 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJobJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.InvoiceDepositJson;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositJobsRecord;
+import org.killbill.billing.tenant.api.Tenant;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestDepositJobQueue extends TestBase {
+
+    private static final long JOB_TIMEOUT_MS = 30000;
+    // Jobs left in PROCESSING for longer are re-queued
+    private static final long STALE_JOB_TIMEOUT_MS = 60000;
+    // Completed jobs older than that are purged
+    private static final long JOB_RETENTION_MS = 3600000;
+
+    // Number of times each deposit (by payment reference number) was recorded
+    private final Map<String, AtomicInteger> recordedDeposits = new ConcurrentHashMap<String, AtomicInteger>();
+    // Deposits WIRE-SLOW-* are only recorded once released
+    private CountDownLatch slowDeposits;
+
+    private DepositDao dao;
+    private OSGIKillbillClock osgiKillbillClock;
+    private DepositService depositService;
+    private Tenant tenant;
+    private List<DepositJobQueue> depositJobQueues;
+
+    @BeforeMethod(groups = "slow")
+    public void setUpJobQueue() throws Exception {
+        recordedDeposits.clear();
+        slowDeposits = new CountDownLatch(1);
+        dao = EmbeddedDbHelper.instance().getDepositDao();
+
+        osgiKillbillClock = Mockito.mock(OSGIKillbillClock.class);
+        Mockito.when(osgiKillbillClock.getClock()).thenReturn(clock);
+
+        tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(UUID.randomUUID());
+
+        // Pays all invoices but the second one, which is aborted
+        depositService = Mockito.mock(DepositService.class);
+        Mockito.when(depositService.recordDepositSafely(Mockito.<DepositJson>any(),
+                                                        Mockito.<UUID>any(),
+                                                        Mockito.<Optional<String>>any(),
+                                                        Mockito.<Optional<String>>any(),
+                                                        Mockito.<Optional<String>>any(),
+                                                        Mockito.<UUID>any(),
+                                                        Mockito.<Status[]>any()))
+               .thenAnswer(new Answer<Status>() {
+                   @Override
+                   public Status answer(final InvocationOnMock invocation) throws InterruptedException {
+                       final DepositJson depositJson = invocation.getArgument(0);
+                       if (depositJson.paymentReferenceNumber.startsWith("WIRE-SLOW") && !slowDeposits.await(JOB_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                           return Status.SERVER_ERROR;
+                       }
+                       final Status[] paymentStatuses = invocation.getArgument(6);
+                       recordedDeposits.putIfAbsent(depositJson.paymentReferenceNumber, new AtomicInteger());
+                       recordedDeposits.get(depositJson.paymentReferenceNumber).incrementAndGet();
+
+                       for (int i = 0; i < paymentStatuses.length; i++) {
+                           paymentStatuses[i] = i == 1 ? Status.UNPROCESSABLE_ENTITY : Status.CREATED;
+                           if (i == 1) {
+                               return Status.UNPROCESSABLE_ENTITY;
+                           }
+                       }
+                       return Status.CREATED;
+                   }
+               });
+
+        depositJobQueues = new ArrayList<DepositJobQueue>();
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDownJobQueue() {
+        for (final DepositJobQueue depositJobQueue : depositJobQueues) {
+            depositJobQueue.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testRecordAsyncPayments() throws Exception {
+        // Not started: jobs are only claimed when the queue is woken up
+        final DepositJobQueue depositJobQueue = createJobQueue("node-1", 60000);
+        final DepositServlet depositServlet = new DepositServlet(killbillApi,
+                                                                 Mockito.mock(DepositExecutors.class),
+                                                                 new DepositInvoiceCache(1),
+                                                                 depositService,
+                                                                 depositJobQueue);
+
+        final UUID accountId = UUID.randomUUID();
+        final Result result = depositServlet.recordAsyncPayments(buildDepositJson(accountId, "WIRE-1", 3),
+                                                                 Optional.<String>empty(),
+                                                                 Optional.<String>of("admin"),
+                                                                 Optional.<String>empty(),
+                                                                 Optional.<String>empty(),
+                                                                 tenant);
+        Assert.assertEquals(result.status().get(), Status.ACCEPTED);
+        final DepositJobJson acceptedJob = result.get();
+        Assert.assertEquals(acceptedJob.jobStatus, DepositDao.JOB_STATUS_PENDING);
+        Assert.assertEquals(acceptedJob.accountId, accountId);
+        Assert.assertEquals(acceptedJob.paymentReferenceNumber, "WIRE-1");
+        Assert.assertNull(acceptedJob.status);
+        Assert.assertEquals(result.headers().get("Location"), "/plugins/killbill-deposit/jobs/" + acceptedJob.jobId);
+
+        final DepositJobJson completedJob = waitForCompletion(depositServlet, acceptedJob.jobId);
+        Assert.assertEquals(completedJob.accountId, accountId);
+        Assert.assertEquals(completedJob.status, (Integer) Status.UNPROCESSABLE_ENTITY.value());
+        Assert.assertEquals(completedJob.payments.size(), 3);
+        Assert.assertEquals(completedJob.payments.get(0).invoiceNumber, (Integer) 1);
+        Assert.assertEquals(completedJob.payments.get(0).status, (Integer) Status.CREATED.value());
+        Assert.assertEquals(completedJob.payments.get(1).status, (Integer) Status.UNPROCESSABLE_ENTITY.value());
+        Assert.assertNull(completedJob.payments.get(2).status);
+        Assert.assertEquals(recordedDeposits.get("WIRE-1").get(), 1);
+
+        // Jobs are only visible to their tenant
+        final Tenant otherTenant = Mockito.mock(Tenant.class);
+        Mockito.when(otherTenant.getId()).thenReturn(UUID.randomUUID());
+        Assert.assertEquals(depositServlet.getJob(acceptedJob.jobId, otherTenant).status().get(), Status.NOT_FOUND);
+        Assert.assertEquals(depositServlet.getJob(UUID.randomUUID(), tenant).status().get(), Status.NOT_FOUND);
+
+        // Invalid deposits aren't queued
+        Assert.assertEquals(depositServlet.recordAsyncPayments(buildDepositJson(null, "WIRE-2", 1),
+                                                               Optional.<String>empty(),
+                                                               Optional.<String>empty(),
+                                                               Optional.<String>empty(),
+                                                               Optional.<String>empty(),
+                                                               tenant).status().get(),
+                            Status.BAD_REQUEST);
+    }
+
+    @Test(groups = "slow")
+    public void testJobsAreProcessedOnceAcrossNodes() throws Exception {
+        // Three nodes polling the same table
+        final List<DepositServlet> depositServlets = new ArrayList<DepositServlet>();
+        for (int i = 0; i < 3; i++) {
+            final DepositJobQueue depositJobQueue = createJobQueue("node-" + i, 10);
+            depositJobQueue.start();
+            depositServlets.add(new DepositServlet(killbillApi, Mockito.mock(DepositExecutors.class), new DepositInvoiceCache(1), depositService, depositJobQueue));
+        }
+
+        final List<UUID> jobIds = new ArrayList<UUID>();
+        for (int i = 0; i < 60; i++) {
+            final Result result = depositServlets.get(i % depositServlets.size()).recordAsyncPayments(buildDepositJson(UUID.randomUUID(), "WIRE-" + i, 1),
+                                                                                                      Optional.<String>empty(),
+                                                                                                      Optional.<String>empty(),
+                                                                                                      Optional.<String>empty(),
+                                                                                                      Optional.<String>empty(),
+                                                                                                      tenant);
+            jobIds.add(result.<DepositJobJson>get().jobId);
+        }
+
+        for (final UUID jobId : jobIds) {
+            Assert.assertEquals(waitForCompletion(depositServlets.get(0), jobId).status, (Integer) Status.CREATED.value());
+        }
+        Assert.assertEquals(recordedDeposits.size(), 60);
+        for (final AtomicInteger nbRecords : recordedDeposits.values()) {
+            Assert.assertEquals(nbRecords.get(), 1);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testStaleJobsAreRequeued() throws Exception {
+        // Job claimed by a node which dies before completing it
+        final DepositJobQueue deadJobQueue = createJobQueue("node-dead", 10);
+        deadJobQueue.stop();
+        final DepositServlet deadServlet = new DepositServlet(killbillApi, Mockito.mock(DepositExecutors.class), new DepositInvoiceCache(1), depositService, deadJobQueue);
+        final UUID jobId = deadServlet.recordAsyncPayments(buildDepositJson(UUID.randomUUID(), "WIRE-STALE", 1),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           tenant).<DepositJobJson>get().jobId;
+        Assert.assertEquals(dao.claimJobs("node-dead", 100, clock.getUTCNow()).size(), 1);
+
+        final DepositJobQueue depositJobQueue = createJobQueue("node-1", 10);
+        depositJobQueue.start();
+        final DepositServlet depositServlet = new DepositServlet(killbillApi, Mockito.mock(DepositExecutors.class), new DepositInvoiceCache(1), depositService, depositJobQueue);
+
+        // Not timed out yet
+        Thread.sleep(100);
+        Assert.assertEquals(depositServlet.getJob(jobId, tenant).<DepositJobJson>get().jobStatus, DepositDao.JOB_STATUS_PROCESSING);
+        Assert.assertNull(recordedDeposits.get("WIRE-STALE"));
+
+        clock.addDeltaFromReality(2 * STALE_JOB_TIMEOUT_MS);
+        Assert.assertEquals(waitForCompletion(depositServlet, jobId).status, (Integer) Status.CREATED.value());
+        Assert.assertEquals(recordedDeposits.get("WIRE-STALE").get(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testRequeuedJobsAreOnlyCompletedByTheirNewOwner() throws Exception {
+        final UUID jobId = UUID.randomUUID();
+        dao.addJob(jobId, UUID.randomUUID(), "{}", clock.getUTCNow(), tenant.getId());
+        final DepositJobsRecord job = dao.claimJobs("node-dead", 100, clock.getUTCNow()).get(0);
+
+        clock.addDeltaFromReality(2 * STALE_JOB_TIMEOUT_MS);
+        Assert.assertEquals(dao.requeueStaleJobs(clock.getUTCNow().minus(STALE_JOB_TIMEOUT_MS), clock.getUTCNow()), 1);
+        Assert.assertEquals(dao.claimJobs("node-1", 100, clock.getUTCNow()).size(), 1);
+
+        // The first attempt completes late: the new one isn't overridden
+        Assert.assertFalse(dao.completeJob(job.getRecordId(), "node-dead", "{\"status\":500}", clock.getUTCNow()));
+        Assert.assertEquals(dao.getJob(jobId, tenant.getId()).getStatus(), DepositDao.JOB_STATUS_PROCESSING);
+
+        Assert.assertTrue(dao.completeJob(job.getRecordId(), "node-1", "{\"status\":201}", clock.getUTCNow()));
+        Assert.assertEquals(dao.getJob(jobId, tenant.getId()).getStatus(), DepositDao.JOB_STATUS_COMPLETED);
+        Assert.assertEquals(dao.getJob(jobId, tenant.getId()).getResult(), "{\"status\":201}");
+        Assert.assertFalse(dao.completeJob(job.getRecordId(), "node-1", "{\"status\":500}", clock.getUTCNow()));
+    }
+
+    @Test(groups = "slow")
+    public void testCompletedJobsArePurged() throws Exception {
+        final DepositJobQueue depositJobQueue = createJobQueue("node-1", 60000);
+        final List<UUID> jobIds = new ArrayList<UUID>();
+        for (int i = 0; i < 3; i++) {
+            jobIds.add(UUID.randomUUID());
+            dao.addJob(jobIds.get(i), UUID.randomUUID(), "{}", clock.getUTCNow(), tenant.getId());
+        }
+        final List<DepositJobsRecord> jobs = dao.claimJobs("node-1", 2, clock.getUTCNow());
+        Assert.assertEquals(jobs.size(), 2);
+        Assert.assertTrue(dao.completeJob(jobs.get(0).getRecordId(), "node-1", "{}", clock.getUTCNow()));
+
+        // Within the retention period
+        depositJobQueue.purgeJobs();
+        Assert.assertNotNull(dao.getJob(jobIds.get(0), tenant.getId()));
+
+        // Only the completed job is purged: the others are still pending or being processed
+        clock.addDeltaFromReality(2 * JOB_RETENTION_MS);
+        depositJobQueue.purgeJobs();
+        Assert.assertNull(dao.getJob(jobIds.get(0), tenant.getId()));
+        Assert.assertEquals(dao.getJob(jobIds.get(1), tenant.getId()).getStatus(), DepositDao.JOB_STATUS_PROCESSING);
+        Assert.assertEquals(dao.getJob(jobIds.get(2), tenant.getId()).getStatus(), DepositDao.JOB_STATUS_PENDING);
+    }
+
+    @Test(groups = "slow")
+    public void testSlowJobsAreNotRequeued() throws Exception {
+        final DepositJobQueue depositJobQueue = createJobQueue("node-1", 10);
+        depositJobQueue.start();
+        final DepositJobQueue otherJobQueue = createJobQueue("node-2", 10);
+        otherJobQueue.start();
+        final DepositServlet depositServlet = new DepositServlet(killbillApi, Mockito.mock(DepositExecutors.class), new DepositInvoiceCache(1), depositService, depositJobQueue);
+        final UUID jobId = depositServlet.recordAsyncPayments(buildDepositJson(UUID.randomUUID(), "WIRE-SLOW-1", 1),
+                                                              Optional.<String>empty(),
+                                                              Optional.<String>empty(),
+                                                              Optional.<String>empty(),
+                                                              Optional.<String>empty(),
+                                                              tenant).<DepositJobJson>get().jobId;
+
+        // Running for longer than the timeout: its lease is renewed in the meantime
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(100);
+            Assert.assertEquals(depositServlet.getJob(jobId, tenant).<DepositJobJson>get().jobStatus, DepositDao.JOB_STATUS_PROCESSING);
+            clock.addDeltaFromReality(STALE_JOB_TIMEOUT_MS / 2);
+        }
+
+        slowDeposits.countDown();
+        Assert.assertEquals(waitForCompletion(depositServlet, jobId).status, (Integer) Status.CREATED.value());
+        Assert.assertEquals(recordedDeposits.get("WIRE-SLOW-1").get(), 1);
+    }
+
+    private DepositJobQueue createJobQueue(final String owner, final int pollIntervalMs) {
+        final DepositJobQueue depositJobQueue = new DepositJobQueue(dao, depositService, osgiKillbillClock, 4, pollIntervalMs, STALE_JOB_TIMEOUT_MS, JOB_RETENTION_MS, owner);
+        depositJobQueues.add(depositJobQueue);
+        return depositJobQueue;
+    }
+
+    private DepositJobJson waitForCompletion(final DepositServlet depositServlet, final UUID jobId) throws Exception {
+        final long deadline = System.currentTimeMillis() + JOB_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            final Result result = depositServlet.getJob(jobId, tenant);
+            Assert.assertEquals(result.status().get(), Status.OK);
+            final DepositJobJson depositJobJson = result.get();
+            if (DepositDao.JOB_STATUS_COMPLETED.equals(depositJobJson.jobStatus)) {
+                return depositJobJson;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("Timed out waiting for jobId=" + jobId);
+        return null;
+    }
+
+    private DepositJson buildDepositJson(final UUID accountId, final String paymentReferenceNumber, final int nbInvoices) {
+        final List<InvoiceDepositJson> payments = new ArrayList<InvoiceDepositJson>();
+        for (int i = 1; i <= nbInvoices; i++) {
+            payments.add(new InvoiceDepositJson(i, BigDecimal.TEN));
+        }
+        return new DepositJson(accountId, new DateTime("2021-03-16"), paymentReferenceNumber, "wire", ImmutableList.<InvoiceDepositJson>copyOf(payments));
+    }
+}
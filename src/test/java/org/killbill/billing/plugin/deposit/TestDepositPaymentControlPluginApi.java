@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.deposit;
 
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.UUID;
@@ -35,6 +36,8 @@ import com.google.common.collect.ImmutableList;
 
 public class TestDepositPaymentControlPluginApi extends TestBase {
 
+    private DepositMetrics depositMetrics;
+
     @Test(groups = "fast")
     public void testNoOp() throws Exception {
         final DepositPaymentControlPluginApi depositPaymentControlPluginApi = buildDepositPaymentControlPluginApi(ImmutableList.<String>of());
@@ -68,6 +71,126 @@ public class TestDepositPaymentControlPluginApi extends TestBase {
 
         Mockito.when(paymentControlContext.getCurrency()).thenReturn(Currency.GBP);
         Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+
+        final StringWriter metrics = new StringWriter();
+        depositMetrics.write(metrics);
+        Assert.assertTrue(metrics.toString().contains("killbill_deposit_control_decisions_total{decision=\"aborted\"} 1\n"), metrics.toString());
+        Assert.assertTrue(metrics.toString().contains("killbill_deposit_control_decisions_total{decision=\"allowed\"} 1\n"), metrics.toString());
+        Assert.assertTrue(metrics.toString().contains("killbill_deposit_control_duration_seconds_count 2\n"), metrics.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testCompiledRules() throws Exception {
+        final UUID allowedPaymentMethodId = UUID.randomUUID();
+        final String rawConfig = "!!org.killbill.billing.plugin.deposit.DepositConfiguration\n" +
+                                 "  minAmounts:\n" +
+                                 "    USD: 0.5\n" +
+                                 "  maxAmounts:\n" +
+                                 "    USD: 1000\n" +
+                                 "    EUR: 500\n" +
+                                 "  depositTypeMinAmounts:\n" +
+                                 "    WIRE:\n" +
+                                 "      USD: 100\n" +
+                                 "  depositTypeMaxAmounts:\n" +
+                                 "    CHECK:\n" +
+                                 "      USD: 200\n" +
+                                 "  allowedPaymentMethodIds:\n" +
+                                 "    EUR:\n" +
+                                 "      - " + allowedPaymentMethodId;
+        final DepositPaymentControlPluginApi depositPaymentControlPluginApi = buildDepositPaymentControlPluginApi(ImmutableList.<String>of(rawConfig));
+
+        final PaymentControlContext paymentControlContext = Mockito.mock(PaymentControlContext.class);
+        final UUID tenantId = context.getTenantId();
+        Mockito.when(paymentControlContext.getTenantId()).thenReturn(tenantId);
+        Mockito.when(paymentControlContext.getPaymentMethodId()).thenReturn(UUID.randomUUID());
+
+        // Minimum and maximum amounts
+        Mockito.when(paymentControlContext.getCurrency()).thenReturn(Currency.USD);
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("1000"));
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("1000.01"));
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+
+        // Deposit type thresholds
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("50"));
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, depositType("CHECK")).isAborted());
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, depositType("WIRE")).isAborted());
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, depositType("ACH")).isAborted());
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("500"));
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, depositType("CHECK")).isAborted());
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, depositType("WIRE")).isAborted());
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+
+        // Allowed payment methods
+        Mockito.when(paymentControlContext.getCurrency()).thenReturn(Currency.EUR);
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("10"));
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+        Mockito.when(paymentControlContext.getPaymentMethodId()).thenReturn(allowedPaymentMethodId);
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("500.01"));
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+
+        // No rule for the currency
+        Mockito.when(paymentControlContext.getCurrency()).thenReturn(Currency.GBP);
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("0.01"));
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+    }
+
+    @Test(groups = "fast")
+    public void testVelocityLimits() throws Exception {
+        final String rawConfig = "!!org.killbill.billing.plugin.deposit.DepositConfiguration\n" +
+                                 "  velocityWindowSeconds: 3600\n" +
+                                 "  velocityMaxDeposits: 3\n" +
+                                 "  velocityMaxAmounts:\n" +
+                                 "    USD: 100";
+        final DepositPaymentControlPluginApi depositPaymentControlPluginApi = buildDepositPaymentControlPluginApi(ImmutableList.<String>of(rawConfig));
+
+        final PaymentControlContext paymentControlContext = Mockito.mock(PaymentControlContext.class);
+        final UUID tenantId = context.getTenantId();
+        Mockito.when(paymentControlContext.getTenantId()).thenReturn(tenantId);
+        final UUID accountId = UUID.randomUUID();
+        Mockito.when(paymentControlContext.getAccountId()).thenReturn(accountId);
+        Mockito.when(paymentControlContext.getCurrency()).thenReturn(Currency.USD);
+        final List<PluginProperty> deposit = ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, "ref-1", false));
+
+        // Amount limit
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("60"));
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        depositPaymentControlPluginApi.onSuccessCall(paymentControlContext, deposit);
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        // Only deposits are limited
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, ImmutableList.<PluginProperty>of()).isAborted());
+
+        // Count limit (failed deposits count too)
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("10"));
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        depositPaymentControlPluginApi.onFailureCall(paymentControlContext, deposit);
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        depositPaymentControlPluginApi.onSuccessCall(paymentControlContext, deposit);
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+
+        // Other accounts aren't affected
+        Mockito.when(paymentControlContext.getAccountId()).thenReturn(UUID.randomUUID());
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+
+        // Deposits in flight are counted, and their amount reserved, before they complete
+        Mockito.when(paymentControlContext.getAccountId()).thenReturn(UUID.randomUUID());
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("60"));
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        Assert.assertTrue(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        // The amount of a failed deposit is given back
+        depositPaymentControlPluginApi.onFailureCall(paymentControlContext, deposit);
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+        Mockito.when(paymentControlContext.getAmount()).thenReturn(new BigDecimal("10"));
+
+        // The window slides
+        clock.addDeltaFromReality(3600 * 1000L);
+        Mockito.when(paymentControlContext.getAccountId()).thenReturn(accountId);
+        Assert.assertFalse(depositPaymentControlPluginApi.priorCall(paymentControlContext, deposit).isAborted());
+    }
+
+    private List<PluginProperty> depositType(final String depositType) {
+        return ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, depositType, false));
     }
 
     private DepositPaymentControlPluginApi buildDepositPaymentControlPluginApi(final List<String> configs) throws TenantApiException {
@@ -82,9 +205,12 @@ public class TestDepositPaymentControlPluginApi extends TestBase {
                                                                                                  killbillApi);
         configurationHandler.setDefaultConfigurable(new DepositConfiguration());
 
+        depositMetrics = new DepositMetrics();
         return new DepositPaymentControlPluginApi(configurationHandler,
+                                                  new DepositVelocityTracker(DepositVelocityTracker.DEFAULT_MAX_ACCOUNTS, DepositVelocityTracker.DEFAULT_IDLE_EXPIRATION_MINUTES),
                                                   killbillApi,
                                                   configPropertiesService,
-                                                  clock);
+                                                  clock,
+                                                  depositMetrics);
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.api.payment.PluginPaymentMethodPlugin;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositPaymentMethodsRecord;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestDepositPaymentMethodConcurrency extends TestBase {
+
+    private static final int NB_ACCOUNTS = 20;
+    private static final int NB_THREADS_PER_NODE = 8;
+
+    // Payment methods committed in Kill Bill, i.e. for which the plugin call succeeded
+    private final Map<UUID, UUID> killbillPaymentMethodIds = new ConcurrentHashMap<UUID, UUID>();
+    private final Map<UUID, PaymentMethod> killbillPaymentMethods = new HashMap<UUID, PaymentMethod>();
+    private final Map<UUID, Account> accounts = new HashMap<UUID, Account>();
+
+    private DepositDao dao;
+    private Tenant tenant;
+    private List<DepositExecutors> depositExecutors;
+    private List<DepositPaymentMethodCache> paymentMethodCaches;
+    private List<DepositServlet> depositServlets;
+
+    @BeforeMethod(groups = "slow")
+    public void setUpNodes() throws Exception {
+        killbillPaymentMethodIds.clear();
+        killbillPaymentMethods.clear();
+        accounts.clear();
+
+        dao = EmbeddedDbHelper.instance().getDepositDao();
+
+        tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(UUID.randomUUID());
+
+        for (int i = 0; i < NB_ACCOUNTS; i++) {
+            final Account newAccount = TestUtils.buildAccount(DEFAULT_CURRENCY, DEFAULT_COUNTRY);
+            final UUID accountId = newAccount.getId();
+            accounts.put(accountId, newAccount);
+
+            // Mocks are created upfront, as Mockito stubbing isn't thread-safe
+            final PaymentMethod paymentMethod = Mockito.mock(PaymentMethod.class);
+            Mockito.when(paymentMethod.getId()).thenAnswer(new Answer<UUID>() {
+                @Override
+                public UUID answer(final InvocationOnMock invocation) {
+                    return killbillPaymentMethodIds.get(accountId);
+                }
+            });
+            Mockito.when(paymentMethod.getPluginName()).thenReturn(DepositActivator.PLUGIN_NAME);
+            killbillPaymentMethods.put(accountId, paymentMethod);
+        }
+
+        final AccountUserApi accountUserApi = Mockito.mock(AccountUserApi.class);
+        Mockito.when(accountUserApi.getAccountById(Mockito.<UUID>any(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<Account>() {
+                   @Override
+                   public Account answer(final InvocationOnMock invocation) throws Throwable {
+                       return accounts.get(invocation.<UUID>getArgument(0));
+                   }
+               });
+        Mockito.when(killbillApi.getAccountUserApi()).thenReturn(accountUserApi);
+
+        final PaymentApi paymentApi = Mockito.mock(PaymentApi.class);
+        Mockito.when(paymentApi.getAccountPaymentMethods(Mockito.<UUID>any(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.<Iterable<PluginProperty>>any(),
+                                                         Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<List<PaymentMethod>>() {
+                   @Override
+                   public List<PaymentMethod> answer(final InvocationOnMock invocation) throws Throwable {
+                       final UUID accountId = invocation.getArgument(0);
+                       if (killbillPaymentMethodIds.get(accountId) == null) {
+                           return ImmutableList.<PaymentMethod>of();
+                       }
+                       return ImmutableList.<PaymentMethod>of(killbillPaymentMethods.get(accountId));
+                   }
+               });
+        // Like Kill Bill, only record the payment method if the plugin accepted it
+        Mockito.when(paymentApi.addPaymentMethod(Mockito.<Account>any(),
+                                                 Mockito.<String>any(),
+                                                 Mockito.<String>any(),
+                                                 Mockito.anyBoolean(),
+                                                 Mockito.<PaymentMethodPlugin>any(),
+                                                 Mockito.<Iterable<PluginProperty>>any(),
+                                                 Mockito.<CallContext>any()))
+               .thenAnswer(new Answer<UUID>() {
+                   @Override
+                   public UUID answer(final InvocationOnMock invocation) throws Throwable {
+                       final Account paymentMethodAccount = invocation.getArgument(0);
+                       final PaymentMethodPlugin paymentMethodPlugin = invocation.getArgument(4);
+                       final CallContext callContext = invocation.getArgument(6);
+                       final UUID paymentMethodId = UUID.randomUUID();
+                       try {
+                           depositPaymentPluginApi.addPaymentMethod(paymentMethodAccount.getId(),
+                                                                    paymentMethodId,
+                                                                    paymentMethodPlugin,
+                                                                    false,
+                                                                    ImmutableList.<PluginProperty>of(),
+                                                                    callContext);
+                       } catch (final PaymentPluginApiException e) {
+                           throw new PaymentApiException(e, ErrorCode.PAYMENT_ADD_PAYMENT_METHOD, paymentMethodAccount.getId(), e.getErrorMessage());
+                       }
+
+                       killbillPaymentMethodIds.put(paymentMethodAccount.getId(), paymentMethodId);
+                       return paymentMethodId;
+                   }
+               });
+        Mockito.when(killbillApi.getPaymentApi()).thenReturn(paymentApi);
+
+        final OSGIKillbillClock osgiKillbillClock = Mockito.mock(OSGIKillbillClock.class);
+        Mockito.when(osgiKillbillClock.getClock()).thenReturn(clock);
+
+        // Two servlets with their own caches and locks, sharing the database: two nodes of a cluster
+        depositExecutors = new ArrayList<DepositExecutors>();
+        paymentMethodCaches = new ArrayList<DepositPaymentMethodCache>();
+        depositServlets = new ArrayList<DepositServlet>();
+        for (int i = 0; i < 2; i++) {
+            final DepositExecutors nodeExecutors = new DepositExecutors(1, 1, 1, 1, 1);
+            final DepositPaymentMethodCache nodeCache = new DepositPaymentMethodCache(NB_ACCOUNTS);
+            depositExecutors.add(nodeExecutors);
+            paymentMethodCaches.add(nodeCache);
+            final DepositInvoiceCache nodeInvoiceCache = new DepositInvoiceCache(1);
+            final DepositService nodeService = new DepositService(killbillApi, osgiKillbillClock, nodeExecutors, buildConfigurationHandler(), nodeCache, nodeInvoiceCache, dao, new DepositReferenceFilter(1000, 1000), new DepositMetrics());
+            depositServlets.add(new DepositServlet(killbillApi, nodeExecutors, nodeInvoiceCache, nodeService, Mockito.mock(DepositJobQueue.class)));
+        }
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDownNodes() {
+        for (final DepositExecutors nodeExecutors : depositExecutors) {
+            nodeExecutors.shutdown();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testConcurrentGetOrCreateDepositPaymentMethod() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(depositServlets.size() * NB_THREADS_PER_NODE);
+        try {
+            for (final UUID accountId : accounts.keySet()) {
+                final CountDownLatch startLatch = new CountDownLatch(1);
+                final List<Future<Result>> futures = new ArrayList<Future<Result>>();
+                for (final DepositServlet depositServlet : depositServlets) {
+                    for (int i = 0; i < NB_THREADS_PER_NODE; i++) {
+                        futures.add(executor.submit(new Callable<Result>() {
+                            @Override
+                            public Result call() throws Exception {
+                                startLatch.await();
+                                return depositServlet.recordPayments(buildDepositJson(accountId),
+                                                                     Optional.<String>empty(),
+                                                                     Optional.<String>empty(),
+                                                                     Optional.<String>empty(),
+                                                                     Optional.<String>empty(),
+                                                                     tenant);
+                            }
+                        }));
+                    }
+                }
+
+                startLatch.countDown();
+                for (final Future<Result> future : futures) {
+                    Assert.assertEquals(future.get(30, TimeUnit.SECONDS).status().get(), Status.CREATED);
+                }
+
+                // A single row in the plugin, seen by both nodes
+                final List<DepositPaymentMethodsRecord> paymentMethods = dao.getPaymentMethods(accountId, tenant.getId());
+                Assert.assertEquals(paymentMethods.size(), 1);
+                final UUID paymentMethodId = UUID.fromString(paymentMethods.get(0).getKbPaymentMethodId());
+                Assert.assertEquals(dao.getActivePaymentMethodId(accountId, tenant.getId()), paymentMethodId);
+                for (final DepositPaymentMethodCache paymentMethodCache : paymentMethodCaches) {
+                    Assert.assertEquals(paymentMethodCache.getIfPresent(tenant.getId(), accountId), paymentMethodId);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testRecreateDeletedDepositPaymentMethod() throws Exception {
+        final UUID accountId = accounts.keySet().iterator().next();
+        final UUID tenantId = tenant.getId();
+        final CallContext callContext = Mockito.mock(CallContext.class);
+        Mockito.when(callContext.getTenantId()).thenReturn(tenantId);
+        final PaymentMethodPlugin paymentMethodPlugin = new PluginPaymentMethodPlugin(null, null, false, ImmutableList.<PluginProperty>of());
+
+        final UUID firstPaymentMethodId = UUID.randomUUID();
+        depositPaymentPluginApi.addPaymentMethod(accountId, firstPaymentMethodId, paymentMethodPlugin, false, ImmutableList.<PluginProperty>of(), callContext);
+        try {
+            depositPaymentPluginApi.addPaymentMethod(accountId, UUID.randomUUID(), paymentMethodPlugin, false, ImmutableList.<PluginProperty>of(), callContext);
+            Assert.fail("A second active deposit payment method shouldn't be allowed");
+        } catch (final PaymentPluginApiException expected) {
+            Assert.assertEquals(dao.getActivePaymentMethodId(accountId, tenantId), firstPaymentMethodId);
+        }
+
+        // Deleted rows don't count against the constraint
+        depositPaymentPluginApi.deletePaymentMethod(accountId, firstPaymentMethodId, ImmutableList.<PluginProperty>of(), callContext);
+        Assert.assertNull(dao.getActivePaymentMethodId(accountId, tenantId));
+
+        final UUID secondPaymentMethodId = UUID.randomUUID();
+        depositPaymentPluginApi.addPaymentMethod(accountId, secondPaymentMethodId, paymentMethodPlugin, false, ImmutableList.<PluginProperty>of(), callContext);
+        Assert.assertEquals(dao.getActivePaymentMethodId(accountId, tenantId), secondPaymentMethodId);
+    }
+
+    private DepositConfigurationHandler buildConfigurationHandler() {
+        final DepositConfigurationHandler configurationHandler = new DepositConfigurationHandler(null, DepositActivator.PLUGIN_NAME, killbillApi);
+        configurationHandler.setDefaultConfigurable(new DepositConfiguration());
+        return configurationHandler;
+    }
+
+    private DepositServlet.DepositJson buildDepositJson(final UUID accountId) {
+        return new DepositServlet.DepositJson(accountId,
+                                              new DateTime("2021-03-16"),
+                                              UUID.randomUUID().toString(),
+                                              "wire",
+                                              ImmutableList.<DepositServlet.InvoiceDepositJson>of());
+    }
+}
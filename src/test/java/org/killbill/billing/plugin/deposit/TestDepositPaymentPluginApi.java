@@ -17,11 +17,26 @@
 
 package org.killbill.billing.plugin.deposit;
 
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 
 import org.joda.time.DateTime;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.jooq.exception.DataAccessException;
+import org.jooq.types.ULong;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
 import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PaymentApiException;
 import org.killbill.billing.payment.api.PaymentTransaction;
@@ -33,11 +48,18 @@ import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
 import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.api.PluginProperties;
 import org.killbill.billing.plugin.api.payment.PluginPaymentMethodPlugin;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.util.entity.Pagination;
+import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.google.common.collect.ImmutableList;
 
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses.DEPOSIT_RESPONSES;
+
 public class TestDepositPaymentPluginApi extends TestBase {
 
     @Test(groups = "slow")
@@ -87,6 +109,161 @@ public class TestDepositPaymentPluginApi extends TestBase {
         Assert.assertEquals(paymentInfo.get(0), purchaseInfoPlugin);
     }
 
+    @Test(groups = "slow")
+    public void testPurchasedTwice() throws Exception {
+        final UUID kbPaymentMethodId = UUID.randomUUID();
+        depositPaymentPluginApi.addPaymentMethod(account.getId(),
+                                                 kbPaymentMethodId,
+                                                 new PluginPaymentMethodPlugin(kbPaymentMethodId, null, false, ImmutableList.of()),
+                                                 false,
+                                                 ImmutableList.<PluginProperty>of(),
+                                                 context);
+
+        final String refNumber = "WIRE-" + UUID.randomUUID();
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+        Assert.assertNull(dao.getDepositResponse(refNumber, 1, context.getTenantId()));
+
+        final Payment payment = purchase(kbPaymentMethodId, refNumber, 1);
+        final DepositResponsesRecord depositResponse = dao.getDepositResponse(refNumber, 1, context.getTenantId());
+        Assert.assertEquals(depositResponse.getKbPaymentId(), payment.getId().toString());
+        Assert.assertEquals(depositResponse.getDepositInvoiceNumber(), (Integer) 1);
+
+        // Same deposit, other invoice
+        purchase(kbPaymentMethodId, refNumber, 2);
+
+        try {
+            purchase(kbPaymentMethodId, refNumber, 1);
+            Assert.fail("The invoice has already been paid for this deposit");
+        } catch (final PaymentPluginApiException expected) {
+            Assert.assertEquals(dao.getDepositResponse(refNumber, 1, context.getTenantId()).getKbPaymentId(), payment.getId().toString());
+        }
+
+        // Refreshes pick up all the keys, in batches
+        final DepositReferenceFilter depositReferenceFilter = new DepositReferenceFilter(1000, 1000);
+        Assert.assertTrue(depositReferenceFilter.mightContain(context.getTenantId(), refNumber, 3));
+        depositReferenceFilter.refresh(dao);
+        Assert.assertTrue(depositReferenceFilter.mightContain(context.getTenantId(), refNumber, 1));
+        Assert.assertTrue(depositReferenceFilter.mightContain(context.getTenantId(), refNumber, 2));
+        Assert.assertFalse(depositReferenceFilter.mightContain(context.getTenantId(), refNumber, 3));
+    }
+
+    @Test(groups = "slow")
+    public void testAddResponses() throws Exception {
+        final DepositMetrics metrics = new DepositMetrics();
+        final DepositDao dao = new DepositDao(EmbeddedDbHelper.instance().getDataSource(), DepositDao.AdditionalDataEncoding.JSON, metrics);
+        final String refNumber = "WIRE-" + UUID.randomUUID();
+
+        // More responses than fit in a single INSERT
+        final List<DepositDao.PendingResponse> responses = new ArrayList<DepositDao.PendingResponse>();
+        for (int invoiceNumber = 1; invoiceNumber <= 2 * DepositDao.MAX_RESPONSES_PER_INSERT + 1; invoiceNumber++) {
+            responses.add(pendingResponse(refNumber, invoiceNumber));
+        }
+        final List<DepositResponsesRecord> records = dao.addResponses(responses, clock.getUTCNow());
+        Assert.assertEquals(records.size(), responses.size());
+
+        // The returned records match the ones which would be read back
+        Assert.assertEquals(dao.getResponses(responses.get(0).getKbPaymentId(), context.getTenantId()).size(), 1);
+        for (final DepositResponsesRecord record : ImmutableList.<DepositResponsesRecord>of(records.get(0), records.get(records.size() - 1))) {
+            final DepositResponsesRecord storedRecord = dao.getDepositResponse(refNumber, record.getDepositInvoiceNumber(), context.getTenantId());
+            Assert.assertEquals(record.getRecordId(), storedRecord.getRecordId());
+            Assert.assertEquals(record.getKbPaymentId(), storedRecord.getKbPaymentId());
+            Assert.assertEquals(record.getAmount().compareTo(storedRecord.getAmount()), 0);
+            Assert.assertEquals(record.getAdditionalData(), storedRecord.getAdditionalData());
+            Assert.assertEquals(record.getCreatedDate(), storedRecord.getCreatedDate());
+        }
+
+        // The responses are recorded atomically: a duplicate in the last INSERT rolls back the first one
+        final String otherRefNumber = "WIRE-" + UUID.randomUUID();
+        final List<DepositDao.PendingResponse> responsesWithDuplicate = new ArrayList<DepositDao.PendingResponse>();
+        for (int invoiceNumber = 1; invoiceNumber <= DepositDao.MAX_RESPONSES_PER_INSERT; invoiceNumber++) {
+            responsesWithDuplicate.add(pendingResponse(otherRefNumber, invoiceNumber));
+        }
+        responsesWithDuplicate.add(pendingResponse(refNumber, 1));
+        try {
+            dao.addResponses(responsesWithDuplicate, clock.getUTCNow());
+            Assert.fail("The invoice has already been paid for this deposit");
+        } catch (final DataAccessException expected) {
+            Assert.assertNull(dao.getDepositResponse(otherRefNumber, 1, context.getTenantId()));
+        }
+
+        // Each statement is timed
+        final StringWriter metricsWriter = new StringWriter();
+        metrics.write(metricsWriter);
+        Assert.assertTrue(metricsWriter.toString().contains("killbill_deposit_statement_duration_seconds_count{type=\"read\"} 4\n"), metricsWriter.toString());
+        Assert.assertTrue(metricsWriter.toString().contains("killbill_deposit_statement_errors_total{type=\"write\"} 1\n"), metricsWriter.toString());
+    }
+
+    @Test(groups = "slow")
+    public void testAdditionalDataEncodings() throws Exception {
+        // Text column (ddl.sql): Smile isn't written
+        final DepositDao textDao = EmbeddedDbHelper.instance().getDepositDao(DepositDao.AdditionalDataEncoding.SMILE);
+        final DepositResponsesRecord textRecord = textDao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse("WIRE-" + UUID.randomUUID(), 1)), clock.getUTCNow()).get(0);
+        Assert.assertEquals(textRecord.getAdditionalData()[0], '{');
+
+        setAdditionalDataColumnType(true);
+        try {
+            checkAdditionalDataEncodings();
+        } finally {
+            setAdditionalDataColumnType(false);
+        }
+    }
+
+    private void checkAdditionalDataEncodings() throws Exception {
+        // The column types are looked up by each DAO
+        final DepositDao jsonDao = EmbeddedDbHelper.instance().getDepositDao(DepositDao.AdditionalDataEncoding.JSON);
+        final DepositDao smileDao = EmbeddedDbHelper.instance().getDepositDao(DepositDao.AdditionalDataEncoding.SMILE);
+        final String refNumber = "WIRE-" + UUID.randomUUID();
+
+        final DepositResponsesRecord jsonRecord = jsonDao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse(refNumber, 1)), clock.getUTCNow()).get(0);
+        final DepositResponsesRecord smileRecord = smileDao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse(refNumber, 2)), clock.getUTCNow()).get(0);
+        Assert.assertEquals(jsonRecord.getAdditionalData()[0], '{');
+        Assert.assertTrue(smileRecord.getAdditionalData().length < jsonRecord.getAdditionalData().length);
+
+        // Both encodings are readable, whatever the configured one
+        for (final Integer invoiceNumber : ImmutableList.<Integer>of(1, 2)) {
+            final DepositResponsesRecord record = jsonDao.getDepositResponse(refNumber, invoiceNumber, context.getTenantId());
+            final Map additionalData = DepositDao.fromAdditionalData(record.getAdditionalData());
+            Assert.assertEquals(additionalData.get(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER), refNumber);
+            Assert.assertEquals(additionalData.get(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER), String.valueOf(invoiceNumber));
+        }
+
+        // The JSON row is re-encoded (in batches), the other one is left untouched
+        final DepositAdditionalDataReencoder reencoder = new DepositAdditionalDataReencoder(smileDao, clock, 1, 1000);
+        while (!reencoder.reencodeBatch()) {
+            // Keep going
+        }
+        // The progress is saved, for the encoding
+        Assert.assertEquals(smileDao.getReencodedRecordId(DEPOSIT_RESPONSES), smileRecord.getRecordId());
+        Assert.assertEquals(jsonDao.getReencodedRecordId(DEPOSIT_RESPONSES), ULong.valueOf(0));
+        final DepositResponsesRecord reencodedRecord = smileDao.getDepositResponse(refNumber, 1, context.getTenantId());
+        Assert.assertEquals(reencodedRecord.getAdditionalData().length, smileDao.toAdditionalData(DepositDao.fromAdditionalData(jsonRecord.getAdditionalData())).length);
+        Assert.assertEquals(DepositDao.fromAdditionalData(reencodedRecord.getAdditionalData()), DepositDao.fromAdditionalData(jsonRecord.getAdditionalData()));
+        Assert.assertEquals(smileDao.getDepositResponse(refNumber, 2, context.getTenantId()).getAdditionalData(), smileRecord.getAdditionalData());
+    }
+
+    // Bytes (binary-additional-data schema variant) or text (ddl.sql): the existing values are dropped
+    private void setAdditionalDataColumnType(final boolean binary) throws Exception {
+        final String columnType;
+        switch (EmbeddedDbHelper.instance().getDBEngine()) {
+            case MYSQL:
+                columnType = binary ? "longblob" : "longtext";
+                break;
+            case POSTGRESQL:
+                columnType = binary ? "bytea" : "text";
+                break;
+            default:
+                columnType = binary ? "blob" : "clob";
+        }
+
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement()) {
+            for (final String tableName : ImmutableList.<String>of("deposit_responses", "deposit_payment_methods")) {
+                statement.execute("alter table " + tableName + " drop column additional_data");
+                statement.execute("alter table " + tableName + " add column additional_data " + columnType + " default null");
+            }
+        }
+    }
+
     @Test(groups = "slow")
     public void testAddPaymentMethod() throws PaymentPluginApiException {
         final UUID kbAccountId = account.getId();
@@ -112,4 +289,282 @@ public class TestDepositPaymentPluginApi extends TestBase {
         Assert.assertEquals(pms.size(), 1);
         Assert.assertEquals(pms.get(0).getPaymentMethodId(), kbPaymentMethodId);
     }
+
+    @Test(groups = "slow")
+    public void testSearchPayments() throws Exception {
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+        dao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse("WIRE-1", 1, "wire", "2021-03-01", "10"),
+                                                                      pendingResponse("WIRE-1", 2, "wire", "2021-03-01", "250"),
+                                                                      pendingResponse("CHECK-2", 1, "check", "2021-03-15", "40"),
+                                                                      pendingResponse("CHECK-3", 1, "check", "2021-04-01", "99.5"),
+                                                                      pendingResponse("WIRE-4", 1, "wire", "2021-04-02", "1000")),
+                         clock.getUTCNow());
+
+        // All the payments, two by two
+        final List<String> allReferences = new ArrayList<String>();
+        Long offset = 0L;
+        int nbPages = 0;
+        while (offset != null) {
+            final Pagination<PaymentTransactionInfoPlugin> page = depositPaymentPluginApi.searchPayments(null, offset, 2L, ImmutableList.<PluginProperty>of(), context);
+            Assert.assertEquals(page.getCurrentOffset(), offset);
+            for (final PaymentTransactionInfoPlugin info : page) {
+                allReferences.add(info.getFirstPaymentReferenceId());
+            }
+            offset = page.getNextOffset();
+            nbPages++;
+        }
+        Assert.assertEquals(nbPages, 3);
+        Assert.assertEquals(allReferences, ImmutableList.<String>of("WIRE-1", "WIRE-1", "CHECK-2", "CHECK-3", "WIRE-4"));
+
+        Assert.assertEquals(searchReferences("WIRE-1", ImmutableList.<PluginProperty>of()), ImmutableList.<String>of("WIRE-1", "WIRE-1"));
+        Assert.assertEquals(searchReferences(null, ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, "check", false),
+                                                                                    new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_MIN_AMOUNT, "50", false))),
+                            ImmutableList.<String>of("CHECK-3"));
+        // The upper bound of the effective date is exclusive, the amounts are inclusive
+        Assert.assertEquals(searchReferences(null, ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_FROM, "2021-03-01", false),
+                                                                                    new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_TO, "2021-04-01", false),
+                                                                                    new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_MAX_AMOUNT, "250", false))),
+                            ImmutableList.<String>of("WIRE-1", "WIRE-1", "CHECK-2"));
+
+        try {
+            searchReferences(null, ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_MIN_AMOUNT, "ten", false)));
+            Assert.fail("Invalid amount");
+        } catch (final PaymentPluginApiException expected) {
+        }
+
+        // On a range of effective dates, the payments are sorted by effective date (then creation order)
+        dao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse("CASH-5", 1, null, "2021-03-02", "5")), clock.getUTCNow());
+        final List<PluginProperty> march = ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_FROM, "2021-03-01", false),
+                                                                            new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE_TO, "2021-04-01", false));
+        final List<String> marchReferences = new ArrayList<String>();
+        offset = 0L;
+        nbPages = 0;
+        while (offset != null) {
+            final Pagination<PaymentTransactionInfoPlugin> page = depositPaymentPluginApi.searchPayments(null, offset, 2L, march, context);
+            for (final PaymentTransactionInfoPlugin info : page) {
+                marchReferences.add(info.getFirstPaymentReferenceId());
+            }
+            offset = page.getNextOffset();
+            nbPages++;
+        }
+        Assert.assertEquals(nbPages, 2);
+        Assert.assertEquals(marchReferences, ImmutableList.<String>of("WIRE-1", "WIRE-1", "CASH-5", "CHECK-2"));
+
+        // Same search through the REST API
+        final DepositSearchServlet searchServlet = new DepositSearchServlet(dao);
+        final UUID kbTenantId = context.getTenantId();
+        final Tenant tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(kbTenantId);
+        final Result result = searchServlet.search(Optional.<String>empty(),
+                                                   Optional.of("wire"),
+                                                   Optional.<String>empty(),
+                                                   Optional.<String>empty(),
+                                                   Optional.<String>empty(),
+                                                   Optional.<String>empty(),
+                                                   Optional.<Long>empty(),
+                                                   Optional.of(2),
+                                                   tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+        final DepositSearchServlet.DepositSearchResultJson firstPage = result.get();
+        Assert.assertEquals(firstPage.payments.size(), 2);
+        Assert.assertEquals(firstPage.payments.get(1).amount.compareTo(new BigDecimal("250")), 0);
+        Assert.assertEquals(firstPage.payments.get(1).invoiceNumber, (Integer) 2);
+        final DepositSearchServlet.DepositSearchResultJson lastPage = searchServlet.search(Optional.<String>empty(),
+                                                                                           Optional.of("wire"),
+                                                                                           Optional.<String>empty(),
+                                                                                           Optional.<String>empty(),
+                                                                                           Optional.<String>empty(),
+                                                                                           Optional.<String>empty(),
+                                                                                           Optional.of(firstPage.nextCursor),
+                                                                                           Optional.of(2),
+                                                                                           tenant).get();
+        Assert.assertEquals(lastPage.payments.size(), 1);
+        Assert.assertEquals(lastPage.payments.get(0).paymentReferenceNumber, "WIRE-4");
+        Assert.assertNull(lastPage.nextCursor);
+
+        // Other tenant
+        final Tenant otherTenant = Mockito.mock(Tenant.class);
+        Mockito.when(otherTenant.getId()).thenReturn(UUID.randomUUID());
+        final DepositSearchServlet.DepositSearchResultJson otherTenantPage = searchServlet.search(Optional.<String>empty(),
+                                                                                                 Optional.<String>empty(),
+                                                                                                 Optional.<String>empty(),
+                                                                                                 Optional.<String>empty(),
+                                                                                                 Optional.<String>empty(),
+                                                                                                 Optional.<String>empty(),
+                                                                                                 Optional.<Long>empty(),
+                                                                                                 Optional.<Integer>empty(),
+                                                                                                 otherTenant).get();
+        Assert.assertTrue(otherTenantPage.payments.isEmpty());
+    }
+
+    @Test(groups = "slow")
+    public void testExportPayments() throws Exception {
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+        dao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse("WIRE-1", 1, "wire", "2021-02-28", "10"),
+                                                                      pendingResponse("WIRE,\"2\"", 1, "wire", "2021-03-01", "250"),
+                                                                      pendingResponse("=HYPERLINK(\"http://example.com\")", 1, "wire", "2021-03-15", "5"),
+                                                                      pendingResponse("CHECK-3", null, "check", "2021-03-31", "40"),
+                                                                      pendingResponse("CHECK-4", 1, "check", "2021-04-01", "99.5")),
+                         clock.getUTCNow());
+
+        // A stream thread per export: the previous one may not be back in the pool yet
+        final DepositExecutors depositExecutors = new DepositExecutors(1, 1, 1, 1, 4);
+        try {
+            final DepositExportServlet exportServlet = new DepositExportServlet(dao, depositExecutors);
+            final UUID kbTenantId = context.getTenantId();
+            final Tenant tenant = Mockito.mock(Tenant.class);
+            Mockito.when(tenant.getId()).thenReturn(kbTenantId);
+
+            // The upper bound is exclusive
+            final Result result = exportServlet.export(Optional.of("2021-03-01"), Optional.of("2021-04-01"), tenant);
+            Assert.assertEquals(result.status().get(), Status.OK);
+            Assert.assertEquals(result.type().get().name(), DepositCsvWriter.MEDIA_TYPE);
+            final List<String> lines = readLines(result);
+            Assert.assertEquals(lines.size(), 4);
+            Assert.assertEquals(lines.get(0), "recordId,accountId,paymentId,paymentTransactionId,transactionType,amount,currency,depositType,paymentReferenceNumber,effectiveDate,invoiceNumber,createdDate");
+            final String[] firstRow = lines.get(1).split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+            Assert.assertEquals(firstRow.length, 12);
+            Assert.assertEquals(firstRow[1], account.getId().toString());
+            Assert.assertEquals(firstRow[4], TransactionType.PURCHASE.toString());
+            Assert.assertEquals(new BigDecimal(firstRow[5]).compareTo(new BigDecimal("250")), 0);
+            Assert.assertEquals(firstRow[8], "\"WIRE,\"\"2\"\"\"");
+            Assert.assertEquals(firstRow[9], "2021-03-01T00:00:00Z");
+            Assert.assertEquals(firstRow[10], "1");
+            // Not evaluated as a formula by spreadsheets
+            Assert.assertTrue(lines.get(2).contains(",\"'=HYPERLINK(\"\"http://example.com\"\")\",2021-03-15T00:00:00Z,"), lines.get(2));
+            // No invoice number
+            Assert.assertTrue(lines.get(3).contains(",CHECK-3,2021-03-31T00:00:00Z,,"), lines.get(3));
+
+            Assert.assertEquals(readLines(exportServlet.export(Optional.<String>empty(), Optional.<String>empty(), tenant)).size(), 6);
+            Assert.assertEquals(exportServlet.export(Optional.of("March"), Optional.<String>empty(), tenant).status().get(), Status.BAD_REQUEST);
+
+            // Other tenant
+            final Tenant otherTenant = Mockito.mock(Tenant.class);
+            Mockito.when(otherTenant.getId()).thenReturn(UUID.randomUUID());
+            Assert.assertEquals(readLines(exportServlet.export(Optional.<String>empty(), Optional.<String>empty(), otherTenant)).size(), 1);
+        } finally {
+            depositExecutors.shutdown();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testDailyTotals() throws Exception {
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+        dao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse("WIRE-1", 1, "wire", "2021-03-01", "10"),
+                                                                      pendingResponse("WIRE-1", 2, "wire", "2021-03-01T23:59:59Z", "250"),
+                                                                      pendingResponse("CHECK-2", 1, "check", "2021-03-01", "40"),
+                                                                      pendingResponse("CASH-3", 1, null, "2021-03-02", "5.5")),
+                         clock.getUTCNow());
+        // Most likely in another stripe: summed up with the first payment of that day
+        dao.addResponse(account.getId(),
+                        UUID.randomUUID(),
+                        UUID.randomUUID(),
+                        TransactionType.PURCHASE,
+                        new BigDecimal("0.5"),
+                        account.getCurrency(),
+                        ImmutableList.<PluginProperty>of(new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, "CASH-3", false),
+                                                         new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, "2021-03-02", false),
+                                                         new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, 2, false)),
+                        clock.getUTCNow(),
+                        context.getTenantId());
+
+        // Duplicate: the totals are rolled back with the responses
+        try {
+            dao.addResponses(ImmutableList.<DepositDao.PendingResponse>of(pendingResponse("WIRE-4", 1, "wire", "2021-03-01", "1000"),
+                                                                          pendingResponse("WIRE-1", 1, "wire", "2021-03-01", "1000")),
+                             clock.getUTCNow());
+            Assert.fail();
+        } catch (final DataAccessException e) {
+            Assert.assertNotNull(e.getMessage());
+        }
+
+        final OSGIKillbillClock osgiKillbillClock = Mockito.mock(OSGIKillbillClock.class);
+        Mockito.when(osgiKillbillClock.getClock()).thenReturn(clock);
+        final DepositTotalsServlet totalsServlet = new DepositTotalsServlet(dao, osgiKillbillClock);
+        final UUID kbTenantId = context.getTenantId();
+        final Tenant tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(kbTenantId);
+        checkDailyTotals(totalsServlet.getTotals(Optional.<String>empty(), Optional.<String>empty(), tenant).<List<DepositTotalsServlet.DepositDailyTotalJson>>get());
+
+        Assert.assertEquals(totalsServlet.getTotals(Optional.of("2021-03-02"), Optional.of("2021-03-02"), tenant).<List<?>>get().size(), 1);
+        Assert.assertEquals(totalsServlet.getTotals(Optional.of("2021-03-03"), Optional.<String>empty(), tenant).<List<?>>get().size(), 0);
+        Assert.assertEquals(totalsServlet.getTotals(Optional.of("March"), Optional.<String>empty(), tenant).status().get(), Status.BAD_REQUEST);
+
+        // Nothing to fix
+        Assert.assertEquals(dao.rebuildDailyTotals(clock.getUTCNow(), kbTenantId), (Integer) 0);
+        checkDailyTotals(totalsServlet.getTotals(Optional.<String>empty(), Optional.<String>empty(), tenant).<List<DepositTotalsServlet.DepositDailyTotalJson>>get());
+
+        // The rebuild fixes the totals, e.g. after a manual fix: a missing payment, a total without payments, and missing totals
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("update deposit_daily_totals set amount = amount - 10, nb_payments = nb_payments - 1 where deposit_type = 'wire'");
+            statement.execute("insert into deposit_daily_totals (deposit_date, currency, deposit_type, amount, nb_payments, created_date, updated_date, kb_tenant_id, stripe) " +
+                              "values ('2020-12-01', 'USD', 'wire', 99, 1, '2021-03-16 00:00:00', '2021-03-16 00:00:00', '" + kbTenantId + "', 3)");
+            statement.execute("delete from deposit_daily_totals where deposit_date = '2021-03-02'");
+        }
+        Assert.assertEquals(dao.rebuildDailyTotals(clock.getUTCNow(), kbTenantId), (Integer) 3);
+        checkDailyTotals(totalsServlet.getTotals(Optional.<String>empty(), Optional.<String>empty(), tenant).<List<DepositTotalsServlet.DepositDailyTotalJson>>get());
+        Assert.assertEquals(dao.rebuildDailyTotals(clock.getUTCNow(), kbTenantId), (Integer) 0);
+
+        // Other tenant
+        Assert.assertEquals(dao.rebuildDailyTotals(clock.getUTCNow(), UUID.randomUUID()), (Integer) 0);
+        Assert.assertEquals(dao.getDailyTotals(null, null, kbTenantId).size(), 3);
+    }
+
+    private void checkDailyTotals(final List<DepositTotalsServlet.DepositDailyTotalJson> totals) {
+        Assert.assertEquals(totals.size(), 3, totals.toString());
+        Assert.assertEquals(totals.get(0).date.toString(), "2021-03-01");
+        Assert.assertEquals(totals.get(0).depositType, "check");
+        Assert.assertEquals(totals.get(0).amount.compareTo(new BigDecimal("40")), 0);
+        Assert.assertEquals(totals.get(0).nbPayments, (Integer) 1);
+        Assert.assertEquals(totals.get(1).date.toString(), "2021-03-01");
+        Assert.assertEquals(totals.get(1).currency, account.getCurrency().toString());
+        Assert.assertEquals(totals.get(1).depositType, "wire");
+        Assert.assertEquals(totals.get(1).amount.compareTo(new BigDecimal("260")), 0);
+        Assert.assertEquals(totals.get(1).nbPayments, (Integer) 2);
+        // No deposit type
+        Assert.assertEquals(totals.get(2).date.toString(), "2021-03-02");
+        Assert.assertNull(totals.get(2).depositType);
+        Assert.assertEquals(totals.get(2).amount.compareTo(new BigDecimal("6")), 0);
+        Assert.assertEquals(totals.get(2).nbPayments, (Integer) 2);
+    }
+
+    private static List<String> readLines(final Result result) throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(result.<InputStream>get(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private List<String> searchReferences(final String searchKey, final Iterable<PluginProperty> properties) throws PaymentPluginApiException {
+        final List<String> references = new ArrayList<String>();
+        for (final PaymentTransactionInfoPlugin info : depositPaymentPluginApi.searchPayments(searchKey, 0L, 100L, properties, context)) {
+            references.add(info.getFirstPaymentReferenceId());
+        }
+        return references;
+    }
+
+    private Payment purchase(final UUID kbPaymentMethodId, final String refNumber, final Integer invoiceNumber) throws Exception {
+        final Payment payment = TestUtils.buildPayment(account.getId(), kbPaymentMethodId, account.getCurrency(), killbillApi);
+        final PaymentTransaction purchaseTransaction = TestUtils.buildPaymentTransaction(payment, TransactionType.PURCHASE, BigDecimal.TEN, payment.getCurrency());
+        final Iterable<PluginProperty> purchasePluginProperties = ImmutableList.<PluginProperty>of(
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, refNumber, false),
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_TYPE, "wire", false),
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_EFFECTIVE_DATE, new DateTime("2012-02-01"), false),
+                new PluginProperty(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, invoiceNumber, false)
+                                                                                                  );
+        depositPaymentPluginApi.purchasePayment(account.getId(),
+                                                payment.getId(),
+                                                purchaseTransaction.getId(),
+                                                kbPaymentMethodId,
+                                                purchaseTransaction.getAmount(),
+                                                purchaseTransaction.getCurrency(),
+                                                purchasePluginProperties,
+                                                context);
+        return payment;
+    }
 }
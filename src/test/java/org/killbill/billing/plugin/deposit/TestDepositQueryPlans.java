@@ -0,0 +1,504 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.deposit;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.jooq.DSLContext;
+import org.jooq.Query;
+import org.jooq.conf.Settings;
+import org.jooq.impl.DSL;
+import org.jooq.types.ULong;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.dao.PluginDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositPaymentMethods.DEPOSIT_PAYMENT_METHODS;
+import static org.killbill.billing.plugin.deposit.dao.gen.tables.DepositResponses.DEPOSIT_RESPONSES;
+
+/**
+ * Query plans of the DepositDao lookups on a large synthetic dataset: checks that each query uses the index designed for
+ * it (see ddl.sql), reports the latency of the DAO calls, and checks that exports run in constant memory.
+ * <p>
+ * The dataset is generated by the database itself, and is the same from one run to the next: deposit_responses gets
+ * org.killbill.billing.plugin.deposit.queryPlans.rows rows (50M by default, which takes a while to load), spread over
+ * 10 tenants and one account per 20 payments, with effective dates over a year and amounts from 1 to 1000. Each account has
+ * an active deposit payment method, and one in 5 a deleted one as well. Run with -Ptest-stress.
+ */
+public class TestDepositQueryPlans {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestDepositQueryPlans.class);
+
+    private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.deposit.queryPlans.";
+
+    private static final int NB_ROWS = Integer.getInteger(PROPERTY_PREFIX + "rows", 50000000);
+    private static final int NB_TENANTS = Integer.getInteger(PROPERTY_PREFIX + "tenants", 10);
+    private static final int NB_PAYMENTS_PER_ACCOUNT = 20;
+    private static final int NB_ACCOUNTS = Math.max(1, NB_ROWS / NB_PAYMENTS_PER_ACCOUNT);
+    private static final int NB_INVOICES_PER_DEPOSIT = 100;
+    // Effective dates are spread over NB_DAYS days from FIRST_DAY
+    private static final int NB_DAYS = 365;
+    private static final LocalDateTime FIRST_DAY = LocalDateTime.of(2021, 1, 1, 0, 0);
+    private static final int NB_AMOUNTS = 1000;
+    private static final int NB_LOOKUPS = Integer.getInteger(PROPERTY_PREFIX + "lookups", 10000);
+    // Rows inserted per statement
+    private static final int LOAD_CHUNK_SIZE = 1000000;
+
+    private static final String USE_CONNECTION_POOL_PROPERTY = "killbill.test.use.connection.pool";
+
+    private String useConnectionPool;
+    private boolean postgreSQL;
+    private DepositDao dao;
+    private DSLContext dslContext;
+
+    @BeforeClass(groups = "stress")
+    public void setUpDb() throws Exception {
+        // Like in production: don't measure the cost of opening a connection for each query
+        useConnectionPool = System.setProperty(USE_CONNECTION_POOL_PROPERTY, "true");
+        EmbeddedDbHelper.instance().startDb();
+        postgreSQL = EmbeddedDbHelper.instance().getDBEngine() == EmbeddedDB.DBEngine.POSTGRESQL;
+        dao = EmbeddedDbHelper.instance().getDepositDao();
+        // Only used to render the queries to explain
+        dslContext = DSL.using(PluginDao.getSQLDialect(PluginDao.getDBEngine(EmbeddedDbHelper.instance().getDataSource())),
+                               new Settings().withRenderSchema(false));
+
+        final long startNanos = System.nanoTime();
+        loadDataset();
+        logger.info("Loaded {} deposit responses and {} deposit payment methods in {} s", NB_ROWS, NB_ACCOUNTS + NB_ACCOUNTS / 5, (System.nanoTime() - startNanos) / 1000000000L);
+    }
+
+    @AfterClass(groups = "stress")
+    public void tearDownDb() throws Exception {
+        EmbeddedDbHelper.instance().stopDB();
+        if (useConnectionPool == null) {
+            System.clearProperty(USE_CONNECTION_POOL_PROPERTY);
+        } else {
+            System.setProperty(USE_CONNECTION_POOL_PROPERTY, useConnectionPool);
+        }
+    }
+
+    @Test(groups = "stress")
+    public void testQueryPlans() throws Exception {
+        final int row = NB_ROWS / 2;
+        final String kbPaymentId = uuid("payment-", row);
+        final String kbAccountId = uuid("account-", accountIndex(row));
+        final String kbTenantId = uuid("tenant-", accountIndex(row) % NB_TENANTS);
+
+        // DepositDao#getResponses
+        checkPlan(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                            .where(DEPOSIT_RESPONSES.KB_PAYMENT_ID.equal(kbPaymentId))
+                            .and(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                            .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc()),
+                  "deposit_responses_kb_tenant_id_kb_payment_id");
+        // DepositDao#getSuccessfulAuthorizationResponse
+        checkPlan(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                            .where(DEPOSIT_RESPONSES.KB_PAYMENT_ID.equal(kbPaymentId))
+                            .and(DEPOSIT_RESPONSES.TRANSACTION_TYPE.equal(TransactionType.AUTHORIZE.toString()))
+                            .and(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                            .orderBy(DEPOSIT_RESPONSES.RECORD_ID.desc())
+                            .limit(1),
+                  "deposit_responses_kb_tenant_id_kb_payment_id");
+        // DepositDao#getDepositResponse
+        checkPlan(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                            .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                            .and(DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER.equal(depositReferenceNumber(row)))
+                            .and(DEPOSIT_RESPONSES.DEPOSIT_INVOICE_NUMBER.equal(row % NB_INVOICES_PER_DEPOSIT)),
+                  "deposit_responses_deposit_reference_invoice_number");
+        // DepositDao#searchResponses, deep page of the wire deposits: the rows are read in record_id order, from the cursor on
+        // (through deposit_responses_kb_tenant_id_record_id, or the primary key when the tenant owns a large share of the table)
+        final String searchSql = dslContext.renderInlined(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                                                                    .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                                                                    .and(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(ULong.valueOf(NB_ROWS - NB_ROWS / 10)))
+                                                                    .and(DEPOSIT_RESPONSES.DEPOSIT_TYPE.equal("wire"))
+                                                                    .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                                                                    .limit(DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT + 1));
+        final List<String> searchPlan = explain(searchSql);
+        logger.info("Plan of {}:\n  {}", searchSql, String.join("\n  ", searchPlan));
+        Assert.assertFalse(searchPlan.toString().contains(postgreSQL ? "Sort" : "Using filesort"), searchPlan.toString());
+        Assert.assertFalse(searchPlan.toString().contains(postgreSQL ? "Seq Scan" : "type=ALL "), searchPlan.toString());
+        // DepositDao#searchResponses, deep page of a month of deposits: seeked by (deposit_effective_date, record_id), without sort
+        final LocalDateTime monthStart = FIRST_DAY.plusDays(180);
+        final List<String> dateRangePlan = checkPlan(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                                                               .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                                                               .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterOrEqual(monthStart))
+                                                               .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.lessThan(monthStart.plusMonths(1)))
+                                                               .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterOrEqual(monthStart.plusDays(15)))
+                                                               .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterThan(monthStart.plusDays(15))
+                                                                                                            .or(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(ULong.valueOf(row))))
+                                                               .orderBy(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.asc(), DEPOSIT_RESPONSES.RECORD_ID.asc())
+                                                               .limit(DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT + 1),
+                                                     "deposit_responses_kb_tenant_id_deposit_effective_date");
+        Assert.assertFalse(dateRangePlan.toString().contains(postgreSQL ? "Sort" : "Using filesort"), dateRangePlan.toString());
+        // DepositDao#searchResponses, on a range of amounts: the rows are read in record_id order (the range isn't indexed)
+        final String amountSearchSql = dslContext.renderInlined(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                                                                    .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                                                                    .and(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(ULong.valueOf(NB_ROWS / 2)))
+                                                                    .and(DEPOSIT_RESPONSES.AMOUNT.greaterOrEqual(BigDecimal.valueOf(100)))
+                                                                    .and(DEPOSIT_RESPONSES.AMOUNT.lessOrEqual(BigDecimal.valueOf(200)))
+                                                                    .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                                                                    .limit(DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT + 1));
+        final List<String> amountPlan = explain(amountSearchSql);
+        logger.info("Plan of {}:\n  {}", amountSearchSql, String.join("\n  ", amountPlan));
+        Assert.assertFalse(amountPlan.toString().contains(postgreSQL ? "Sort" : "Using filesort"), amountPlan.toString());
+        Assert.assertFalse(amountPlan.toString().contains(postgreSQL ? "Seq Scan" : "type=ALL "), amountPlan.toString());
+        // DepositDao#exportResponses, on a month
+        final List<String> exportPlan = checkPlan(dslContext.select(DEPOSIT_RESPONSES.RECORD_ID, DEPOSIT_RESPONSES.AMOUNT)
+                                                            .from(DEPOSIT_RESPONSES)
+                                                            .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                                                            .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.greaterOrEqual(monthStart))
+                                                            .and(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.lessThan(monthStart.plusMonths(1)))
+                                                            .orderBy(DEPOSIT_RESPONSES.DEPOSIT_EFFECTIVE_DATE.asc(), DEPOSIT_RESPONSES.RECORD_ID.asc()),
+                                                  "deposit_responses_kb_tenant_id_deposit_effective_date");
+        Assert.assertFalse(exportPlan.toString().contains(postgreSQL ? "Sort" : "Using filesort"), exportPlan.toString());
+        // DepositDao#searchResponses, by reference number
+        checkPlan(dslContext.selectFrom(DEPOSIT_RESPONSES)
+                            .where(DEPOSIT_RESPONSES.KB_TENANT_ID.equal(kbTenantId))
+                            .and(DEPOSIT_RESPONSES.RECORD_ID.greaterThan(ULong.valueOf(0)))
+                            .and(DEPOSIT_RESPONSES.DEPOSIT_REFERENCE_NUMBER.equal(depositReferenceNumber(row)))
+                            .orderBy(DEPOSIT_RESPONSES.RECORD_ID.asc())
+                            .limit(DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT + 1),
+                  "deposit_responses_deposit_reference_invoice_number");
+        // DepositDao#getPaymentMethod
+        checkPlan(dslContext.selectFrom(DEPOSIT_PAYMENT_METHODS)
+                            .where(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID.equal(uuid("payment-method-", accountIndex(row))))
+                            .and(DEPOSIT_PAYMENT_METHODS.IS_DELETED.equal((short) PluginDao.FALSE))
+                            .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId)),
+                  "deposit_payment_methods_kb_payment_id");
+        // DepositDao#getPaymentMethods
+        checkPlan(dslContext.selectFrom(DEPOSIT_PAYMENT_METHODS)
+                            .where(DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID.equal(kbAccountId))
+                            .and(DEPOSIT_PAYMENT_METHODS.IS_DELETED.equal((short) PluginDao.FALSE))
+                            .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId))
+                            .orderBy(DEPOSIT_PAYMENT_METHODS.RECORD_ID.asc()),
+                  "deposit_payment_methods_kb_tenant_id_kb_account_id");
+        // DepositDao#setDefaultPaymentMethod
+        checkPlan(dslContext.update(DEPOSIT_PAYMENT_METHODS)
+                            .set(DEPOSIT_PAYMENT_METHODS.IS_DEFAULT, (short) PluginDao.FALSE)
+                            .set(DEPOSIT_PAYMENT_METHODS.UPDATED_DATE, LocalDateTime.of(2021, 3, 16, 0, 0))
+                            .where(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID.notEqual(uuid("payment-method-", accountIndex(row))))
+                            .and(DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID.equal(kbAccountId))
+                            .and(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId)),
+                  "deposit_payment_methods_kb_tenant_id_kb_account_id");
+        // DepositDao#getActivePaymentMethodId: the table itself isn't read
+        final List<String> plan = checkPlan(dslContext.select(DEPOSIT_PAYMENT_METHODS.KB_PAYMENT_METHOD_ID)
+                                                      .from(DEPOSIT_PAYMENT_METHODS)
+                                                      .where(DEPOSIT_PAYMENT_METHODS.KB_TENANT_ID.equal(kbTenantId))
+                                                      .and(DEPOSIT_PAYMENT_METHODS.KB_ACCOUNT_ID.equal(kbAccountId))
+                                                      .and(DEPOSIT_PAYMENT_METHODS.IS_DELETED.notEqual((short) PluginDao.TRUE)),
+                                            "deposit_payment_methods_kb_tenant_id_kb_account_id");
+        Assert.assertTrue(plan.toString().contains(postgreSQL ? "Index Only Scan" : "Using index"), plan.toString());
+    }
+
+    @Test(groups = "stress", dependsOnMethods = "testQueryPlans")
+    public void testLookupLatency() throws Exception {
+        final Random random = new Random(2021);
+        final long[] getResponses = new long[NB_LOOKUPS];
+        final long[] getSuccessfulAuthorizationResponse = new long[NB_LOOKUPS];
+        final long[] getDepositResponse = new long[NB_LOOKUPS];
+        final long[] getPaymentMethod = new long[NB_LOOKUPS];
+        final long[] getPaymentMethods = new long[NB_LOOKUPS];
+        final long[] getActivePaymentMethodId = new long[NB_LOOKUPS];
+        final long[] searchByEffectiveDate = new long[NB_LOOKUPS];
+        final long[] searchByAmount = new long[NB_LOOKUPS];
+        for (int i = 0; i < NB_LOOKUPS; i++) {
+            final int row = 1 + random.nextInt(NB_ROWS);
+            final UUID kbPaymentId = UUID.fromString(uuid("payment-", row));
+            final UUID kbAccountId = UUID.fromString(uuid("account-", accountIndex(row)));
+            final UUID kbPaymentMethodId = UUID.fromString(uuid("payment-method-", accountIndex(row)));
+            final UUID kbTenantId = UUID.fromString(uuid("tenant-", accountIndex(row) % NB_TENANTS));
+
+            long startNanos = System.nanoTime();
+            Assert.assertEquals(dao.getResponses(kbPaymentId, kbTenantId).size(), 1);
+            getResponses[i] = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            Assert.assertNull(dao.getSuccessfulAuthorizationResponse(kbPaymentId, kbTenantId));
+            getSuccessfulAuthorizationResponse[i] = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            Assert.assertNotNull(dao.getDepositResponse(depositReferenceNumber(row), row % NB_INVOICES_PER_DEPOSIT, kbTenantId));
+            getDepositResponse[i] = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            Assert.assertNotNull(dao.getPaymentMethod(kbPaymentMethodId, kbTenantId));
+            getPaymentMethod[i] = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            Assert.assertEquals(dao.getPaymentMethods(kbAccountId, kbTenantId).size(), 1);
+            getPaymentMethods[i] = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            Assert.assertEquals(dao.getActivePaymentMethodId(kbAccountId, kbTenantId), kbPaymentMethodId);
+            getActivePaymentMethodId[i] = System.nanoTime() - startNanos;
+
+            // Page after the response of this row, within its week
+            final LocalDateTime effectiveDate = effectiveDate(row);
+            final DepositDao.SearchCriteria week = new DepositDao.SearchCriteria(null,
+                                                                                 null,
+                                                                                 new DateTime(effectiveDate.minusDays(3).toInstant(ZoneOffset.UTC).toEpochMilli(), DateTimeZone.UTC),
+                                                                                 new DateTime(effectiveDate.plusDays(4).toInstant(ZoneOffset.UTC).toEpochMilli(), DateTimeZone.UTC),
+                                                                                 null,
+                                                                                 null);
+            startNanos = System.nanoTime();
+            Assert.assertFalse(dao.searchResponses(week, ULong.valueOf(row), DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT + 1, kbTenantId).isEmpty());
+            searchByEffectiveDate[i] = System.nanoTime() - startNanos;
+
+            // Page after this row, amounts within 10% of the range
+            final BigDecimal minAmount = BigDecimal.valueOf(1 + random.nextInt(NB_AMOUNTS - NB_AMOUNTS / 10));
+            final DepositDao.SearchCriteria amounts = new DepositDao.SearchCriteria(null, null, null, null, minAmount, minAmount.add(BigDecimal.valueOf(NB_AMOUNTS / 10)));
+            startNanos = System.nanoTime();
+            dao.searchResponses(amounts, ULong.valueOf(row), DepositPaymentPluginApi.DEFAULT_SEARCH_LIMIT + 1, kbTenantId);
+            searchByAmount[i] = System.nanoTime() - startNanos;
+        }
+
+        // The first calls include the warm-up of the JIT and of the database caches
+        logLatency("getResponses", getResponses);
+        logLatency("getSuccessfulAuthorizationResponse", getSuccessfulAuthorizationResponse);
+        logLatency("getDepositResponse", getDepositResponse);
+        logLatency("getPaymentMethod", getPaymentMethod);
+        logLatency("getPaymentMethods", getPaymentMethods);
+        logLatency("getActivePaymentMethodId", getActivePaymentMethodId);
+        logLatency("searchResponses (effective dates)", searchByEffectiveDate);
+        logLatency("searchResponses (amounts)", searchByAmount);
+    }
+
+    // All the responses of a tenant (NB_ROWS / NB_TENANTS), as CSV: the heap used shouldn't depend on the number of rows
+    @Test(groups = "stress", dependsOnMethods = "testQueryPlans")
+    public void testExport() throws Exception {
+        final String kbTenantId = uuid("tenant-", 0);
+        final long nbTenantRows;
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("select count(*) from deposit_responses where kb_tenant_id = '" + kbTenantId + "'")) {
+            Assert.assertTrue(resultSet.next());
+            nbTenantRows = resultSet.getLong(1);
+        }
+
+        final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        final long initialHeapUsed = memoryMXBean.getHeapMemoryUsage().getUsed();
+        final long[] maxHeapUsed = {initialHeapUsed};
+        final long[] nbExportedRows = {0};
+        final CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        final DepositCsvWriter csvWriter = new DepositCsvWriter(out);
+        final long startNanos = System.nanoTime();
+        csvWriter.writeHeader();
+        dao.exportResponses(new DepositDao.SearchCriteria(null, null, null, null, null, null),
+                            UUID.fromString(kbTenantId),
+                            new DepositDao.ResponseHandler() {
+                                @Override
+                                public void onResponse(final DepositResponsesRecord record) throws IOException {
+                                    csvWriter.write(record);
+                                    nbExportedRows[0]++;
+                                    if (nbExportedRows[0] % 100000 == 0) {
+                                        // Only what is still reachable
+                                        System.gc();
+                                        maxHeapUsed[0] = Math.max(maxHeapUsed[0], memoryMXBean.getHeapMemoryUsage().getUsed());
+                                    }
+                                }
+                            });
+        csvWriter.flush();
+        logger.info("Exported {} rows ({} MB) in {} ms, heap growth {} MB", nbExportedRows[0], out.getCount() / 1024 / 1024,
+                    (System.nanoTime() - startNanos) / 1000000, (maxHeapUsed[0] - initialHeapUsed) / 1024 / 1024);
+
+        Assert.assertEquals(nbExportedRows[0], nbTenantRows);
+        Assert.assertTrue(maxHeapUsed[0] - initialHeapUsed < 64 * 1024 * 1024, String.format("Heap grew by %d bytes", maxHeapUsed[0] - initialHeapUsed));
+    }
+
+    private List<String> checkPlan(final Query query, final String indexName) throws SQLException {
+        final List<String> plan = explain(dslContext.renderInlined(query));
+        logger.info("Plan of {}:\n  {}", dslContext.renderInlined(query), String.join("\n  ", plan));
+        boolean usesIndex = false;
+        for (final String step : plan) {
+            // MySQL lists the candidate indexes too: only look at the one picked
+            usesIndex = usesIndex || (postgreSQL ? step.contains(indexName) : step.contains("key=" + indexName + " "));
+        }
+        Assert.assertTrue(usesIndex, String.format("Expected %s to be used: %s", indexName, plan));
+        return plan;
+    }
+
+    private List<String> explain(final String sql) throws SQLException {
+        final List<String> plan = new ArrayList<String>();
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("explain " + sql)) {
+            while (resultSet.next()) {
+                if (postgreSQL) {
+                    plan.add(resultSet.getString(1));
+                } else {
+                    plan.add(String.format("table=%s type=%s key=%s rows=%s Extra=%s",
+                                           resultSet.getString("table"),
+                                           resultSet.getString("type"),
+                                           resultSet.getString("key"),
+                                           resultSet.getString("rows"),
+                                           resultSet.getString("Extra")));
+                }
+            }
+        } catch (final Exception e) {
+            throw new SQLException("Unable to explain " + sql, e);
+        }
+        return plan;
+    }
+
+    // The secondary indexes of ddl.sql are dropped during the load, and built once all the rows are in
+    private void loadDataset() throws Exception {
+        final List<String> createIndexes = new ArrayList<String>();
+        for (final String line : TestUtils.toString("ddl.sql").split("\n")) {
+            if (line.matches("create (unique )?index \\w+ on deposit_(responses|payment_methods)\\(.*")) {
+                createIndexes.add(line.substring(0, line.length() - 1));
+            }
+        }
+
+        try (final Connection connection = EmbeddedDbHelper.instance().getDataSource().getConnection();
+             final Statement statement = connection.createStatement()) {
+            for (final String createIndex : createIndexes) {
+                final String[] tokens = createIndex.split("[ (]");
+                final String indexName = tokens[createIndex.startsWith("create unique") ? 3 : 2];
+                final String tableName = tokens[createIndex.startsWith("create unique") ? 5 : 4];
+                statement.execute(postgreSQL ? "drop index " + indexName : "drop index " + indexName + " on " + tableName);
+            }
+            if (!postgreSQL) {
+                statement.execute("set session cte_max_recursion_depth = " + (LOAD_CHUNK_SIZE + 1));
+            }
+
+            for (int first = 1; first <= NB_ROWS; first += LOAD_CHUNK_SIZE) {
+                final int last = Math.min(NB_ROWS, first + LOAD_CHUNK_SIZE - 1);
+                final String accountIndex = "i % " + NB_ACCOUNTS;
+                statement.execute("insert into deposit_responses (kb_account_id, kb_payment_id, kb_payment_transaction_id, transaction_type, amount, currency, deposit_type, deposit_reference_number, deposit_effective_date, created_date, kb_tenant_id, deposit_invoice_number) " +
+                                  rows(first, last) +
+                                  " select " + uuidSql("account-", accountIndex) + ", " + uuidSql("payment-", "i") + ", " + uuidSql("transaction-", "i") +
+                                  ", 'PURCHASE', " + amountSql("i") + ", 'USD', 'wire', concat('WIRE-', " + (postgreSQL ? "i / " : "i div ") + NB_INVOICES_PER_DEPOSIT + "), " +
+                                  effectiveDateSql("i") + ", '2021-03-16 00:00:00', " +
+                                  uuidSql("tenant-", "(" + accountIndex + ") % " + NB_TENANTS) + ", i % " + NB_INVOICES_PER_DEPOSIT +
+                                  " from seq");
+                logger.info("Loaded {} deposit responses", last);
+            }
+
+            for (int first = 0; first < NB_ACCOUNTS; first += LOAD_CHUNK_SIZE) {
+                final int last = Math.min(NB_ACCOUNTS - 1, first + LOAD_CHUNK_SIZE - 1);
+                for (final boolean deleted : new boolean[]{false, true}) {
+                    statement.execute("insert into deposit_payment_methods (kb_account_id, kb_payment_method_id, is_default, is_deleted, created_date, updated_date, kb_tenant_id) " +
+                                      rows(first, last) +
+                                      " select " + uuidSql("account-", "i") + ", " + uuidSql(deleted ? "deleted-payment-method-" : "payment-method-", "i") +
+                                      ", " + PluginDao.TRUE + ", " + (deleted ? PluginDao.TRUE : PluginDao.FALSE) + ", '2021-03-16 00:00:00', '2021-03-16 00:00:00', " +
+                                      uuidSql("tenant-", "i % " + NB_TENANTS) +
+                                      " from seq" + (deleted ? " where i % 5 = 0" : ""));
+                }
+            }
+
+            for (final String createIndex : createIndexes) {
+                statement.execute(createIndex);
+            }
+            // The visibility map is needed for index-only scans
+            statement.execute(postgreSQL ? "vacuum analyze deposit_responses, deposit_payment_methods" : "analyze table deposit_responses, deposit_payment_methods");
+        }
+    }
+
+    // Integers i from first to last, in a seq relation (to be followed by the select)
+    private String rows(final int first, final int last) {
+        if (postgreSQL) {
+            return "with seq (i) as (select generate_series(" + first + ", " + last + "))";
+        } else {
+            return "with recursive seq (i) as (select " + first + " union all select i + 1 from seq where i < " + last + ")";
+        }
+    }
+
+    // Same as effectiveDate(row) and amount(row), computed by the database
+    private String effectiveDateSql(final String rowExpression) {
+        if (postgreSQL) {
+            return "timestamp '2021-01-01 00:00:00' + (" + rowExpression + " % " + NB_DAYS + ") * interval '1 day'";
+        } else {
+            return "date_add('2021-01-01 00:00:00', interval " + rowExpression + " % " + NB_DAYS + " day)";
+        }
+    }
+
+    private String amountSql(final String rowExpression) {
+        return "1 + " + rowExpression + " % " + NB_AMOUNTS;
+    }
+
+    private static LocalDateTime effectiveDate(final int row) {
+        return FIRST_DAY.plusDays(row % NB_DAYS);
+    }
+
+    // Same as uuid(prefix, index), computed by the database
+    private String uuidSql(final String prefix, final String indexExpression) {
+        final String md5 = "md5(concat('" + prefix + "', " + indexExpression + "))";
+        if (postgreSQL) {
+            return md5 + "::uuid::text";
+        } else {
+            return "insert(insert(insert(insert(" + md5 + ", 21, 0, '-'), 17, 0, '-'), 13, 0, '-'), 9, 0, '-')";
+        }
+    }
+
+    private static String uuid(final String prefix, final int index) throws Exception {
+        final byte[] md5 = MessageDigest.getInstance("MD5").digest((prefix + index).getBytes(StandardCharsets.UTF_8));
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : md5) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.insert(20, '-').insert(16, '-').insert(12, '-').insert(8, '-').toString();
+    }
+
+    private static int accountIndex(final int row) {
+        return row % NB_ACCOUNTS;
+    }
+
+    private static String depositReferenceNumber(final int row) {
+        return "WIRE-" + row / NB_INVOICES_PER_DEPOSIT;
+    }
+
+    private static void logLatency(final String name, final long[] nanos) {
+        final long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        logger.info("{}: calls={}, p50={} ms, p99={} ms, max={} ms",
+                    name,
+                    sorted.length,
+                    String.format("%.3f", sorted[sorted.length / 2] / 1e6),
+                    String.format("%.3f", sorted[Math.max(0, (int) Math.ceil(0.99 * sorted.length) - 1)] / 1e6),
+                    String.format("%.3f", sorted[sorted.length - 1] / 1e6));
+    }
+}
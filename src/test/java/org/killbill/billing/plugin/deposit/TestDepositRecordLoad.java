@@ -0,0 +1,501 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.InvoicePaymentApi;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.deposit.DepositServlet.DepositJson;
+import org.killbill.billing.plugin.deposit.DepositServlet.InvoiceDepositJson;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.tenant.api.TenantUserApi;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Load test of POST /record: many concurrent clients record deposits for synthetic accounts and invoices. Kill Bill calls are
+ * mocked but payment methods and purchases go through the payment plugin and the embedded PostgreSQL database.
+ * <p>
+ * Reports the throughput, the request latency and, for each Kill Bill call made by the plugin, the time spent in it. To get
+ * numbers representative of a given cluster, set org.killbill.billing.plugin.deposit.load.killbillLatencyMs to the latency of
+ * Kill Bill API calls in that environment. Run with -Ptest-stress.
+ */
+public class TestDepositRecordLoad extends TestBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestDepositRecordLoad.class);
+
+    private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.deposit.load.";
+
+    private static final int NB_CLIENTS = Integer.getInteger(PROPERTY_PREFIX + "clients", 32);
+    private static final int NB_DEPOSITS = Integer.getInteger(PROPERTY_PREFIX + "deposits", 10000);
+    private static final int NB_ACCOUNTS = Integer.getInteger(PROPERTY_PREFIX + "accounts", 1000);
+    private static final int NB_INVOICES_PER_ACCOUNT = Integer.getInteger(PROPERTY_PREFIX + "invoicesPerAccount", 5);
+    private static final int NB_INVOICES_PER_DEPOSIT = Integer.getInteger(PROPERTY_PREFIX + "invoicesPerDeposit", 2);
+    // Simulated latency of each Kill Bill API call (in addition to the plugin calls and database queries they trigger)
+    private static final int KILLBILL_LATENCY_MS = Integer.getInteger(PROPERTY_PREFIX + "killbillLatencyMs", 0);
+    // Group commit of the purchases (see DepositResponseWriter), disabled by default
+    private static final int GROUP_COMMIT_MAX_WAIT_MS = Integer.getInteger(PROPERTY_PREFIX + "groupCommitMaxWaitMs", DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_WAIT_MS);
+    private static final int GROUP_COMMIT_MAX_BATCH_SIZE = Integer.getInteger(PROPERTY_PREFIX + "groupCommitMaxBatchSize", DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE);
+    private static final int NB_WARMUP_DEPOSITS = NB_CLIENTS * 10;
+
+    private static final String USE_CONNECTION_POOL_PROPERTY = "killbill.test.use.connection.pool";
+
+    private final Map<UUID, Account> accounts = new HashMap<UUID, Account>();
+    private final List<UUID> accountIds = new ArrayList<UUID>();
+    private final Map<Integer, Invoice> invoices = new HashMap<Integer, Invoice>();
+    private final Map<UUID, UUID> killbillPaymentMethodIds = new ConcurrentHashMap<UUID, UUID>();
+    private final Map<UUID, PaymentMethod> killbillPaymentMethods = new HashMap<UUID, PaymentMethod>();
+
+    private final LatencyStats accountLookups = new LatencyStats();
+    private final LatencyStats paymentMethodLookups = new LatencyStats();
+    private final LatencyStats invoiceLookups = new LatencyStats();
+    private final LatencyStats purchases = new LatencyStats();
+
+    private String useConnectionPool;
+    private DepositExecutors depositExecutors;
+    private DepositServlet depositServlet;
+    private Tenant tenant;
+
+    @BeforeClass(groups = "stress")
+    public void setUpDb() throws Exception {
+        // Like in production: don't measure the cost of opening a connection for each query
+        useConnectionPool = System.setProperty(USE_CONNECTION_POOL_PROPERTY, "true");
+        EmbeddedDbHelper.instance().startDb();
+    }
+
+    @AfterClass(groups = "stress")
+    public void tearDownDb() throws Exception {
+        EmbeddedDbHelper.instance().stopDB();
+        if (useConnectionPool == null) {
+            System.clearProperty(USE_CONNECTION_POOL_PROPERTY);
+        } else {
+            System.setProperty(USE_CONNECTION_POOL_PROPERTY, useConnectionPool);
+        }
+    }
+
+    @BeforeMethod(groups = "stress")
+    public void setUpLoad() throws Exception {
+        setUp();
+        EmbeddedDbHelper.instance().resetDB();
+        accounts.clear();
+        accountIds.clear();
+        invoices.clear();
+        killbillPaymentMethodIds.clear();
+        killbillPaymentMethods.clear();
+
+        final DepositDao dao = EmbeddedDbHelper.instance().getDepositDao();
+        final DepositPaymentMethodCache paymentMethodCache = new DepositPaymentMethodCache(DepositPaymentMethodCache.DEFAULT_CACHE_SIZE);
+        depositPaymentPluginApi = new DepositPaymentPluginApi(killbillApi,
+                                                              configPropertiesService,
+                                                              clock,
+                                                              dao,
+                                                              paymentMethodCache,
+                                                              new DepositResponseWriter(dao, clock, GROUP_COMMIT_MAX_WAIT_MS, GROUP_COMMIT_MAX_BATCH_SIZE));
+
+        tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(UUID.randomUUID());
+
+        // Mocks can't be created concurrently: build all the accounts, invoices and payment methods upfront. Stub-only mocks
+        // don't record their invocations, which would otherwise be retained for the whole run.
+        int invoiceNumber = 0;
+        for (int i = 0; i < NB_ACCOUNTS; i++) {
+            final Account newAccount = TestUtils.buildAccount(DEFAULT_CURRENCY, DEFAULT_COUNTRY);
+            final UUID accountId = newAccount.getId();
+            accounts.put(accountId, newAccount);
+            accountIds.add(accountId);
+
+            for (int j = 0; j < NB_INVOICES_PER_ACCOUNT; j++) {
+                invoiceNumber++;
+                final UUID invoiceId = UUID.randomUUID();
+                final Invoice invoice = Mockito.mock(Invoice.class, Mockito.withSettings().stubOnly());
+                Mockito.when(invoice.getId()).thenReturn(invoiceId);
+                Mockito.when(invoice.getAccountId()).thenReturn(accountId);
+                Mockito.when(invoice.getCurrency()).thenReturn(DEFAULT_CURRENCY);
+                Mockito.when(invoice.getInvoiceNumber()).thenReturn(invoiceNumber);
+                invoices.put(invoiceNumber, invoice);
+            }
+
+            final PaymentMethod paymentMethod = Mockito.mock(PaymentMethod.class, Mockito.withSettings().stubOnly());
+            Mockito.when(paymentMethod.getId()).thenAnswer(new Answer<UUID>() {
+                @Override
+                public UUID answer(final InvocationOnMock invocation) {
+                    return killbillPaymentMethodIds.get(accountId);
+                }
+            });
+            Mockito.when(paymentMethod.getPluginName()).thenReturn(DepositActivator.PLUGIN_NAME);
+            killbillPaymentMethods.put(accountId, paymentMethod);
+        }
+
+        final AccountUserApi accountUserApi = Mockito.mock(AccountUserApi.class, Mockito.withSettings().stubOnly());
+        Mockito.when(accountUserApi.getAccountById(Mockito.<UUID>any(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<Account>() {
+                   @Override
+                   public Account answer(final InvocationOnMock invocation) throws Throwable {
+                       final long startNanos = System.nanoTime();
+                       try {
+                           simulateKillbillLatency();
+                           final UUID accountId = invocation.getArgument(0);
+                           final Account existingAccount = accounts.get(accountId);
+                           if (existingAccount == null) {
+                               throw new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, accountId);
+                           }
+                           return existingAccount;
+                       } finally {
+                           accountLookups.record(System.nanoTime() - startNanos);
+                       }
+                   }
+               });
+        Mockito.when(killbillApi.getAccountUserApi()).thenReturn(accountUserApi);
+
+        final PaymentApi paymentApi = Mockito.mock(PaymentApi.class, Mockito.withSettings().stubOnly());
+        Mockito.when(paymentApi.getAccountPaymentMethods(Mockito.<UUID>any(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.<Iterable<PluginProperty>>any(),
+                                                         Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<List<PaymentMethod>>() {
+                   @Override
+                   public List<PaymentMethod> answer(final InvocationOnMock invocation) {
+                       final long startNanos = System.nanoTime();
+                       try {
+                           simulateKillbillLatency();
+                           final UUID accountId = invocation.getArgument(0);
+                           if (killbillPaymentMethodIds.get(accountId) == null) {
+                               return ImmutableList.<PaymentMethod>of();
+                           }
+                           return ImmutableList.<PaymentMethod>of(killbillPaymentMethods.get(accountId));
+                       } finally {
+                           paymentMethodLookups.record(System.nanoTime() - startNanos);
+                       }
+                   }
+               });
+        // Like Kill Bill, only record the payment method if the plugin accepted it (counted as part of the payment method lookup)
+        Mockito.when(paymentApi.addPaymentMethod(Mockito.<Account>any(),
+                                                 Mockito.<String>any(),
+                                                 Mockito.<String>any(),
+                                                 Mockito.anyBoolean(),
+                                                 Mockito.<PaymentMethodPlugin>any(),
+                                                 Mockito.<Iterable<PluginProperty>>any(),
+                                                 Mockito.<CallContext>any()))
+               .thenAnswer(new Answer<UUID>() {
+                   @Override
+                   public UUID answer(final InvocationOnMock invocation) throws Throwable {
+                       final long startNanos = System.nanoTime();
+                       try {
+                           simulateKillbillLatency();
+                           final Account paymentMethodAccount = invocation.getArgument(0);
+                           final UUID paymentMethodId = UUID.randomUUID();
+                           try {
+                               depositPaymentPluginApi.addPaymentMethod(paymentMethodAccount.getId(),
+                                                                        paymentMethodId,
+                                                                        invocation.<PaymentMethodPlugin>getArgument(4),
+                                                                        false,
+                                                                        ImmutableList.<PluginProperty>of(),
+                                                                        invocation.<CallContext>getArgument(6));
+                           } catch (final PaymentPluginApiException e) {
+                               throw new PaymentApiException(e, ErrorCode.PAYMENT_ADD_PAYMENT_METHOD, paymentMethodAccount.getId(), e.getErrorMessage());
+                           }
+                           killbillPaymentMethodIds.put(paymentMethodAccount.getId(), paymentMethodId);
+                           return paymentMethodId;
+                       } finally {
+                           paymentMethodLookups.record(System.nanoTime() - startNanos);
+                       }
+                   }
+               });
+        Mockito.when(killbillApi.getPaymentApi()).thenReturn(paymentApi);
+
+        final InvoiceUserApi invoiceUserApi = Mockito.mock(InvoiceUserApi.class, Mockito.withSettings().stubOnly());
+        Mockito.when(invoiceUserApi.getInvoiceByNumber(Mockito.<Integer>any(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<Invoice>() {
+                   @Override
+                   public Invoice answer(final InvocationOnMock invocation) throws Throwable {
+                       final long startNanos = System.nanoTime();
+                       try {
+                           simulateKillbillLatency();
+                           final Integer number = invocation.getArgument(0);
+                           final Invoice invoice = invoices.get(number);
+                           if (invoice == null) {
+                               throw new InvoiceApiException(ErrorCode.INVOICE_NOT_FOUND, number);
+                           }
+                           return invoice;
+                       } finally {
+                           invoiceLookups.record(System.nanoTime() - startNanos);
+                       }
+                   }
+               });
+        Mockito.when(killbillApi.getInvoiceUserApi()).thenReturn(invoiceUserApi);
+
+        // Like Kill Bill, record the purchase through the payment plugin
+        final InvoicePaymentApi invoicePaymentApi = Mockito.mock(InvoicePaymentApi.class, Mockito.withSettings().stubOnly());
+        Mockito.when(invoicePaymentApi.createPurchaseForInvoicePayment(Mockito.<Account>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<BigDecimal>any(),
+                                                                       Mockito.any(),
+                                                                       Mockito.<DateTime>any(),
+                                                                       Mockito.<String>any(),
+                                                                       Mockito.<String>any(),
+                                                                       Mockito.<Iterable<PluginProperty>>any(),
+                                                                       Mockito.any(),
+                                                                       Mockito.<CallContext>any()))
+               .thenAnswer(new Answer<Object>() {
+                   @Override
+                   public Object answer(final InvocationOnMock invocation) throws Throwable {
+                       final long startNanos = System.nanoTime();
+                       try {
+                           simulateKillbillLatency();
+                           final Account paymentAccount = invocation.getArgument(0);
+                           depositPaymentPluginApi.purchasePayment(paymentAccount.getId(),
+                                                                   UUID.randomUUID(),
+                                                                   UUID.randomUUID(),
+                                                                   invocation.<UUID>getArgument(2),
+                                                                   invocation.<BigDecimal>getArgument(4),
+                                                                   invocation.<Currency>getArgument(5),
+                                                                   invocation.<Iterable<PluginProperty>>getArgument(9),
+                                                                   invocation.<CallContext>getArgument(11));
+                           return null;
+                       } finally {
+                           purchases.record(System.nanoTime() - startNanos);
+                       }
+                   }
+               });
+        Mockito.when(killbillApi.getInvoicePaymentApi()).thenReturn(invoicePaymentApi);
+
+        final OSGIKillbillClock osgiKillbillClock = Mockito.mock(OSGIKillbillClock.class);
+        Mockito.when(osgiKillbillClock.getClock()).thenReturn(clock);
+
+        final TenantUserApi tenantUserApi = Mockito.mock(TenantUserApi.class);
+        Mockito.when(killbillApi.getTenantUserApi()).thenReturn(tenantUserApi);
+        final DepositConfigurationHandler configurationHandler = new DepositConfigurationHandler(null, DepositActivator.PLUGIN_NAME, killbillApi);
+        configurationHandler.setDefaultConfigurable(new DepositConfiguration());
+
+        depositExecutors = new DepositExecutors(DepositExecutors.DEFAULT_BATCH_THREADS,
+                                                DepositExecutors.DEFAULT_BATCH_QUEUE_SIZE,
+                                                DepositExecutors.DEFAULT_PAYMENT_THREADS,
+                                                DepositExecutors.DEFAULT_PAYMENT_QUEUE_SIZE,
+                                                DepositExecutors.DEFAULT_STREAM_THREADS);
+        final DepositInvoiceCache invoiceCache = new DepositInvoiceCache(DepositInvoiceCache.DEFAULT_CACHE_SIZE);
+        // Loaded (empty), like on a node which has been up for a while
+        final DepositReferenceFilter depositReferenceFilter = new DepositReferenceFilter(DepositReferenceFilter.DEFAULT_EXPECTED_DEPOSITS, DepositReferenceFilter.DEFAULT_REFRESH_INTERVAL_MS);
+        depositReferenceFilter.refresh(dao);
+        final DepositService depositService = new DepositService(killbillApi,
+                                                                 osgiKillbillClock,
+                                                                 depositExecutors,
+                                                                 configurationHandler,
+                                                                 paymentMethodCache,
+                                                                 invoiceCache,
+                                                                 dao,
+                                                                 depositReferenceFilter,
+                                                                 new DepositMetrics());
+        depositServlet = new DepositServlet(killbillApi, depositExecutors, invoiceCache, depositService, Mockito.mock(DepositJobQueue.class));
+    }
+
+    @AfterMethod(groups = "stress")
+    public void tearDownLoad() {
+        depositExecutors.shutdown();
+    }
+
+    @Test(groups = "stress")
+    public void testRecordLoad() throws Exception {
+        // Warm up the JIT (and the plugin caches, like on a node which has been up for a while)
+        runClients("WARMUP", NB_WARMUP_DEPOSITS, new LatencyStats());
+        accountLookups.reset();
+        paymentMethodLookups.reset();
+        invoiceLookups.reset();
+        purchases.reset();
+
+        final LatencyStats requests = new LatencyStats();
+        final long startNanos = System.nanoTime();
+        runClients("LOAD", NB_DEPOSITS, requests);
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        logger.info("Recorded {} deposits ({} payments) with {} clients in {} s: {} deposits/s, {} payments/s (killbillLatencyMs={}, groupCommitMaxWaitMs={})",
+                    NB_DEPOSITS, purchases.count(), NB_CLIENTS, format(seconds), format(NB_DEPOSITS / seconds), format(purchases.count() / seconds), KILLBILL_LATENCY_MS, GROUP_COMMIT_MAX_WAIT_MS);
+        logLatency("Request", requests, requests.totalNanos());
+        logLatency("Account lookup", accountLookups, requests.totalNanos());
+        logLatency("Payment method lookup", paymentMethodLookups, requests.totalNanos());
+        logLatency("Invoice lookup", invoiceLookups, requests.totalNanos());
+        logLatency("Purchase", purchases, requests.totalNanos());
+
+        Assert.assertEquals(requests.count(), NB_DEPOSITS);
+        Assert.assertEquals(purchases.count(), (long) NB_DEPOSITS * NB_INVOICES_PER_DEPOSIT);
+    }
+
+    // Each client records deposits one after the other, until nbDeposits have been recorded
+    private void runClients(final String paymentReferencePrefix, final int nbDeposits, final LatencyStats requests) throws Exception {
+        final AtomicInteger nextDeposit = new AtomicInteger();
+        final ExecutorService clients = Executors.newFixedThreadPool(NB_CLIENTS);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < NB_CLIENTS; i++) {
+                futures.add(clients.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        int depositIndex;
+                        while ((depositIndex = nextDeposit.getAndIncrement()) < nbDeposits) {
+                            final DepositJson depositJson = buildDepositJson(paymentReferencePrefix, depositIndex);
+                            final long startNanos = System.nanoTime();
+                            final Result result = depositServlet.recordPayments(depositJson,
+                                                                                Optional.<String>empty(),
+                                                                                Optional.<String>empty(),
+                                                                                Optional.<String>empty(),
+                                                                                Optional.<String>empty(),
+                                                                                tenant);
+                            requests.record(System.nanoTime() - startNanos);
+                            Assert.assertEquals(result.status().get(), Status.CREATED);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> future : futures) {
+                future.get(10, TimeUnit.MINUTES);
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    // Deposits are spread over all accounts, each one paying consecutive invoices of its account
+    private DepositJson buildDepositJson(final String paymentReferencePrefix, final int depositIndex) {
+        final int accountIndex = depositIndex % NB_ACCOUNTS;
+        final List<InvoiceDepositJson> payments = new ArrayList<InvoiceDepositJson>(NB_INVOICES_PER_DEPOSIT);
+        for (int i = 0; i < NB_INVOICES_PER_DEPOSIT; i++) {
+            final int invoiceNumber = accountIndex * NB_INVOICES_PER_ACCOUNT + 1 + (depositIndex / NB_ACCOUNTS + i) % NB_INVOICES_PER_ACCOUNT;
+            payments.add(new InvoiceDepositJson(invoiceNumber, BigDecimal.TEN));
+        }
+        return new DepositJson(accountIds.get(accountIndex),
+                               new DateTime("2021-03-16"),
+                               paymentReferencePrefix + "-" + depositIndex,
+                               "wire",
+                               payments);
+    }
+
+    private static void simulateKillbillLatency() {
+        if (KILLBILL_LATENCY_MS > 0) {
+            try {
+                Thread.sleep(KILLBILL_LATENCY_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void logLatency(final String name, final LatencyStats stats, final long totalRequestNanos) {
+        logger.info("{}: calls={}, p50={} ms, p99={} ms, p999={} ms, max={} ms, share of request time={}%",
+                    name,
+                    stats.count(),
+                    String.format("%.3f", stats.percentileMillis(50)),
+                    String.format("%.3f", stats.percentileMillis(99)),
+                    String.format("%.3f", stats.percentileMillis(99.9)),
+                    String.format("%.3f", stats.percentileMillis(100)),
+                    format(totalRequestNanos == 0 ? 0 : 100.0 * stats.totalNanos() / totalRequestNanos));
+    }
+
+    private static String format(final double value) {
+        return String.format("%.2f", value);
+    }
+
+    // All samples are kept, for exact percentiles
+    private static final class LatencyStats {
+
+        private long[] samples = new long[1024];
+        private int count = 0;
+        private long totalNanos = 0;
+
+        synchronized void record(final long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, 2 * samples.length);
+            }
+            samples[count++] = nanos;
+            totalNanos += nanos;
+        }
+
+        synchronized void reset() {
+            count = 0;
+            totalNanos = 0;
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        synchronized long totalNanos() {
+            return totalNanos;
+        }
+
+        synchronized double percentileMillis(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            final int index = Math.min(count - 1, (int) Math.ceil(percentile / 100 * count) - 1);
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.jooq.exception.DataAccessException;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.DepositDao.PendingResponse;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestDepositResponseWriter extends TestBase {
+
+    private static final int NB_WRITERS = 10;
+    // Long enough for all writers to join the first batch
+    private static final int MAX_WAIT_MS = 1000;
+
+    private DepositDao dao;
+    private ExecutorService executor;
+
+    @BeforeMethod(groups = "slow")
+    public void setUpWriter() throws Exception {
+        dao = Mockito.spy(EmbeddedDbHelper.instance().getDepositDao());
+        executor = Executors.newFixedThreadPool(NB_WRITERS);
+    }
+
+    @AfterMethod(groups = "slow")
+    public void tearDownWriter() {
+        executor.shutdownNow();
+    }
+
+    @Test(groups = "slow")
+    public void testGroupCommit() throws Exception {
+        final DepositResponseWriter responseWriter = new DepositResponseWriter(dao, clock, MAX_WAIT_MS, NB_WRITERS);
+        final String refNumber = "WIRE-" + UUID.randomUUID();
+
+        final List<Future<Void>> writes = addResponsesConcurrently(responseWriter, refNumber, 1);
+        for (final Future<Void> write : writes) {
+            write.get();
+        }
+
+        // A single commit, and every caller returned once its response was written
+        Mockito.verify(dao, Mockito.times(1)).addResponses(Mockito.<List<PendingResponse>>any(), Mockito.<DateTime>any());
+        for (int invoiceNumber = 1; invoiceNumber <= NB_WRITERS; invoiceNumber++) {
+            Assert.assertNotNull(dao.getDepositResponse(refNumber, invoiceNumber, context.getTenantId()));
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testGroupCommitWithDuplicate() throws Exception {
+        final DepositResponseWriter responseWriter = new DepositResponseWriter(dao, clock, MAX_WAIT_MS, NB_WRITERS);
+        final String refNumber = "WIRE-" + UUID.randomUUID();
+        responseWriter.addResponse(pendingResponse(refNumber, 1));
+
+        // The first invoice has already been paid: only that write fails
+        final List<Future<Void>> writes = addResponsesConcurrently(responseWriter, refNumber, 1);
+        for (int i = 0; i < writes.size(); i++) {
+            try {
+                writes.get(i).get();
+                Assert.assertNotEquals(i, 0);
+            } catch (final ExecutionException e) {
+                Assert.assertEquals(i, 0);
+                Assert.assertTrue(e.getCause() instanceof DataAccessException);
+            }
+        }
+        for (int invoiceNumber = 2; invoiceNumber <= NB_WRITERS; invoiceNumber++) {
+            Assert.assertNotNull(dao.getDepositResponse(refNumber, invoiceNumber, context.getTenantId()));
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testGroupCommitDisabled() throws Exception {
+        final DepositResponseWriter responseWriter = new DepositResponseWriter(dao,
+                                                                               clock,
+                                                                               DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_WAIT_MS,
+                                                                               DepositResponseWriter.DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE);
+        Assert.assertFalse(responseWriter.isGroupCommitEnabled());
+
+        final List<Future<Void>> writes = addResponsesConcurrently(responseWriter, "WIRE-" + UUID.randomUUID(), 1);
+        for (final Future<Void> write : writes) {
+            write.get();
+        }
+        Mockito.verify(dao, Mockito.times(NB_WRITERS)).addResponses(Mockito.<List<PendingResponse>>any(), Mockito.<DateTime>any());
+    }
+
+    // Writes the invoices firstInvoiceNumber..firstInvoiceNumber+NB_WRITERS-1 of the deposit, from as many threads
+    private List<Future<Void>> addResponsesConcurrently(final DepositResponseWriter responseWriter,
+                                                        final String refNumber,
+                                                        final int firstInvoiceNumber) {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<Void>> writes = new ArrayList<Future<Void>>();
+        for (int i = 0; i < NB_WRITERS; i++) {
+            final PendingResponse response = pendingResponse(refNumber, firstInvoiceNumber + i);
+            writes.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startLatch.await();
+                    responseWriter.addResponse(response);
+                    return null;
+                }
+            }));
+        }
+        startLatch.countDown();
+        return writes;
+    }
+}
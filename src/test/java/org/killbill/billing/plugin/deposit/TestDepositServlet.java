@@ -0,0 +1,844 @@
+/*
+ * Copyright 2021-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.deposit;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.jooby.Parser;
+import org.jooby.Result;
+import org.jooby.Status;
+import org.jooq.types.ULong;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.InvoicePaymentApi;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.TestUtils;
+import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.deposit.dao.DepositDao;
+import org.killbill.billing.plugin.deposit.dao.gen.tables.records.DepositResponsesRecord;
+import org.killbill.billing.tenant.api.Tenant;
+import org.killbill.billing.tenant.api.TenantUserApi;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class TestDepositServlet extends TestBase {
+
+    private static final int UNKNOWN_INVOICE_NUMBER = 404;
+    private static final String ACCOUNT_EXTERNAL_KEY = "ACCOUNT-1";
+
+    private final List<String> recordedReferenceNumbers = new CopyOnWriteArrayList<String>();
+    private final List<UUID> paidInvoiceIds = new CopyOnWriteArrayList<UUID>();
+    private final List<Integer> recordedInvoiceNumbers = new CopyOnWriteArrayList<Integer>();
+    private final Map<UUID, ErrorCode> failingInvoiceIds = new ConcurrentHashMap<UUID, ErrorCode>();
+    private final List<String> tenantConfigs = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger inFlightPurchases = new AtomicInteger();
+    private final AtomicInteger maxInFlightPurchases = new AtomicInteger();
+
+    private DepositExecutors depositExecutors;
+    private DepositPaymentMethodCache paymentMethodCache;
+    private DepositInvoiceCache invoiceCache;
+    private PaymentApi paymentApi;
+    private InvoiceUserApi invoiceUserApi;
+    private Invoice invoice;
+    private DepositDao depositDao;
+    private DepositReferenceFilter depositReferenceFilter;
+    private DepositMetrics depositMetrics;
+    private DepositServlet depositServlet;
+    private Tenant tenant;
+
+    @BeforeMethod(groups = "fast")
+    public void setUpServlet() throws Exception {
+        recordedReferenceNumbers.clear();
+        paidInvoiceIds.clear();
+        recordedInvoiceNumbers.clear();
+        failingInvoiceIds.clear();
+        tenantConfigs.clear();
+        inFlightPurchases.set(0);
+        maxInFlightPurchases.set(0);
+
+        tenant = Mockito.mock(Tenant.class);
+        Mockito.when(tenant.getId()).thenReturn(UUID.randomUUID());
+
+        final AccountUserApi accountUserApi = Mockito.mock(AccountUserApi.class);
+        Mockito.when(accountUserApi.getAccountById(Mockito.<UUID>any(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<Account>() {
+                   @Override
+                   public Account answer(final InvocationOnMock invocation) throws Throwable {
+                       final UUID accountId = invocation.getArgument(0);
+                       if (account.getId().equals(accountId)) {
+                           return account;
+                       }
+                       throw new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, accountId);
+                   }
+               });
+        final UUID accountId = account.getId();
+        Mockito.when(accountUserApi.getIdFromKey(Mockito.anyString(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<UUID>() {
+                   @Override
+                   public UUID answer(final InvocationOnMock invocation) throws Throwable {
+                       final String externalKey = invocation.getArgument(0);
+                       if (ACCOUNT_EXTERNAL_KEY.equals(externalKey)) {
+                           return accountId;
+                       }
+                       throw new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_KEY, externalKey);
+                   }
+               });
+        Mockito.when(killbillApi.getAccountUserApi()).thenReturn(accountUserApi);
+
+        final PaymentMethod depositPaymentMethod = Mockito.mock(PaymentMethod.class);
+        Mockito.when(depositPaymentMethod.getId()).thenReturn(UUID.randomUUID());
+        Mockito.when(depositPaymentMethod.getPluginName()).thenReturn(DepositActivator.PLUGIN_NAME);
+        paymentApi = Mockito.mock(PaymentApi.class);
+        Mockito.when(paymentApi.getAccountPaymentMethods(Mockito.<UUID>any(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.anyBoolean(),
+                                                         Mockito.<Iterable<PluginProperty>>any(),
+                                                         Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<PaymentMethod>of(depositPaymentMethod));
+        Mockito.when(killbillApi.getPaymentApi()).thenReturn(paymentApi);
+
+        invoice = TestUtils.buildInvoice(account);
+        invoiceUserApi = Mockito.mock(InvoiceUserApi.class);
+        Mockito.when(invoiceUserApi.getInvoiceByNumber(Mockito.<Integer>any(), Mockito.<TenantContext>any()))
+               .thenAnswer(new Answer<Invoice>() {
+                   @Override
+                   public Invoice answer(final InvocationOnMock invocation) throws Throwable {
+                       final Integer invoiceNumber = invocation.getArgument(0);
+                       if (Integer.valueOf(UNKNOWN_INVOICE_NUMBER).equals(invoiceNumber)) {
+                           throw new InvoiceApiException(ErrorCode.INVOICE_NOT_FOUND, invoiceNumber);
+                       }
+                       return invoice;
+                   }
+               });
+        Mockito.when(killbillApi.getInvoiceUserApi()).thenReturn(invoiceUserApi);
+
+        final InvoicePaymentApi invoicePaymentApi = Mockito.mock(InvoicePaymentApi.class);
+        Mockito.when(invoicePaymentApi.createPurchaseForInvoicePayment(Mockito.<Account>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<UUID>any(),
+                                                                       Mockito.<BigDecimal>any(),
+                                                                       Mockito.any(),
+                                                                       Mockito.<DateTime>any(),
+                                                                       Mockito.<String>any(),
+                                                                       Mockito.<String>any(),
+                                                                       Mockito.<Iterable<PluginProperty>>any(),
+                                                                       Mockito.any(),
+                                                                       Mockito.<CallContext>any()))
+               .thenAnswer(new Answer<Object>() {
+                   @Override
+                   public Object answer(final InvocationOnMock invocation) throws Throwable {
+                       final UUID invoiceId = invocation.getArgument(1);
+                       final Iterable<PluginProperty> properties = invocation.getArgument(9);
+                       final int inFlight = inFlightPurchases.incrementAndGet();
+                       try {
+                           maxInFlightPurchases.accumulateAndGet(inFlight, Math::max);
+                           // Give other payments of the deposit a chance to overlap
+                           Thread.sleep(10);
+                           if (failingInvoiceIds.get(invoiceId) != null) {
+                               throw new PaymentApiException(failingInvoiceIds.get(invoiceId), invoiceId, "test");
+                           }
+                           recordedReferenceNumbers.add(PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_PAYMENT_REFERENCE_NUMBER, properties));
+                           paidInvoiceIds.add(invoiceId);
+                           recordedInvoiceNumbers.add(Integer.valueOf(PluginProperties.findPluginPropertyValue(DepositPaymentPluginApi.PLUGIN_PROPERTY_DEPOSIT_INVOICE_NUMBER, properties)));
+                           return null;
+                       } finally {
+                           inFlightPurchases.decrementAndGet();
+                       }
+                   }
+               });
+        Mockito.when(killbillApi.getInvoicePaymentApi()).thenReturn(invoicePaymentApi);
+
+        final OSGIKillbillClock osgiKillbillClock = Mockito.mock(OSGIKillbillClock.class);
+        Mockito.when(osgiKillbillClock.getClock()).thenReturn(clock);
+
+        final TenantUserApi tenantUserApi = Mockito.mock(TenantUserApi.class);
+        Mockito.when(tenantUserApi.getTenantValuesForKey(Mockito.eq("PLUGIN_CONFIG_" + DepositActivator.PLUGIN_NAME),
+                                                         Mockito.any(TenantContext.class)))
+               .thenReturn(tenantConfigs);
+        Mockito.when(killbillApi.getTenantUserApi()).thenReturn(tenantUserApi);
+        final DepositConfigurationHandler configurationHandler = new DepositConfigurationHandler(null, DepositActivator.PLUGIN_NAME, killbillApi);
+        configurationHandler.setDefaultConfigurable(new DepositConfiguration());
+
+        depositExecutors = new DepositExecutors(4, 10, 4, 10, 2);
+        paymentMethodCache = new DepositPaymentMethodCache(10);
+        // Bulk load as soon as 2 invoices are missing
+        invoiceCache = new DepositInvoiceCache(10, 2);
+        depositDao = Mockito.mock(DepositDao.class);
+        Mockito.when(depositDao.getLastRecordId()).thenReturn(ULong.valueOf(0));
+        depositReferenceFilter = new DepositReferenceFilter(1000, 1000);
+        depositMetrics = new DepositMetrics();
+        final DepositService depositService = new DepositService(killbillApi, osgiKillbillClock, depositExecutors, configurationHandler, paymentMethodCache, invoiceCache, depositDao, depositReferenceFilter, depositMetrics);
+        depositServlet = new DepositServlet(killbillApi, depositExecutors, invoiceCache, depositService, Mockito.mock(DepositJobQueue.class));
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDownServlet() {
+        depositExecutors.shutdown();
+    }
+
+    @Test(groups = "fast")
+    public void testRecordBatchPayments() throws Exception {
+        final UUID unknownAccountId = UUID.randomUUID();
+        final List<DepositServlet.DepositJson> depositJsons = ImmutableList.<DepositServlet.DepositJson>of(buildDepositJson(account.getId(), "WIRE-1"),
+                                                                                                         buildDepositJson(unknownAccountId, "WIRE-2"),
+                                                                                                         buildDepositJson(account.getId(), "WIRE-3"),
+                                                                                                         buildDepositJson(account.getId(), null),
+                                                                                                         buildDepositJson(account.getId(), "WIRE-5"));
+
+        final Result result = depositServlet.recordBatchPayments(depositJsons,
+                                                                 Optional.<String>empty(),
+                                                                 Optional.<String>empty(),
+                                                                 Optional.<String>empty(),
+                                                                 Optional.<String>empty(),
+                                                                 tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+
+        final List<DepositServlet.DepositResultJson> results = result.get();
+        Assert.assertEquals(results.size(), 5);
+        Assert.assertEquals(results.get(0).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(1).status, Status.NOT_FOUND.value());
+        Assert.assertEquals(results.get(1).accountId, unknownAccountId);
+        Assert.assertEquals(results.get(2).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(3).status, Status.BAD_REQUEST.value());
+        Assert.assertEquals(results.get(4).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(4).paymentReferenceNumber, "WIRE-5");
+
+        // Deposits for the same account are recorded in order
+        Assert.assertEquals(recordedReferenceNumbers, ImmutableList.<String>of("WIRE-1", "WIRE-3", "WIRE-5"));
+
+        final String metrics = scrapeMetrics();
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposits_total{status=\"CREATED\"} 3\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposits_total{status=\"NOT_FOUND\"} 1\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposits_total{status=\"BAD_REQUEST\"} 1\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposits_total{status=\"UNPROCESSABLE_ENTITY\"} 0\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposits_total{status=\"SERVER_ERROR\"} 0\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposit_duration_seconds_count{stage=\"total\"} 5\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposit_duration_seconds_bucket{stage=\"total\",le=\"+Inf\"} 5\n"), metrics);
+        // Not reached by the unknown account
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposit_duration_seconds_count{stage=\"account\"} 4\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_deposit_duration_seconds_count{stage=\"payments\"} 3\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_payments_total{status=\"CREATED\"} 3\n"), metrics);
+        Assert.assertTrue(metrics.contains("# TYPE killbill_deposit_executor_active_threads gauge\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_executor_queued_tasks{executor=\"batch\"} 0\n"), metrics);
+    }
+
+    @Test(groups = "fast")
+    public void testPaymentMethodCache() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            final Result result = depositServlet.recordPayments(buildDepositJson(account.getId(), "WIRE-" + i),
+                                                                Optional.<String>empty(),
+                                                                Optional.<String>empty(),
+                                                                Optional.<String>empty(),
+                                                                Optional.<String>empty(),
+                                                                tenant);
+            Assert.assertEquals(result.status().get(), Status.CREATED);
+        }
+
+        // Payment methods are only listed once (the first lookup misses twice: before and after taking the account lock)
+        verifyAccountPaymentMethodsListed(1);
+        Assert.assertEquals(paymentMethodCache.getMissCount(), 2);
+        Assert.assertEquals(paymentMethodCache.getHitCount(), 2);
+        paymentMethodCache.registerGauges(depositMetrics);
+        final String metrics = scrapeMetrics();
+        Assert.assertTrue(metrics.contains("killbill_deposit_cache_misses{cache=\"payment_method\"} 2\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_cache_hits{cache=\"payment_method\"} 2\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_cache_entries{cache=\"payment_method\"} 1\n"), metrics);
+
+        // Other tenants don't see the entry
+        Assert.assertNull(paymentMethodCache.getIfPresent(UUID.randomUUID(), account.getId()));
+
+        final UUID tenantId = tenant.getId();
+        final UUID accountId = account.getId();
+        final ExtBusEvent accountChangeEvent = Mockito.mock(ExtBusEvent.class);
+        Mockito.when(accountChangeEvent.getEventType()).thenReturn(ExtBusEventType.ACCOUNT_CHANGE);
+        Mockito.when(accountChangeEvent.getAccountId()).thenReturn(accountId);
+        Mockito.when(accountChangeEvent.getTenantId()).thenReturn(tenantId);
+        paymentMethodCache.handleKillbillEvent(accountChangeEvent);
+        Assert.assertNull(paymentMethodCache.getIfPresent(tenantId, accountId));
+
+        depositServlet.recordPayments(buildDepositJson(account.getId(), "WIRE-4"),
+                                      Optional.<String>empty(),
+                                      Optional.<String>empty(),
+                                      Optional.<String>empty(),
+                                      Optional.<String>empty(),
+                                      tenant);
+        verifyAccountPaymentMethodsListed(2);
+    }
+
+    @Test(groups = "fast")
+    public void testInvoiceCache() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-" + i, 1)).status().get(), Status.CREATED);
+        }
+        Mockito.verify(invoiceUserApi, Mockito.times(1)).getInvoiceByNumber(Mockito.<Integer>any(), Mockito.<TenantContext>any());
+        Assert.assertEquals(invoiceCache.getHitCount(), 2);
+        invoiceCache.registerGauges(depositMetrics);
+        final String metrics = scrapeMetrics();
+        Assert.assertTrue(metrics.contains("killbill_deposit_cache_hits{cache=\"invoice\"} 2\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_cache_misses{cache=\"invoice\"} " + invoiceCache.getMissCount() + "\n"), metrics);
+        Assert.assertTrue(metrics.contains("killbill_deposit_cache_entries{cache=\"invoice\"} 1\n"), metrics);
+
+        // The unknown invoice is detected before any payment is made
+        Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-3", 1, UNKNOWN_INVOICE_NUMBER)).status().get(), Status.NOT_FOUND);
+        Assert.assertEquals(recordedReferenceNumbers, ImmutableList.<String>of("WIRE-0", "WIRE-1", "WIRE-2"));
+
+        // Several misses are loaded at once
+        final Invoice secondInvoice = buildInvoice(2);
+        final Invoice thirdInvoice = buildInvoice(3);
+        Mockito.when(invoiceUserApi.getInvoicesByAccount(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<Invoice>of(secondInvoice, thirdInvoice));
+        Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-4", 2, 3)).status().get(), Status.CREATED);
+        Mockito.verify(invoiceUserApi, Mockito.times(1)).getInvoicesByAccount(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<TenantContext>any());
+        Assert.assertEquals(invoiceCache.getIfPresent(tenant.getId(), 3).getInvoiceId(), thirdInvoice.getId());
+        Assert.assertNull(invoiceCache.getIfPresent(UUID.randomUUID(), 3));
+
+        // Invoice events clear the entry
+        final UUID invoiceId = invoice.getId();
+        final ExtBusEvent invoiceAdjustmentEvent = Mockito.mock(ExtBusEvent.class);
+        Mockito.when(invoiceAdjustmentEvent.getEventType()).thenReturn(ExtBusEventType.INVOICE_ADJUSTMENT);
+        Mockito.when(invoiceAdjustmentEvent.getObjectType()).thenReturn(ObjectType.INVOICE);
+        Mockito.when(invoiceAdjustmentEvent.getObjectId()).thenReturn(invoiceId);
+        invoiceCache.handleKillbillEvent(invoiceAdjustmentEvent);
+        Assert.assertNull(invoiceCache.getIfPresent(tenant.getId(), 1));
+        Assert.assertNotNull(invoiceCache.getIfPresent(tenant.getId(), 2));
+
+        Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-5", 1)).status().get(), Status.CREATED);
+        // Once for WIRE-0, once for the unknown invoice and once after the invalidation
+        Mockito.verify(invoiceUserApi, Mockito.times(3)).getInvoiceByNumber(Mockito.<Integer>any(), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentInvoicePayments() throws Exception {
+        final List<Invoice> invoices = new ArrayList<Invoice>();
+        for (int i = 1; i <= 12; i++) {
+            invoices.add(buildInvoice(i));
+        }
+        Mockito.when(invoiceUserApi.getInvoicesByAccount(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<TenantContext>any()))
+               .thenReturn(invoices);
+
+        // Sequential by default
+        Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-1", 1, 2, 3, 4)).status().get(), Status.CREATED);
+        Assert.assertEquals(maxInFlightPurchases.get(), 1);
+        Assert.assertEquals(paidInvoiceIds, ImmutableList.<UUID>of(invoices.get(0).getId(), invoices.get(1).getId(), invoices.get(2).getId(), invoices.get(3).getId()));
+
+        // Per-tenant configurations are loaded on first use: use a new tenant
+        tenantConfigs.add("!!org.killbill.billing.plugin.deposit.DepositConfiguration\n" +
+                          "  maxConcurrentPayments: 3");
+        final UUID concurrentTenantId = UUID.randomUUID();
+        final Tenant concurrentTenant = Mockito.mock(Tenant.class);
+        Mockito.when(concurrentTenant.getId()).thenReturn(concurrentTenantId);
+
+        paidInvoiceIds.clear();
+        Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-2", 1, 2, 3, 4, 5, 6, 7, 8), concurrentTenant).status().get(), Status.CREATED);
+        Assert.assertEquals(paidInvoiceIds.size(), 8);
+        Assert.assertTrue(maxInFlightPurchases.get() > 1);
+        Assert.assertTrue(maxInFlightPurchases.get() <= 3);
+
+        // The first failure in request order is reported, whichever completes first
+        failingInvoiceIds.put(invoices.get(9).getId(), ErrorCode.PAYMENT_PLUGIN_API_ABORTED);
+        failingInvoiceIds.put(invoices.get(10).getId(), ErrorCode.PAYMENT_INTERNAL_ERROR);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-3", 9, 10, 11, 12), concurrentTenant).status().get(), Status.UNPROCESSABLE_ENTITY);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReplayedPayments() throws Exception {
+        final UUID tenantId = tenant.getId();
+        // WIRE-1 already paid invoice 1
+        Mockito.when(depositDao.getDepositResponse(Mockito.eq("WIRE-1"), Mockito.eq(1), Mockito.eq(tenantId)))
+               .thenReturn(new DepositResponsesRecord());
+
+        // Not loaded yet: every payment is looked up
+        Assert.assertEquals(depositServlet.recordPayments(buildDepositJson(account.getId(), "WIRE-1", 1, 2),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          tenant).status().get(),
+                            Status.CREATED);
+        Assert.assertEquals(recordedInvoiceNumbers, ImmutableList.<Integer>of(2));
+        Mockito.verify(depositDao, Mockito.times(2)).getDepositResponse(Mockito.<String>any(), Mockito.<Integer>any(), Mockito.<UUID>any());
+
+        // Once loaded, new payments aren't looked up (nor are the ones paid through this node)
+        depositReferenceFilter.refresh(depositDao);
+        Assert.assertEquals(depositServlet.recordPayments(buildDepositJson(account.getId(), "WIRE-2", 1),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          tenant).status().get(),
+                            Status.CREATED);
+        Assert.assertEquals(recordedInvoiceNumbers, ImmutableList.<Integer>of(2, 1));
+        Mockito.verify(depositDao, Mockito.times(2)).getDepositResponse(Mockito.<String>any(), Mockito.<Integer>any(), Mockito.<UUID>any());
+
+        // Replays of payments made through this node are looked up
+        Mockito.when(depositDao.getDepositResponse(Mockito.eq("WIRE-2"), Mockito.eq(1), Mockito.eq(tenantId)))
+               .thenReturn(new DepositResponsesRecord());
+        Assert.assertEquals(depositServlet.recordPayments(buildDepositJson(account.getId(), "WIRE-2", 1),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          Optional.<String>empty(),
+                                                          tenant).status().get(),
+                            Status.CREATED);
+        Assert.assertEquals(recordedInvoiceNumbers, ImmutableList.<Integer>of(2, 1));
+        Mockito.verify(depositDao, Mockito.times(3)).getDepositResponse(Mockito.<String>any(), Mockito.<Integer>any(), Mockito.<UUID>any());
+    }
+
+    @Test(groups = "fast")
+    public void testReferenceFilterLateCommits() throws Exception {
+        final DepositReferenceFilter referenceFilter = new DepositReferenceFilter(1000, 1000);
+        referenceFilter.refresh(depositDao);
+
+        // Record 2 isn't committed yet when records 1 and 3 are read
+        Mockito.when(depositDao.getDepositReferences(Mockito.eq(ULong.valueOf(0)), Mockito.anyInt()))
+               .thenReturn(ImmutableList.<DepositResponsesRecord>of(buildDepositReference(1, "WIRE-1", 1), buildDepositReference(3, "WIRE-3", 1)));
+        referenceFilter.refresh(depositDao);
+        Assert.assertTrue(referenceFilter.mightContain(context.getTenantId(), "WIRE-1", 1));
+        Assert.assertTrue(referenceFilter.mightContain(context.getTenantId(), "WIRE-3", 1));
+        Assert.assertFalse(referenceFilter.mightContain(context.getTenantId(), "WIRE-2", 1));
+        Assert.assertEquals(referenceFilter.getMissingRecordIdsCount(), 1);
+
+        // Read again on the next refresh
+        Mockito.when(depositDao.getDepositReferences(ImmutableList.<ULong>of(ULong.valueOf(2))))
+               .thenReturn(ImmutableList.<DepositResponsesRecord>of(buildDepositReference(2, "WIRE-2", 1)));
+        referenceFilter.refresh(depositDao);
+        Assert.assertTrue(referenceFilter.mightContain(context.getTenantId(), "WIRE-2", 1));
+        Assert.assertEquals(referenceFilter.getMissingRecordIdsCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testDuplicateInvoiceNumbers() throws Exception {
+        // The second payment of invoice 1 would otherwise be reported as already paid
+        Assert.assertEquals(recordPayments(buildDepositJson(account.getId(), "WIRE-1", 1, 2, 1)).status().get(), Status.BAD_REQUEST);
+        Assert.assertTrue(recordedInvoiceNumbers.isEmpty());
+
+        // Zero amounts are skipped, and don't count as duplicates
+        final DepositServlet.DepositJson depositJson = new DepositServlet.DepositJson(account.getId(),
+                                                                                   new DateTime("2021-03-16"),
+                                                                                   "WIRE-2",
+                                                                                   "wire",
+                                                                                   ImmutableList.<DepositServlet.InvoiceDepositJson>of(new DepositServlet.InvoiceDepositJson(1, BigDecimal.TEN),
+                                                                                                                                       new DepositServlet.InvoiceDepositJson(1, BigDecimal.ZERO)));
+        Assert.assertEquals(recordPayments(depositJson).status().get(), Status.CREATED);
+        Assert.assertEquals(recordedInvoiceNumbers, ImmutableList.<Integer>of(1));
+    }
+
+    @Test(groups = "fast")
+    public void testRecordStreamPayments() throws Exception {
+        final UUID unknownAccountId = UUID.randomUUID();
+        final StringBuilder ndjson = new StringBuilder();
+        ndjson.append(PluginAppBuilder.DEFAULT_OBJECT_MAPPER.writeValueAsString(buildDepositJson(account.getId(), "WIRE-1"))).append('\n');
+        ndjson.append(PluginAppBuilder.DEFAULT_OBJECT_MAPPER.writeValueAsString(buildDepositJson(unknownAccountId, "WIRE-2"))).append('\n');
+        ndjson.append("{\"accountId\": \"not-a-uuid\", \"paymentReferenceNumber\": \"WIRE-3\"}\n");
+        ndjson.append(PluginAppBuilder.DEFAULT_OBJECT_MAPPER.writeValueAsString(buildDepositJson(account.getId(), "WIRE-4"))).append('\n');
+        ndjson.append("{\"accountId\": ");
+        final byte[] body = ndjson.toString().getBytes(StandardCharsets.UTF_8);
+
+        final Result result = depositServlet.recordStreamPayments(new DepositNdjsonBody(toBodyReference(body)),
+                                                                  Optional.<String>empty(),
+                                                                  Optional.<String>empty(),
+                                                                  Optional.<String>empty(),
+                                                                  Optional.<String>empty(),
+                                                                  tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+
+        final List<DepositServlet.DepositResultJson> results = readStreamedResults(result);
+
+        // One result per line, the truncated last line ending the stream
+        Assert.assertEquals(results.size(), 5);
+        Assert.assertEquals(results.get(0).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(0).paymentReferenceNumber, "WIRE-1");
+        Assert.assertEquals(results.get(1).status, Status.NOT_FOUND.value());
+        Assert.assertEquals(results.get(1).accountId, unknownAccountId);
+        Assert.assertEquals(results.get(2).status, Status.BAD_REQUEST.value());
+        Assert.assertEquals(results.get(3).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(4).status, Status.BAD_REQUEST.value());
+        Assert.assertEquals(recordedReferenceNumbers, ImmutableList.<String>of("WIRE-1", "WIRE-4"));
+    }
+
+    @Test(groups = "fast")
+    public void testImportBai2() throws Exception {
+        final String bai2 = "01,BANK,COMPANY,210316,1200,1,,,2/\n" +
+                            "02,COMPANY,BANK,1,210316,,USD,2/\n" +
+                            "03,123456789,USD,010,4000,,/\n" +
+                            "16,115,1000,0,LOCKBOX-1,1/\n" +
+                            // Debit: ignored
+                            "16,475,1000,0,CHECK-1,1/\n" +
+                            "16,195,1000,S,0,1000,0,WIRE-2," + UNKNOWN_INVOICE_NUMBER + ",Wire transfer/\n" +
+                            "16,115,1000,0,LOCKBOX-3\n" +
+                            "88,1,Continued/\n" +
+                            "16,115,ABC,0,LOCKBOX-4,1/\n" +
+                            "49,4000,6/\n" +
+                            "98,4000,1,8/\n" +
+                            "99,4000,1,10/\n";
+
+        final Result result = depositServlet.importBai2(new DepositImportBody(toBodyReference(bai2.getBytes(StandardCharsets.US_ASCII))),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        Optional.<String>empty(),
+                                                        tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+
+        final List<DepositServlet.DepositResultJson> results = readStreamedResults(result);
+        Assert.assertEquals(results.size(), 4);
+        Assert.assertEquals(results.get(0).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(0).accountId, account.getId());
+        Assert.assertEquals(results.get(0).paymentReferenceNumber, "LOCKBOX-1");
+        Assert.assertEquals(results.get(1).status, Status.NOT_FOUND.value());
+        Assert.assertEquals(results.get(1).paymentReferenceNumber, "WIRE-2");
+        Assert.assertEquals(results.get(2).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(2).paymentReferenceNumber, "LOCKBOX-3");
+        Assert.assertEquals(results.get(3).status, Status.BAD_REQUEST.value());
+        Assert.assertEquals(ImmutableSet.<String>copyOf(recordedReferenceNumbers), ImmutableSet.<String>of("LOCKBOX-1", "LOCKBOX-3"));
+
+        Assert.assertEquals(depositServlet.importBai2(new DepositImportBody(toBodyReference(bai2.getBytes(StandardCharsets.US_ASCII))),
+                                                      Optional.<String>of("invoiceId"),
+                                                      Optional.<String>empty(),
+                                                      Optional.<String>empty(),
+                                                      Optional.<String>empty(),
+                                                      Optional.<String>empty(),
+                                                      tenant).status().get(),
+                            Status.BAD_REQUEST);
+    }
+
+    @Test(groups = "fast")
+    public void testImportLockbox() throws Exception {
+        final Invoice olderInvoice = buildInvoice(7);
+        Mockito.when(olderInvoice.getInvoiceDate()).thenReturn(new LocalDate("2021-01-01"));
+        Mockito.when(olderInvoice.getBalance()).thenReturn(new BigDecimal("20"));
+        final Invoice newerInvoice = buildInvoice(8);
+        Mockito.when(newerInvoice.getInvoiceDate()).thenReturn(new LocalDate("2021-02-01"));
+        Mockito.when(newerInvoice.getBalance()).thenReturn(new BigDecimal("50"));
+        Mockito.when(invoiceUserApi.getUnpaidInvoicesByAccountId(Mockito.<UUID>any(), Mockito.<LocalDate>any(), Mockito.<LocalDate>any(), Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<Invoice>of(newerInvoice, olderInvoice));
+
+        final String lockbox = "100COMPANY    BANK      2103161200\n" +
+                               "5001LB00012210316\n" +
+                               // Two invoices
+                               buildLockboxPayment("001", 2500, null) +
+                               buildLockboxRemittance("001", "1", 1500, null) +
+                               buildLockboxRemittance("001", "2", 1000, null) +
+                               // Applied to the oldest unpaid invoices of the account
+                               buildLockboxPayment("002", 3000, ACCOUNT_EXTERNAL_KEY) +
+                               // Remittance records don't add up
+                               buildLockboxPayment("003", 1000, null) +
+                               buildLockboxRemittance("003", "1", 900, null) +
+                               buildLockboxPayment("004", 1000, "UNKNOWN") +
+                               // More than the unpaid invoices
+                               buildLockboxPayment("005", 100000, ACCOUNT_EXTERNAL_KEY) +
+                               "7001000000107500\n" +
+                               "9000005\n";
+
+        final Result result = depositServlet.importLockbox(new DepositImportBody(toBodyReference(lockbox.getBytes(StandardCharsets.US_ASCII))),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+
+        final List<DepositServlet.DepositResultJson> results = readStreamedResults(result);
+        Assert.assertEquals(results.size(), 5);
+        Assert.assertEquals(results.get(0).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(0).paymentReferenceNumber, "LB00012-210316-001-001");
+        Assert.assertEquals(results.get(1).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(1).accountId, account.getId());
+        Assert.assertEquals(results.get(2).status, Status.BAD_REQUEST.value());
+        Assert.assertEquals(results.get(3).status, Status.NOT_FOUND.value());
+        Assert.assertEquals(results.get(4).status, Status.UNPROCESSABLE_ENTITY.value());
+
+        // 20 on the older invoice, the remaining 10 on the newer one
+        Assert.assertEquals(paidInvoiceIds.size(), 4);
+        Assert.assertTrue(paidInvoiceIds.contains(olderInvoice.getId()));
+        Assert.assertTrue(paidInvoiceIds.contains(newerInvoice.getId()));
+    }
+
+    @Test(groups = "fast")
+    public void testImportLockboxSameAccount() throws Exception {
+        final Invoice olderInvoice = buildInvoice(7);
+        Mockito.when(olderInvoice.getInvoiceDate()).thenReturn(new LocalDate("2021-01-01"));
+        Mockito.when(olderInvoice.getBalance()).thenReturn(new BigDecimal("20"));
+        final Invoice newerInvoice = buildInvoice(8);
+        Mockito.when(newerInvoice.getInvoiceDate()).thenReturn(new LocalDate("2021-02-01"));
+        Mockito.when(newerInvoice.getBalance()).thenReturn(new BigDecimal("50"));
+        Mockito.when(invoiceUserApi.getUnpaidInvoicesByAccountId(Mockito.<UUID>any(), Mockito.<LocalDate>any(), Mockito.<LocalDate>any(), Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<Invoice>of(newerInvoice, olderInvoice));
+
+        final StringBuilder lockbox = new StringBuilder("100COMPANY    BANK      2103161200\n" +
+                                                        "5001LB00012210316\n" +
+                                                        // Two items for the same account: 15 on the older invoice, then 5 on the older one and 20 on the newer one
+                                                        buildLockboxPayment("001", 4000, null) +
+                                                        buildLockboxRemittance("001", null, 1500, ACCOUNT_EXTERNAL_KEY) +
+                                                        buildLockboxRemittance("001", null, 2500, ACCOUNT_EXTERNAL_KEY));
+        // Other remittances of the same account
+        for (int i = 2; i <= 8; i++) {
+            lockbox.append(buildLockboxPayment(String.format("%03d", i), 1000, ACCOUNT_EXTERNAL_KEY));
+        }
+        lockbox.append("7001000000011000\n" +
+                       "9000008\n");
+
+        final Result result = depositServlet.importLockbox(new DepositImportBody(toBodyReference(lockbox.toString().getBytes(StandardCharsets.US_ASCII))),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+        final List<DepositServlet.DepositResultJson> results = readStreamedResults(result);
+        Assert.assertEquals(results.size(), 8);
+        for (final DepositServlet.DepositResultJson depositResult : results) {
+            Assert.assertEquals(depositResult.status, Status.CREATED.value());
+        }
+
+        // One payment per invoice for the first remittance
+        final UUID olderInvoiceId = olderInvoice.getId();
+        final UUID newerInvoiceId = newerInvoice.getId();
+        Mockito.verify(killbillApi.getInvoicePaymentApi(), Mockito.times(1))
+               .createPurchaseForInvoicePayment(Mockito.<Account>any(),
+                                                Mockito.eq(olderInvoiceId),
+                                                Mockito.<UUID>any(),
+                                                Mockito.<UUID>any(),
+                                                Mockito.argThat(amount -> amount != null && amount.compareTo(new BigDecimal("20")) == 0),
+                                                Mockito.any(),
+                                                Mockito.<DateTime>any(),
+                                                Mockito.<String>any(),
+                                                Mockito.<String>any(),
+                                                Mockito.<Iterable<PluginProperty>>any(),
+                                                Mockito.any(),
+                                                Mockito.<CallContext>any());
+        Mockito.verify(killbillApi.getInvoicePaymentApi(), Mockito.times(1))
+               .createPurchaseForInvoicePayment(Mockito.<Account>any(),
+                                                Mockito.eq(newerInvoiceId),
+                                                Mockito.<UUID>any(),
+                                                Mockito.<UUID>any(),
+                                                Mockito.argThat(amount -> amount != null && amount.compareTo(new BigDecimal("20")) == 0),
+                                                Mockito.any(),
+                                                Mockito.<DateTime>any(),
+                                                Mockito.<String>any(),
+                                                Mockito.<String>any(),
+                                                Mockito.<Iterable<PluginProperty>>any(),
+                                                Mockito.any(),
+                                                Mockito.<CallContext>any());
+
+        // Remittances of the account were applied one at a time
+        Assert.assertEquals(maxInFlightPurchases.get(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testReimportedLockboxIsNotAllocatedTwice() throws Exception {
+        // The first import paid 20 on the older invoice, and failed (e.g. 503) before paying the remaining 10 on the newer one
+        final Invoice newerInvoice = buildInvoice(8);
+        Mockito.when(newerInvoice.getInvoiceDate()).thenReturn(new LocalDate("2021-02-01"));
+        Mockito.when(newerInvoice.getBalance()).thenReturn(new BigDecimal("50"));
+        Mockito.when(invoiceUserApi.getUnpaidInvoicesByAccountId(Mockito.<UUID>any(), Mockito.<LocalDate>any(), Mockito.<LocalDate>any(), Mockito.<TenantContext>any()))
+               .thenReturn(ImmutableList.<Invoice>of(newerInvoice));
+        final DepositResponsesRecord olderInvoicePayment = buildDepositReference(1, "LB00012-210316-001-001", 7);
+        olderInvoicePayment.setAmount(new BigDecimal("20"));
+        Mockito.when(depositDao.getDepositResponses(Mockito.eq("LB00012-210316-001-001"), Mockito.eq(account.getId()), Mockito.eq(tenant.getId())))
+               .thenReturn(ImmutableList.<DepositResponsesRecord>of(olderInvoicePayment));
+        Mockito.when(depositDao.getDepositResponse(Mockito.eq("LB00012-210316-001-001"), Mockito.eq(7), Mockito.eq(tenant.getId())))
+               .thenReturn(olderInvoicePayment);
+
+        final String lockbox = "100COMPANY    BANK      2103161200\n" +
+                               "5001LB00012210316\n" +
+                               buildLockboxPayment("001", 3000, ACCOUNT_EXTERNAL_KEY) +
+                               "7001000000003000\n" +
+                               "9000001\n";
+        final Result result = depositServlet.importLockbox(new DepositImportBody(toBodyReference(lockbox.getBytes(StandardCharsets.US_ASCII))),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           Optional.<String>empty(),
+                                                           tenant);
+        Assert.assertEquals(result.status().get(), Status.OK);
+        final List<DepositServlet.DepositResultJson> results = readStreamedResults(result);
+        Assert.assertEquals(results.size(), 1);
+        Assert.assertEquals(results.get(0).status, Status.CREATED.value());
+        Assert.assertEquals(results.get(0).paymentReferenceNumber, "LB00012-210316-001-001");
+
+        // The older invoice is reported as already paid: only the remaining 10 is paid, on the newer invoice
+        Assert.assertEquals(recordedInvoiceNumbers, ImmutableList.<Integer>of(8));
+        Mockito.verify(killbillApi.getInvoicePaymentApi(), Mockito.times(1))
+               .createPurchaseForInvoicePayment(Mockito.<Account>any(),
+                                                Mockito.eq(newerInvoice.getId()),
+                                                Mockito.<UUID>any(),
+                                                Mockito.<UUID>any(),
+                                                Mockito.argThat(amount -> amount != null && amount.compareTo(new BigDecimal("10")) == 0),
+                                                Mockito.any(),
+                                                Mockito.<DateTime>any(),
+                                                Mockito.<String>any(),
+                                                Mockito.<String>any(),
+                                                Mockito.<Iterable<PluginProperty>>any(),
+                                                Mockito.any(),
+                                                Mockito.<CallContext>any());
+    }
+
+    private String scrapeMetrics() throws Exception {
+        depositExecutors.registerGauges(depositMetrics);
+        final Result result = new DepositMetricsServlet(depositMetrics).scrape();
+        Assert.assertEquals(result.status().get(), Status.OK);
+        Assert.assertEquals(result.type().get().name(), "text/plain");
+        return new String(result.<byte[]>get(), StandardCharsets.UTF_8);
+    }
+
+    private Result recordPayments(final DepositServlet.DepositJson depositJson) throws Exception {
+        return recordPayments(depositJson, tenant);
+    }
+
+    private Result recordPayments(final DepositServlet.DepositJson depositJson, final Tenant depositTenant) throws Exception {
+        return depositServlet.recordPayments(depositJson,
+                                             Optional.<String>empty(),
+                                             Optional.<String>empty(),
+                                             Optional.<String>empty(),
+                                             Optional.<String>empty(),
+                                             depositTenant);
+    }
+
+    private Invoice buildInvoice(final Integer invoiceNumber) {
+        final UUID invoiceId = UUID.randomUUID();
+        final UUID accountId = account.getId();
+        final Invoice newInvoice = Mockito.mock(Invoice.class);
+        Mockito.when(newInvoice.getId()).thenReturn(invoiceId);
+        Mockito.when(newInvoice.getAccountId()).thenReturn(accountId);
+        Mockito.when(newInvoice.getCurrency()).thenReturn(DEFAULT_CURRENCY);
+        Mockito.when(newInvoice.getInvoiceNumber()).thenReturn(invoiceNumber);
+        return newInvoice;
+    }
+
+    private static Parser.BodyReference toBodyReference(final byte[] body) {
+        return new Parser.BodyReference() {
+            @Override
+            public byte[] bytes() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String text() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long length() {
+                return body.length;
+            }
+
+            // Small chunks, to split records (and tokens) across writes
+            @Override
+            public void writeTo(final OutputStream output) throws Exception {
+                for (int i = 0; i < body.length; i += 7) {
+                    output.write(body, i, Math.min(7, body.length - i));
+                }
+            }
+        };
+    }
+
+    private static List<DepositServlet.DepositResultJson> readStreamedResults(final Result result) throws Exception {
+        final List<DepositServlet.DepositResultJson> results = new ArrayList<DepositServlet.DepositResultJson>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(result.<InputStream>get(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                results.add(PluginAppBuilder.DEFAULT_OBJECT_MAPPER.readValue(line, DepositServlet.DepositResultJson.class));
+            }
+        }
+        return results;
+    }
+
+    private static String buildLockboxPayment(final String itemNumber, final long amountInCents, final String accountExternalKey) {
+        return String.format("6001%3s%010d%9s%10s%10s%-20s\n", itemNumber, amountInCents, "021000021", "1234567890", "100" + itemNumber, accountExternalKey == null ? "" : accountExternalKey);
+    }
+
+    private static String buildLockboxRemittance(final String itemNumber, final String invoiceNumber, final long amountInCents, final String accountExternalKey) {
+        return String.format("4001%3s%15s%010d%-20s\n", itemNumber, invoiceNumber == null ? "" : invoiceNumber, amountInCents, accountExternalKey == null ? "" : accountExternalKey);
+    }
+
+    private void verifyAccountPaymentMethodsListed(final int times) throws Exception {
+        Mockito.verify(paymentApi, Mockito.times(times)).getAccountPaymentMethods(Mockito.<UUID>any(),
+                                                                                  Mockito.anyBoolean(),
+                                                                                  Mockito.anyBoolean(),
+                                                                                  Mockito.<Iterable<PluginProperty>>any(),
+                                                                                  Mockito.<TenantContext>any());
+    }
+
+    private DepositResponsesRecord buildDepositReference(final long recordId, final String paymentReferenceNumber, final int invoiceNumber) {
+        final DepositResponsesRecord depositReference = new DepositResponsesRecord();
+        depositReference.setRecordId(ULong.valueOf(recordId));
+        depositReference.setKbTenantId(context.getTenantId().toString());
+        depositReference.setDepositReferenceNumber(paymentReferenceNumber);
+        depositReference.setDepositInvoiceNumber(invoiceNumber);
+        return depositReference;
+    }
+
+    private DepositServlet.DepositJson buildDepositJson(final UUID accountId, final String paymentReferenceNumber) {
+        return buildDepositJson(accountId, paymentReferenceNumber, 1);
+    }
+
+    private DepositServlet.DepositJson buildDepositJson(final UUID accountId, final String paymentReferenceNumber, final Integer... invoiceNumbers) {
+        final List<DepositServlet.InvoiceDepositJson> payments = new ArrayList<DepositServlet.InvoiceDepositJson>();
+        for (final Integer invoiceNumber : invoiceNumbers) {
+            payments.add(new DepositServlet.InvoiceDepositJson(invoiceNumber, BigDecimal.TEN));
+        }
+        return new DepositServlet.DepositJson(accountId,
+                                              new DateTime("2021-03-16"),
+                                              paymentReferenceNumber,
+                                              "wire",
+                                              payments);
+    }
+}